@@ -0,0 +1,94 @@
+package bam.algorithms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A table of the number of times the teacher has taken
+ * each action in each state.  The log-likelihood of a
+ * set of actions only depends on these counts, so agents
+ * can compute its gradient once for each distinct pair,
+ * weighted by its count, rather than once for each action
+ * observed.  Pairs are listed in the order they were first
+ * observed.
+ */
+public final class ActionCounts {
+
+    // The position of each state-action pair in the table
+    private final HashMap<Long, Integer> positions = new HashMap<>();
+
+    // The state, action and count of each entry
+    private int[] states = new int[16];
+    private int[] actions = new int[16];
+    private int[] counts = new int[16];
+
+    // The number of distinct pairs, and the total number of observations
+    private int size = 0;
+    private int total = 0;
+
+    /**
+     * Adds a single observed action to the table.
+     *
+     * @param action the observed state-action pair
+     */
+    public void add(TeacherAction action) {
+        long key = ((long) action.state << 32) | (action.action & 0xffffffffL);
+        Integer position = positions.get(key);
+
+        if(null == position) {
+            if(size == states.length) {
+                states = Arrays.copyOf(states, 2 * size);
+                actions = Arrays.copyOf(actions, 2 * size);
+                counts = Arrays.copyOf(counts, 2 * size);
+            }
+
+            position = size++;
+            positions.put(key, position);
+
+            states[position] = action.state;
+            actions[position] = action.action;
+        }
+
+        ++counts[position];
+        ++total;
+    }
+
+    /**
+     * Gets the number of distinct state-action pairs.
+     *
+     * @return the number of entries in the table
+     */
+    public int size() { return size; }
+
+    /**
+     * Gets the total number of actions observed.
+     *
+     * @return the number of observations
+     */
+    public int total() { return total; }
+
+    /**
+     * Gets the state of an entry.
+     *
+     * @param entry the entry
+     * @return the state
+     */
+    public int state(int entry) { return states[entry]; }
+
+    /**
+     * Gets the action of an entry.
+     *
+     * @param entry the entry
+     * @return the action
+     */
+    public int action(int entry) { return actions[entry]; }
+
+    /**
+     * Gets the number of times the action of an
+     * entry was taken in its state.
+     *
+     * @param entry the entry
+     * @return the count
+     */
+    public int count(int entry) { return counts[entry]; }
+}
@@ -3,9 +3,12 @@ package bam.algorithms;
 import bam.algorithms.feedback.FeedbackModel;
 import bam.algorithms.feedback.NoFeedback;
 import bam.algorithms.optimization.Optimization;
+import bam.algorithms.planning.BatchPlanner;
 import bam.algorithms.planning.ModelGraph;
 import bam.algorithms.planning.Planner;
 import bam.algorithms.planning.PlanningAlgorithm;
+import bam.algorithms.planning.PrunedGraph;
+import bam.algorithms.planning.QuotientBatchPlanner;
 import bam.algorithms.action.ActionModel;
 import bam.algorithms.action.BoltzmannActionModel;
 import bam.algorithms.action.GreedyActionModel;
@@ -15,7 +18,6 @@ import org.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * An implementation of the BAM algorithm.
@@ -35,12 +37,33 @@ public class BAM implements Agent {
         // The number of EM updates to perform to integrate new data
         private int em_updates = 10;
 
+        // The relative change in the intent means below which task updates stop early, or zero to never stop early
+        private double intent_tolerance = 0.0;
+
+        // The relative change in the transition probabilities below which dynamics updates stop early, or zero to never stop early
+        private double dynamics_tolerance = 0.0;
+
         // Whether or not transition data should be used to improve the dynamics model
         private boolean use_transitions = true;
 
         // Whether or not to reinitialize the parameters when new data is integrated
         private boolean reinitialize = false;
 
+        // Whether or not to plan for all tasks together in a single pass
+        private boolean joint_planning = false;
+
+        // Whether or not to only plan over the states reachable from those where the teacher was observed
+        private boolean prune_graph = false;
+
+        // Whether or not to plan over blocks of bisimilar states during task updates, dynamics updates always plan over states
+        private boolean lump_states = false;
+
+        // The number of threads used to update tasks in parallel, or zero for one per processor
+        private int num_threads = 1;
+
+        // The number of threads used to evaluate the intent samples of each task, or zero for one per processor
+        private int sample_threads = 1;
+
         // The name of this algorithm
         private String name = "BAM";
 
@@ -85,6 +108,18 @@ public class BAM implements Agent {
             return this;
         }
 
+        public Builder intentTolerance(double intent_tolerance) {
+            this.intent_tolerance = intent_tolerance;
+
+            return this;
+        }
+
+        public Builder dynamicsTolerance(double dynamics_tolerance) {
+            this.dynamics_tolerance = dynamics_tolerance;
+
+            return this;
+        }
+
         public Builder useTransitions(boolean use_transitions) {
             this.use_transitions = use_transitions;
 
@@ -97,6 +132,36 @@ public class BAM implements Agent {
             return this;
         }
 
+        public Builder jointPlanning(boolean joint_planning) {
+            this.joint_planning = joint_planning;
+
+            return this;
+        }
+
+        public Builder pruneGraph(boolean prune_graph) {
+            this.prune_graph = prune_graph;
+
+            return this;
+        }
+
+        public Builder lumpStates(boolean lump_states) {
+            this.lump_states = lump_states;
+
+            return this;
+        }
+
+        public Builder numThreads(int num_threads) {
+            this.num_threads = num_threads;
+
+            return this;
+        }
+
+        public Builder sampleThreads(int sample_threads) {
+            this.sample_threads = sample_threads;
+
+            return this;
+        }
+
         public Builder dynamicsOptimization(Optimization optimization) {
             dynamics_optimization = optimization;
 
@@ -137,6 +202,9 @@ public class BAM implements Agent {
             if(null == task_source)
                 throw new RuntimeException("DUMBASS!!! No task distribution source defined");
 
+            if(prune_graph && planning_algorithm.stationaryOnly())
+                throw new RuntimeException("The planning algorithm cannot plan over pruned graphs");
+
             if(null == action_model)
                 action_model = BoltzmannActionModel.get();
 
@@ -163,8 +231,15 @@ public class BAM implements Agent {
                             .put("dynamics updates", dynamics_updates)
                             .put("task updates", task_updates)
                             .put("em updates", em_updates)
+                            .put("intent tolerance", intent_tolerance)
+                            .put("dynamics tolerance", dynamics_tolerance)
                             .put("use transitions", use_transitions)
                             .put("reinitialize", reinitialize)
+                            .put("joint planning", joint_planning)
+                            .put("prune graph", prune_graph)
+                            .put("lump states", lump_states)
+                            .put("threads", num_threads)
+                            .put("sample threads", sample_threads)
                             .put("dynamics optimization", dynamics_optimization.serialize())
                             .put("planning algorithm", planning_algorithm.serialize())
                             .put("task source", task_source.serialize())
@@ -184,8 +259,15 @@ public class BAM implements Agent {
                 .dynamicsUpdates(config.getInt("dynamics updates"))
                 .taskUpdates(config.getInt("task updates"))
                 .emUpdates(config.getInt("em updates"))
+                .intentTolerance(config.optDouble("intent tolerance", 0.0))
+                .dynamicsTolerance(config.optDouble("dynamics tolerance", 0.0))
                 .useTransitions(config.getBoolean("use transitions"))
                 .reinitialize(config.getBoolean("reinitialize"))
+                .jointPlanning(config.optBoolean("joint planning", false))
+                .pruneGraph(config.optBoolean("prune graph", false))
+                .lumpStates(config.optBoolean("lump states", false))
+                .numThreads(config.optInt("threads", 1))
+                .sampleThreads(config.optInt("sample threads", 1))
                 .dynamicsOptimization(Optimization.load(config.getJSONObject("dynamics optimization")))
                 .planningAlgorithm(PlanningAlgorithm.load(config.getJSONObject("planning algorithm")))
                 .taskSource(Variational.load(config.getJSONObject("task source")))
@@ -197,8 +279,8 @@ public class BAM implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -209,15 +291,18 @@ public class BAM implements Agent {
         // The current policy for this task
         double[][] policy;
 
+        // The number of task updates used in the last task phase
+        int num_updates = 0;
+
         TaskModel(String name) {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
-            intent = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current());
+            intent = config.task_source.density(rewards.intentSize(), new Random(seeds.nextLong()));
 
             // Construct policy buffer
             policy = new double[dynamics.numStates()][];
@@ -244,40 +329,92 @@ public class BAM implements Agent {
             }
         }
 
-        // Propagates the data associated with this
-        void propagate() {
+        // Propagates the data associated with this task through the workspaces of a worker, over the full graph if the dynamics are being trained
+        void propagate(int worker, boolean train_dynamics) {
+
+            // Draw a batch of intent samples, and plan for each range of samples in a single pass
+            intent.nextBatch();
+            sample_pool.forEach(intent.numSamples(), (int range, int first, int last) ->
+                    propagate(workspace(worker, range), first, last - first, train_dynamics));
+
+            // propagate intent, in sample order
+            int num_ranges = Math.min(sample_pool.numThreads(), intent.numSamples());
+
+            for(int range = 0; range < num_ranges; ++range) {
+                Workspace workspace = workspace(worker, range);
+
+                for(int sample = 0; sample < workspace.num_samples; ++sample)
+                    intent.train(workspace.first + sample, workspace.intent_gradients[sample]);
+            }
+        }
+
+        // Propagates the data associated with this task for a range of its intent samples, on the given workspace
+        void propagate(Workspace workspace, int first, int num_samples, boolean train_dynamics) {
+            BatchPlanner planner = train_dynamics ? workspace.model_planner : workspace.planner;
+
+            // Set the intent samples in the workspace graph
+            workspace.cover(first, num_samples);
+            workspace.graph.setSamples(num_samples);
+
+            for(int sample = 0; sample < workspace.num_samples; ++sample)
+                workspace.graph.setIntent(sample, intent.value(workspace.first + sample));
+
+            // Get Q-functions from the planner
+            double[][][] Q = planner.values();
+            workspace.jacobian = jacobian(workspace.jacobian, workspace.num_samples, planner);
+
+            // Compute the Jacobian for each sample
+            gradient(0, workspace.num_samples, Q, workspace.jacobian);
+
+            // Backpropagate through planner, dynamics gradients are held by the workspace graph until flushed
+            planner.train(workspace.jacobian);
+
+            // Keep the intent gradients until the density is trained
+            for(int sample = 0; sample < workspace.num_samples; ++sample) {
+                final double[] target = workspace.intent_gradients[sample];
+                workspace.graph.intentGradient(sample,
+                        (double[] gradient) -> System.arraycopy(gradient, 0, target, 0, target.length));
+            }
+        }
+
+        // Draws a batch of intent samples, and sets them as intents in the planning graph, starting at the offset
+        void sample(ModelGraph graph, int offset) {
+            intent.nextBatch();
+
+            for(int sample = 0; sample < intent.numSamples(); ++sample)
+                graph.setIntent(offset + sample, intent.value(sample));
+        }
+
+        // Computes the Jacobian of the data w.r.t. the Q-functions of a number of this task's samples, starting at the offset
+        void gradient(int offset, int num_samples, double[][][] Q, double[][][] jacobian) {
 
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
             // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
-
-                // Set the next sample as the intent
-                intent.nextSample();
-                graph.setIntent(intent.value());
-
-                // Get Q-function from the planner
-                double[][] Q = planner.values();
+            for(int sample = offset; sample < offset + num_samples; ++sample) {
 
                 // Initialize Jacobian
-                for(int state = 0; state < jacobian.length; ++state)
-                    Arrays.fill(jacobian[state], 0.0);
+                for(int state = 0; state < jacobian[sample].length; ++state)
+                    Arrays.fill(jacobian[sample][state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[sample][feedback.state(entry)], jacobian[sample][feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
-
-                // Backpropagate through planner
-                planner.train(jacobian);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[sample][actions.state(entry)], jacobian[sample][actions.state(entry)], scale * actions.count(entry));
+            }
+        }
 
-                // propagate intent
-                graph.intentGradient(intent::train);
+        // Passes the intent gradients of this task's samples, starting at the offset, to the intent distribution
+        void train(ModelGraph graph, int offset) {
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+                final int index = sample;
+                graph.intentGradient(offset + sample, (double[] gradient) -> intent.train(index, gradient));
             }
         }
 
@@ -287,6 +424,61 @@ public class BAM implements Agent {
         }
     }
 
+    /**
+     * A planning workspace for one worker, which plans for
+     * a range of one task's intent samples at a time.  There
+     * is one workspace for each task worker and each of its
+     * sample workers, however many tasks there are.  Each
+     * workspace has its own graph, which holds the dynamics
+     * gradients of its samples until they are flushed, so
+     * workspaces can run in parallel.  With a single worker,
+     * the only workspace plans over the shared graph, and
+     * its gradients go straight to the dynamics model.
+     */
+    private class Workspace {
+
+        // The range of intent samples covered by the current pass
+        int first = 0;
+        int num_samples = 0;
+
+        // The planning graph, the planners for task and dynamics updates, and the backpropagation buffer
+        final ModelGraph graph;
+        BatchPlanner planner;
+        BatchPlanner model_planner;
+        double[][][] jacobian;
+
+        // The intent gradients of the current pass, one for each sample
+        double[][] intent_gradients;
+
+        Workspace(ModelGraph graph) {
+            this.graph = graph;
+
+            build();
+            jacobian = new double[0][][];
+            intent_gradients = new double[0][];
+        }
+
+        // Builds the planners of this workspace
+        void build() {
+            planner = batchPlanner(graph, config.lump_states);
+            model_planner = config.lump_states ? batchPlanner(graph, false) : planner;
+        }
+
+        // Sets the range of intent samples covered by the current pass, making room for their gradients
+        void cover(int first, int num_samples) {
+            this.first = first;
+            this.num_samples = num_samples;
+
+            if(intent_gradients.length < num_samples) {
+                int capacity = intent_gradients.length;
+                intent_gradients = Arrays.copyOf(intent_gradients, num_samples);
+
+                for(int sample = capacity; sample < num_samples; ++sample)
+                    intent_gradients[sample] = new double[rewards.intentSize()];
+            }
+        }
+    }
+
     // The builder object that generated this class, used for configuration
     private Builder config;
 
@@ -302,11 +494,33 @@ public class BAM implements Agent {
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
+    // The batch planning modules for task and dynamics updates, used to plan for the intent samples of all tasks at once, null unless planning jointly
+    private BatchPlanner batch_planner;
+    private BatchPlanner model_planner;
+
+    // The states where the teacher has been observed, used to prune the planning graph
+    private final Set<Integer> roots;
+
+    // The number of observed states when the batch planner was last built
+    private int num_roots = 0;
+
+    // A buffer for backpropagating teacher data, one for each intent sample
+    private double[][][] jacobian;
+
+    // The threads used to update tasks in parallel
+    private final TaskPool pool;
+
+    // The threads used to evaluate the intent samples of a task in parallel
+    private final TaskPool sample_pool;
+
+    // The planning workspaces, indexed by task worker and sample worker, created when first used
+    private final Workspace[][] workspaces;
 
     // The transition data
-    private final List<StateTransition> transitions;
+    private final TransitionCounts transitions;
+
+    // Seeds the random number generator of each intent density, so no generator is shared between threads
+    private final Random seeds;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
@@ -314,9 +528,15 @@ public class BAM implements Agent {
     // The current task
     private TaskModel task = null;
 
+    // Whether any tasks or data have been added since the last integration
+    private boolean changed = true;
+
     private BAM(Representation representation, Builder config) {
         this.config = config;
 
+        // Initialize the source of density seeds
+        seeds = new Random();
+
         // Get reward mapping
         this.rewards = representation.rewards();
 
@@ -327,26 +547,200 @@ public class BAM implements Agent {
         // Build planning graph
         graph = ModelGraph.of(dynamics, rewards);
 
-        // Initialize planner
+        // Initialize observed state set
+        roots = new HashSet<>();
+
+        // Initialize planners, the joint planners are only needed if all tasks are planned together
         planner = config.planning_algorithm.planner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
+        if(config.joint_planning) {
+            batch_planner = batchPlanner(graph, config.lump_states);
+            model_planner = config.lump_states ? batchPlanner(graph, false) : batch_planner;
+        }
 
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
+        // Initialize backpropagation buffer, allocated as samples are requested
+        jacobian = new double[0][][];
 
-        // Initialize task set
+        // Initialize task set, and the threads to update them
         tasks = new HashMap<>();
+        pool = TaskPool.with(config.num_threads);
+        sample_pool = TaskPool.with(config.sample_threads);
+
+        // Initialize planning workspaces, one for each worker
+        workspaces = new Workspace[pool.numThreads()][sample_pool.numThreads()];
 
         // Initialize transition set
-        transitions = new LinkedList<>();
+        transitions = new TransitionCounts();
+    }
+
+    /**
+     * Propagates the data associated with every task
+     * in a single planning pass, with the intent
+     * samples of all tasks in the same batch.
+     *
+     * @param train_dynamics whether the dynamics are being trained, so the full graph must be planned over
+     */
+    private void propagate(boolean train_dynamics) {
+        BatchPlanner pass_planner = train_dynamics ? model_planner : batch_planner;
+
+        // Count the intent samples of every task
+        int num_samples = 0;
+
+        for(TaskModel task : tasks.values())
+            num_samples += task.intent.numSamples();
+
+        if(0 == num_samples)
+            return;
+
+        // Draw a batch of intent samples for each task
+        graph.setSamples(num_samples);
+        int offset = 0;
+
+        for(TaskModel task : tasks.values()) {
+            task.sample(graph, offset);
+            offset += task.intent.numSamples();
+        }
+
+        // Get Q-functions from the planner
+        double[][][] Q = pass_planner.values();
+        jacobian = jacobian(jacobian, num_samples, pass_planner);
+
+        // Compute the Jacobian for each task
+        offset = 0;
+
+        for(TaskModel task : tasks.values()) {
+            task.gradient(offset, task.intent.numSamples(), Q, jacobian);
+            offset += task.intent.numSamples();
+        }
+
+        // Backpropagate through planner, the dynamics gradients of all tasks are accumulated together
+        pass_planner.train(jacobian);
+
+        // propagate intents
+        offset = 0;
+
+        for(TaskModel task : tasks.values()) {
+            task.train(graph, offset);
+            offset += task.intent.numSamples();
+        }
+    }
+
+    /**
+     * Gets a backpropagation buffer, making
+     * sure it has room for the given number of
+     * intent samples.
+     *
+     * @param jacobian the current buffer
+     * @param num_samples the number of samples
+     * @param batch_planner the planner the buffer is used with
+     * @return the backpropagation buffer, which may be a new array
+     */
+    private static double[][][] jacobian(double[][][] jacobian, int num_samples, BatchPlanner batch_planner) {
+        if(jacobian.length < num_samples) {
+            int capacity = jacobian.length;
+            jacobian = Arrays.copyOf(jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                jacobian[sample] = new double[batch_planner.numStates()][];
+
+                for(int state = 0; state < batch_planner.numStates(); ++state)
+                    jacobian[sample][state] = new double[batch_planner.numActions(state)];
+            }
+        }
+
+        return jacobian;
+    }
+
+    /**
+     * Builds the batch planner, over the blocks of bisimilar
+     * states if states are lumped, and over the states
+     * reachable from those where the teacher has been
+     * observed if the graph is pruned and any have been.
+     * A lumped planner does not pass on transition gradients,
+     * as the quotient only sees the total weight of each
+     * block's transitions, so it is only used for task updates.
+     *
+     * @param graph the planning graph
+     * @param lump whether to plan over blocks of bisimilar states
+     * @return the batch planner
+     */
+    private BatchPlanner batchPlanner(ModelGraph graph, boolean lump) {
+        boolean pruned = config.prune_graph && !roots.isEmpty();
+
+        if(lump)
+            return QuotientBatchPlanner.of(config.planning_algorithm, graph, dynamics, rewards, pruned ? roots : null);
+
+        if(pruned)
+            return config.planning_algorithm.batchPlanner(PrunedGraph.of(graph, roots));
+
+        return config.planning_algorithm.batchPlanner(graph);
+    }
+
+    /**
+     * Gets the planning workspace of a task worker and one of
+     * its sample workers, creating it if it has not been used.
+     * With a single worker overall, the workspace plans over
+     * the shared graph, otherwise it has its own graph.
+     *
+     * @param worker the task worker
+     * @param range the sample worker
+     * @return the workspace
+     */
+    private synchronized Workspace workspace(int worker, int range) {
+        if(null == workspaces[worker][range]) {
+            boolean shared = 1 == workspaces.length * workspaces[worker].length;
+
+            workspaces[worker][range] = new Workspace(shared ? graph : ModelGraph.workspace(dynamics, rewards));
+        }
+
+        return workspaces[worker][range];
+    }
+
+    /**
+     * Passes the dynamics gradients held by the workspaces
+     * to the model, in a fixed order, or discards them.
+     *
+     * @param train whether to pass the gradients to the model
+     */
+    private void flush(boolean train) {
+        for(Workspace[] row : workspaces)
+            for(Workspace workspace : row)
+                if(null != workspace) {
+                    if(train)
+                        workspace.graph.flush();
+                    else
+                        workspace.graph.discard();
+                }
+    }
+
+    /**
+     * Rebuilds the batch planners over graphs which only
+     * include the states reachable from those where the
+     * teacher has been observed, if any new states have
+     * been observed since they were last built.
+     */
+    private void prune() {
+        if(config.prune_graph && roots.size() != num_roots) {
+            if(config.joint_planning) {
+                batch_planner = batchPlanner(graph, config.lump_states);
+                model_planner = config.lump_states ? batchPlanner(graph, false) : batch_planner;
+            }
+
+            for(Workspace[] row : workspaces)
+                for(Workspace workspace : row)
+                    if(null != workspace)
+                        workspace.build();
+
+            num_roots = roots.size();
+        }
     }
 
     @Override
     public void task(String name) {
-        if(!tasks.containsKey(name))
+        if(!tasks.containsKey(name)) {
             tasks.put(name, this.new TaskModel(name));
+            changed = true;
+        }
 
         task = tasks.get(name);
     }
@@ -364,7 +758,9 @@ public class BAM implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when action observed");
 
+        changed = true;
         task.actions.add(action);
+        roots.add(action.state);
     }
 
     @Override
@@ -372,15 +768,33 @@ public class BAM implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when feedback observed");
 
+        changed = true;
         task.feedback.add(feedback);
+        roots.add(feedback.state);
     }
 
     @Override
-    public void observe(StateTransition transition) { transitions.add(transition); }
+    public void observe(StateTransition transition) {
+        transitions.add(transition);
+        changed = true;
+    }
 
     @Override
     public Behavior integrate() {
 
+        // Without new data there is nothing new to learn from, so keep the current policies
+        if(!changed) {
+            Behavior behavior = Behavior.get();
+
+            for(TaskModel task : tasks.values())
+                behavior.put(task.name, task.policy);
+
+            return behavior;
+        }
+
+        // Prune the planning graph to the observed states
+        prune();
+
         if(config.reinitialize) {
             for(TaskModel task : tasks.values())
                 task.initialize();
@@ -388,35 +802,103 @@ public class BAM implements Agent {
             dynamics.initialize(config.dynamics_optimization);
         }
 
+        // Convergence tests, EM stops early only if both the intents and the dynamics have stopped changing
+        Convergence em_intents = Convergence.of(config.intent_tolerance);
+        Convergence em_dynamics = Convergence.of(config.dynamics_tolerance);
+
+        em_intents.converged(this::intents);
+        em_dynamics.converged(() -> Convergence.transitions(dynamics));
+
+        int iterations = 0;
+
+        // Tasks are split between workers in a fixed order
+        List<TaskModel> models = new ArrayList<>(tasks.values());
+
         // Train model
         for(int update = 0; update < config.em_updates; ++update) {
 
-            // Task update
-            for (int step = 0; step < config.task_updates; ++step)
-                for (TaskModel task : tasks.values()) {
-                    task.propagate();
-                    task.intent.update();
+            // Task update, tasks only depend on the fixed dynamics, so each can run all its steps in parallel
+            if (config.joint_planning) {
+                Convergence intents = Convergence.of(config.intent_tolerance);
+                intents.converged(this::intents);
+
+                int step = 0;
+
+                while (step < config.task_updates) {
+                    propagate(false);
+
+                    for (TaskModel task : tasks.values())
+                        task.intent.update();
+
+                    ++step;
+
+                    if (intents.converged(this::intents))
+                        break;
                 }
 
+                iterations += step;
+            } else {
+                pool.forEach(models, (int worker, TaskModel task) -> {
+                    Convergence intents = Convergence.of(config.intent_tolerance);
+                    intents.converged(task.intent::mean);
+
+                    task.num_updates = 0;
+
+                    while (task.num_updates < config.task_updates) {
+                        task.propagate(worker, false);
+                        task.intent.update();
+
+                        ++task.num_updates;
+
+                        if (intents.converged(task.intent::mean))
+                            break;
+                    }
+                });
+
+                flush(false);
+
+                // Tasks run side by side, so the phase takes as many iterations as the slowest task
+                int steps = 0;
+
+                for (TaskModel task : tasks.values())
+                    steps = Math.max(steps, task.num_updates);
+
+                iterations += steps;
+            }
+
             dynamics.clear();
 
             // Dynamics update
+            Convergence model = Convergence.of(config.dynamics_tolerance);
+            model.converged(() -> Convergence.transitions(dynamics));
+
             for (int step = 0; step < config.dynamics_updates; ++step) {
 
                 // Incorporate transitions
                 if (config.use_transitions)
-                    for (StateTransition transition : transitions)
-                        dynamics.train(transition.start, transition.action, transition.end, 1.0);
-
-                // Incorporate tasks
-                for (TaskModel task : tasks.values())
-                    task.propagate();
+                    transitions.train(dynamics);
+
+                // Incorporate tasks, passing each task's dynamics gradients to the model in a fixed order
+                if (config.joint_planning)
+                    propagate(true);
+                else {
+                    pool.forEach(models, (int worker, TaskModel task) -> task.propagate(worker, true));
+                    flush(true);
+                }
 
                 dynamics.update();
+                ++iterations;
+
+                if (model.converged(() -> Convergence.transitions(dynamics)))
+                    break;
             }
 
             for (TaskModel task : tasks.values())
                 task.intent.clear();
+
+            // Non-short-circuit, so both tests see the parameters of every EM update
+            if (em_intents.converged(this::intents) & em_dynamics.converged(() -> Convergence.transitions(dynamics)))
+                break;
         }
 
         // Update policies
@@ -424,14 +906,21 @@ public class BAM implements Agent {
             task.updatePolicy();
 
         // Return behavior
-        Behavior behavior = Behavior.get();
+        Behavior behavior = Behavior.get().iterations(iterations);
 
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
+        changed = false;
+
         return behavior;
     }
 
+    // Lists the intent means of all tasks, for convergence tests
+    private double[] intents() {
+        return Convergence.means(tasks.values().stream().map((TaskModel task) -> task.intent));
+    }
+
     @Override
     public List<Visualization> visualizations() {
         List<Visualization> viz = new LinkedList<>();
@@ -10,6 +10,9 @@ public class Behavior {
 
     private HashMap<String, double[][]> policies;
 
+    // The number of update iterations the agent used to compute these policies
+    private int iterations = 0;
+
     private Behavior() {
         policies = new HashMap<>();
     }
@@ -38,6 +41,8 @@ public class Behavior {
             behavior.put(name, policy);
         }
 
+        behavior.iterations = config.optInt("iterations", 0);
+
         return behavior;
     }
 
@@ -47,6 +52,14 @@ public class Behavior {
         return this;
     }
 
+    public Behavior iterations(int iterations) {
+        this.iterations = iterations;
+
+        return this;
+    }
+
+    public int iterations() { return iterations; }
+
     public boolean has(String task) {
         return policies.containsKey(task);
     }
@@ -85,6 +98,8 @@ public class Behavior {
                     .put("policy", states));
         }
 
-        return new JSONObject().put("tasks", tasks);
+        return new JSONObject()
+                .put("tasks", tasks)
+                .put("iterations", iterations);
     }
 }
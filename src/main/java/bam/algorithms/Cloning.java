@@ -11,8 +11,6 @@ import org.json.JSONObject;
 
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -25,6 +23,9 @@ public class Cloning implements Agent {
         // The number of updates to perform to integrate new data
         private int num_updates = 10;
 
+        // The relative change in the intent means below which updates stop early, or zero to never stop early
+        private double intent_tolerance = 0.0;
+
         // Whether or not to reinitialize the parameters when new data is integrated
         private boolean reinitialize = false;
 
@@ -54,6 +55,12 @@ public class Cloning implements Agent {
             return this;
         }
 
+        public Builder intentTolerance(double intent_tolerance) {
+            this.intent_tolerance = intent_tolerance;
+
+            return this;
+        }
+
         public Builder reinitialize(boolean reinitialize) {
             this.reinitialize = reinitialize;
 
@@ -107,6 +114,7 @@ public class Cloning implements Agent {
                             .put("name", name())
                             .put("class", Cloning.class.getSimpleName())
                             .put("num updates", num_updates)
+                            .put("intent tolerance", intent_tolerance)
                             .put("reinitialize", reinitialize)
                             .put("task source", task_source.serialize())
                             .put("action model", action_model.serialize())
@@ -123,6 +131,7 @@ public class Cloning implements Agent {
     public static Algorithm load(JSONObject config) throws JSONException {
         return builder()
                 .numUpdates(config.getInt("num updates"))
+                .intentTolerance(config.optDouble("intent tolerance", 0.0))
                 .reinitialize(config.getBoolean("reinitialize"))
                 .taskSource(Variational.load(config.getJSONObject("task source")))
                 .actionModel(ActionModel.load(config.getJSONObject("action model")))
@@ -133,8 +142,8 @@ public class Cloning implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -149,8 +158,8 @@ public class Cloning implements Agent {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
             intent = config.task_source.density(flat_buffer.length, ThreadLocalRandom.current());
@@ -186,12 +195,12 @@ public class Cloning implements Agent {
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
+            // Draw a batch of samples from the variational distribution
+            intent.nextBatch();
+
             // Iterate over all intent samples
             for(int sample = 0; sample < intent.numSamples(); ++sample) {
-
-                // Get the next sample from the variational distribution
-                intent.nextSample();
-                double[] values = intent.value();
+                double[] values = intent.value(sample);
 
                 // Unpack the flat value buffer
                 for(int state = 0; state < value_buffer.length; ++state)
@@ -203,14 +212,14 @@ public class Cloning implements Agent {
                     Arrays.fill(gradient_buffer[state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, value_buffer[feedback.state], gradient_buffer[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            value_buffer[feedback.state(entry)], gradient_buffer[feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action,
-                            value_buffer[action.state], gradient_buffer[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            value_buffer[actions.state(entry)], gradient_buffer[actions.state(entry)], scale * actions.count(entry));
 
                 // Pack the gradient into the flat buffer
                 for(int state = 0; state < gradient_buffer.length; ++state)
@@ -218,7 +227,7 @@ public class Cloning implements Agent {
                         flat_buffer[mapping[state][action]] = gradient_buffer[state][action];
 
                 // propagate intent
-                intent.train(flat_buffer);
+                intent.train(sample, flat_buffer);
             }
 
             intent.update();
@@ -322,19 +331,36 @@ public class Cloning implements Agent {
             for(TaskModel task : tasks.values())
                 task.initialize();
 
-        for (int step = 0; step < config.num_updates; ++step)
+        // Stop early once the intents of all tasks have stopped changing
+        Convergence intents = Convergence.of(config.intent_tolerance);
+        intents.converged(this::intents);
+
+        int iterations = 0;
+
+        while (iterations < config.num_updates) {
             for (TaskModel task : tasks.values())
                 task.update();
 
+            ++iterations;
+
+            if (intents.converged(this::intents))
+                break;
+        }
+
         for (TaskModel task : tasks.values())
             task.updatePolicy();
 
         // Return behavior
-        Behavior behavior = Behavior.get();
+        Behavior behavior = Behavior.get().iterations(iterations);
 
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
         return behavior;
     }
+
+    // Lists the intent means of all tasks, for convergence tests
+    private double[] intents() {
+        return Convergence.means(tasks.values().stream().map((TaskModel task) -> task.intent));
+    }
 }
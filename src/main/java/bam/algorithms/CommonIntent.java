@@ -15,7 +15,6 @@ import org.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
 
 public class CommonIntent implements Agent {
 
@@ -30,6 +29,9 @@ public class CommonIntent implements Agent {
         // Whether or not to reinitialize the parameters when new data is integrated
         private boolean reinitialize = false;
 
+        // The number of threads used to update tasks in parallel, or zero for one per processor
+        private int num_threads = 1;
+
         // The name of this algorithm
         private String name = "Common-Intent";
 
@@ -74,6 +76,12 @@ public class CommonIntent implements Agent {
             return this;
         }
 
+        public Builder numThreads(int num_threads) {
+            this.num_threads = num_threads;
+
+            return this;
+        }
+
         public Builder dynamicsOptimization(Optimization optimization) {
             dynamics_optimization = optimization;
 
@@ -140,6 +148,7 @@ public class CommonIntent implements Agent {
                             .put("dynamics updates", dynamics_updates)
                             .put("task updates", task_updates)
                             .put("reinitialize", reinitialize)
+                            .put("threads", num_threads)
                             .put("dynamics optimization", dynamics_optimization.serialize())
                             .put("planning algorithm", planning_algorithm.serialize())
                             .put("task source", task_source.serialize())
@@ -159,6 +168,7 @@ public class CommonIntent implements Agent {
                 .dynamicsUpdates(config.getInt("dynamics updates"))
                 .taskUpdates(config.getInt("task updates"))
                 .reinitialize(config.getBoolean("reinitialize"))
+                .numThreads(config.optInt("threads", 1))
                 .dynamicsOptimization(Optimization.load(config.getJSONObject("dynamics optimization")))
                 .planningAlgorithm(PlanningAlgorithm.load(config.getJSONObject("planning algorithm")))
                 .taskSource(Variational.load(config.getJSONObject("task source")))
@@ -170,8 +180,8 @@ public class CommonIntent implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -185,15 +195,20 @@ public class CommonIntent implements Agent {
         // The current policy for this task
         double[][] policy;
 
+        // The intent gradients of the last update, one for each sample, to be passed to the common intent
+        final List<double[]> common_gradients;
+
         TaskModel(String name) {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
+
+            common_gradients = new ArrayList<>();
 
             // Construct intent distribution
-            intent = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current()); // Makes this class non-thread safe
+            intent = config.task_source.density(rewards.intentSize(), new Random(seeds.nextLong()));
 
             // Construct intent buffer
             intent_buffer = new double[rewards.intentSize()];
@@ -223,56 +238,69 @@ public class CommonIntent implements Agent {
             }
         }
 
-        // Propagates the data associated with this
-        void update() {
+        // Propagates the data associated with this task, on the given workspace
+        void update(Workspace workspace) {
+            IntentGraph task_graph = workspace.graph;
+            Planner task_planner = workspace.planner;
+            double[][] jacobian = workspace.jacobian;
 
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
-            // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+            common_gradients.clear();
 
-                // Get the next sample of the intent and the common reward
-                intent.nextSample();
-                common.nextSample();
+            // Draw a batch of intent samples, the common intent is sampled when its gradients are passed on
+            intent.nextBatch();
 
-                double[] task_intent = intent.value();
-                double[] common_intent = intent.value();
+            // Iterate over all intent samples
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+                double[] task_intent = intent.value(sample);
+                double[] common_intent = intent.value(sample);
 
                 for(int i=0; i < rewards.intentSize(); ++i)
                     intent_buffer[i] = task_intent[i] + common_intent[i];
 
-                graph.setIntent(intent_buffer);
+                task_graph.setIntent(intent_buffer);
 
                 // Get Q-function from the planner
-                double[][] Q = planner.values();
+                double[][] Q = task_planner.values();
 
                 // Initialize Jacobian
                 for(int state = 0; state < jacobian.length; ++state)
                     Arrays.fill(jacobian[state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[feedback.state(entry)], jacobian[feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[actions.state(entry)], jacobian[actions.state(entry)], scale * actions.count(entry));
 
                 // Backpropagate through planner
-                planner.train(jacobian);
+                task_planner.train(jacobian);
 
                 // propagate intent
-                graph.intentGradient((double[] gradient) -> {
-                    intent.train(gradient);
-                    common.train(gradient);
+                final int index = sample;
+                task_graph.intentGradient((double[] gradient) -> {
+                    intent.train(index, gradient);
+                    common_gradients.add(gradient.clone());
                 });
             }
 
             intent.update();
         }
 
+        // Passes the intent gradients of the last update to the common intent, one for each sample of a new batch
+        void trainCommon() {
+            common.nextBatch();
+
+            for(int sample = 0; sample < common_gradients.size(); ++sample)
+                common.train(sample, common_gradients.get(sample));
+        }
+
         void updatePolicy() {
             double[] task_intent = intent.mean();
             double[] common_intent = intent.mean();
@@ -285,6 +313,29 @@ public class CommonIntent implements Agent {
         }
     }
 
+    /**
+     * A planning workspace for one worker, so tasks can be
+     * updated in parallel.  There is one workspace for each
+     * worker, however many tasks there are.
+     */
+    private class Workspace {
+
+        // The planning graph, planner and backpropagation buffer
+        final IntentGraph graph;
+        final Planner planner;
+        final double[][] jacobian;
+
+        Workspace(IntentGraph graph, Planner planner) {
+            this.graph = graph;
+            this.planner = planner;
+
+            jacobian = new double[dynamics.numStates()][];
+
+            for(int state = 0; state < dynamics.numStates(); ++state)
+                jacobian[state] = new double[dynamics.numActions(state)];
+        }
+    }
+
     // The builder object that generated this class, used for configuration
     private Builder config;
 
@@ -294,21 +345,27 @@ public class CommonIntent implements Agent {
     // The dynamics model
     private final DynamicsModel dynamics;
 
-    // The planning graph
+    // The planning graph, used for policy updates
     private final IntentGraph graph;
 
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
-
     // The transition data
-    private final List<StateTransition> transitions;
+    private final TransitionCounts transitions;
+
+    // Seeds the random number generator of each intent density, so no generator is shared between threads
+    private final Random seeds;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
 
+    // The threads used to update tasks in parallel
+    private final TaskPool pool;
+
+    // The planning workspaces, one for each worker, created when first used
+    private final Workspace[] workspaces;
+
     // The common reward function
     private Variational.Density common;
 
@@ -318,6 +375,9 @@ public class CommonIntent implements Agent {
     private CommonIntent(Representation representation, Builder config) {
         this.config = config;
 
+        // Initialize the source of density seeds
+        seeds = new Random();
+
         // Get reward mapping
         this.rewards = representation.rewards();
 
@@ -331,21 +391,40 @@ public class CommonIntent implements Agent {
         // Initialize planner
         planner = config.planning_algorithm.planner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
-
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
-
         // Initialize common reward
-        common = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current());
+        common = config.task_source.density(rewards.intentSize(), new Random(seeds.nextLong()));
         common.initialize();
 
-        // Initialize task set
+        // Initialize task set, and the threads to update them
         tasks = new HashMap<>();
+        pool = TaskPool.with(config.num_threads);
+
+        // Initialize planning workspaces, one for each worker
+        workspaces = new Workspace[pool.numThreads()];
 
         // Initialize transition set
-        transitions = new LinkedList<>();
+        transitions = new TransitionCounts();
+    }
+
+    /**
+     * Gets the planning workspace of a worker, creating it
+     * if it has not been used.  With a single worker, the
+     * workspace plans over the shared graph.
+     *
+     * @param worker the worker
+     * @return the workspace
+     */
+    private synchronized Workspace workspace(int worker) {
+        if(null == workspaces[worker]) {
+            if(1 == workspaces.length)
+                workspaces[worker] = new Workspace(graph, planner);
+            else {
+                IntentGraph task_graph = IntentGraph.of(dynamics, rewards);
+                workspaces[worker] = new Workspace(task_graph, config.planning_algorithm.planner(task_graph));
+            }
+        }
+
+        return workspaces[worker];
     }
 
     @Override
@@ -395,15 +474,17 @@ public class CommonIntent implements Agent {
         }
 
         for (int step = 0; step < config.dynamics_updates; ++step) {
-            for (StateTransition transition : transitions)
-                dynamics.train(transition.start, transition.action, transition.end, 1.0);
+            transitions.train(dynamics);
 
             dynamics.update();
         }
 
+        // Tasks are updated in parallel, then the common intent is trained with their gradients in a fixed order
         for (int step = 0; step < config.task_updates; ++step) {
+            pool.forEach(new ArrayList<>(tasks.values()), (int worker, TaskModel task) -> task.update(workspace(worker)));
+
             for (TaskModel task : tasks.values())
-                task.update();
+                task.trainCommon();
 
             common.update();
         }
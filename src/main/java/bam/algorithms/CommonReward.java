@@ -6,6 +6,7 @@ import bam.algorithms.action.GreedyActionModel;
 import bam.algorithms.feedback.FeedbackModel;
 import bam.algorithms.feedback.NoFeedback;
 import bam.algorithms.optimization.Optimization;
+import bam.algorithms.planning.BatchPlanner;
 import bam.algorithms.planning.IntentGraph;
 import bam.algorithms.planning.Planner;
 import bam.algorithms.planning.PlanningAlgorithm;
@@ -226,8 +227,8 @@ public class CommonReward implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -242,8 +243,8 @@ public class CommonReward implements Agent {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
             intent = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current()); // Makes this class non-thread safe
@@ -279,38 +280,46 @@ public class CommonReward implements Agent {
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
-            // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+            // Draw a batch of samples of the intent and the common reward, and plan for all of them in a single pass
+            intent.nextBatch();
+            common.nextBatch();
+            graph.setSamples(intent.numSamples());
 
-                // Get the next sample of the intent and the common reward
-                intent.nextSample();
-                common.nextSample();
+            for(int sample = 0; sample < intent.numSamples(); ++sample)
+                graph.setIntent(sample, global.intent(intent.value(sample), common.value(sample)));
 
-                graph.setIntent(global.intent(intent.value(), common.value()));
+            // Get Q-functions from the planner
+            double[][][] Q = batch_planner.values();
+            double[][][] jacobian = jacobian(intent.numSamples());
 
-                // Get Q-function from the planner
-                double[][] Q = planner.values();
+            // Iterate over all intent samples
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
 
                 // Initialize Jacobian
-                for(int state = 0; state < jacobian.length; ++state)
-                    Arrays.fill(jacobian[state], 0.0);
+                for(int state = 0; state < jacobian[sample].length; ++state)
+                    Arrays.fill(jacobian[sample][state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[sample][feedback.state(entry)], jacobian[sample][feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[sample][actions.state(entry)], jacobian[sample][actions.state(entry)], scale * actions.count(entry));
+            }
+
+            // Backpropagate through planner
+            batch_planner.train(jacobian);
 
-                // Backpropagate through planner
-                planner.train(jacobian);
+            // propagate intent
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+                final int index = sample;
 
-                // propagate intent
-                graph.intentGradient((double[] gradient) -> {
-                    intent.train(global.intentGradient(gradient));
-                    common.train(global.commonGradient(gradient));
+                graph.intentGradient(sample, (double[] gradient) -> {
+                    intent.train(index, global.intentGradient(gradient));
+                    common.train(index, global.commonGradient(gradient));
                 });
             }
 
@@ -338,11 +347,14 @@ public class CommonReward implements Agent {
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
+    // The batch planning module, used to plan for all intent samples at once
+    private final BatchPlanner batch_planner;
+
+    // A buffer for backpropagating teacher data, one for each intent sample
+    private double[][][] jacobian;
 
     // The transition data
-    private final List<StateTransition> transitions;
+    private final TransitionCounts transitions;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
@@ -356,6 +368,9 @@ public class CommonReward implements Agent {
     // The current task
     private TaskModel task = null;
 
+    // Whether any tasks or data have been added since the last integration
+    private boolean changed = true;
+
     private CommonReward(Representation representation, Builder config) {
         this.config = config;
 
@@ -372,14 +387,12 @@ public class CommonReward implements Agent {
         // Build planning graph
         graph = IntentGraph.of(dynamics, global);
 
-        // Initialize planner
+        // Initialize planners
         planner = config.planning_algorithm.planner(graph);
+        batch_planner = config.planning_algorithm.batchPlanner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
-
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
+        // Initialize backpropagation buffer, allocated as samples are requested
+        jacobian = new double[0][][];
 
         // Initialize common reward
         common = config.task_source.density(dynamics.numStates(), ThreadLocalRandom.current());
@@ -389,13 +402,39 @@ public class CommonReward implements Agent {
         tasks = new HashMap<>();
 
         // Initialize transition set
-        transitions = new LinkedList<>();
+        transitions = new TransitionCounts();
+    }
+
+    /**
+     * Gets the backpropagation buffer, making
+     * sure it has room for the given number of
+     * intent samples.
+     *
+     * @param num_samples the number of samples
+     * @return the backpropagation buffer
+     */
+    private double[][][] jacobian(int num_samples) {
+        if(jacobian.length < num_samples) {
+            int capacity = jacobian.length;
+            jacobian = Arrays.copyOf(jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                jacobian[sample] = new double[batch_planner.numStates()][];
+
+                for(int state = 0; state < batch_planner.numStates(); ++state)
+                    jacobian[sample][state] = new double[batch_planner.numActions(state)];
+            }
+        }
+
+        return jacobian;
     }
 
     @Override
     public void task(String name) {
-        if(!tasks.containsKey(name))
+        if(!tasks.containsKey(name)) {
             tasks.put(name, this.new TaskModel(name));
+            changed = true;
+        }
 
         task = tasks.get(name);
     }
@@ -413,6 +452,7 @@ public class CommonReward implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when action observed");
 
+        changed = true;
         task.actions.add(action);
     }
 
@@ -421,15 +461,29 @@ public class CommonReward implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when feedback observed");
 
+        changed = true;
         task.feedback.add(feedback);
     }
 
     @Override
-    public void observe(StateTransition transition) { transitions.add(transition); }
+    public void observe(StateTransition transition) {
+        transitions.add(transition);
+        changed = true;
+    }
 
     @Override
     public Behavior integrate() {
 
+        // Without new data there is nothing new to learn from, so keep the current policies
+        if(!changed) {
+            Behavior behavior = Behavior.get();
+
+            for(TaskModel task : tasks.values())
+                behavior.put(task.name, task.policy);
+
+            return behavior;
+        }
+
         if(config.reinitialize) {
             for(TaskModel task : tasks.values())
                 task.initialize();
@@ -439,8 +493,7 @@ public class CommonReward implements Agent {
         }
 
         for (int step = 0; step < config.dynamics_updates; ++step) {
-            for (StateTransition transition : transitions)
-                dynamics.train(transition.start, transition.action, transition.end, 1.0);
+            transitions.train(dynamics);
 
             dynamics.update();
         }
@@ -461,6 +514,8 @@ public class CommonReward implements Agent {
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
+        changed = false;
+
         return behavior;
     }
 
@@ -0,0 +1,121 @@
+package bam.algorithms;
+
+import bam.algorithms.variational.Variational;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Tracks a vector of parameters from one update to the next,
+ * and tests whether their relative change has fallen below a
+ * tolerance, so that agents can stop updating early.  The change
+ * is the largest absolute difference between matching entries,
+ * relative to the largest previous magnitude, or to one if that
+ * is smaller.  A tolerance of zero or less never converges, and
+ * skips the comparison entirely.
+ */
+final class Convergence {
+
+    // The relative change below which the parameters have converged
+    private final double tolerance;
+
+    // The parameters at the last check, or null if there have been none
+    private double[] previous = null;
+
+    private Convergence(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Gets a convergence test with the given tolerance.
+     *
+     * @param tolerance the relative tolerance, or zero to never converge
+     * @return the convergence test
+     */
+    static Convergence of(double tolerance) {
+        return new Convergence(tolerance);
+    }
+
+    /**
+     * Checks whether this test is enabled, that is,
+     * whether its tolerance is positive.
+     *
+     * @return whether the tolerance is positive
+     */
+    boolean enabled() { return 0.0 < tolerance; }
+
+    /**
+     * Compares the current parameters to those seen at the
+     * last check, and stores them for the next check.  The
+     * parameters should always be listed in the same order,
+     * and are only collected if the test is enabled.
+     *
+     * @param source supplies the current parameters
+     * @return whether the parameters changed by less than the tolerance
+     */
+    boolean converged(Supplier<double[]> source) {
+        if(!enabled())
+            return false;
+
+        double[] parameters = source.get();
+
+        if(null == previous || previous.length != parameters.length) {
+            previous = parameters.clone();
+
+            return false;
+        }
+
+        double change = 0.0;
+        double scale = 1.0;
+
+        for(int i = 0; i < parameters.length; ++i) {
+            change = Math.max(change, Math.abs(parameters[i] - previous[i]));
+            scale = Math.max(scale, Math.abs(previous[i]));
+        }
+
+        System.arraycopy(parameters, 0, previous, 0, parameters.length);
+
+        return change < tolerance * scale;
+    }
+
+    /**
+     * Lists the transition probabilities of a dynamics model,
+     * in order of state, action and successor, so changes
+     * in the model can be tested for convergence.
+     *
+     * @param dynamics the dynamics model
+     * @return the transition probabilities
+     */
+    static double[] transitions(Dynamics dynamics) {
+        int size = 0;
+
+        for(int state = 0; state < dynamics.numStates(); ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action)
+                size += dynamics.numSuccessors(state, action);
+
+        double[] parameters = new double[size];
+        int index = 0;
+
+        for(int state = 0; state < dynamics.numStates(); ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action)
+                for(int successor = 0; successor < dynamics.numSuccessors(state, action); ++successor)
+                    parameters[index++] = dynamics.probability(state, action, successor);
+
+        return parameters;
+    }
+
+    /**
+     * Lists the means of a sequence of intent densities,
+     * one after the other, so changes in the intents of
+     * several tasks can be tested for convergence.
+     *
+     * @param densities the intent densities
+     * @return the concatenated means
+     */
+    static double[] means(Stream<Variational.Density> densities) {
+        return densities.map(Variational.Density::mean)
+                .flatMapToDouble(Arrays::stream)
+                .toArray();
+    }
+}
@@ -54,6 +54,63 @@ public interface Dynamics {
      */
     double[] transitions(int state, int action);
 
+    /**
+     * Gets the number of possible successor states given the
+     * current state and the action taken.  Implementations
+     * that store their successors in flat arrays should
+     * override this, along with successor() and probability(),
+     * so that callers can read them without allocating.
+     *
+     * @param state the current state
+     * @param action the current action
+     * @return the number of possible next states
+     */
+    default int numSuccessors(int state, int action) { return successors(state, action).length; }
+
+    /**
+     * Gets a single possible successor state, in the same
+     * order as the list returned by successors().
+     *
+     * @param state the current state
+     * @param action the current action
+     * @param index the position of the successor in the list
+     * @return the index of the next state
+     */
+    default int successor(int state, int action, int index) { return successors(state, action)[index]; }
+
+    /**
+     * Gets the probability of a single possible successor
+     * state, in the same order as the list returned by
+     * transitions().
+     *
+     * @param state the current state
+     * @param action the current action
+     * @param index the position of the successor in the list
+     * @return the probability of moving to that successor
+     */
+    default double probability(int state, int action, int index) { return transitions(state, action)[index]; }
+
+    /**
+     * Gets a stamp identifying the current transition
+     * probabilities.  The value must change whenever the
+     * probabilities returned by this object change, so that
+     * compiled copies of the dynamics know when to rebuild.
+     * Fixed dynamics never change, and always return zero.
+     *
+     * @return the current version of the transition probabilities
+     */
+    default int version() { return 0; }
+
+    /**
+     * Gets the navigation grid the states of this domain
+     * are laid out on, if there is one, so that planners
+     * can group neighboring cells.  Other dynamics return
+     * null.
+     *
+     * @return the grid layout, or null if there is none
+     */
+    default GridLayout layout() { return null; }
+
     /**
      * Samples a state from this transition distribution.
      *
@@ -63,20 +120,19 @@ public interface Dynamics {
      * @return the next state
      */
     default int transition(int state, int action, Random random) {
-        int[] next = successors(state, action);
-        double[] dist = transitions(state, action);
+        int num_successors = numSuccessors(state, action);
 
         double rand = random.nextDouble();
         double total = 0;
 
-        for(int s = 0; s < next.length; ++s) {
-            total += dist[s];
+        for(int s = 0; s < num_successors; ++s) {
+            total += probability(state, action, s);
 
             if(total >= rand)
-                return next[s];
+                return successor(state, action, s);
         }
 
-        return next[0];
+        return successor(state, action, 0);
     }
 
     /**
@@ -43,6 +43,28 @@ public interface DynamicsModel extends Dynamics {
      */
     void clear();
 
+    /**
+     * Gets a stamp identifying the current model parameters.
+     * Must change every time the parameters are initialized
+     * or updated.
+     *
+     * @return the current version of the model parameters
+     */
+    @Override
+    int version();
+
+    /**
+     * Gets an immutable copy of the dynamics at the current
+     * parameters, which can be read from other threads
+     * while this model continues to train.  Must be called
+     * from the thread that trains the model, between updates.
+     * Planning over a snapshot gives the same values as
+     * planning over the model at the time it was taken.
+     *
+     * @return a snapshot of the current dynamics
+     */
+    default Dynamics snapshot() { return DynamicsSnapshot.of(this); }
+
     /**
      * May render a representation of the learned dynamics.
      *
@@ -0,0 +1,154 @@
+package bam.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a set of transition dynamics,
+ * taken at a single point in time.  Successors and
+ * probabilities are stored in flat arrays, with one
+ * row of entries for each state-action pair, so a
+ * snapshot holds a fixed number of objects regardless
+ * of the size of the state space.
+ *
+ * Nothing in a snapshot changes after it is built, so
+ * any number of threads can plan over it, or simulate
+ * rollouts with it, without locking, while the model it
+ * was taken from continues to train.  The snapshot keeps
+ * the version of the dynamics it was taken from, so
+ * caches keyed on the version remain consistent.
+ *
+ * As the arrays returned by successors() and transitions()
+ * could be modified by the caller, these return copies,
+ * and allocate on every call.  Planning does not use them,
+ * the planning graphs and the graph compiler read every
+ * transition through numSuccessors(), successor() and
+ * probability(), which read the flat arrays directly.
+ * Other callers reading many entries should do the same.
+ */
+public final class DynamicsSnapshot implements ReverseDynamics {
+
+    // Number of states, planning depth, and the version the snapshot was taken at
+    private final int num_states;
+    private final int depth;
+    private final int version;
+
+    // The first state-action row of each state, plus a sentinel
+    private final int[] rows;
+
+    // The first entry of each state-action row, plus a sentinel
+    private final int[] entries;
+
+    // The successor state and probability of each entry
+    private final int[] successors;
+    private final double[] probabilities;
+
+    // Predecessor index, shared with the source dynamics if they have one
+    private final Predecessors predecessors;
+
+    // The grid the states are laid out on, if any
+    private final GridLayout layout;
+
+    private DynamicsSnapshot(Dynamics dynamics) {
+        num_states = dynamics.numStates();
+        depth = dynamics.depth();
+        version = dynamics.version();
+        layout = dynamics.layout();
+
+        // Count the rows and entries
+        rows = new int[num_states + 1];
+
+        for(int state = 0; state < num_states; ++state)
+            rows[state + 1] = rows[state] + dynamics.numActions(state);
+
+        entries = new int[rows[num_states] + 1];
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action) {
+                int row = rows[state] + action;
+                entries[row + 1] = entries[row] + dynamics.numSuccessors(state, action);
+            }
+
+        // Copy the successors and probabilities
+        successors = new int[entries[entries.length - 1]];
+        probabilities = new double[successors.length];
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action) {
+                int start = entries[rows[state] + action];
+
+                for(int index = 0; index < dynamics.numSuccessors(state, action); ++index) {
+                    successors[start + index] = dynamics.successor(state, action, index);
+                    probabilities[start + index] = dynamics.probability(state, action, index);
+                }
+            }
+
+        // Successor lists are copied in order, so the predecessor index of the source still applies
+        predecessors = (dynamics instanceof ReverseDynamics)
+                ? ((ReverseDynamics) dynamics).predecessors() : Predecessors.build(this);
+    }
+
+    /**
+     * Takes a snapshot of the given dynamics.  The dynamics
+     * must not be modified while the snapshot is being taken,
+     * so for a learned model this should be called from the
+     * thread that trains it, between updates.
+     *
+     * @param dynamics the transition dynamics
+     * @return an immutable copy of the dynamics
+     */
+    public static DynamicsSnapshot of(Dynamics dynamics) {
+        if(dynamics instanceof DynamicsSnapshot)
+            return (DynamicsSnapshot) dynamics;
+
+        return new DynamicsSnapshot(dynamics);
+    }
+
+    @Override
+    public int numStates() { return num_states; }
+
+    @Override
+    public int numActions(int state) { return rows[state + 1] - rows[state]; }
+
+    @Override
+    public int depth() { return depth; }
+
+    @Override
+    public int version() { return version; }
+
+    @Override
+    public int[] successors(int state, int action) {
+        int row = rows[state] + action;
+
+        return Arrays.copyOfRange(successors, entries[row], entries[row + 1]);
+    }
+
+    @Override
+    public double[] transitions(int state, int action) {
+        int row = rows[state] + action;
+
+        return Arrays.copyOfRange(probabilities, entries[row], entries[row + 1]);
+    }
+
+    @Override
+    public int numSuccessors(int state, int action) {
+        int row = rows[state] + action;
+
+        return entries[row + 1] - entries[row];
+    }
+
+    @Override
+    public int successor(int state, int action, int index) {
+        return successors[entries[rows[state] + action] + index];
+    }
+
+    @Override
+    public double probability(int state, int action, int index) {
+        return probabilities[entries[rows[state] + action] + index];
+    }
+
+    @Override
+    public Predecessors predecessors() { return predecessors; }
+
+    @Override
+    public GridLayout layout() { return layout; }
+}
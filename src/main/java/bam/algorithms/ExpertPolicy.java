@@ -1,6 +1,7 @@
 package bam.algorithms;
 
-import bam.algorithms.planning.MaxPlanner;
+import bam.algorithms.planning.ConvergingMaxPlanner;
+import bam.algorithms.planning.PlanCache;
 import bam.algorithms.action.GreedyActionModel;
 
 /**
@@ -14,13 +15,31 @@ import bam.algorithms.action.GreedyActionModel;
  */
 public class ExpertPolicy implements Policy {
 
+    // Optimal Q-functions shared by all experts, keyed by the rewards and the full dynamics
+    private static final PlanCache cache = PlanCache.get();
+
     private double[][] Q;
     private double[][] PI;
 
     private ExpertPolicy(Dynamics dynamics, Reward rewards) {
 
-        // Get optimal Q-function
-        Q = MaxPlanner.algorithm().planner(dynamics, rewards).values();
+        // Get the reward at each state, which together with the dynamics determines the optimal Q-function
+        double[] reward = new double[dynamics.numStates()];
+
+        for(int state = 0; state < reward.length; ++state)
+            reward[state] = rewards.reward(state);
+
+        // Get optimal Q-function, only planning if it hasn't already been computed, and stopping once values converge
+        double[][] shared = cache.get(reward, dynamics);
+
+        if(null == shared)
+            shared = cache.put(reward, dynamics, ConvergingMaxPlanner.algorithm().planner(dynamics, rewards).values());
+
+        // Keep our own copy, so that callers cannot change the cached Q-function
+        Q = new double[shared.length][];
+
+        for(int state = 0; state < shared.length; ++state)
+            Q[state] = shared[state].clone();
 
         // Get optimal policy
         PI = GreedyActionModel.get().policy(Q);
@@ -30,6 +49,15 @@ public class ExpertPolicy implements Policy {
         return new ExpertPolicy(dynamics, rewards);
     }
 
+    /**
+     * Gets the cache of optimal Q-functions shared
+     * by all expert policies, which keeps track of
+     * how often planning was avoided.
+     *
+     * @return the expert plan cache
+     */
+    public static PlanCache cache() { return cache; }
+
     public double[][] values() { return Q; }
 
     public double[] values(int state) {
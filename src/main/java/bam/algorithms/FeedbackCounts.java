@@ -0,0 +1,135 @@
+package bam.algorithms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A table of the number of times the teacher has given
+ * each feedback value for each action in each state.  As
+ * with ActionCounts, agents can compute the gradient of
+ * the log-likelihood once for each distinct entry, weighted
+ * by its count.  Feedback values are compared exactly, and
+ * entries are listed in the order they were first observed.
+ */
+public final class FeedbackCounts {
+
+    /**
+     * A hashable state, action and feedback value.
+     */
+    private static class Key {
+
+        private final int state;
+        private final int action;
+        private final long value;
+
+        private Key(int state, int action, double value) {
+            this.state = state;
+            this.action = action;
+            this.value = Double.doubleToLongBits(value);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key))
+                return false;
+
+            Key key = (Key) other;
+
+            return state == key.state && action == key.action && value == key.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * state + action) + Long.hashCode(value);
+        }
+    }
+
+    // The position of each entry in the table
+    private final HashMap<Key, Integer> positions = new HashMap<>();
+
+    // The state, action, feedback value and count of each entry
+    private int[] states = new int[16];
+    private int[] actions = new int[16];
+    private double[] values = new double[16];
+    private int[] counts = new int[16];
+
+    // The number of distinct entries, and the total number of observations
+    private int size = 0;
+    private int total = 0;
+
+    /**
+     * Adds a single feedback signal to the table.
+     *
+     * @param feedback the observed feedback
+     */
+    public void add(TeacherFeedback feedback) {
+        Key key = new Key(feedback.state, feedback.action, feedback.value);
+        Integer position = positions.get(key);
+
+        if(null == position) {
+            if(size == states.length) {
+                states = Arrays.copyOf(states, 2 * size);
+                actions = Arrays.copyOf(actions, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+                counts = Arrays.copyOf(counts, 2 * size);
+            }
+
+            position = size++;
+            positions.put(key, position);
+
+            states[position] = feedback.state;
+            actions[position] = feedback.action;
+            values[position] = feedback.value;
+        }
+
+        ++counts[position];
+        ++total;
+    }
+
+    /**
+     * Gets the number of distinct entries.
+     *
+     * @return the number of entries in the table
+     */
+    public int size() { return size; }
+
+    /**
+     * Gets the total number of feedback signals observed.
+     *
+     * @return the number of observations
+     */
+    public int total() { return total; }
+
+    /**
+     * Gets the state of an entry.
+     *
+     * @param entry the entry
+     * @return the state
+     */
+    public int state(int entry) { return states[entry]; }
+
+    /**
+     * Gets the action of an entry.
+     *
+     * @param entry the entry
+     * @return the action
+     */
+    public int action(int entry) { return actions[entry]; }
+
+    /**
+     * Gets the feedback value of an entry.
+     *
+     * @param entry the entry
+     * @return the feedback value
+     */
+    public double value(int entry) { return values[entry]; }
+
+    /**
+     * Gets the number of times the feedback of an entry
+     * was given for its state and action.
+     *
+     * @param entry the entry
+     * @return the count
+     */
+    public int count(int entry) { return counts[entry]; }
+}
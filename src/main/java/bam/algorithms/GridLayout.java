@@ -0,0 +1,25 @@
+package bam.algorithms;
+
+/**
+ * The size of a 2D navigation grid whose cells are
+ * the states of a domain.  States are indexed as
+ * cell + k * (width * height), where cells are indexed
+ * as row + column * height, so a domain may lay out
+ * several copies of the grid, one after the other.
+ */
+public interface GridLayout {
+
+    /**
+     * Returns the width of the grid.
+     *
+     * @return the width of the grid
+     */
+    int width();
+
+    /**
+     * Returns the height of the grid.
+     *
+     * @return the height of the grid
+     */
+    int height();
+}
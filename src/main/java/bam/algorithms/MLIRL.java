@@ -6,16 +6,18 @@ import bam.algorithms.action.GreedyActionModel;
 import bam.algorithms.feedback.FeedbackModel;
 import bam.algorithms.feedback.NoFeedback;
 import bam.algorithms.optimization.GradientAscent;
+import bam.algorithms.planning.BatchPlanner;
 import bam.algorithms.planning.IntentGraph;
 import bam.algorithms.planning.Planner;
 import bam.algorithms.planning.PlanningAlgorithm;
+import bam.algorithms.planning.PrunedGraph;
+import bam.algorithms.planning.QuotientBatchPlanner;
 import bam.algorithms.variational.Variational;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Implements the ML-IRL algorithm.
@@ -31,9 +33,24 @@ public class MLIRL implements Agent {
         // The number of task updates to perform to integrate new data
         private int task_updates = 1000;
 
+        // The relative change in the intent means below which task updates stop early, or zero to never stop early
+        private double intent_tolerance = 0.0;
+
         // Whether or not to reinitialize the parameters when new data is integrated
         private boolean reinitialize = false;
 
+        // Whether or not to only plan over the states reachable from those where the teacher was observed
+        private boolean prune_graph = false;
+
+        // Whether or not to plan over blocks of bisimilar states, rather than individual states
+        private boolean lump_states = false;
+
+        // The number of threads used to update tasks in parallel, or zero for one per processor
+        private int num_threads = 1;
+
+        // The number of threads used to evaluate the intent samples of each task, or zero for one per processor
+        private int sample_threads = 1;
+
         // The name of this algorithm
         private String name = "ML_IRL";
 
@@ -63,12 +80,42 @@ public class MLIRL implements Agent {
             return this;
         }
 
+        public Builder intentTolerance(double intent_tolerance) {
+            this.intent_tolerance = intent_tolerance;
+
+            return this;
+        }
+
         public Builder reinitialize(boolean reinitialize) {
             this.reinitialize = reinitialize;
 
             return this;
         }
 
+        public Builder pruneGraph(boolean prune_graph) {
+            this.prune_graph = prune_graph;
+
+            return this;
+        }
+
+        public Builder lumpStates(boolean lump_states) {
+            this.lump_states = lump_states;
+
+            return this;
+        }
+
+        public Builder numThreads(int num_threads) {
+            this.num_threads = num_threads;
+
+            return this;
+        }
+
+        public Builder sampleThreads(int sample_threads) {
+            this.sample_threads = sample_threads;
+
+            return this;
+        }
+
         public Builder planningAlgorithm(PlanningAlgorithm planning_algorithm) {
             this.planning_algorithm = planning_algorithm;
 
@@ -101,6 +148,9 @@ public class MLIRL implements Agent {
             if(null == task_source)
                 throw new RuntimeException("DUMBASS!!! No task distribution source defined");
 
+            if(prune_graph && planning_algorithm.stationaryOnly())
+                throw new RuntimeException("The planning algorithm cannot plan over pruned graphs");
+
             if(null == action_model)
                 action_model = BoltzmannActionModel.get();
 
@@ -125,7 +175,12 @@ public class MLIRL implements Agent {
                             .put("name", name())
                             .put("class", MLIRL.class.getSimpleName())
                             .put("task updates", task_updates)
+                            .put("intent tolerance", intent_tolerance)
                             .put("reinitialize", reinitialize)
+                            .put("prune graph", prune_graph)
+                            .put("lump states", lump_states)
+                            .put("threads", num_threads)
+                            .put("sample threads", sample_threads)
                             .put("planning algorithm", planning_algorithm.serialize())
                             .put("task source", task_source.serialize())
                             .put("action model", action_model.serialize())
@@ -142,8 +197,13 @@ public class MLIRL implements Agent {
     public static Algorithm load(JSONObject config) throws JSONException {
         return builder()
                 .taskUpdates(config.getInt("task updates"))
+                .intentTolerance(config.optDouble("intent tolerance", 0.0))
                 .reinitialize(config.getBoolean("reinitialize"))
-                .planningAlgorithm(PlanningAlgorithm.load(config.getJSONObject("Planning Algorithm")))
+                .pruneGraph(config.optBoolean("prune graph", false))
+                .lumpStates(config.optBoolean("lump states", false))
+                .numThreads(config.optInt("threads", 1))
+                .sampleThreads(config.optInt("sample threads", 1))
+                .planningAlgorithm(PlanningAlgorithm.load(config.getJSONObject("planning algorithm")))
                 .taskSource(Variational.load(config.getJSONObject("task source")))
                 .actionModel(ActionModel.load(config.getJSONObject("action model")))
                 .feedbackModel(FeedbackModel.load(config.getJSONObject("feedback model")))
@@ -153,8 +213,8 @@ public class MLIRL implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -165,15 +225,18 @@ public class MLIRL implements Agent {
         // The current policy for this task
         double[][] policy;
 
+        // The number of task updates used in the last integration
+        int num_updates = 0;
+
         TaskModel(String name) {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
-            intent = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current());
+            intent = config.task_source.density(rewards.intentSize(), new Random(seeds.nextLong()));
 
             // Construct policy buffer
             policy = new double[dynamics.numStates()][];
@@ -200,43 +263,72 @@ public class MLIRL implements Agent {
             }
         }
 
-        // Propagates the data associated with this
-        void update() {
+        // Propagates the data associated with this task through the workspaces of a worker
+        void update(int worker) {
+
+            // Draw a batch of intent samples, and plan for each range of samples in a single pass
+            intent.nextBatch();
+            sample_pool.forEach(intent.numSamples(), (int range, int first, int last) ->
+                    update(workspace(worker, range), first, last - first));
+
+            // propagate intent, in sample order
+            int num_ranges = Math.min(sample_pool.numThreads(), intent.numSamples());
+
+            for(int range = 0; range < num_ranges; ++range) {
+                Workspace workspace = workspace(worker, range);
+
+                for(int sample = 0; sample < workspace.num_samples; ++sample)
+                    intent.train(workspace.first + sample, workspace.intent_gradients[sample]);
+            }
+
+            intent.update();
+        }
+
+        // Propagates the data associated with this task for a range of its intent samples, on the given workspace
+        void update(Workspace workspace, int first, int num_samples) {
 
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
-            // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+            // Set the intent samples in the workspace graph
+            workspace.cover(first, num_samples);
+            workspace.graph.setSamples(num_samples);
 
-                // Set the next sample as the intent
-                intent.nextSample();
-                graph.setIntent(intent.value());
+            for(int sample = 0; sample < workspace.num_samples; ++sample)
+                workspace.graph.setIntent(sample, intent.value(workspace.first + sample));
 
-                // Get Q-function from the planner
-                double[][] Q = planner.values();
+            // Get Q-functions from the planner
+            double[][][] Q = workspace.planner.values();
+            workspace.jacobian = jacobian(workspace.jacobian, workspace.num_samples, workspace.planner);
+            double[][][] jacobian = workspace.jacobian;
+
+            // Iterate over the workspace's intent samples
+            for(int sample = 0; sample < workspace.num_samples; ++sample) {
 
                 // Initialize Jacobian
-                for(int state = 0; state < jacobian.length; ++state)
-                    Arrays.fill(jacobian[state], 0.0);
+                for(int state = 0; state < jacobian[sample].length; ++state)
+                    Arrays.fill(jacobian[sample][state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[sample][feedback.state(entry)], jacobian[sample][feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[sample][actions.state(entry)], jacobian[sample][actions.state(entry)], scale * actions.count(entry));
+            }
 
-                // Backpropagate through planner
-                planner.train(jacobian);
+            // Backpropagate through planner
+            workspace.planner.train(jacobian);
 
-                // propagate intent
-                graph.intentGradient(intent::train);
+            // Keep the intent gradients until the density is trained
+            for(int sample = 0; sample < workspace.num_samples; ++sample) {
+                final double[] target = workspace.intent_gradients[sample];
+                workspace.graph.intentGradient(sample,
+                        (double[] gradient) -> System.arraycopy(gradient, 0, target, 0, target.length));
             }
-
-            intent.update();
         }
 
         void updatePolicy() {
@@ -245,6 +337,50 @@ public class MLIRL implements Agent {
         }
     }
 
+    /**
+     * A planning workspace for one worker, which plans for
+     * a range of one task's intent samples at a time.  There
+     * is one workspace for each task worker and each of its
+     * sample workers, however many tasks there are, so the
+     * workspaces can run in parallel.
+     */
+    private class Workspace {
+
+        // The range of intent samples covered by the current pass
+        int first = 0;
+        int num_samples = 0;
+
+        // The planning graph, planner and backpropagation buffer
+        final IntentGraph graph;
+        BatchPlanner planner;
+        double[][][] jacobian;
+
+        // The intent gradients of the current pass, one for each sample
+        double[][] intent_gradients;
+
+        Workspace(IntentGraph graph) {
+            this.graph = graph;
+
+            planner = batchPlanner(graph);
+            jacobian = new double[0][][];
+            intent_gradients = new double[0][];
+        }
+
+        // Sets the range of intent samples covered by the current pass, making room for their gradients
+        void cover(int first, int num_samples) {
+            this.first = first;
+            this.num_samples = num_samples;
+
+            if(intent_gradients.length < num_samples) {
+                int capacity = intent_gradients.length;
+                intent_gradients = Arrays.copyOf(intent_gradients, num_samples);
+
+                for(int sample = capacity; sample < num_samples; ++sample)
+                    intent_gradients[sample] = new double[rewards.intentSize()];
+            }
+        }
+    }
+
     // The builder object that generated this class, used for configuration
     private Builder config;
 
@@ -254,24 +390,45 @@ public class MLIRL implements Agent {
     // The dynamics model
     private final DynamicsModel dynamics;
 
-    // The planning graph
+    // The planning graph, used for policy updates
     private final IntentGraph graph;
 
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
+    // The states where the teacher has been observed, used to prune the planning graph
+    private final Set<Integer> roots;
+
+    // The number of observed states when the batch planner was last built
+    private int num_roots = 0;
+
+    // Seeds the random number generator of each intent density, so no generator is shared between threads
+    private final Random seeds;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
 
+    // The threads used to update tasks in parallel
+    private final TaskPool pool;
+
+    // The threads used to evaluate the intent samples of a task in parallel
+    private final TaskPool sample_pool;
+
+    // The planning workspaces, indexed by task worker and sample worker, created when first used
+    private final Workspace[][] workspaces;
+
     // The current task
     private TaskModel task = null;
 
+    // Whether any tasks or data have been added since the last integration
+    private boolean changed = true;
+
     private MLIRL(Representation representation, Builder config) {
         this.config = config;
 
+        // Initialize the source of density seeds
+        seeds = new Random();
+
         // Get reward mapping
         this.rewards = representation.rewards();
 
@@ -282,23 +439,111 @@ public class MLIRL implements Agent {
         // Build planning graph
         graph = IntentGraph.of(dynamics, rewards);
 
-        // Initialize planner
+        // Initialize observed state set
+        roots = new HashSet<>();
+
+        // Initialize planners
         planner = config.planning_algorithm.planner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
+        // Initialize task set, and the threads to update them
+        tasks = new HashMap<>();
+        pool = TaskPool.with(config.num_threads);
+        sample_pool = TaskPool.with(config.sample_threads);
 
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
+        // Initialize planning workspaces, one for each worker
+        workspaces = new Workspace[pool.numThreads()][sample_pool.numThreads()];
+    }
 
-        // Initialize task set
-        tasks = new HashMap<>();
+    /**
+     * Gets a backpropagation buffer, making
+     * sure it has room for the given number of
+     * intent samples.
+     *
+     * @param jacobian the current buffer
+     * @param num_samples the number of samples
+     * @param batch_planner the planner the buffer is used with
+     * @return the backpropagation buffer, which may be a new array
+     */
+    private static double[][][] jacobian(double[][][] jacobian, int num_samples, BatchPlanner batch_planner) {
+        if(jacobian.length < num_samples) {
+            int capacity = jacobian.length;
+            jacobian = Arrays.copyOf(jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                jacobian[sample] = new double[batch_planner.numStates()][];
+
+                for(int state = 0; state < batch_planner.numStates(); ++state)
+                    jacobian[sample][state] = new double[batch_planner.numActions(state)];
+            }
+        }
+
+        return jacobian;
+    }
+
+    /**
+     * Builds the batch planner, over the blocks of bisimilar
+     * states if states are lumped, and over the states
+     * reachable from those where the teacher has been
+     * observed if the graph is pruned and any have been.
+     *
+     * @param graph the planning graph
+     * @return the batch planner
+     */
+    private BatchPlanner batchPlanner(IntentGraph graph) {
+        boolean pruned = config.prune_graph && !roots.isEmpty();
+
+        if(config.lump_states)
+            return QuotientBatchPlanner.of(config.planning_algorithm, graph, dynamics, rewards, pruned ? roots : null);
+
+        if(pruned)
+            return config.planning_algorithm.batchPlanner(PrunedGraph.of(graph, roots));
+
+        return config.planning_algorithm.batchPlanner(graph);
+    }
+
+    /**
+     * Gets the planning workspace of a task worker and one of
+     * its sample workers, creating it if it has not been used.
+     * With a single worker overall, the workspace plans over
+     * the shared graph, otherwise it has its own graph.
+     *
+     * @param worker the task worker
+     * @param range the sample worker
+     * @return the workspace
+     */
+    private synchronized Workspace workspace(int worker, int range) {
+        if(null == workspaces[worker][range]) {
+            boolean shared = 1 == workspaces.length * workspaces[worker].length;
+
+            workspaces[worker][range] = new Workspace(shared ? graph : IntentGraph.of(dynamics, rewards));
+        }
+
+        return workspaces[worker][range];
+    }
+
+    /**
+     * Rebuilds the batch planners over graphs which only
+     * include the states reachable from those where the
+     * teacher has been observed, if any new states have
+     * been observed since they were last built.
+     */
+    private void prune() {
+        if(config.prune_graph && roots.size() != num_roots) {
+            for(Workspace[] row : workspaces)
+                for(Workspace workspace : row)
+                    if(null != workspace)
+                        workspace.planner = batchPlanner(workspace.graph);
+
+            num_roots = roots.size();
+        }
     }
 
     @Override
     public void task(String name) {
-        if(!tasks.containsKey(name))
+        if(!tasks.containsKey(name)) {
             tasks.put(name, this.new TaskModel(name));
+            changed = true;
+        }
 
         task = tasks.get(name);
     }
@@ -316,7 +561,9 @@ public class MLIRL implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when action observed");
 
+        changed = true;
         task.actions.add(action);
+        roots.add(action.state);
     }
 
     @Override
@@ -324,7 +571,9 @@ public class MLIRL implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when feedback observed");
 
+        changed = true;
         task.feedback.add(feedback);
+        roots.add(feedback.state);
     }
 
     @Override
@@ -333,23 +582,56 @@ public class MLIRL implements Agent {
     @Override
     public Behavior integrate() {
 
+        // Without new data there is nothing new to learn from, so keep the current policies
+        if(!changed) {
+            Behavior behavior = Behavior.get();
+
+            for(TaskModel task : tasks.values())
+                behavior.put(task.name, task.policy);
+
+            return behavior;
+        }
+
+        // Prune the planning graph to the observed states
+        prune();
+
         if(config.reinitialize)
             for(TaskModel task : tasks.values())
                 task.initialize();
 
-        for (int step = 0; step < config.task_updates; ++step)
-            for (TaskModel task : tasks.values())
-                task.update();
+        // Tasks are independent, so each can run all its steps in parallel, stopping once its intent stops changing
+        int task_iterations = 0;
+
+        pool.forEach(new ArrayList<>(tasks.values()), (int worker, TaskModel task) -> {
+            Convergence intents = Convergence.of(config.intent_tolerance);
+            intents.converged(task.intent::mean);
+
+            task.num_updates = 0;
+
+            while (task.num_updates < config.task_updates) {
+                task.update(worker);
+                ++task.num_updates;
+
+                if (intents.converged(task.intent::mean))
+                    break;
+            }
+        });
+
+        // Tasks run side by side, so the task updates take as many iterations as the slowest task
+        for (TaskModel task : tasks.values())
+            task_iterations = Math.max(task_iterations, task.num_updates);
 
         for (TaskModel task : tasks.values())
             task.updatePolicy();
 
         // Return behavior
-        Behavior behavior = Behavior.get();
+        Behavior behavior = Behavior.get().iterations(task_iterations);
 
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
+        changed = false;
+
         return behavior;
     }
 
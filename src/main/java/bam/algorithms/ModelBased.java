@@ -6,6 +6,7 @@ import bam.algorithms.action.GreedyActionModel;
 import bam.algorithms.feedback.FeedbackModel;
 import bam.algorithms.feedback.NoFeedback;
 import bam.algorithms.optimization.Optimization;
+import bam.algorithms.planning.BatchPlanner;
 import bam.algorithms.planning.IntentGraph;
 import bam.algorithms.planning.Planner;
 import bam.algorithms.planning.PlanningAlgorithm;
@@ -15,7 +16,6 @@ import org.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * An algorithms that uses the ML-IRL
@@ -33,9 +33,18 @@ public class ModelBased implements Agent {
         // The number of task updates to perform to integrate new data
         private int task_updates = 1000;
 
+        // The relative change in the intent means below which task updates stop early, or zero to never stop early
+        private double intent_tolerance = 0.0;
+
+        // The relative change in the transition probabilities below which dynamics updates stop early, or zero to never stop early
+        private double dynamics_tolerance = 0.0;
+
         // Whether or not to reinitialize the parameters when new data is integrated
         private boolean reinitialize = false;
 
+        // The number of threads used to update tasks in parallel, or zero for one per processor
+        private int num_threads = 1;
+
         // The name of this algorithm
         private String name = "Model-Based";
 
@@ -74,12 +83,30 @@ public class ModelBased implements Agent {
             return this;
         }
 
+        public Builder intentTolerance(double intent_tolerance) {
+            this.intent_tolerance = intent_tolerance;
+
+            return this;
+        }
+
+        public Builder dynamicsTolerance(double dynamics_tolerance) {
+            this.dynamics_tolerance = dynamics_tolerance;
+
+            return this;
+        }
+
         public Builder reinitialize(boolean reinitialize) {
             this.reinitialize = reinitialize;
 
             return this;
         }
 
+        public Builder numThreads(int num_threads) {
+            this.num_threads = num_threads;
+
+            return this;
+        }
+
         public Builder dynamicsOptimization(Optimization optimization) {
             dynamics_optimization = optimization;
 
@@ -145,7 +172,10 @@ public class ModelBased implements Agent {
                             .put("class", ModelBased.class.getSimpleName())
                             .put("dynamics updates", dynamics_updates)
                             .put("task updates", task_updates)
+                            .put("intent tolerance", intent_tolerance)
+                            .put("dynamics tolerance", dynamics_tolerance)
                             .put("reinitialize", reinitialize)
+                            .put("threads", num_threads)
                             .put("dynamics optimization", dynamics_optimization.serialize())
                             .put("planning algorithm", planning_algorithm.serialize())
                             .put("task source", task_source.serialize())
@@ -164,7 +194,10 @@ public class ModelBased implements Agent {
         return builder()
                 .dynamicsUpdates(config.getInt("dynamics updates"))
                 .taskUpdates(config.getInt("task updates"))
+                .intentTolerance(config.optDouble("intent tolerance", 0.0))
+                .dynamicsTolerance(config.optDouble("dynamics tolerance", 0.0))
                 .reinitialize(config.getBoolean("reinitialize"))
+                .numThreads(config.optInt("threads", 1))
                 .dynamicsOptimization(Optimization.load(config.getJSONObject("dynamics optimization")))
                 .planningAlgorithm(PlanningAlgorithm.load(config.getJSONObject("planning algorithm")))
                 .taskSource(Variational.load(config.getJSONObject("task source")))
@@ -176,8 +209,8 @@ public class ModelBased implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -188,15 +221,18 @@ public class ModelBased implements Agent {
         // The current policy for this task
         double[][] policy;
 
+        // The number of task updates used in the last integration
+        int num_updates = 0;
+
         TaskModel(String name) {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
-            intent = config.task_source.density(rewards.intentSize(), ThreadLocalRandom.current());
+            intent = config.task_source.density(rewards.intentSize(), new Random(seeds.nextLong()));
 
             // Construct policy buffer
             policy = new double[dynamics.numStates()][];
@@ -223,40 +259,51 @@ public class ModelBased implements Agent {
             }
         }
 
-        // Propagates the data associated with this
-        void update() {
+        // Propagates the data associated with this task, on the given workspace
+        void update(Workspace workspace) {
+            IntentGraph task_graph = workspace.graph;
+            BatchPlanner task_planner = workspace.planner;
 
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
-            // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+            // Draw a batch of intent samples, and plan for all of them in a single pass
+            intent.nextBatch();
+            task_graph.setSamples(intent.numSamples());
 
-                // Set the next sample as the intent
-                intent.nextSample();
-                graph.setIntent(intent.value());
+            for(int sample = 0; sample < intent.numSamples(); ++sample)
+                task_graph.setIntent(sample, intent.value(sample));
 
-                // Get Q-function from the planner
-                double[][] Q = planner.values();
+            // Get Q-functions from the planner
+            double[][][] Q = task_planner.values();
+            workspace.jacobian = jacobian(workspace.jacobian, intent.numSamples(), task_planner);
+            double[][][] jacobian = workspace.jacobian;
+
+            // Iterate over all intent samples
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
 
                 // Initialize Jacobian
-                for(int state = 0; state < jacobian.length; ++state)
-                    Arrays.fill(jacobian[state], 0.0);
+                for(int state = 0; state < jacobian[sample].length; ++state)
+                    Arrays.fill(jacobian[sample][state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[sample][feedback.state(entry)], jacobian[sample][feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[sample][actions.state(entry)], jacobian[sample][actions.state(entry)], scale * actions.count(entry));
+            }
 
-                // Backpropagate through planner
-                planner.train(jacobian);
+            // Backpropagate through planner
+            task_planner.train(jacobian);
 
-                // propagate intent
-                graph.intentGradient(intent::train);
+            // propagate intent
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+                final int index = sample;
+                task_graph.intentGradient(sample, (double[] gradient) -> intent.train(index, gradient));
             }
 
             intent.update();
@@ -268,6 +315,26 @@ public class ModelBased implements Agent {
         }
     }
 
+    /**
+     * A planning workspace for one worker, so tasks can be
+     * updated in parallel.  There is one workspace for each
+     * worker, however many tasks there are.
+     */
+    private class Workspace {
+
+        // The planning graph, planner and backpropagation buffer
+        final IntentGraph graph;
+        final BatchPlanner planner;
+        double[][][] jacobian;
+
+        Workspace(IntentGraph graph) {
+            this.graph = graph;
+
+            planner = config.planning_algorithm.batchPlanner(graph);
+            jacobian = new double[0][][];
+        }
+    }
+
     // The builder object that generated this class, used for configuration
     private Builder config;
 
@@ -277,27 +344,39 @@ public class ModelBased implements Agent {
     // The dynamics model
     private final DynamicsModel dynamics;
 
-    // The planning graph
+    // The planning graph, used for policy updates
     private final IntentGraph graph;
 
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
-
     // The transition data
-    private final List<StateTransition> transitions;
+    private final TransitionCounts transitions;
+
+    // Seeds the random number generator of each intent density, so no generator is shared between threads
+    private final Random seeds;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
 
+    // The threads used to update tasks in parallel
+    private final TaskPool pool;
+
+    // The planning workspaces, one for each worker, created when first used
+    private final Workspace[] workspaces;
+
     // The current task
     private TaskModel task = null;
 
+    // Whether any tasks or data have been added since the last integration
+    private boolean changed = true;
+
     private ModelBased(Representation representation, Builder config) {
         this.config = config;
 
+        // Initialize the source of density seeds
+        seeds = new Random();
+
         // Get reward mapping
         this.rewards = representation.rewards();
 
@@ -308,26 +387,67 @@ public class ModelBased implements Agent {
         // Build planning graph
         graph = IntentGraph.of(dynamics, rewards);
 
-        // Initialize planner
+        // Initialize planners
         planner = config.planning_algorithm.planner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
-
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
-
-        // Initialize task set
+        // Initialize task set, and the threads to update them
         tasks = new HashMap<>();
+        pool = TaskPool.with(config.num_threads);
+
+        // Initialize planning workspaces, one for each worker
+        workspaces = new Workspace[pool.numThreads()];
 
         // Initialize transition set
-        transitions = new LinkedList<>();
+        transitions = new TransitionCounts();
+    }
+
+    /**
+     * Gets a backpropagation buffer, making
+     * sure it has room for the given number of
+     * intent samples.
+     *
+     * @param jacobian the current buffer
+     * @param num_samples the number of samples
+     * @param batch_planner the planner the buffer is used with
+     * @return the backpropagation buffer, which may be a new array
+     */
+    private static double[][][] jacobian(double[][][] jacobian, int num_samples, BatchPlanner batch_planner) {
+        if(jacobian.length < num_samples) {
+            int capacity = jacobian.length;
+            jacobian = Arrays.copyOf(jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                jacobian[sample] = new double[batch_planner.numStates()][];
+
+                for(int state = 0; state < batch_planner.numStates(); ++state)
+                    jacobian[sample][state] = new double[batch_planner.numActions(state)];
+            }
+        }
+
+        return jacobian;
+    }
+
+    /**
+     * Gets the planning workspace of a worker, creating it
+     * if it has not been used.  With a single worker, the
+     * workspace plans over the shared graph.
+     *
+     * @param worker the worker
+     * @return the workspace
+     */
+    private synchronized Workspace workspace(int worker) {
+        if(null == workspaces[worker])
+            workspaces[worker] = new Workspace((1 == workspaces.length) ? graph : IntentGraph.of(dynamics, rewards));
+
+        return workspaces[worker];
     }
 
     @Override
     public void task(String name) {
-        if(!tasks.containsKey(name))
+        if(!tasks.containsKey(name)) {
             tasks.put(name, this.new TaskModel(name));
+            changed = true;
+        }
 
         task = tasks.get(name);
     }
@@ -345,6 +465,7 @@ public class ModelBased implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when action observed");
 
+        changed = true;
         task.actions.add(action);
     }
 
@@ -353,15 +474,29 @@ public class ModelBased implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when feedback observed");
 
+        changed = true;
         task.feedback.add(feedback);
     }
 
     @Override
-    public void observe(StateTransition transition) { transitions.add(transition); }
+    public void observe(StateTransition transition) {
+        transitions.add(transition);
+        changed = true;
+    }
 
     @Override
     public Behavior integrate() {
 
+        // Without new data there is nothing new to learn from, so keep the current policies
+        if(!changed) {
+            Behavior behavior = Behavior.get();
+
+            for(TaskModel task : tasks.values())
+                behavior.put(task.name, task.policy);
+
+            return behavior;
+        }
+
         if(config.reinitialize) {
             for(TaskModel task : tasks.values())
                 task.initialize();
@@ -369,26 +504,55 @@ public class ModelBased implements Agent {
             dynamics.initialize(config.dynamics_optimization);
         }
 
-        for (int step = 0; step < config.dynamics_updates; ++step) {
-            for (StateTransition transition : transitions)
-                dynamics.train(transition.start, transition.action, transition.end, 1.0);
+        // Fit the dynamics, stopping once the transition probabilities stop changing
+        Convergence model = Convergence.of(config.dynamics_tolerance);
+        model.converged(() -> Convergence.transitions(dynamics));
+
+        int dynamics_iterations = 0;
+
+        while (dynamics_iterations < config.dynamics_updates) {
+            transitions.train(dynamics);
 
             dynamics.update();
+            ++dynamics_iterations;
+
+            if (model.converged(() -> Convergence.transitions(dynamics)))
+                break;
         }
 
-        for (int step = 0; step < config.task_updates; ++step)
-            for (TaskModel task : tasks.values())
-                task.update();
+        // Tasks only depend on the fixed dynamics, so each can run all its steps in parallel, stopping once its intent stops changing
+        int task_iterations = 0;
+
+        pool.forEach(new ArrayList<>(tasks.values()), (int worker, TaskModel task) -> {
+            Convergence intents = Convergence.of(config.intent_tolerance);
+            intents.converged(task.intent::mean);
+
+            task.num_updates = 0;
+
+            while (task.num_updates < config.task_updates) {
+                task.update(workspace(worker));
+                ++task.num_updates;
+
+                if (intents.converged(task.intent::mean))
+                    break;
+            }
+        });
+
+        // Tasks run side by side, so the task updates take as many iterations as the slowest task
+        for (TaskModel task : tasks.values())
+            task_iterations = Math.max(task_iterations, task.num_updates);
 
         for (TaskModel task : tasks.values())
             task.updatePolicy();
 
         // Return behavior
-        Behavior behavior = Behavior.get();
+        Behavior behavior = Behavior.get().iterations(dynamics_iterations + task_iterations);
 
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
+        changed = false;
+
         return behavior;
     }
 
@@ -0,0 +1,180 @@
+package bam.algorithms;
+
+/**
+ * A reverse adjacency index for a set of transition
+ * dynamics, listing every (state, action) pair which
+ * can lead to each state.  The entries for state s
+ * are start(s) to end(s) - 1, and each entry gives the
+ * predecessor state, the action taken, and the position
+ * of s in the successor list of that state and action,
+ * so its probability is transitions(state, action)[index].
+ *
+ * The index only depends on the successor lists, not on
+ * the probabilities, so it remains valid for learned
+ * models whose parameters change, as long as their
+ * successor lists do not.  Entries for each state are
+ * ordered by predecessor state, and then by action.
+ */
+public final class Predecessors {
+
+    // The first entry of each state, plus a sentinel
+    private final int[] offsets;
+
+    // The predecessor state of each entry
+    private final int[] states;
+
+    // The action taken in each entry
+    private final int[] actions;
+
+    // The position of the target state in the successor list of each entry
+    private final int[] indices;
+
+    // The distinct predecessors of each state
+    private final int[][] distinct;
+
+    private Predecessors(Dynamics dynamics) {
+        int num_states = dynamics.numStates();
+
+        // Count the entries for each state
+        offsets = new int[num_states + 1];
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action)
+                for(int index = 0; index < dynamics.numSuccessors(state, action); ++index)
+                    ++offsets[dynamics.successor(state, action, index) + 1];
+
+        for(int state = 0; state < num_states; ++state)
+            offsets[state + 1] += offsets[state];
+
+        // Fill entries, in order of predecessor state and action
+        states = new int[offsets[num_states]];
+        actions = new int[offsets[num_states]];
+        indices = new int[offsets[num_states]];
+
+        int[] position = new int[num_states];
+        System.arraycopy(offsets, 0, position, 0, num_states);
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < dynamics.numActions(state); ++action) {
+                int num_successors = dynamics.numSuccessors(state, action);
+
+                for(int index = 0; index < num_successors; ++index) {
+                    int entry = position[dynamics.successor(state, action, index)]++;
+
+                    states[entry] = state;
+                    actions[entry] = action;
+                    indices[entry] = index;
+                }
+            }
+
+        // Collect distinct predecessors, entries are already sorted by predecessor
+        distinct = new int[num_states][];
+
+        for(int state = 0; state < num_states; ++state) {
+            int count = 0;
+
+            for(int entry = offsets[state]; entry < offsets[state + 1]; ++entry)
+                if(entry == offsets[state] || states[entry] != states[entry - 1])
+                    ++count;
+
+            distinct[state] = new int[count];
+            count = 0;
+
+            for(int entry = offsets[state]; entry < offsets[state + 1]; ++entry)
+                if(entry == offsets[state] || states[entry] != states[entry - 1])
+                    distinct[state][count++] = states[entry];
+        }
+    }
+
+    /**
+     * Builds a new predecessor index for the given dynamics.
+     *
+     * @param dynamics the transition dynamics
+     * @return the predecessor index
+     */
+    public static Predecessors build(Dynamics dynamics) {
+        return new Predecessors(dynamics);
+    }
+
+    /**
+     * Gets a predecessor index for the given dynamics, using
+     * the index kept by the dynamics if there is one, and
+     * building a new one otherwise.
+     *
+     * @param dynamics the transition dynamics
+     * @return the predecessor index
+     */
+    public static Predecessors of(Dynamics dynamics) {
+        if(dynamics instanceof ReverseDynamics)
+            return ((ReverseDynamics) dynamics).predecessors();
+
+        return build(dynamics);
+    }
+
+    /**
+     * Gets the number of states in the index.
+     *
+     * @return the number of states
+     */
+    public int numStates() { return offsets.length - 1; }
+
+    /**
+     * Gets the total number of entries, which is
+     * the number of (state, action, successor)
+     * triples in the dynamics.
+     *
+     * @return the number of entries
+     */
+    public int numEntries() { return states.length; }
+
+    /**
+     * Gets the first entry leading to the given state.
+     *
+     * @param state the target state
+     * @return the index of the first entry
+     */
+    public int start(int state) { return offsets[state]; }
+
+    /**
+     * Gets one past the last entry leading to the given state.
+     *
+     * @param state the target state
+     * @return one past the index of the last entry
+     */
+    public int end(int state) { return offsets[state + 1]; }
+
+    /**
+     * Gets the predecessor state of an entry.
+     *
+     * @param entry the entry
+     * @return the state the transition starts from
+     */
+    public int state(int entry) { return states[entry]; }
+
+    /**
+     * Gets the action of an entry.
+     *
+     * @param entry the entry
+     * @return the action taken
+     */
+    public int action(int entry) { return actions[entry]; }
+
+    /**
+     * Gets the position of the target state in the
+     * successor list of an entry's state and action.
+     *
+     * @param entry the entry
+     * @return the position in the successor list
+     */
+    public int index(int entry) { return indices[entry]; }
+
+    /**
+     * Gets the distinct states with at least one action
+     * which can lead to the given state, in increasing
+     * order.  The returned array must not be modified.
+     *
+     * @param state the target state
+     * @return the predecessor states
+     */
+    public int[] predecessors(int state) { return distinct[state]; }
+}
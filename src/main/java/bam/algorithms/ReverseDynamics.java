@@ -0,0 +1,27 @@
+package bam.algorithms;
+
+/**
+ * Transition dynamics which keep a precomputed
+ * index of the (state, action) pairs leading to
+ * each state.  The index is built at most once
+ * per object, so sweeps, backward passes and
+ * reachability analysis can share it.
+ */
+public interface ReverseDynamics extends Dynamics {
+
+    /**
+     * Gets the predecessor index of these dynamics.
+     *
+     * @return the predecessor index
+     */
+    Predecessors predecessors();
+
+    /**
+     * Gets the distinct states from which some
+     * action can lead to the given state.
+     *
+     * @param state the target state
+     * @return the predecessor states
+     */
+    default int[] predecessors(int state) { return predecessors().predecessors(state); }
+}
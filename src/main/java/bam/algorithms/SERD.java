@@ -6,6 +6,7 @@ import bam.algorithms.action.GreedyActionModel;
 import bam.algorithms.feedback.FeedbackModel;
 import bam.algorithms.feedback.NoFeedback;
 import bam.algorithms.optimization.Optimization;
+import bam.algorithms.planning.BatchPlanner;
 import bam.algorithms.planning.ModelGraph;
 import bam.algorithms.planning.Planner;
 import bam.algorithms.planning.SoftmaxPlanner;
@@ -29,6 +30,12 @@ public class SERD implements Agent {
         // The number of updates to perform to integrate new data
         private int num_updates = 1000;
 
+        // The relative change in the intent means below which updates stop early, or zero to never stop early
+        private double intent_tolerance = 0.0;
+
+        // The relative change in the transition probabilities below which updates stop early, or zero to never stop early
+        private double dynamics_tolerance = 0.0;
+
         // The greediness of the planning model
         private double beta = 1.0;
 
@@ -73,6 +80,18 @@ public class SERD implements Agent {
             return this;
         }
 
+        public Builder intentTolerance(double intent_tolerance) {
+            this.intent_tolerance = intent_tolerance;
+
+            return this;
+        }
+
+        public Builder dynamicsTolerance(double dynamics_tolerance) {
+            this.dynamics_tolerance = dynamics_tolerance;
+
+            return this;
+        }
+
         public Builder useTransitions(boolean use_transitions) {
             this.use_transitions = use_transitions;
 
@@ -140,6 +159,8 @@ public class SERD implements Agent {
                             .put("name", name())
                             .put("class", SERD.class.getSimpleName())
                             .put("num updates", num_updates)
+                            .put("intent tolerance", intent_tolerance)
+                            .put("dynamics tolerance", dynamics_tolerance)
                             .put("beta", beta)
                             .put("use transitions", use_transitions)
                             .put("reinitialize", reinitialize)
@@ -159,6 +180,8 @@ public class SERD implements Agent {
     public static Algorithm load(JSONObject config) throws JSONException {
         return builder()
                 .numUpdates(config.getInt("num updates"))
+                .intentTolerance(config.optDouble("intent tolerance", 0.0))
+                .dynamicsTolerance(config.optDouble("dynamics tolerance", 0.0))
                 .beta(config.getDouble("beta"))
                 .useTransitions(config.getBoolean("use transitions"))
                 .reinitialize(config.getBoolean("reinitialize"))
@@ -172,8 +195,8 @@ public class SERD implements Agent {
     private class TaskModel {
 
         // Data specific to this task
-        final List<TeacherFeedback> feedback;
-        final List<TeacherAction> actions;
+        final FeedbackCounts feedback;
+        final ActionCounts actions;
 
         // The name of this task
         final String name;
@@ -188,8 +211,8 @@ public class SERD implements Agent {
             this.name = name;
 
             // Construct teacher data structures
-            feedback = new LinkedList<>();
-            actions = new LinkedList<>();
+            feedback = new FeedbackCounts();
+            actions = new ActionCounts();
 
             // Construct intent distribution
             intent = task_source.density(rewards.intentSize(), ThreadLocalRandom.current());
@@ -225,34 +248,42 @@ public class SERD implements Agent {
             // Scale down by the number of variational samples
             double scale = 1.0 / intent.numSamples();
 
-            // Iterate over all intent samples
-            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+            // Draw a batch of intent samples, and plan for all of them in a single pass
+            intent.nextBatch();
+            graph.setSamples(intent.numSamples());
+
+            for(int sample = 0; sample < intent.numSamples(); ++sample)
+                graph.setIntent(sample, intent.value(sample));
 
-                // Set the next sample as the intent
-                intent.nextSample();
-                graph.setIntent(intent.value());
+            // Get Q-functions from the planner
+            double[][][] Q = batch_planner.values();
+            double[][][] jacobian = jacobian(intent.numSamples());
 
-                // Get Q-function from the planner
-                double[][] Q = planner.values();
+            // Iterate over all intent samples
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
 
                 // Initialize Jacobian
-                for(int state = 0; state < jacobian.length; ++state)
-                    Arrays.fill(jacobian[state], 0.0);
+                for(int state = 0; state < jacobian[sample].length; ++state)
+                    Arrays.fill(jacobian[sample][state], 0.0);
 
                 // Incorporate feedback
-                for(TeacherFeedback feedback : feedback)
-                    config.feedback_model.gradient(feedback.value,
-                            feedback.action, Q[feedback.state], jacobian[feedback.state], scale);
+                for(int entry = 0; entry < feedback.size(); ++entry)
+                    config.feedback_model.gradient(feedback.value(entry), feedback.action(entry),
+                            Q[sample][feedback.state(entry)], jacobian[sample][feedback.state(entry)], scale * feedback.count(entry));
 
                 // Incorporate actions
-                for(TeacherAction action : actions)
-                    config.action_model.gradient(action.action, Q[action.state], jacobian[action.state], scale);
+                for(int entry = 0; entry < actions.size(); ++entry)
+                    config.action_model.gradient(actions.action(entry),
+                            Q[sample][actions.state(entry)], jacobian[sample][actions.state(entry)], scale * actions.count(entry));
+            }
 
-                // Backpropagate through planner
-                planner.train(jacobian);
+            // Backpropagate through planner
+            batch_planner.train(jacobian);
 
-                // propagate intent
-                graph.intentGradient(intent::train);
+            // propagate intent
+            for(int sample = 0; sample < intent.numSamples(); ++sample) {
+                final int index = sample;
+                graph.intentGradient(sample, (double[] gradient) -> intent.train(index, gradient));
             }
 
             intent.update();
@@ -282,11 +313,14 @@ public class SERD implements Agent {
     // The planning module
     private final Planner planner;
 
-    // A buffer for backpropagating teacher data
-    private final double[][] jacobian;
+    // The batch planning module, used to plan for all intent samples at once
+    private final BatchPlanner batch_planner;
+
+    // A buffer for backpropagating teacher data, one for each intent sample
+    private double[][][] jacobian;
 
     // The transition data
-    private final List<StateTransition> transitions;
+    private final TransitionCounts transitions;
 
     // The task models
     private final HashMap<String, TaskModel> tasks;
@@ -294,6 +328,9 @@ public class SERD implements Agent {
     // The current task
     private TaskModel task = null;
 
+    // Whether any tasks or data have been added since the last integration
+    private boolean changed = true;
+
     private SERD(Representation representation, Builder config) {
         this.config = config;
 
@@ -305,31 +342,55 @@ public class SERD implements Agent {
         this.dynamics.initialize(config.dynamics_optimization);
 
         // Initialize task source
-        task_source = PointDensity.builder().build();
+        task_source = PointDensity.builder().optimization(config.task_optimization).build();
 
         // Build planning graph
         graph = ModelGraph.of(dynamics, rewards);
 
-        // Initialize planner
+        // Initialize planners
         planner = SoftmaxPlanner.algorithm(config.beta).planner(graph);
+        batch_planner = SoftmaxPlanner.algorithm(config.beta).batchPlanner(graph);
 
-        // Initialize backpropagation buffer
-        jacobian = new double[representation.numStates()][];
-
-        for(int state = 0; state < representation.numStates(); ++state)
-            jacobian[state] = new double[representation.numActions(state)];
+        // Initialize backpropagation buffer, allocated as samples are requested
+        jacobian = new double[0][][];
 
         // Initialize task set
         tasks = new HashMap<>();
 
         // Initialize transition set
-        transitions = new LinkedList<>();
+        transitions = new TransitionCounts();
+    }
+
+    /**
+     * Gets the backpropagation buffer, making
+     * sure it has room for the given number of
+     * intent samples.
+     *
+     * @param num_samples the number of samples
+     * @return the backpropagation buffer
+     */
+    private double[][][] jacobian(int num_samples) {
+        if(jacobian.length < num_samples) {
+            int capacity = jacobian.length;
+            jacobian = Arrays.copyOf(jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                jacobian[sample] = new double[batch_planner.numStates()][];
+
+                for(int state = 0; state < batch_planner.numStates(); ++state)
+                    jacobian[sample][state] = new double[batch_planner.numActions(state)];
+            }
+        }
+
+        return jacobian;
     }
 
     @Override
     public void task(String name) {
-        if(!tasks.containsKey(name))
+        if(!tasks.containsKey(name)) {
             tasks.put(name, this.new TaskModel(name));
+            changed = true;
+        }
 
         task = tasks.get(name);
     }
@@ -347,6 +408,7 @@ public class SERD implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when action observed");
 
+        changed = true;
         task.actions.add(action);
     }
 
@@ -355,15 +417,29 @@ public class SERD implements Agent {
         if(null == task)
             throw new RuntimeException("No task set when feedback observed");
 
+        changed = true;
         task.feedback.add(feedback);
     }
 
     @Override
-    public void observe(StateTransition transition) { transitions.add(transition); }
+    public void observe(StateTransition transition) {
+        transitions.add(transition);
+        changed = true;
+    }
 
     @Override
     public Behavior integrate() {
 
+        // Without new data there is nothing new to learn from, so keep the current policies
+        if(!changed) {
+            Behavior behavior = Behavior.get();
+
+            for(TaskModel task : tasks.values())
+                behavior.put(task.name, task.policy);
+
+            return behavior;
+        }
+
         if(config.reinitialize) {
             for(TaskModel task : tasks.values())
                 task.initialize();
@@ -371,19 +447,32 @@ public class SERD implements Agent {
             dynamics.initialize(config.dynamics_optimization);
         }
 
+        // Convergence tests, intents and dynamics are trained together, so both must have stopped changing
+        Convergence intents = Convergence.of(config.intent_tolerance);
+        Convergence model = Convergence.of(config.dynamics_tolerance);
+
+        intents.converged(this::intents);
+        model.converged(() -> Convergence.transitions(dynamics));
+
+        int iterations = 0;
+
         // Train model
         for(int update = 0; update < config.num_updates; ++update) {
 
             // Incorporate transitions
             if (config.use_transitions)
-                for (StateTransition transition : transitions)
-                    dynamics.train(transition.start, transition.action, transition.end, 1.0);
+                transitions.train(dynamics);
 
             // Incorporate tasks
             for (TaskModel task : tasks.values())
                 task.update();
 
             dynamics.update();
+            ++iterations;
+
+            // Non-short-circuit, so both tests see the parameters of every update
+            if(intents.converged(this::intents) & model.converged(() -> Convergence.transitions(dynamics)))
+                break;
         }
 
         // Update action
@@ -391,14 +480,21 @@ public class SERD implements Agent {
             task.updatePolicy();
 
         // Return behavior
-        Behavior behavior = Behavior.get();
+        Behavior behavior = Behavior.get().iterations(iterations);
 
         for(TaskModel task : tasks.values())
             behavior.put(task.name, task.policy);
 
+        changed = false;
+
         return behavior;
     }
 
+    // Lists the intent means of all tasks, for convergence tests
+    private double[] intents() {
+        return Convergence.means(tasks.values().stream().map((TaskModel task) -> task.intent));
+    }
+
     @Override
     public List<Visualization> visualizations() {
         List<Visualization> viz = new LinkedList<>();
@@ -0,0 +1,155 @@
+package bam.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A bounded pool of threads used by agents to update
+ * their task models, or the intent samples of a single
+ * task, in parallel.  Each call splits the tasks into
+ * contiguous runs, one for each worker, and only returns
+ * once all of them have finished, so any results the
+ * tasks share can then be combined in a fixed order.
+ * A pool may be used by several threads at once.
+ *
+ * Each worker is identified by an index less than the
+ * number of threads, so agents can keep one planning
+ * workspace for each worker, rather than for each task.
+ * A worker processes its run of tasks one at a time, so
+ * its workspace is never used by two tasks at once.
+ *
+ * The worker threads are created when first needed, and
+ * are daemon threads, so an agent that is no longer used
+ * does not keep the program running.  With a single
+ * thread, or a single task, updates run on the calling
+ * thread, in the order of the list.
+ */
+final class TaskPool {
+
+    /**
+     * The work done by one worker for a contiguous
+     * range of task indices.
+     */
+    interface Range {
+        void apply(int worker, int from, int to);
+    }
+
+    /**
+     * The update of a single task by a worker.
+     *
+     * @param <T> the type of the tasks
+     */
+    interface Update<T> {
+        void apply(int worker, T task);
+    }
+
+    // The maximum number of threads
+    private final int num_threads;
+
+    // The worker threads, created when first needed
+    private ForkJoinPool pool = null;
+
+    private TaskPool(int num_threads) {
+        this.num_threads = num_threads;
+    }
+
+    /**
+     * Gets a pool with at most the given number of
+     * threads, or one thread for each processor if
+     * the number given is not positive.
+     *
+     * @param num_threads the maximum number of threads
+     * @return the task pool
+     */
+    static TaskPool with(int num_threads) {
+        return new TaskPool((0 < num_threads) ? num_threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Gets the maximum number of threads this pool will
+     * run updates on, which bounds the worker indices.
+     *
+     * @return the number of threads
+     */
+    int numThreads() { return num_threads; }
+
+    // Gets the worker threads, creating them if this is the first time they are needed
+    private synchronized ForkJoinPool pool() {
+        if(null == pool)
+            pool = new ForkJoinPool(num_threads);
+
+        return pool;
+    }
+
+    /**
+     * Splits the indices from zero to the given size into
+     * contiguous ranges, at most one for each worker, runs
+     * each range on its own worker, and waits for them all
+     * to finish.  The ranges only depend on the size and
+     * the number of threads, and nothing runs if the size
+     * is zero.
+     *
+     * @param size the number of indices
+     * @param range the work to do for each range
+     */
+    void forEach(int size, Range range) {
+        int num_workers = Math.min(num_threads, size);
+
+        if(0 == num_workers)
+            return;
+
+        if(1 == num_workers) {
+            range.apply(0, 0, size);
+
+            return;
+        }
+
+        List<Callable<Void>> jobs = new ArrayList<>(num_workers);
+
+        for(int worker = 0; worker < num_workers; ++worker) {
+            final int index = worker;
+            final int from = (int) ((long) size * worker / num_workers);
+            final int to = (int) ((long) size * (worker + 1) / num_workers);
+
+            jobs.add(() -> {
+                range.apply(index, from, to);
+
+                return null;
+            });
+        }
+
+        try {
+            for(Future<Void> result : pool().invokeAll(jobs))
+                result.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RuntimeException("Interrupted while updating tasks", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs an update for every task, and waits for them all
+     * to finish.  Each worker updates a contiguous run of
+     * the tasks, in order.
+     *
+     * @param tasks the tasks to update
+     * @param update the update to run for each task
+     * @param <T> the type of the tasks
+     */
+    <T> void forEach(List<T> tasks, Update<? super T> update) {
+        forEach(tasks.size(), (int worker, int from, int to) -> {
+            for(int index = from; index < to; ++index)
+                update.apply(worker, tasks.get(index));
+        });
+    }
+}
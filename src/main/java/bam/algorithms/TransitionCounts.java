@@ -0,0 +1,167 @@
+package bam.algorithms;
+
+import java.util.Arrays;
+
+/**
+ * A table of the number of times each (start, action, end)
+ * transition has been observed.  The log-likelihood of a set
+ * of transitions only depends on these counts, so a dynamics
+ * model can be trained once for each distinct transition,
+ * weighted by its count, rather than once for each step the
+ * agent has seen.  Transitions are listed in the order they
+ * were first observed.
+ *
+ * Transitions are found with an open addressing hash table
+ * over primitive arrays, so adding a transition allocates
+ * nothing unless the table has to grow.
+ */
+public final class TransitionCounts {
+
+    // The start state, action, end state and count of each entry
+    private int[] starts = new int[16];
+    private int[] actions = new int[16];
+    private int[] ends = new int[16];
+    private int[] counts = new int[16];
+
+    // The hash table, each slot holds one plus the entry stored there, or zero if it is empty
+    private int[] slots = new int[32];
+
+    // The number of distinct transitions, and the total number of observations
+    private int size = 0;
+    private int total = 0;
+
+    // Gets the first slot to probe for a transition
+    private static int hash(int start, int action, int end, int num_slots) {
+        int hash = 31 * (31 * start + action) + end;
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return hash & (num_slots - 1);
+    }
+
+    // Finds the slot holding a transition, or the empty slot where it would go
+    private int find(int start, int action, int end) {
+        int slot = hash(start, action, end, slots.length);
+
+        while(0 != slots[slot]) {
+            int entry = slots[slot] - 1;
+
+            if(start == starts[entry] && action == actions[entry] && end == ends[entry])
+                return slot;
+
+            slot = (slot + 1) & (slots.length - 1);
+        }
+
+        return slot;
+    }
+
+    // Doubles the capacity of the entries and the hash table
+    private void grow() {
+        int capacity = 2 * starts.length;
+
+        starts = Arrays.copyOf(starts, capacity);
+        actions = Arrays.copyOf(actions, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+
+        slots = new int[2 * capacity];
+
+        for(int entry = 0; entry < size; ++entry)
+            slots[find(starts[entry], actions[entry], ends[entry])] = entry + 1;
+    }
+
+    /**
+     * Adds a single observed transition to the table.
+     *
+     * @param start the start state
+     * @param action the action taken
+     * @param end the end state
+     */
+    public void add(int start, int action, int end) {
+        int slot = find(start, action, end);
+
+        if(0 == slots[slot]) {
+            if(size == starts.length) {
+                grow();
+                slot = find(start, action, end);
+            }
+
+            starts[size] = start;
+            actions[size] = action;
+            ends[size] = end;
+            slots[slot] = ++size;
+        }
+
+        ++counts[slots[slot] - 1];
+        ++total;
+    }
+
+    /**
+     * Adds a single observed transition to the table.
+     *
+     * @param transition the observed transition
+     */
+    public void add(StateTransition transition) {
+        add(transition.start, transition.action, transition.end);
+    }
+
+    /**
+     * Passes the gradient of the log-likelihood of every
+     * observed transition to a dynamics model, once for
+     * each distinct transition, weighted by its count.
+     *
+     * @param dynamics the dynamics model to train
+     */
+    public void train(DynamicsModel dynamics) {
+        for(int entry = 0; entry < size; ++entry)
+            dynamics.train(starts[entry], actions[entry], ends[entry], counts[entry]);
+    }
+
+    /**
+     * Gets the number of distinct transitions.
+     *
+     * @return the number of entries in the table
+     */
+    public int size() { return size; }
+
+    /**
+     * Gets the total number of transitions observed.
+     *
+     * @return the number of observations
+     */
+    public int total() { return total; }
+
+    /**
+     * Gets the start state of an entry.
+     *
+     * @param entry the entry
+     * @return the start state
+     */
+    public int start(int entry) { return starts[entry]; }
+
+    /**
+     * Gets the action of an entry.
+     *
+     * @param entry the entry
+     * @return the action
+     */
+    public int action(int entry) { return actions[entry]; }
+
+    /**
+     * Gets the end state of an entry.
+     *
+     * @param entry the entry
+     * @return the end state
+     */
+    public int end(int entry) { return ends[entry]; }
+
+    /**
+     * Gets the number of times the transition
+     * of an entry was observed.
+     *
+     * @param entry the entry
+     * @return the count
+     */
+    public int count(int entry) { return counts[entry]; }
+}
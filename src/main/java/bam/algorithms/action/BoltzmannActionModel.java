@@ -1,5 +1,6 @@
 package bam.algorithms.action;
 
+import bam.algorithms.kernels.Kernels;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -11,7 +12,18 @@ public class BoltzmannActionModel implements ActionModel {
     // The temperature parameter for the action distribution
     private double beta;
 
-    private BoltzmannActionModel(double beta) { this.beta = beta; }
+    // Whether to use the approximate exponential
+    private final boolean fast;
+
+    // Kernels for the action loops
+    private final Kernels kernels;
+
+    private BoltzmannActionModel(double beta, boolean fast) {
+        this.beta = beta;
+        this.fast = fast;
+
+        kernels = Kernels.get(fast);
+    }
 
     /**
      * Gets a BoltzmannActionModel
@@ -20,7 +32,7 @@ public class BoltzmannActionModel implements ActionModel {
      * @return a BoltzmannActionModel instance
      */
     public static BoltzmannActionModel get() {
-        return new BoltzmannActionModel(1.0);
+        return new BoltzmannActionModel(1.0, false);
     }
 
     /**
@@ -31,24 +43,34 @@ public class BoltzmannActionModel implements ActionModel {
      * @return a BoltzmannActionModel instance
      */
     public static BoltzmannActionModel beta(double beta) {
-        return new BoltzmannActionModel(beta);
+        return new BoltzmannActionModel(beta, false);
+    }
+
+    /**
+     * Gets a BoltzmannActionModel instance with
+     * temperature beta, which may use the approximate
+     * exponential, see FastExp.
+     *
+     * @param beta the temperature
+     * @param fast whether to use the approximate exponential
+     * @return a BoltzmannActionModel instance
+     */
+    public static BoltzmannActionModel beta(double beta, boolean fast) {
+        return new BoltzmannActionModel(beta, fast);
     }
 
     public static BoltzmannActionModel load(JSONObject config) throws JSONException {
-        return beta(config.getDouble("beta"));
+        return beta(config.getDouble("beta"), config.optString("exponential", "exact").equals("fast"));
     }
 
     @Override
     public double[] policy(double[] values) {
         double[] p = new double[values.length];
-        double partition = 0.0;
+        double partition = kernels.exp(values, values[0], beta, 1.0, p, values.length);
         double max = -Double.MAX_VALUE;
         int num_max = 0;
 
         for(int a=0; a < values.length; ++a) {
-            p[a] = Math.exp(beta * (values[a] - values[0]));
-            partition += p[a];
-
             if(values[a] > max) {
                 max = values[a];
                 num_max = 1;
@@ -69,10 +91,8 @@ public class BoltzmannActionModel implements ActionModel {
             for(int action = 0; action < values.length; ++action)
                 p[action] = common;
         }
-        else {
-            for(int action = 0; action < values.length; ++action)
-                p[action] /= partition;
-        }
+        else
+            kernels.divide(p, partition, values.length);
 
         return p;
     }
@@ -110,6 +130,7 @@ public class BoltzmannActionModel implements ActionModel {
         return new JSONObject()
                 .put("name", name())
                 .put("class", getClass().getSimpleName())
-                .put("beta", beta);
+                .put("beta", beta)
+                .put("exponential", fast ? "fast" : "exact");
     }
 }
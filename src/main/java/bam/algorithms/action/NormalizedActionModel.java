@@ -1,5 +1,6 @@
 package bam.algorithms.action;
 
+import bam.algorithms.kernels.Kernels;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -7,20 +8,33 @@ public class NormalizedActionModel implements ActionModel {
 
     private final double beta;
 
-    private NormalizedActionModel(double beta) {
+    // Whether to use the approximate exponential
+    private final boolean fast;
+
+    // Kernels for the action loops
+    private final Kernels kernels;
+
+    private NormalizedActionModel(double beta, boolean fast) {
         this.beta = beta;
+        this.fast = fast;
+
+        kernels = Kernels.get(fast);
     }
 
     public static NormalizedActionModel get() {
-        return new NormalizedActionModel(1.0);
+        return new NormalizedActionModel(1.0, false);
     }
 
     public static NormalizedActionModel beta(double beta) {
-        return new NormalizedActionModel(beta);
+        return new NormalizedActionModel(beta, false);
+    }
+
+    public static NormalizedActionModel beta(double beta, boolean fast) {
+        return new NormalizedActionModel(beta, fast);
     }
 
     public static NormalizedActionModel load(JSONObject config) throws JSONException {
-        return beta(config.getDouble("beta"));
+        return beta(config.getDouble("beta"), config.optString("exponential", "exact").equals("fast"));
     }
 
     @Override
@@ -45,16 +59,10 @@ public class NormalizedActionModel implements ActionModel {
         double deviation = (0.0 == variance) ? 1.0 : Math.sqrt(variance / values.length);
 
         // Compute policy
-        double partition = 0.0;
         double[] policy = new double[values.length];
+        double partition = kernels.exp(values, values[0], beta, deviation, policy, values.length);
 
-        for(int action = 0; action < values.length; ++action) {
-            policy[action] = Math.exp(beta * (values[action] - values[0]) / deviation);
-            partition += policy[action];
-        }
-
-        for(int action = 0; action < values.length; ++action)
-            policy[action] /= partition;
+        kernels.divide(policy, partition, values.length);
 
         // Return the policy
         return policy;
@@ -83,21 +91,15 @@ public class NormalizedActionModel implements ActionModel {
         double deviation = Math.sqrt(variance);
 
         // Compute policy
-        double partition = 0.0;
         double[] policy = new double[values.length];
-
-        for(int a = 0; a < values.length; ++a) {
-            policy[a] = Math.exp(beta * (values[a] - values[0]) / deviation);
-            partition += policy[a];
-        }
+        double partition = kernels.exp(values, values[0], beta, deviation, policy, values.length);
 
         if(!Double.isFinite(partition)) {
             System.err.println("Numerical error encountered");
             System.exit(1);
         }
 
-        for(int a = 0; a < values.length; ++a)
-            policy[a] /= partition;
+        kernels.divide(policy, partition, values.length);
 
         // compute gradients
         for(int a = 0; a < values.length; ++a) {
@@ -132,6 +134,7 @@ public class NormalizedActionModel implements ActionModel {
         return new JSONObject()
                 .put("name", name())
                 .put("class", getClass().getSimpleName())
-                .put("beta", beta);
+                .put("beta", beta)
+                .put("exponential", fast ? "fast" : "exact");
     }
 }
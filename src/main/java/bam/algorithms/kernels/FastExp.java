@@ -0,0 +1,75 @@
+package bam.algorithms.kernels;
+
+/**
+ * A fast approximation of the exponential function, for
+ * the planners and action models.  The argument is split
+ * as x = (k / 256) ln(2) + r, with |r| <= ln(2) / 512, so
+ * exp(x) = 2^(k / 256) exp(r).  The power of two is an
+ * exponent shift times an entry from a 256 entry table,
+ * and exp(r) is a cubic polynomial.
+ *
+ * The relative error is at most MAX_RELATIVE_ERROR for
+ * any argument whose exponential is a normal double.
+ * Overflow and underflow behave like Math.exp, arguments
+ * above about 709.78 give positive infinity, and arguments
+ * below about -745.13 give zero, so the planners' overflow
+ * handling still works.
+ */
+public final class FastExp {
+
+    /**
+     * An upper bound on the relative error of exp()
+     * w.r.t. Math.exp(), dominated by the truncation
+     * error of the cubic, r^4 / 24.
+     */
+    public static final double MAX_RELATIVE_ERROR = 2e-13;
+
+    private static final int BITS = 8;
+    private static final int SIZE = 1 << BITS;
+
+    // 2^(i / 256), for i in [0, 256)
+    private static final double[] TABLE = new double[SIZE];
+
+    // 256 / ln(2), and ln(2) / 256 split into high and low parts, so k * LN2_HI is exact
+    private static final double SCALE = SIZE / Math.log(2.0);
+    private static final double LN2_HI = 6.93147180369123816490e-01 / SIZE;
+    private static final double LN2_LO = 1.90821492927058770002e-10 / SIZE;
+
+    // The largest and smallest arguments with a non-zero, finite result
+    private static final double OVERFLOW = 709.782712893384;
+    private static final double UNDERFLOW = -745.1332191019412;
+
+    static {
+        for(int index = 0; index < SIZE; ++index)
+            TABLE[index] = Math.pow(2.0, index / (double) SIZE);
+    }
+
+    private FastExp() {}
+
+    /**
+     * Computes an approximation of e^x.
+     *
+     * @param x the exponent
+     * @return the approximate exponential
+     */
+    public static double exp(double x) {
+        if(!(x < OVERFLOW))
+            return (x != x) ? x : Double.POSITIVE_INFINITY; // NaN stays NaN
+
+        if(x < UNDERFLOW)
+            return 0.0;
+
+        double k = Math.rint(x * SCALE);
+        double r = (x - k * LN2_HI) - k * LN2_LO;
+        double p = 1.0 + r * (1.0 + r * (0.5 + r * (1.0 / 6.0)));
+
+        long n = (long) k;
+        double mantissa = TABLE[(int) (n & (SIZE - 1))] * p;
+        long exponent = n >> BITS;
+
+        if(-1022 <= exponent && exponent <= 1023)
+            return mantissa * Double.longBitsToDouble((exponent + 1023) << 52);
+
+        return Math.scalb(mantissa, (int) exponent);
+    }
+}
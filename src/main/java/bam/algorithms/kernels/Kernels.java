@@ -0,0 +1,114 @@
+package bam.algorithms.kernels;
+
+/**
+ * The inner loops shared by the planners and action
+ * models, over the actions of a single state or the
+ * successors of a single option.  These are short
+ * arrays, usually the 5 or 9 moves of a navigation
+ * grid, so implementations should not assume long
+ * inputs.
+ *
+ * The scalar implementation performs exactly the same
+ * operations, in the same order, as the loops it
+ * replaced.  The vector implementation uses the
+ * jdk.incubator.vector API, and is only built with
+ * the vector profile, mvn -Pvector, which needs
+ * JDK 17.  It is then only used when the JVM is
+ * started with:
+ *
+ *     --add-modules jdk.incubator.vector
+ *
+ * Vector kernels sum in a different order, and use
+ * the vector exponential, so results may differ from
+ * the scalar kernels in the last few bits.  The order
+ * of their sums, and their exponential, may also change
+ * once the JIT compiles them, so repeating a calculation
+ * is not guaranteed to give identical results.  Setting
+ * the system property "bam.kernels" to "scalar" always
+ * selects the scalar kernels.
+ */
+public interface Kernels {
+
+    /**
+     * Computes out[i] = exp(scale * (values[i] - shift) / divisor)
+     * for the first length entries, and returns their sum.
+     *
+     * @param values the input values
+     * @param shift the value subtracted from each input
+     * @param scale the scale applied after shifting
+     * @param divisor the divisor applied after scaling
+     * @param out the output buffer, may be the same as the input
+     * @param length the number of entries
+     * @return the sum of the outputs
+     */
+    double exp(double[] values, double shift, double scale, double divisor, double[] out, int length);
+
+    /**
+     * Divides the first length entries of an array by a constant.
+     *
+     * @param values the array to divide
+     * @param divisor the divisor
+     * @param length the number of entries
+     */
+    void divide(double[] values, double divisor, int length);
+
+    /**
+     * Computes the dot product of the first length entries of two arrays.
+     *
+     * @param first the first array
+     * @param second the second array
+     * @param length the number of entries
+     * @return the dot product
+     */
+    double dot(double[] first, double[] second, int length);
+
+    /**
+     * Adds the dot product of the weights and the gathered
+     * values, values[indices[i]] * weights[i] for every i in
+     * [from, to), to the initial sum.  Used for the lookahead
+     * of a Bellman backup over a compressed successor list.
+     *
+     * @param sum the initial sum
+     * @param values the values to gather from
+     * @param indices the indices of the values to gather
+     * @param weights the weight of each index
+     * @param from the first entry
+     * @param to one past the last entry
+     * @return the initial sum plus the weighted sum of the gathered values
+     */
+    double gather(double sum, double[] values, int[] indices, double[] weights, int from, int to);
+
+    /**
+     * Gets the scalar kernels.
+     *
+     * @return the scalar kernels
+     */
+    static Kernels scalar() { return ScalarKernels.INSTANCE; }
+
+    /**
+     * Gets the fastest kernels available in the
+     * current JVM, the vector kernels if the vector
+     * module has been loaded, and the scalar kernels
+     * otherwise.
+     *
+     * @return the kernels
+     */
+    static Kernels get() { return Selection.KERNELS; }
+
+    /**
+     * Gets the kernels to use with either the exact or the
+     * approximate exponential.  The approximate kernels use
+     * FastExp, and are always scalar.
+     *
+     * @param fast whether to use the approximate exponential
+     * @return the kernels
+     */
+    static Kernels get(boolean fast) { return fast ? ScalarKernels.FAST : get(); }
+
+    /**
+     * Gets whether the vector kernels are in use.
+     *
+     * @return true if get() returns the vector kernels
+     */
+    static boolean vectorized() { return Selection.KERNELS != ScalarKernels.INSTANCE; }
+}
@@ -0,0 +1,58 @@
+package bam.algorithms.kernels;
+
+/**
+ * Plain Java kernels, used when the vector API
+ * is not available.  Each kernel accumulates in
+ * index order, so results are bit for bit the
+ * same as a simple loop.  The fast instance uses
+ * FastExp in place of Math.exp.
+ */
+class ScalarKernels implements Kernels {
+
+    static final ScalarKernels INSTANCE = new ScalarKernels(false);
+    static final ScalarKernels FAST = new ScalarKernels(true);
+
+    // Whether to use the approximate exponential
+    private final boolean fast;
+
+    private ScalarKernels(boolean fast) { this.fast = fast; }
+
+    @Override
+    public double exp(double[] values, double shift, double scale, double divisor, double[] out, int length) {
+        double sum = 0.0;
+
+        for(int index = 0; index < length; ++index) {
+            double exponent = scale * (values[index] - shift) / divisor;
+            double exp = fast ? FastExp.exp(exponent) : Math.exp(exponent);
+
+            out[index] = exp;
+            sum += exp;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void divide(double[] values, double divisor, int length) {
+        for(int index = 0; index < length; ++index)
+            values[index] /= divisor;
+    }
+
+    @Override
+    public double dot(double[] first, double[] second, int length) {
+        double sum = 0.0;
+
+        for(int index = 0; index < length; ++index)
+            sum += first[index] * second[index];
+
+        return sum;
+    }
+
+    @Override
+    public double gather(double sum, double[] values, int[] indices, double[] weights, int from, int to) {
+        for(int entry = from; entry < to; ++entry)
+            sum += values[indices[entry]] * weights[entry];
+
+        return sum;
+    }
+}
@@ -0,0 +1,27 @@
+package bam.algorithms.kernels;
+
+/**
+ * Chooses the kernel implementation once, when it is
+ * first needed.  The vector kernels are only built with
+ * the vector profile, for a newer JVM with the vector
+ * module, so they are only loaded by name.  If they were
+ * not built, or cannot be linked because the JVM is too
+ * old or was started without the vector module, the
+ * scalar kernels are used instead.
+ */
+class Selection {
+
+    static final Kernels KERNELS = select();
+
+    private static Kernels select() {
+        if("scalar".equals(System.getProperty("bam.kernels")))
+            return ScalarKernels.INSTANCE;
+
+        try {
+            return (Kernels) Class.forName("bam.algorithms.kernels.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch(ReflectiveOperationException | LinkageError error) {
+            return ScalarKernels.INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package bam.algorithms.planning;
+
+/**
+ * A planning graph which defines a batch of reward
+ * functions over the same transition dynamics.  A
+ * batch planner evaluates every reward function in
+ * a single pass over the transitions.
+ *
+ * The reward methods inherited from PlanningGraph
+ * refer to the first sample in the batch.
+ */
+public interface BatchGraph extends PlanningGraph {
+
+    /**
+     * Returns the number of reward functions
+     * in the current batch.
+     *
+     * @return the number of samples
+     */
+    int numSamples();
+
+    /**
+     * Returns the reward value at a specified
+     * depth and node, for one sample in the batch.
+     *
+     * @param depth the planning depth
+     * @param node the current node
+     * @param sample the sample index
+     * @return the reward value
+     */
+    double reward(int depth, int node, int sample);
+
+    /**
+     * Updates the gradient of the reward function for
+     * the specified planning depth, node and sample.
+     *
+     * @param depth the planning depth
+     * @param node the current node
+     * @param sample the sample index
+     * @param weight the derivative of the likelihood w.r.t. this reward signal
+     */
+    void train(int depth, int node, int sample, double weight);
+}
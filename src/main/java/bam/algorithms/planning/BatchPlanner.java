@@ -0,0 +1,47 @@
+package bam.algorithms.planning;
+
+/**
+ * Represents an instance of a planning algorithm
+ * which computes the value functions for every
+ * sample in a batch graph at once.
+ */
+public interface BatchPlanner {
+
+    /**
+     * Gets the number of output states, that is, the
+     * number of states at the top layer of the transition
+     * model.  This will always be equal to the second
+     * dimension of the Q-function array.
+     *
+     * @return the number of output states
+     */
+    int numStates();
+
+    /**
+     * Gets the number of actions available
+     * in the given output state.
+     *
+     * @return the number of available actions
+     */
+    int numActions(int state);
+
+    /**
+     * Computes and returns the state-action value functions
+     * for every sample in the batch, indexed by sample, state
+     * and action.  Also updates internal data structures
+     * necessary for training.
+     *
+     * @return the state-action value functions
+     */
+    double[][][] values();
+
+    /**
+     * Backpropagates the Jacobians of the objective w.r.t the
+     * state-action value functions of every sample through
+     * the planning process.  This must be called after the
+     * values() method has been called.
+     *
+     * @param jacobian the jacobians w.r.t. the value functions
+     */
+    void train(double[][][] jacobian);
+}
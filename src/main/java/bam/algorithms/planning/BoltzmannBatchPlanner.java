@@ -0,0 +1,421 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.kernels.Kernels;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A batched version of the Boltzmann planner, which
+ * computes the value functions for every sample of
+ * a batch graph in a single pass over the transitions.
+ *
+ * All buffers are laid out with the sample as the
+ * innermost dimension, so the value of sample k at
+ * option row r of a layer is stored at r * K + k,
+ * and the value of node n at n * K + k.  Passes over
+ * the transitions use the batch helpers of the compiled
+ * layers, and the policy of each sample is computed
+ * exactly as in the single sample planner.
+ */
+public class BoltzmannBatchPlanner implements BatchPlanner {
+
+    // Planning model
+    private BatchGraph dynamics;
+
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
+    // Parameters
+    private double beta; // inverse temperature
+    private boolean checkpoint; // whether to recompute layers during backpropagation rather than storing them
+
+    // Kernels for the action loops
+    private final Kernels kernels;
+
+    // Worker threads
+    private Workers workers;
+
+    // The number of samples the buffers are allocated for
+    private int num_samples = 0;
+
+    // Data structures, indexed by row or node, then sample
+    private double[][] Q; // state-action value functions
+    private double[][] V; // state value functions
+
+    private double[][] PI; // Boltzmann policy at each step
+
+    private double[][] DQ; // state-action backpropagation buffers -- need one for each depth
+    private double[][] DV; // state backpropagation buffers -- need one for each depth
+
+    private double[] R; // reward buffer
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    private double[][] worker_DV; // per-worker state backpropagation buffers
+
+    private double[][] worker_q; // per-worker state-action values of a single sample
+    private double[][] worker_pi; // per-worker policy of a single sample
+
+    private Frontier frontier; // the states with non-zero gradients for any sample at the current depth
+
+    // Checkpointing, if layers share buffers, only the values below each segment are kept
+    private Checkpoints checkpoints;
+
+    // Output buffer, indexed by sample, state and action
+    private double[][][] output;
+
+    BoltzmannBatchPlanner(BatchGraph dynamics, double beta, int threads,
+                          ForkJoinPool pool, boolean checkpoint, boolean fast) {
+        this.dynamics = dynamics;
+        this.beta = beta;
+        this.checkpoint = checkpoint;
+        this.kernels = Kernels.get(fast);
+        this.workers = new Workers(threads, pool);
+
+        compiled = CompiledGraph.of(dynamics);
+        transition_weights = new double[compiled.maxEntries()];
+        frontier = new Frontier(compiled.maxNodes());
+    }
+
+    /**
+     * Allocates the buffers for the given number of samples.
+     *
+     * @param num_samples the number of samples in the batch
+     */
+    private void allocate(int num_samples) {
+        this.num_samples = num_samples;
+
+        int max_nodes = compiled.maxNodes() * num_samples;
+        int max_actions = 0;
+
+        R = new double[max_nodes];
+        reward_weights = new double[max_nodes];
+        worker_DV = workers.serial() ? null : new double[workers.size()][max_nodes];
+
+        // When checkpointing, layers share buffers, which needs a stationary graph
+        checkpoints = new Checkpoints(dynamics.depth(), checkpoint, compiled.stationary(), max_nodes);
+
+        Q = new double[dynamics.depth() + 1][];
+        DQ = new double[dynamics.depth() + 1][];
+
+        V = new double[dynamics.depth()][];
+        PI = new double[dynamics.depth()][];
+        DV = new double[dynamics.depth()][];
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            int num_states = dynamics.numNodes(depth);
+            int num_rows = 0;
+
+            for(int state = 0; state < num_states; ++state) {
+                num_rows += dynamics.numOptions(depth, state);
+                max_actions = Math.max(max_actions, dynamics.numOptions(depth, state));
+            }
+
+            // Layers below the top reuse the buffers of the corresponding layer of the first segment
+            int owner = checkpoints.values(depth);
+
+            if(owner != depth) {
+                Q[depth] = Q[owner];
+                V[depth] = V[owner];
+                PI[depth] = PI[owner];
+            } else {
+                Q[depth] = new double[num_rows * num_samples];
+
+                if(depth < dynamics.depth()) {
+                    V[depth] = new double[num_states * num_samples];
+                    PI[depth] = new double[num_rows * num_samples];
+                }
+            }
+
+            // Backpropagation only ever needs two layers of DQ, and one layer of DV
+            if(checkpoints.actionGradients(depth) != depth)
+                DQ[depth] = DQ[checkpoints.actionGradients(depth)];
+            else
+                DQ[depth] = new double[num_rows * num_samples];
+
+            if(depth < dynamics.depth() && checkpoints.stateGradients(depth) != depth)
+                DV[depth] = DV[checkpoints.stateGradients(depth)];
+            else if(depth < dynamics.depth())
+                DV[depth] = new double[num_states * num_samples];
+        }
+
+        worker_q = new double[workers.size()][max_actions];
+        worker_pi = new double[workers.size()][max_actions];
+
+        output = new double[num_samples][numStates()][];
+
+        for(int sample = 0; sample < num_samples; ++sample)
+            for(int state = 0; state < numStates(); ++state)
+                output[sample][state] = new double[numActions(state)];
+    }
+
+    @Override
+    public int numStates() {
+        return dynamics.numNodes(dynamics.depth());
+    }
+
+    @Override
+    public int numActions(int state) {
+        return dynamics.numOptions(dynamics.depth(), state);
+    }
+
+    /**
+     * Computes and returns the state-action value functions
+     * of every sample. Also updates internal data structures
+     * necessary for backpropagation.
+     *
+     * @return the state-action value functions
+     */
+    @Override
+    public double[][][] values() {
+
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
+
+        // Reallocate buffers if the batch size has changed
+        if(dynamics.numSamples() != num_samples)
+            allocate(dynamics.numSamples());
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            final int current = depth;
+            final CompiledGraph.Layer layer = compiled.layer(depth);
+
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    for(int sample = 0; sample < num_samples; ++sample)
+                        R[state * num_samples + sample] = dynamics.reward(depth, state, sample);
+
+            // Each state in the layer is independent, so split the layer into ranges
+            workers.parallel(layer.num_nodes, (int worker, int from, int to) -> forward(current, layer, worker, from, to));
+
+            // Save the values at the end of each segment, as they will be overwritten
+            if(depth < dynamics.depth())
+                checkpoints.save(depth, V[depth], layer.num_nodes * num_samples);
+        }
+
+        // Copy the uppermost layer of the Q function
+        double[] q = Q[dynamics.depth()];
+        int row = 0;
+
+        for(int state = 0; state < numStates(); ++state)
+            for(int action = 0; action < numActions(state); ++action, ++row)
+                for(int sample = 0; sample < num_samples; ++sample)
+                    output[sample][state][action] = q[row * num_samples + sample];
+
+        return output;
+    }
+
+    /**
+     * Computes the Q functions, policies and value functions
+     * for a range of states at a single depth.
+     *
+     * @param depth the current depth
+     * @param layer the compiled transitions at this depth
+     * @param worker the worker computing the range
+     * @param from the first state in the range
+     * @param to one past the last state in the range
+     */
+    private void forward(int depth, CompiledGraph.Layer layer, int worker, int from, int to) {
+        final int K = num_samples;
+
+        // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+        layer.backup(from, to, R, (0 == depth) ? null : V[depth - 1], Q[depth], K);
+
+        // Update PI and V, one sample at a time
+        if(dynamics.depth() != depth) {
+            double[] q = Q[depth];
+            double[] pi = PI[depth];
+            double[] v = V[depth];
+
+            double[] sample_q = worker_q[worker];
+            double[] sample_pi = worker_pi[worker];
+
+            for(int state = from; state < to; ++state) {
+                int first = layer.options[state];
+                int num_actions = layer.options[state + 1] - first;
+
+                for(int sample = 0; sample < K; ++sample) {
+                    for(int action = 0; action < num_actions; ++action)
+                        sample_q[action] = q[(first + action) * K + sample];
+
+                    v[state * K + sample] = BoltzmannPlanner.policy(kernels, beta, sample_q, sample_pi, num_actions);
+
+                    for(int action = 0; action < num_actions; ++action)
+                        pi[(first + action) * K + sample] = sample_pi[action];
+                }
+            }
+        }
+    }
+
+    /**
+     * Backpropagates the jacobians of the objective w.r.t the
+     * state-action value functions through the planning process.
+     * This must be called after the values() method has been called.
+     *
+     * @param jacobian the jacobians w.r.t. the value functions
+     */
+    @Override
+    public void train(double[][][] jacobian) {
+        final int K = num_samples;
+
+        // Copy jacobian, and find the states with non-zero gradients
+        double[] top = DQ[dynamics.depth()];
+        int top_row = 0;
+
+        frontier.reset();
+
+        for(int state = 0; state < numStates(); ++state)
+            for(int action = 0; action < numActions(state); ++action, ++top_row)
+                for(int sample = 0; sample < K; ++sample) {
+                    top[top_row * K + sample] = jacobian[sample][state][action];
+
+                    if(0.0 != jacobian[sample][state][action])
+                        frontier.visit(state);
+                }
+
+        frontier.advance(numStates());
+
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
+
+        // Do reverse value iteration
+        for(int depth = dynamics.depth(); depth >= 0; --depth) {
+            final int current = depth;
+
+            // If we are past the first iteration, backpropagate transitions and propagate through transitions
+            if(dynamics.depth() > depth) {
+
+                // If we have reached a segment whose buffers have been overwritten, recompute it
+                if(checkpoints.stale(depth))
+                    recompute(checkpoints.start(depth));
+
+                final CompiledGraph.Layer layer = compiled.layer(depth + 1);
+                final double[] v = V[depth];
+                final double[] dv = DV[depth];
+
+                if(!frontier.dense()) {
+
+                    // Only backpropagate from the frontier, DV is initialized as the next frontier is built
+                    layer.backpropagate(frontier, DQ[depth + 1], v, dv, transition_weights, K);
+
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights, frontier);
+
+                    frontier.advance(dynamics.numNodes(depth));
+
+                    // If the frontier has become dense, clear DV for the states it didn't reach
+                    if(frontier.dense())
+                        for(int state = 0; state < dynamics.numNodes(depth); ++state)
+                            if(!frontier.contains(state))
+                                Arrays.fill(dv, state * K, (state + 1) * K, 0.0);
+                } else {
+
+                    // Initialize DV
+                    Arrays.fill(dv, 0.0);
+
+                    // Backpropagate through transitions, and accumulate log transition gradients
+                    if(workers.serial())
+                        layer.backpropagate(0, layer.num_nodes, DQ[depth + 1], v, dv, transition_weights, K);
+                    else {
+
+                        // Ranges share successors, so each worker gets its own DV buffer
+                        for(double[] buffer : worker_DV)
+                            Arrays.fill(buffer, 0, dv.length, 0.0);
+
+                        workers.parallel(layer.num_nodes, (int worker, int from, int to) ->
+                                layer.backpropagate(from, to, DQ[current + 1], v, worker_DV[worker], transition_weights, K));
+
+                        // Reduce worker buffers
+                        for(double[] buffer : worker_DV)
+                            for(int index = 0; index < dv.length; ++index)
+                                dv[index] += buffer[index];
+                    }
+
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights);
+
+                    frontier.fill(dynamics.numNodes(depth));
+                }
+
+                // Update DQ from DV, only states in the frontier can have non-zero gradients
+                final CompiledGraph.Layer below = compiled.layer(depth);
+
+                workers.parallel(frontier.size(), (int worker, int from, int to) -> {
+                    double[] q = Q[current];
+                    double[] pi = PI[current];
+                    double[] dq = DQ[current];
+
+                    for(int position = from; position < to; ++position) {
+                        int state = frontier.get(position);
+
+                        for(int row = below.options[state]; row < below.options[state + 1]; ++row)
+                            for(int sample = 0; sample < K; ++sample) {
+                                int index = row * K + sample;
+                                double weight = 1.0 + beta * (q[index] - v[state * K + sample]);
+                                dq[index] = pi[index] * dv[state * K + sample] * weight;
+                            }
+                    }
+                });
+            }
+
+            // Backpropagate reward gradient
+            CompiledGraph.Layer layer = compiled.layer(depth);
+            double[] dq = DQ[depth];
+
+            for(int position = 0; position < frontier.size(); ++position) {
+                int state = frontier.get(position);
+
+                for(int sample = 0; sample < K; ++sample) {
+                    double reward_weight = 0.0;
+
+                    for(int row = layer.options[state]; row < layer.options[state + 1]; ++row)
+                        reward_weight += dq[row * K + sample];
+
+                    if(compiled.stationary())
+                        reward_weights[state * K + sample] += reward_weight;
+                    else if(0.0 != reward_weight)
+                        dynamics.train(depth, state, sample, reward_weight);
+                }
+            }
+        }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < numStates(); ++state)
+                for(int sample = 0; sample < K; ++sample)
+                    if(0.0 != reward_weights[state * K + sample])
+                        dynamics.train(dynamics.depth(), state, sample, reward_weights[state * K + sample]);
+        }
+    }
+
+    /**
+     * Recomputes the Q functions, policies and value functions
+     * for every layer in a segment, starting from the values
+     * saved at the segment's checkpoint.  Only used when
+     * layers share buffers, which implies the graph is
+     * stationary, so the reward buffer is still valid.
+     *
+     * @param start the first layer of the segment to recompute
+     */
+    private void recompute(int start) {
+        if(0 < start)
+            checkpoints.restore(start, V[start - 1]);
+
+        for(int depth = start; depth < start + checkpoints.interval(); ++depth) {
+            final int current = depth;
+            final CompiledGraph.Layer layer = compiled.layer(depth);
+
+            workers.parallel(layer.num_nodes, (int worker, int from, int to) -> forward(current, layer, worker, from, to));
+        }
+    }
+}
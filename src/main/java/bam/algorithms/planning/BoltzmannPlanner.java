@@ -1,9 +1,11 @@
 package bam.algorithms.planning;
 
+import bam.algorithms.kernels.Kernels;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A planning module which computes the
@@ -19,12 +21,58 @@ public class BoltzmannPlanner implements Planner {
     }
 
     public static PlanningAlgorithm algorithm(final double beta) {
+        return algorithm(beta, 1);
+    }
+
+    public static PlanningAlgorithm algorithm(final double beta, final int threads) {
+        return algorithm(beta, threads, false);
+    }
+
+    public static PlanningAlgorithm algorithm(final double beta, final int threads, final boolean checkpoint) {
+        return algorithm(beta, threads, checkpoint, false);
+    }
+
+    public static PlanningAlgorithm algorithm(final double beta, final int threads,
+                                              final boolean checkpoint, final boolean single) {
+        return algorithm(beta, threads, checkpoint, single, false);
+    }
+
+    /**
+     * Gets a Boltzmann planning algorithm.  Single precision
+     * planners ignore the thread and checkpoint settings, and
+     * plan batches one sample at a time.
+     *
+     * @param beta the inverse temperature
+     * @param threads the number of worker threads
+     * @param checkpoint whether to recompute layers during backpropagation rather than storing them, needs a stationary graph
+     * @param single whether to plan in single precision
+     * @param fast whether to use the approximate exponential, see FastExp
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(final double beta, final int threads,
+                                              final boolean checkpoint, final boolean single, final boolean fast) {
+        final ForkJoinPool pool = (1 < threads && !single) ? new ForkJoinPool(threads) : null;
+
         return new PlanningAlgorithm() {
             @Override
             public Planner planner(PlanningGraph graph) {
-                return new BoltzmannPlanner(graph, beta);
+                if(single)
+                    return new FloatBoltzmannPlanner(graph, beta, fast);
+
+                return new BoltzmannPlanner(graph, beta, threads, pool, checkpoint, fast);
+            }
+
+            @Override
+            public BatchPlanner batchPlanner(BatchGraph graph) {
+                if(single)
+                    return new SerialBatchPlanner(this, graph);
+
+                return new BoltzmannBatchPlanner(graph, beta, threads, pool, checkpoint, fast);
             }
 
+            @Override
+            public boolean stationaryOnly() { return checkpoint && !single; }
+
             @Override
             public String name() {
                 return "Boltzmann Planner";
@@ -35,21 +83,101 @@ public class BoltzmannPlanner implements Planner {
                 return new JSONObject()
                         .put("name", name())
                         .put("class", BoltzmannPlanner.class.getSimpleName())
-                        .put("beta", beta);
+                        .put("beta", beta)
+                        .put("threads", threads)
+                        .put("checkpoint", checkpoint)
+                        .put("precision", single ? "single" : "double")
+                        .put("exponential", fast ? "fast" : "exact");
             }
         };
     }
 
     public static PlanningAlgorithm load(JSONObject config) throws JSONException {
-        return algorithm(config.getDouble("beta"));
+        return algorithm(config.getDouble("beta"),
+                config.optInt("threads", 1),
+                config.optBoolean("checkpoint", false),
+                config.optString("precision", "double").equals("single"),
+                config.optString("exponential", "exact").equals("fast"));
+    }
+
+    /**
+     * Computes the Boltzmann policy over the first entries
+     * of a list of state-action values, and returns the
+     * expected value under that policy.  Shared by the
+     * double precision Boltzmann planners, so that they
+     * handle degenerate partitions in the same way.
+     *
+     * @param kernels the kernels to compute the policy with
+     * @param beta the inverse temperature
+     * @param q the state-action values
+     * @param pi the buffer for the policy
+     * @param length the number of actions
+     * @return the state value
+     */
+    static double policy(Kernels kernels, double beta, double[] q, double[] pi, int length) {
+
+        // Use the largest Q-value as the baseline for the advantage, so no exponential can overflow
+        double max = -Double.MAX_VALUE;
+        int num_max = 0;
+
+        for (int action = 0; action < length; ++action) {
+            if(q[action] == max)
+                ++num_max;
+            else if (q[action] > max) {
+                max = q[action];
+                num_max = 1;
+            }
+        }
+
+        double partition = kernels.exp(q, max, beta, 1.0, pi, length);
+
+        if (!(partition < Double.POSITIVE_INFINITY)) {
+
+            // If it is infinite, set V to be the maximum, and assign probability only to maximal actions
+            double p = length / (double) num_max;
+
+            for (int action = 0; action < length; ++action) {
+                if(q[action] != max)
+                    pi[action] = 0.0;
+                else
+                    pi[action] = p;
+            }
+
+            return max;
+        } else if(0 == partition) {
+
+            // If the partition is zero, use a random policy
+            double value = 0;
+
+            for (int action = 0; action < length; ++action) {
+                pi[action] /= 1.0 / length;
+                value += pi[action] * q[action];
+            }
+
+            return value;
+        }
+
+        // If the partition is finite, normalize PI and compute V as the expectation
+        kernels.divide(pi, partition, length);
+
+        return kernels.dot(pi, q, length);
     }
 
     // Planning model
     private PlanningGraph dynamics;
 
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
     // Parameters
     private double beta; // inverse temperature
 
+    // Kernels for the action loops
+    private final Kernels kernels;
+
+    // Worker threads
+    private Workers workers;
+
     // Data structures
     private double[][][] Q; // state-action value functions
     private double[][] V; // state value functions
@@ -59,9 +187,35 @@ public class BoltzmannPlanner implements Planner {
     private double[][][] DQ; // state-action backpropagation buffers -- need one for each depth
     private double[][] DV; // state backpropagation buffers -- need one for each depth
 
-    private BoltzmannPlanner(PlanningGraph dynamics, double beta) {
+    private double[] R; // reward buffer
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    private double[][] worker_DV; // per-worker state backpropagation buffers
+
+    private Frontier frontier; // the states with non-zero gradients at the current depth
+
+    // Checkpointing, if layers share buffers, only the values below each segment are kept
+    private Checkpoints checkpoints;
+
+    private BoltzmannPlanner(PlanningGraph dynamics, double beta, int threads,
+                             ForkJoinPool pool, boolean checkpoint, boolean fast) {
         this.dynamics = dynamics;
         this.beta = beta;
+        this.kernels = Kernels.get(fast);
+        this.workers = new Workers(threads, pool);
+
+        compiled = CompiledGraph.of(dynamics);
+
+        R = new double[compiled.maxNodes()];
+        reward_weights = new double[compiled.maxNodes()];
+        transition_weights = new double[compiled.maxEntries()];
+
+        worker_DV = workers.serial() ? null : new double[workers.size()][compiled.maxNodes()];
+        frontier = new Frontier(compiled.maxNodes());
+
+        // When checkpointing, layers share buffers, which needs a stationary graph
+        checkpoints = new Checkpoints(dynamics.depth(), checkpoint, compiled.stationary(), compiled.maxNodes());
 
         Q = new double[dynamics.depth() + 1][][];
         DQ = new double[dynamics.depth() + 1][][];
@@ -73,24 +227,45 @@ public class BoltzmannPlanner implements Planner {
         for(int depth = 0; depth <= dynamics.depth(); ++depth) {
             int num_states = dynamics.numNodes(depth);
 
-            Q[depth] = new double[num_states][];
-            DQ[depth] = new double[num_states][];
+            // Layers below the top reuse the buffers of the corresponding layer of the first segment
+            int owner = checkpoints.values(depth);
 
-            if(depth < dynamics.depth()) {
-                V[depth] = new double[num_states];
-                DV[depth] = new double[num_states];
-                PI[depth] = new double[num_states][];
-            }
+            if(owner != depth) {
+                Q[depth] = Q[owner];
+                V[depth] = V[owner];
+                PI[depth] = PI[owner];
+            } else {
+                Q[depth] = new double[num_states][];
+
+                if(depth < dynamics.depth()) {
+                    V[depth] = new double[num_states];
+                    PI[depth] = new double[num_states][];
+                }
+
+                for(int state = 0; state < num_states; ++state) {
+                    int num_actions = dynamics.numOptions(depth, state);
+
+                    Q[depth][state] = new double[num_actions];
 
-            for(int state = 0; state < num_states; ++state) {
-                int num_actions = dynamics.numOptions(depth, state);
+                    if(depth < dynamics.depth())
+                        PI[depth][state] = new double[num_actions];
+                }
+            }
 
-                Q[depth][state] = new double[num_actions];
-                DQ[depth][state] = new double[num_actions];
+            // Backpropagation only ever needs two layers of DQ, and one layer of DV
+            if(checkpoints.actionGradients(depth) != depth)
+                DQ[depth] = DQ[checkpoints.actionGradients(depth)];
+            else {
+                DQ[depth] = new double[num_states][];
 
-                if(depth < dynamics.depth())
-                    PI[depth][state] = new double[num_actions];
+                for(int state = 0; state < num_states; ++state)
+                    DQ[depth][state] = new double[dynamics.numOptions(depth, state)];
             }
+
+            if(depth < dynamics.depth() && checkpoints.stateGradients(depth) != depth)
+                DV[depth] = DV[checkpoints.stateGradients(depth)];
+            else if(depth < dynamics.depth())
+                DV[depth] = new double[num_states];
         }
     }
 
@@ -130,87 +305,51 @@ public class BoltzmannPlanner implements Planner {
      */
     @Override
     public double[][] values() {
-        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
-
-            // Add rewards to Q function at this depth
-            for(int state = 0; state < dynamics.numNodes(depth); ++state)
-                for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
-                    Q[depth][state][action] = dynamics.reward(depth, state);
-
-            // If this isn't the first iteration, do transition lookahead
-            if(0 != depth) {
-                for (int start = 0; start < dynamics.numNodes(depth); ++start)
-                    for (int action = 0; action < dynamics.numOptions(depth, start); ++action) {
-                        int[] next = dynamics.successors(depth, start, action);
-                        double[] dist = dynamics.transitions(depth, start, action);
-
-                        for (int end = 0; end < next.length; ++end)
-                            Q[depth][start][action] += V[depth - 1][next[end]] * dist[end];
-                    }
-            }
-
-            // Update PI and V
-            if(dynamics.depth() != depth) {
-                for (int state = 0; state < dynamics.numNodes(depth); ++state) {
-                    double partition = 0.0;
-                    double max = -Double.MAX_VALUE;
-                    int num_max = 0;
-
-                    for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                        double advantage = Q[depth][state][action] - ((0 == depth) ? 0 : V[depth - 1][state]); // Note, we can use any baseline for the advantage
-                        double exp = Math.exp(beta * advantage);
-
-                        PI[depth][state][action] = exp;
-                        partition += exp;
-
-                        if(advantage == max)
-                            ++num_max;
-                        else if (advantage > max) {
-                            max = advantage;
-                            num_max = 1;
-                        }
-                    }
-
-                    if (Double.isInfinite(partition)) {
 
-                        // If it is infinite, set V to be the maximum, and assign probability only to maximal actions
-                        double p = dynamics.numOptions(depth, state) / (double) num_max;
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
 
-                        for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                            if(Q[depth][state][action] != max)
-                                PI[depth][state][action] = 0.0;
-                            else
-                                PI[depth][state][action] = p;
-                        }
-
-                        V[depth][state] = max;
-                    } else if(0 == partition) {
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            final int current = depth;
+            final CompiledGraph.Layer layer = compiled.layer(depth);
 
-                        // If the partition is zero, use a random policy
-                        V[depth][state] = 0;
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    R[state] = dynamics.reward(depth, state);
 
-                        for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                            PI[depth][state][action] /= 1.0 / dynamics.numOptions(depth, state);
-                            V[depth][state] += PI[depth][state][action] * Q[depth][state][action];
-                        }
-                    } else {
+            // Each state in the layer is independent, so split the layer into ranges
+            workers.parallel(layer.num_nodes, (int worker, int from, int to) -> forward(current, layer, from, to));
 
-                        // If the partition is finite, normalize PI and compute V as the expectation
-                        V[depth][state] = 0;
-
-                        for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                            PI[depth][state][action] /= partition;
-                            V[depth][state] += PI[depth][state][action] * Q[depth][state][action];
-                        }
-                    }
-                }
-            }
+            // Save the values at the end of each segment, as they will be overwritten
+            if(depth < dynamics.depth())
+                checkpoints.save(depth, V[depth], layer.num_nodes);
         }
 
         // Return the uppermost layer of the Q function
         return Q[dynamics.depth()];
     }
 
+    /**
+     * Computes the Q function, policy and value function
+     * for a range of states at a single depth.
+     *
+     * @param depth the current depth
+     * @param layer the compiled transitions at this depth
+     * @param from the first state in the range
+     * @param to one past the last state in the range
+     */
+    private void forward(int depth, CompiledGraph.Layer layer, int from, int to) {
+
+        // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+        layer.backup(from, to, R, (0 == depth) ? null : V[depth - 1], Q[depth]);
+
+        // Update PI and V
+        if(dynamics.depth() != depth)
+            for (int state = from; state < to; ++state)
+                V[depth][state] = policy(kernels, beta, Q[depth][state], PI[depth][state], Q[depth][state].length);
+    }
+
     /**
      * Backpropagates the jacobian of the objective w.r.t the
      * state-action value function through the stochastic_planning process.
@@ -222,59 +361,146 @@ public class BoltzmannPlanner implements Planner {
     @Override
     public void train(double[][] jacobian) {
 
-        // Copy jacobian
+        // Copy jacobian, and find the states with non-zero gradients
+        frontier.reset();
+
         for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
-            for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action)
+            for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action) {
                 DQ[dynamics.depth()][state][action] = jacobian[state][action];
 
+                if(0.0 != jacobian[state][action])
+                    frontier.visit(state);
+            }
+
+        frontier.advance(dynamics.numNodes(dynamics.depth()));
+
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
 
         // Do reverse value iteration
         for(int depth = dynamics.depth(); depth >= 0; --depth) {
+            final int current = depth;
 
             // If we are past the first iteration, backpropagate transitions and propagate through transitions
             if(dynamics.depth() > depth) {
 
-                // Initialize DV
-                Arrays.fill(DV[depth], 0.0);
+                // If we have reached a segment whose buffers have been overwritten, recompute it
+                if(checkpoints.stale(depth))
+                    recompute(checkpoints.start(depth));
 
-                for(int start = 0; start < dynamics.numNodes(depth + 1); ++start)
-                    for(int action = 0; action < dynamics.numOptions(depth + 1, start); ++action) {
-                        int[] next = dynamics.successors(depth + 1, start, action);
-                        double[] dist = dynamics.transitions(depth + 1, start, action);
+                final CompiledGraph.Layer layer = compiled.layer(depth + 1);
+                final double[] v = V[depth];
+                final double[] dv = DV[depth];
 
-                        for(int end = 0; end < next.length; ++end) {
-                            double prop = DQ[depth + 1][start][action] * dist[end];
-                            double weight = prop * V[depth][next[end]];
+                if(!frontier.dense()) {
 
+                    // Only backpropagate from the frontier, DV is initialized as the next frontier is built
+                    layer.backpropagate(frontier, DQ[depth + 1], v, dv, transition_weights);
 
-                            // if(!Double.isFinite(weight))
-                               // throw new RuntimeException("Boltzmann Planner: training weight was invalid, backwards value: " + prop + ", forwards value: " + V[depth][next[end]]);
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights, frontier);
 
-                            // Backpropagate log transition
-                            dynamics.train(depth + 1, start, action, next[end], weight);
+                    frontier.advance(dynamics.numNodes(depth));
 
-                            // Backpropagate through transition
-                            DV[depth][next[end]] += prop;
-                        }
+                    // If the frontier has become dense, clear DV for the states it didn't reach
+                    if(frontier.dense())
+                        for(int state = 0; state < dv.length; ++state)
+                            if(!frontier.contains(state))
+                                dv[state] = 0.0;
+                } else {
+
+                    // Initialize DV
+                    Arrays.fill(dv, 0.0);
+
+                    // Backpropagate through transitions, and accumulate log transition gradients
+                    if(workers.serial())
+                        layer.backpropagate(DQ[depth + 1], v, dv, transition_weights);
+                    else {
+
+                        // Ranges share successors, so each worker gets its own DV buffer
+                        for(double[] buffer : worker_DV)
+                            Arrays.fill(buffer, 0, dv.length, 0.0);
+
+                        workers.parallel(layer.num_nodes, (int worker, int from, int to) ->
+                                layer.backpropagate(from, to, DQ[current + 1], v, worker_DV[worker], transition_weights));
+
+                        // Reduce worker buffers
+                        for(double[] buffer : worker_DV)
+                            for(int state = 0; state < dv.length; ++state)
+                                dv[state] += buffer[state];
                     }
 
-                // Update DQ from DV
-                for(int state = 0; state < dynamics.numNodes(depth); ++state)
-                    for(int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                        double weight = 1.0 + beta * (Q[depth][state][action] - V[depth][state]);
-                        DQ[depth][state][action] = PI[depth][state][action] * DV[depth][state] * weight;
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights);
+
+                    frontier.fill(dynamics.numNodes(depth));
+                }
+
+                // Update DQ from DV, only states in the frontier can have non-zero gradients
+                workers.parallel(frontier.size(), (int worker, int from, int to) -> {
+                    for(int index = from; index < to; ++index) {
+                        int state = frontier.get(index);
+                        double[] q = Q[current][state];
+                        double[] pi = PI[current][state];
+                        double[] dq = DQ[current][state];
+
+                        for(int action = 0; action < dq.length; ++action) {
+                            double weight = 1.0 + beta * (q[action] - v[state]);
+                            dq[action] = pi[action] * dv[state] * weight;
+                        }
                     }
+                });
             }
 
             // Backpropagate reward gradient
-            for(int state = 0; state < dynamics.numNodes(depth); ++state) {
+            for(int index = 0; index < frontier.size(); ++index) {
+                int state = frontier.get(index);
                 double reward_weight = 0.0;
 
-                for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
+                for(int action = 0; action < DQ[depth][state].length; ++action)
                     reward_weight += DQ[depth][state][action];
 
-                dynamics.train(depth, state, reward_weight);
+                if(compiled.stationary())
+                    reward_weights[state] += reward_weight;
+                else if(0.0 != reward_weight)
+                    dynamics.train(depth, state, reward_weight);
             }
         }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+                if(0.0 != reward_weights[state])
+                    dynamics.train(dynamics.depth(), state, reward_weights[state]);
+        }
+    }
+
+    /**
+     * Recomputes the Q function, policy and value function
+     * for every layer in a segment, starting from the values
+     * saved at the segment's checkpoint.  Only used when
+     * layers share buffers, which implies the graph is
+     * stationary, so the reward buffer is still valid.
+     *
+     * @param start the first layer of the segment to recompute
+     */
+    private void recompute(int start) {
+        if(0 < start)
+            checkpoints.restore(start, V[start - 1]);
+
+        for(int depth = start; depth < start + checkpoints.interval(); ++depth) {
+            final int current = depth;
+            final CompiledGraph.Layer layer = compiled.layer(depth);
+
+            workers.parallel(layer.num_nodes, (int worker, int from, int to) -> forward(current, layer, from, to));
+        }
     }
 }
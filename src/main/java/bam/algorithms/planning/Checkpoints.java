@@ -0,0 +1,147 @@
+package bam.algorithms.planning;
+
+/**
+ * The buffer layout of a planner which checkpoints its
+ * forward pass.  The layers below the top are split into
+ * segments of about the square root of the depth, and
+ * only the layers of the first segment get their own
+ * buffers, later segments reuse them.  The values of the
+ * layer below each segment are saved as the forward pass
+ * reaches it, so each segment can be recomputed from its
+ * checkpoint when backpropagation reaches it.
+ *
+ * Only stationary graphs can be checkpointed, as layers
+ * which share buffers must have the same nodes and options.
+ * The layers of other graphs, such as pruned graphs, differ
+ * in size and shape, so checkpointing them is rejected,
+ * rather than quietly keeping every layer.  Without
+ * checkpointing, every layer keeps its own buffers, and
+ * nothing is ever recomputed.
+ */
+class Checkpoints {
+
+    // The planning depth
+    private final int depth;
+
+    // Whether layers share buffers
+    private final boolean shared;
+
+    // The number of layers in each segment
+    private final int interval;
+
+    // The values of the layer below each segment but the first
+    private final double[][] values;
+
+    /**
+     * Gets the layout for a planner.  Throws an exception
+     * if checkpointing is requested for a graph which is not
+     * stationary.
+     *
+     * @param depth the planning depth
+     * @param checkpoint whether the planner should checkpoint its layers
+     * @param stationary whether the graph is stationary
+     * @param size the largest length of the value buffer of any layer
+     */
+    Checkpoints(int depth, boolean checkpoint, boolean stationary, int size) {
+        this.depth = depth;
+
+        if(checkpoint && !stationary)
+            throw new RuntimeException("Checkpointing requires a stationary planning graph");
+
+        shared = checkpoint;
+        interval = shared ? Math.max(2, (int) Math.ceil(Math.sqrt(depth))) : Math.max(1, depth);
+        values = new double[(depth + interval - 1) / interval][];
+
+        if(shared)
+            for(int segment = 1; segment < values.length; ++segment)
+                values[segment] = new double[size];
+    }
+
+    /**
+     * Gets the layer whose Q-function, policy and value
+     * buffers are used by the given layer.
+     *
+     * @param layer the layer
+     * @return the layer which owns its buffers
+     */
+    int values(int layer) {
+        return (shared && interval <= layer && layer < depth) ? layer % interval : layer;
+    }
+
+    /**
+     * Gets the layer whose state-action gradient buffer is
+     * used by the given layer.  Backpropagation only ever
+     * needs two of these at a time.
+     *
+     * @param layer the layer
+     * @return the layer which owns its buffer
+     */
+    int actionGradients(int layer) {
+        return (shared && 2 <= layer) ? layer % 2 : layer;
+    }
+
+    /**
+     * Gets the layer whose state gradient buffer is used by
+     * the given layer.  Backpropagation only ever needs one.
+     *
+     * @param layer the layer
+     * @return the layer which owns its buffer
+     */
+    int stateGradients(int layer) {
+        return (shared && 1 <= layer) ? 0 : layer;
+    }
+
+    /**
+     * Saves the values of a layer if it is the last layer
+     * below a segment, as its buffer will be overwritten.
+     * Called after each layer of the forward pass.
+     *
+     * @param layer the layer just computed
+     * @param V the value buffer of that layer
+     * @param length the number of values in the layer
+     */
+    void save(int layer, double[] V, int length) {
+        if(shared && 0 == (layer + 1) % interval && layer + 1 < depth)
+            System.arraycopy(V, 0, values[(layer + 1) / interval], 0, length);
+    }
+
+    /**
+     * Checks whether the segment of a layer must be recomputed
+     * before backpropagating into it, that is, whether the layer
+     * is the last of a segment whose buffers were overwritten.
+     *
+     * @param layer the layer being backpropagated into
+     * @return whether its segment must be recomputed
+     */
+    boolean stale(int layer) {
+        return shared && interval - 1 == layer % interval && layer / interval < (depth - 1) / interval;
+    }
+
+    /**
+     * Gets the first layer of the segment containing a layer.
+     *
+     * @param layer the layer
+     * @return the first layer of its segment
+     */
+    int start(int layer) { return layer / interval * interval; }
+
+    /**
+     * Gets the number of layers in each segment.
+     *
+     * @return the segment length
+     */
+    int interval() { return interval; }
+
+    /**
+     * Restores the values of the layer below a segment from its
+     * checkpoint, before the segment is recomputed.  There is
+     * nothing to restore for the first segment.
+     *
+     * @param start the first layer of the segment
+     * @param V the value buffer of the layer below the segment
+     */
+    void restore(int start, double[] V) {
+        if(0 < start)
+            System.arraycopy(values[start / interval], 0, V, 0, V.length);
+    }
+}
@@ -0,0 +1,576 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.kernels.Kernels;
+
+import java.util.Arrays;
+
+/**
+ * A flattened copy of the transition structure of a
+ * planning graph.  The successors and transition
+ * probabilities of every node and option are stored in
+ * contiguous primitive arrays, indexed using compressed
+ * sparse row offsets, so that planners can run their inner
+ * loops without calling back into the graph.
+ *
+ * The compiled structure is only rebuilt when the version
+ * of the underlying graph changes.  For stationary graphs,
+ * a single layer is compiled and shared across all depths.
+ *
+ * Probabilities are stored either in double or single
+ * precision, single precision graphs are used by the
+ * float planners.
+ */
+public class CompiledGraph {
+
+    // Kernels for the Bellman backups
+    private static final Kernels kernels = Kernels.get();
+
+    /**
+     * The compiled transitions for a single planning depth.
+     * The options of node n are the rows options[n] to
+     * options[n + 1] - 1, and the successors of row r are
+     * the entries transitions[r] to transitions[r + 1] - 1.
+     */
+    static class Layer {
+
+        // The number of nodes in this layer
+        int num_nodes;
+
+        // The first option row of each node, plus a sentinel
+        int[] options;
+
+        // The first transition entry of each row, plus a sentinel
+        int[] transitions;
+
+        // The successor node of each transition entry
+        int[] successors;
+
+        // The probability of each transition entry, in double precision
+        double[] probabilities;
+
+        // The probability of each transition entry, in single precision
+        float[] single_probabilities;
+
+        /**
+         * Gets the total number of transition entries in this layer.
+         *
+         * @return the number of transition entries
+         */
+        int numEntries() { return transitions[options[num_nodes]]; }
+
+        /**
+         * Computes the state-action values of this layer from the
+         * rewards of each node, and the state values of the layer
+         * below it.  If there is no layer below, the values are
+         * simply the rewards.
+         *
+         * @param rewards the reward for each node
+         * @param next_V the values of the layer below, or null
+         * @param Q the state-action value buffer for this layer
+         */
+        void backup(double[] rewards, double[] next_V, double[][] Q) {
+            backup(0, num_nodes, rewards, next_V, Q);
+        }
+
+        /**
+         * Computes the state-action values for a range of nodes
+         * in this layer.  Ranges can be computed concurrently.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param rewards the reward for each node
+         * @param next_V the values of the layer below, or null
+         * @param Q the state-action value buffer for this layer
+         */
+        void backup(int from, int to, double[] rewards, double[] next_V, double[][] Q) {
+            for(int node = from; node < to; ++node) {
+                double[] q = Q[node];
+                int row = options[node];
+
+                for(int option = 0; option < q.length; ++option, ++row) {
+                    if(null != next_V)
+                        q[option] = kernels.gather(rewards[node], next_V, successors, probabilities,
+                                transitions[row], transitions[row + 1]);
+                    else
+                        q[option] = rewards[node];
+                }
+            }
+        }
+
+        /**
+         * Backpropagates the gradient of the state-action values of
+         * this layer through its transitions.  Adds the gradient with
+         * respect to the values of the layer below to DV, and the
+         * gradient with respect to the log probability of each
+         * transition entry to the weight buffer.
+         *
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         */
+        void backpropagate(double[][] DQ, double[] next_V, double[] DV, double[] weights) {
+            backpropagate(0, num_nodes, DQ, next_V, DV, weights);
+        }
+
+        /**
+         * Backpropagates the gradient for a range of nodes in this
+         * layer.  Ranges write to disjoint transition weights, but
+         * can share successors, so each concurrent range needs its
+         * own DV buffer.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         */
+        void backpropagate(int from, int to, double[][] DQ, double[] next_V, double[] DV, double[] weights) {
+            for(int node = from; node < to; ++node) {
+                double[] dq = DQ[node];
+                int row = options[node];
+
+                for(int option = 0; option < dq.length; ++option, ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        int next = successors[entry];
+                        double prop = dq[option] * probabilities[entry];
+
+                        // Accumulate log transition gradient
+                        weights[entry] += prop * next_V[next];
+
+                        // Backpropagate through transition
+                        DV[next] += prop;
+                    }
+            }
+        }
+
+        /**
+         * Backpropagates the gradient only for the nodes in the
+         * current frontier, which must be the only nodes in this
+         * layer with non-zero gradients.  Builds the frontier of
+         * the layer below from their successors, and zeroes each
+         * entry of DV the first time its node is visited, so DV
+         * only needs to be valid for the new frontier.
+         *
+         * @param frontier the frontier of this layer
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         */
+        void backpropagate(Frontier frontier, double[][] DQ, double[] next_V, double[] DV, double[] weights) {
+            frontier.begin();
+
+            for(int index = 0; index < frontier.size(); ++index) {
+                int node = frontier.get(index);
+                double[] dq = DQ[node];
+                int row = options[node];
+
+                for(int option = 0; option < dq.length; ++option, ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        int next = successors[entry];
+                        double prop = dq[option] * probabilities[entry];
+
+                        if(frontier.visit(next))
+                            DV[next] = 0.0;
+
+                        // Accumulate log transition gradient
+                        weights[entry] += prop * next_V[next];
+
+                        // Backpropagate through transition
+                        DV[next] += prop;
+                    }
+            }
+        }
+
+        /**
+         * Computes the state-action values of a batch of samples
+         * for a range of nodes in this layer.  Batch buffers hold
+         * the sample innermost, so the value of sample k at row r
+         * is stored at r * K + k, and at node n at n * K + k.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param rewards the reward for each node and sample
+         * @param next_V the values of the layer below, or null
+         * @param Q the state-action value buffer for this layer
+         * @param K the number of samples
+         */
+        void backup(int from, int to, double[] rewards, double[] next_V, double[] Q, int K) {
+            for(int node = from; node < to; ++node)
+                for(int row = options[node]; row < options[node + 1]; ++row) {
+                    System.arraycopy(rewards, node * K, Q, row * K, K);
+
+                    if(null != next_V)
+                        for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                            int next = successors[entry] * K;
+                            double probability = probabilities[entry];
+
+                            for(int sample = 0; sample < K; ++sample)
+                                Q[row * K + sample] += next_V[next + sample] * probability;
+                        }
+                }
+        }
+
+        /**
+         * Backpropagates the gradients of a batch of samples for
+         * a range of nodes in this layer.  The log transition
+         * gradients are summed over all samples.  Ranges can share
+         * successors, so each concurrent range needs its own DV.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         * @param K the number of samples
+         */
+        void backpropagate(int from, int to, double[] DQ, double[] next_V, double[] DV, double[] weights, int K) {
+            for(int node = from; node < to; ++node)
+                for(int row = options[node]; row < options[node + 1]; ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry)
+                        weights[entry] += propagate(row, successors[entry] * K, probabilities[entry], DQ, next_V, DV, K);
+        }
+
+        /**
+         * Backpropagates the gradients of a batch of samples only
+         * for the nodes in the current frontier, which must be the
+         * only nodes with non-zero gradients for any sample.  Builds
+         * the frontier of the layer below, and zeroes the entries of
+         * DV for each node the first time it is visited.
+         *
+         * @param frontier the frontier of this layer
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         * @param K the number of samples
+         */
+        void backpropagate(Frontier frontier, double[] DQ, double[] next_V, double[] DV, double[] weights, int K) {
+            frontier.begin();
+
+            for(int index = 0; index < frontier.size(); ++index) {
+                int node = frontier.get(index);
+
+                for(int row = options[node]; row < options[node + 1]; ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        int next = successors[entry] * K;
+
+                        if(frontier.visit(successors[entry]))
+                            Arrays.fill(DV, next, next + K, 0.0);
+
+                        weights[entry] += propagate(row, next, probabilities[entry], DQ, next_V, DV, K);
+                    }
+            }
+        }
+
+        // Backpropagates every sample through one transition entry, and returns its log transition gradient
+        private static double propagate(int row, int next, double probability,
+                                        double[] DQ, double[] next_V, double[] DV, int K) {
+            double weight = 0.0;
+
+            for(int sample = 0; sample < K; ++sample) {
+                double prop = DQ[row * K + sample] * probability;
+
+                // Accumulate log transition gradient
+                weight += prop * next_V[next + sample];
+
+                // Backpropagate through transition
+                DV[next + sample] += prop;
+            }
+
+            return weight;
+        }
+
+        /**
+         * Computes the single precision state-action values
+         * for a range of nodes in this layer.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param rewards the reward for each node
+         * @param next_V the values of the layer below, or null
+         * @param Q the state-action value buffer for this layer
+         */
+        void backup(int from, int to, float[] rewards, float[] next_V, float[][] Q) {
+            for(int node = from; node < to; ++node) {
+                float[] q = Q[node];
+                int row = options[node];
+
+                for(int option = 0; option < q.length; ++option, ++row) {
+                    float value = rewards[node];
+
+                    if(null != next_V)
+                        for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry)
+                            value += next_V[successors[entry]] * single_probabilities[entry];
+
+                    q[option] = value;
+                }
+            }
+        }
+
+        /**
+         * Backpropagates the single precision gradient for a
+         * range of nodes in this layer.  Transition gradients
+         * are still accumulated in double precision.
+         *
+         * @param from the first node in the range
+         * @param to one past the last node in the range
+         * @param DQ the gradient w.r.t. the state-action values of this layer
+         * @param next_V the values of the layer below
+         * @param DV the gradient buffer for the values of the layer below
+         * @param weights the transition gradient buffer
+         */
+        void backpropagate(int from, int to, float[][] DQ, float[] next_V, float[] DV, double[] weights) {
+            for(int node = from; node < to; ++node) {
+                float[] dq = DQ[node];
+                int row = options[node];
+
+                for(int option = 0; option < dq.length; ++option, ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        int next = successors[entry];
+                        float prop = dq[option] * single_probabilities[entry];
+
+                        // Accumulate log transition gradient
+                        weights[entry] += prop * next_V[next];
+
+                        // Backpropagate through transition
+                        DV[next] += prop;
+                    }
+            }
+        }
+
+        /**
+         * Passes the accumulated transition gradients to the
+         * planning graph, and resets the weight buffer.
+         *
+         * @param graph the planning graph
+         * @param depth the depth of this layer
+         * @param weights the transition gradient buffer
+         */
+        void train(PlanningGraph graph, int depth, double[] weights) {
+            for(int node = 0; node < num_nodes; ++node) {
+                int row = options[node];
+
+                for(int option = 0; row < options[node + 1]; ++option, ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        if(0.0 != weights[entry])
+                            graph.train(depth, node, option, successors[entry], weights[entry]);
+
+                        weights[entry] = 0.0;
+                    }
+            }
+        }
+
+        /**
+         * Passes the accumulated transition gradients of the
+         * nodes in the current frontier to the planning graph,
+         * and resets their weights.  Weights of other nodes
+         * must already be zero.
+         *
+         * @param graph the planning graph
+         * @param depth the depth of this layer
+         * @param weights the transition gradient buffer
+         * @param frontier the frontier of this layer
+         */
+        void train(PlanningGraph graph, int depth, double[] weights, Frontier frontier) {
+            for(int index = 0; index < frontier.size(); ++index) {
+                int node = frontier.get(index);
+                int row = options[node];
+
+                for(int option = 0; row < options[node + 1]; ++option, ++row)
+                    for(int entry = transitions[row]; entry < transitions[row + 1]; ++entry) {
+                        if(0.0 != weights[entry])
+                            graph.train(depth, node, option, successors[entry], weights[entry]);
+
+                        weights[entry] = 0.0;
+                    }
+            }
+        }
+    }
+
+    // The graph being compiled
+    private final PlanningGraph graph;
+
+    // The compiled layers, one for each depth, possibly shared
+    private final Layer[] layers;
+
+    // Whether or not the graph is stationary
+    private final boolean stationary;
+
+    // Whether probabilities are stored in single precision
+    private final boolean single;
+
+    // The maximum number of nodes and entries in any layer
+    private int max_nodes = 0;
+    private int max_entries = 0;
+
+    // The version of the graph that was last compiled
+    private int version;
+    private boolean compiled = false;
+
+    private CompiledGraph(PlanningGraph graph, boolean single) {
+        this.graph = graph;
+        this.single = single;
+
+        stationary = graph.stationary();
+        layers = new Layer[graph.depth() + 1];
+
+        if(stationary) {
+            Layer layer = new Layer();
+
+            for(int depth = 0; depth <= graph.depth(); ++depth)
+                layers[depth] = layer;
+        } else {
+            for(int depth = 0; depth <= graph.depth(); ++depth)
+                layers[depth] = new Layer();
+        }
+
+        update();
+    }
+
+    /**
+     * Compiles the given planning graph.
+     *
+     * @param graph the graph to compile
+     * @return the compiled graph
+     */
+    public static CompiledGraph of(PlanningGraph graph) { return new CompiledGraph(graph, false); }
+
+    /**
+     * Compiles the given planning graph, storing
+     * probabilities in single precision.
+     *
+     * @param graph the graph to compile
+     * @return the compiled graph
+     */
+    public static CompiledGraph single(PlanningGraph graph) { return new CompiledGraph(graph, true); }
+
+    /**
+     * Rebuilds the compiled structure if the transition
+     * dynamics of the graph have changed since it was
+     * last compiled.
+     *
+     * @return true if the structure was rebuilt
+     */
+    public boolean update() {
+        int current = graph.version();
+
+        if(compiled && current == version)
+            return false;
+
+        max_nodes = 0;
+        max_entries = 0;
+
+        if(stationary) {
+            compile(graph.depth(), layers[0]);
+        } else {
+            for(int depth = 0; depth <= graph.depth(); ++depth)
+                compile(depth, layers[depth]);
+        }
+
+        version = current;
+        compiled = true;
+
+        return true;
+    }
+
+    private void compile(int depth, Layer layer) {
+        int num_nodes = graph.numNodes(depth);
+
+        // Count options and transition entries
+        int num_rows = 0;
+        int num_entries = 0;
+
+        for(int node = 0; node < num_nodes; ++node)
+            for(int option = 0; option < graph.numOptions(depth, node); ++option) {
+                num_entries += graph.numSuccessors(depth, node, option);
+                ++num_rows;
+            }
+
+        // Allocate arrays, reusing them where possible
+        if(null == layer.options || layer.options.length != num_nodes + 1)
+            layer.options = new int[num_nodes + 1];
+
+        if(null == layer.transitions || layer.transitions.length != num_rows + 1)
+            layer.transitions = new int[num_rows + 1];
+
+        if(null == layer.successors || layer.successors.length != num_entries) {
+            layer.successors = new int[num_entries];
+
+            if(single)
+                layer.single_probabilities = new float[num_entries];
+            else
+                layer.probabilities = new double[num_entries];
+        }
+
+        layer.num_nodes = num_nodes;
+
+        // Fill arrays
+        int row = 0;
+        int entry = 0;
+
+        for(int node = 0; node < num_nodes; ++node) {
+            layer.options[node] = row;
+
+            for(int option = 0; option < graph.numOptions(depth, node); ++option) {
+                layer.transitions[row++] = entry;
+
+                int num_successors = graph.numSuccessors(depth, node, option);
+
+                for(int index = 0; index < num_successors; ++index, ++entry) {
+                    layer.successors[entry] = graph.successor(depth, node, option, index);
+
+                    if(single)
+                        layer.single_probabilities[entry] = (float) graph.probability(depth, node, option, index);
+                    else
+                        layer.probabilities[entry] = graph.probability(depth, node, option, index);
+                }
+            }
+        }
+
+        layer.options[num_nodes] = row;
+        layer.transitions[row] = entry;
+
+        max_nodes = Math.max(max_nodes, num_nodes);
+        max_entries = Math.max(max_entries, num_entries);
+    }
+
+    /**
+     * Gets the compiled layer for the given depth.
+     *
+     * @param depth the planning depth
+     * @return the compiled layer
+     */
+    Layer layer(int depth) { return layers[depth]; }
+
+    /**
+     * Gets the planning depth of the underlying graph.
+     *
+     * @return the planning depth
+     */
+    public int depth() { return layers.length - 1; }
+
+    /**
+     * Whether a single layer is shared across all depths.
+     *
+     * @return true if the graph is stationary
+     */
+    public boolean stationary() { return stationary; }
+
+    /**
+     * Gets the largest number of nodes in any layer.
+     *
+     * @return the maximum number of nodes
+     */
+    public int maxNodes() { return max_nodes; }
+
+    /**
+     * Gets the largest number of transition entries in any layer.
+     *
+     * @return the maximum number of entries
+     */
+    public int maxEntries() { return max_entries; }
+}
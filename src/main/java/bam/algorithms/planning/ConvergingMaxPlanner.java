@@ -0,0 +1,300 @@
+package bam.algorithms.planning;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A planner which uses optimal value iteration, but
+ * only keeps two layers of state values in memory,
+ * and does not support training.  Used to compute
+ * expert policies and baselines, where only the
+ * Q-function of the top layer is needed.
+ *
+ * Rewards accrue at every step, so the values rarely
+ * stop changing, but once each state has found the best
+ * reward it can keep collecting, they grow by a fixed
+ * amount at every depth, which may differ between states
+ * that cannot reach each other.  For stationary graphs,
+ * planning stops once the changes dV in the state values
+ * are the same for two consecutive depths, and no state
+ * has a successor whose values grow faster, while some
+ * best action of each state only leads to states whose
+ * values grow at the same rate.  Each layer above would
+ * then add the same changes again, so the values of the
+ * layer below the top are extrapolated, and the top layer
+ * is computed from them.  Changes are compared to within
+ * a tolerance relative to the largest value, that is,
+ *
+ *     |dV(s) - dV(s')| <= tolerance * max(1, max |V|)
+ *
+ * If the changes are exactly equal, as they are when the
+ * rewards are small integers, the Q-function is identical
+ * to that of the MaxPlanner run over the full horizon.
+ */
+public class ConvergingMaxPlanner implements Planner {
+
+    public static PlanningAlgorithm algorithm(final double tolerance) {
+        return new PlanningAlgorithm() {
+            @Override
+            public Planner planner(PlanningGraph graph) {
+                return new ConvergingMaxPlanner(graph, tolerance);
+            }
+
+            @Override
+            public String name() {
+                return "Converging Max Planner";
+            }
+
+            @Override
+            public JSONObject serialize() throws JSONException {
+                return new JSONObject()
+                        .put("name", name())
+                        .put("class", ConvergingMaxPlanner.class.getSimpleName())
+                        .put("tolerance", tolerance);
+            }
+        };
+    }
+
+    public static PlanningAlgorithm algorithm() {
+        return algorithm(1e-9);
+    }
+
+    public static PlanningAlgorithm load(JSONObject config) throws JSONException {
+        return algorithm(config.optDouble("tolerance", 1e-9));
+    }
+
+    // Planning model
+    private PlanningGraph dynamics;
+
+    // The largest difference between changes in the state values, relative to the largest value, treated as equal
+    private double tolerance;
+
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
+    // Data structures
+    private double[][] Q; // state-action value function of the current layer
+    private double[] V; // state values of the layer below
+    private double[] next_V; // state values of the current layer
+
+    private double[] dV; // the change in the state values from the layer below to the current layer
+    private double[] last_dV; // the change in the state values at the layer below
+
+    private double[] R; // reward buffer
+
+    // The number of layers computed by the last call to values()
+    private int iterations = 0;
+
+    private ConvergingMaxPlanner(PlanningGraph dynamics, double tolerance) {
+        this.dynamics = dynamics;
+        this.tolerance = tolerance;
+
+        compiled = CompiledGraph.of(dynamics);
+    }
+
+    /**
+     * Gets the number of output states, that is, the
+     * number of states at the top layer of the transition
+     * model.  If layers are not defined, this will
+     * be equal to the number of states in the model.
+     * This will always be equal to the first dimension
+     * of the Q-function array.
+     *
+     * @return the number of output states
+     */
+    @Override
+    public int numStates() {
+        return dynamics.numNodes(dynamics.depth());
+    }
+
+    /**
+     * Gets the number of actions available
+     * in the given output state.
+     *
+     * @param state
+     * @return the number of available actions
+     */
+    @Override
+    public int numActions(int state) {
+        return dynamics.numOptions(dynamics.depth(), state);
+    }
+
+    /**
+     * Computes and returns the state-action value
+     * function of the top layer.
+     *
+     * @return the state-action value function
+     */
+    @Override
+    public double[][] values() {
+
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
+
+        int depth = 0;
+        boolean converged = false;
+
+        for(; depth < dynamics.depth() && !converged; ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
+
+            allocate(depth, layer.num_nodes);
+
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    R[state] = dynamics.reward(depth, state);
+
+            layer.backup(R, (0 == depth) ? null : V, Q);
+
+            for(int state = 0; state < layer.num_nodes; ++state) {
+                double max = -Double.MAX_VALUE;
+
+                for(double value : Q[state])
+                    if(value > max)
+                        max = value;
+
+                next_V[state] = max;
+            }
+
+            // If the values grow steadily, every layer above would add the same changes again
+            if(compiled.stationary() && 0 < depth)
+                converged = steady(depth, layer);
+
+            double[] swap = V;
+            V = next_V;
+            next_V = swap;
+        }
+
+        iterations = depth + 1;
+
+        // Extrapolate the values of the layer below the top, which we already have if we did not converge
+        if(converged && depth < dynamics.depth())
+            for(int state = 0; state < V.length; ++state)
+                V[state] += (dynamics.depth() - depth) * dV[state];
+
+        // Compute the top layer from the values of the layer below it
+        CompiledGraph.Layer layer = compiled.layer(dynamics.depth());
+
+        allocate(dynamics.depth(), layer.num_nodes);
+
+        if(!compiled.stationary() || 0 == dynamics.depth())
+            for(int state = 0; state < layer.num_nodes; ++state)
+                R[state] = dynamics.reward(dynamics.depth(), state);
+
+        layer.backup(R, (0 == dynamics.depth()) ? null : V, Q);
+
+        return Q;
+    }
+
+    /**
+     * Checks whether the values of the current layer grow
+     * steadily, so that every layer above would add the same
+     * changes again.  This holds if the changes are the same
+     * as at the layer below, no successor of a state changes
+     * by more than the state itself, and for some best action
+     * of each state, every successor changes by the same
+     * amount as the state.  The changes are kept, for
+     * extrapolating the values.
+     *
+     * @param depth the current depth
+     * @param layer the compiled current layer
+     * @return whether the values grow steadily
+     */
+    private boolean steady(int depth, CompiledGraph.Layer layer) {
+        double[] swap = last_dV;
+        last_dV = dV;
+        dV = swap;
+
+        if(null == dV || dV.length != layer.num_nodes)
+            dV = new double[layer.num_nodes];
+
+        double scale = 1.0;
+
+        for(int state = 0; state < layer.num_nodes; ++state) {
+            dV[state] = next_V[state] - V[state];
+            scale = Math.max(scale, Math.abs(next_V[state]));
+        }
+
+        double limit = tolerance * scale;
+
+        // Changes must match those at the layer below, which is cheap to check, and rules out most layers
+        if(1 == depth || last_dV.length != dV.length)
+            return false;
+
+        for(int state = 0; state < layer.num_nodes; ++state)
+            if(Math.abs(dV[state] - last_dV[state]) > limit)
+                return false;
+
+        // No successor may grow faster, and some best action must only lead to states growing at the same rate
+        for(int state = 0; state < layer.num_nodes; ++state) {
+            boolean settled = false;
+
+            for(int option = 0, row = layer.options[state]; row < layer.options[state + 1]; ++option, ++row) {
+                boolean level = true;
+
+                for(int entry = layer.transitions[row]; entry < layer.transitions[row + 1]; ++entry) {
+                    double difference = dV[layer.successors[entry]] - dV[state];
+
+                    if(difference > limit)
+                        return false;
+
+                    if(difference < -limit)
+                        level = false;
+                }
+
+                if(level && Q[state][option] >= next_V[state])
+                    settled = true;
+            }
+
+            if(!settled)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes sure the buffers for the current layer match
+     * its size.  The values of the layer below are left
+     * alone, as they are still needed.  Only stationary
+     * graphs can reuse the same buffers for every depth.
+     *
+     * @param depth the current depth
+     * @param num_states the number of states in the layer
+     */
+    private void allocate(int depth, int num_states) {
+        if(null == R || R.length < num_states)
+            R = new double[num_states];
+
+        if(null == next_V || next_V.length != num_states)
+            next_V = new double[num_states];
+
+        if(null == Q || Q.length != num_states || !compiled.stationary()) {
+            Q = new double[num_states][];
+
+            for(int state = 0; state < num_states; ++state)
+                Q[state] = new double[dynamics.numOptions(depth, state)];
+        }
+    }
+
+    /**
+     * Gets the number of layers computed by the last
+     * call to values(), including the top layer.
+     * This is less than the depth plus one if the
+     * values converged.
+     *
+     * @return the number of layers computed
+     */
+    public int iterations() { return iterations; }
+
+    /**
+     * Training is not supported, as the intermediate
+     * layers are not kept.
+     *
+     * @param jacobian the jacobian w.r.t. the value function
+     */
+    @Override
+    public void train(double[][] jacobian) {
+        throw new RuntimeException("Converging Max Planner does not support training");
+    }
+}
@@ -1,6 +1,9 @@
 package bam.algorithms.planning;
 
 import bam.algorithms.Dynamics;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.Reward;
 
 /**
@@ -30,12 +33,35 @@ public class FixedGraph implements PlanningGraph {
     @Override
     public int numOptions(int depth, int node) { return dynamics.numActions(node); }
 
+    @Override
+    public boolean stationary() { return true; }
+
+    @Override
+    public int version() { return dynamics.version(); }
+
     @Override
     public int[] successors(int depth, int node, int option) { return dynamics.successors(node, option); }
 
     @Override
     public double[] transitions(int depth, int node, int option) { return dynamics.transitions(node, option); }
 
+    @Override
+    public int numSuccessors(int depth, int node, int option) { return dynamics.numSuccessors(node, option); }
+
+    @Override
+    public int successor(int depth, int node, int option, int index) { return dynamics.successor(node, option, index); }
+
+    @Override
+    public double probability(int depth, int node, int option, int index) { return dynamics.probability(node, option, index); }
+
+    @Override
+    public Predecessors predecessors() {
+        return (dynamics instanceof ReverseDynamics) ? ((ReverseDynamics) dynamics).predecessors() : null;
+    }
+
+    @Override
+    public GridLayout layout() { return dynamics.layout(); }
+
     @Override
     public void train(int depth, int start, int action, int end, double weight) { /* DOES NOTHING */ }
 
@@ -0,0 +1,292 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.kernels.FastExp;
+
+import java.util.Arrays;
+
+/**
+ * A single precision version of the Boltzmann planner.
+ * The value functions, policies and backpropagation
+ * buffers, as well as the compiled transition
+ * probabilities, are all stored as floats, which halves
+ * the memory traffic of the inner loops.  Gradients
+ * passed to the planning graph are still doubles.
+ *
+ * Created through BoltzmannPlanner.algorithm() with
+ * single precision enabled.  Always runs on the calling
+ * thread, and keeps every layer in memory.
+ */
+public class FloatBoltzmannPlanner implements Planner {
+
+    // Planning model
+    private PlanningGraph dynamics;
+
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
+    // Parameters
+    private float beta; // inverse temperature
+    private boolean fast; // whether to use the approximate exponential
+
+    // Data structures
+    private float[][][] Q; // state-action value functions
+    private float[][] V; // state value functions
+
+    private float[][][] PI; // Boltzmann policy at each step
+
+    private float[][][] DQ; // state-action backpropagation buffers -- need one for each depth
+    private float[][] DV; // state backpropagation buffers -- need one for each depth
+
+    private float[] R; // reward buffer
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    private double[][] output; // double precision copy of the uppermost Q function
+
+    FloatBoltzmannPlanner(PlanningGraph dynamics, double beta, boolean fast) {
+        this.dynamics = dynamics;
+        this.beta = (float) beta;
+        this.fast = fast;
+
+        compiled = CompiledGraph.single(dynamics);
+
+        R = new float[compiled.maxNodes()];
+        reward_weights = new double[compiled.maxNodes()];
+        transition_weights = new double[compiled.maxEntries()];
+
+        Q = new float[dynamics.depth() + 1][][];
+        DQ = new float[dynamics.depth() + 1][][];
+
+        V = new float[dynamics.depth()][];
+        PI = new float[dynamics.depth()][][];
+        DV = new float[dynamics.depth()][];
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            int num_states = dynamics.numNodes(depth);
+
+            Q[depth] = new float[num_states][];
+            DQ[depth] = new float[num_states][];
+
+            if(depth < dynamics.depth()) {
+                V[depth] = new float[num_states];
+                DV[depth] = new float[num_states];
+                PI[depth] = new float[num_states][];
+            }
+
+            for(int state = 0; state < num_states; ++state) {
+                int num_actions = dynamics.numOptions(depth, state);
+
+                Q[depth][state] = new float[num_actions];
+                DQ[depth][state] = new float[num_actions];
+
+                if(depth < dynamics.depth())
+                    PI[depth][state] = new float[num_actions];
+            }
+        }
+
+        output = new double[numStates()][];
+
+        for(int state = 0; state < numStates(); ++state)
+            output[state] = new double[numActions(state)];
+    }
+
+    /**
+     * Gets the number of output states, that is, the
+     * number of states at the top layer of the transition
+     * model.  This will always be equal to the first
+     * dimension of the Q-function array.
+     *
+     * @return the number of output states
+     */
+    @Override
+    public int numStates() {
+        return dynamics.numNodes(dynamics.depth());
+    }
+
+    /**
+     * Gets the number of actions available
+     * in the given output state.
+     *
+     * @return the number of available actions
+     */
+    @Override
+    public int numActions(int state) {
+        return dynamics.numOptions(dynamics.depth(), state);
+    }
+
+    /**
+     * Computes and returns the state-action value function,
+     * converted to double precision.  Also updates internal
+     * data structures necessary for backpropagation.
+     *
+     * @return the state-action value function
+     */
+    @Override
+    public double[][] values() {
+
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
+
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    R[state] = (float) dynamics.reward(depth, state);
+
+            // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+            layer.backup(0, layer.num_nodes, R, (0 == depth) ? null : V[depth - 1], Q[depth]);
+
+            // Update PI and V
+            if(dynamics.depth() != depth) {
+                for (int state = 0; state < layer.num_nodes; ++state) {
+                    float[] q = Q[depth][state];
+                    float[] pi = PI[depth][state];
+
+                    // Use the largest Q-value as the baseline for the advantage, so no exponential can overflow
+                    float max = -Float.MAX_VALUE;
+                    int num_max = 0;
+
+                    for (int action = 0; action < q.length; ++action) {
+                        if(q[action] == max)
+                            ++num_max;
+                        else if (q[action] > max) {
+                            max = q[action];
+                            num_max = 1;
+                        }
+                    }
+
+                    float partition = 0f;
+
+                    for (int action = 0; action < q.length; ++action) {
+                        float exp = (float) (fast ? FastExp.exp(beta * (q[action] - max)) : Math.exp(beta * (q[action] - max)));
+
+                        pi[action] = exp;
+                        partition += exp;
+                    }
+
+                    if (!(partition < Float.POSITIVE_INFINITY)) {
+
+                        // If it is infinite, set V to be the maximum, and assign probability only to maximal actions
+                        float p = q.length / (float) num_max;
+
+                        for (int action = 0; action < q.length; ++action) {
+                            if(q[action] != max)
+                                pi[action] = 0f;
+                            else
+                                pi[action] = p;
+                        }
+
+                        V[depth][state] = max;
+                    } else if(0f == partition) {
+
+                        // If the partition is zero, use a random policy
+                        V[depth][state] = 0f;
+
+                        for (int action = 0; action < q.length; ++action) {
+                            pi[action] /= 1f / q.length;
+                            V[depth][state] += pi[action] * q[action];
+                        }
+                    } else {
+
+                        // If the partition is finite, normalize PI and compute V as the expectation
+                        V[depth][state] = 0f;
+
+                        for (int action = 0; action < q.length; ++action) {
+                            pi[action] /= partition;
+                            V[depth][state] += pi[action] * q[action];
+                        }
+                    }
+                }
+            }
+        }
+
+        // Copy the uppermost layer of the Q function
+        float[][] top = Q[dynamics.depth()];
+
+        for(int state = 0; state < top.length; ++state)
+            for(int action = 0; action < top[state].length; ++action)
+                output[state][action] = top[state][action];
+
+        return output;
+    }
+
+    /**
+     * Backpropagates the jacobian of the objective w.r.t the
+     * state-action value function through the planning process.
+     * This must be called after the values() method
+     * has been called.
+     *
+     * @param jacobian the jacobian w.r.t. the value function
+     */
+    @Override
+    public void train(double[][] jacobian) {
+
+        // Copy jacobian
+        for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+            for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action)
+                DQ[dynamics.depth()][state][action] = (float) jacobian[state][action];
+
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
+
+        // Do reverse value iteration
+        for(int depth = dynamics.depth(); depth >= 0; --depth) {
+
+            // If we are past the first iteration, backpropagate transitions and propagate through transitions
+            if(dynamics.depth() > depth) {
+                CompiledGraph.Layer layer = compiled.layer(depth + 1);
+                float[] v = V[depth];
+                float[] dv = DV[depth];
+
+                // Initialize DV
+                Arrays.fill(dv, 0f);
+
+                // Backpropagate through transitions, and accumulate log transition gradients
+                layer.backpropagate(0, layer.num_nodes, DQ[depth + 1], v, dv, transition_weights);
+
+                // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                if(!compiled.stationary())
+                    layer.train(dynamics, depth + 1, transition_weights);
+
+                // Update DQ from DV
+                for(int state = 0; state < dynamics.numNodes(depth); ++state) {
+                    float[] q = Q[depth][state];
+                    float[] pi = PI[depth][state];
+                    float[] dq = DQ[depth][state];
+
+                    for(int action = 0; action < dq.length; ++action) {
+                        float weight = 1f + beta * (q[action] - v[state]);
+                        dq[action] = pi[action] * dv[state] * weight;
+                    }
+                }
+            }
+
+            // Backpropagate reward gradient
+            for(int state = 0; state < dynamics.numNodes(depth); ++state) {
+                double reward_weight = 0.0;
+
+                for(int action = 0; action < DQ[depth][state].length; ++action)
+                    reward_weight += DQ[depth][state][action];
+
+                if(compiled.stationary())
+                    reward_weights[state] += reward_weight;
+                else
+                    dynamics.train(depth, state, reward_weight);
+            }
+        }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+                dynamics.train(dynamics.depth(), state, reward_weights[state]);
+        }
+    }
+}
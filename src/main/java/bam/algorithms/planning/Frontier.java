@@ -0,0 +1,129 @@
+package bam.algorithms.planning;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the set of nodes with non-zero gradients
+ * in each layer during backpropagation.  Gradients
+ * flow from a node to its successors in the layer
+ * below, so the frontier of the next layer is built
+ * by visiting the successors of the current frontier.
+ *
+ * Nodes in the frontier are kept in increasing order,
+ * so gradients are accumulated in the same order as
+ * in a dense sweep.  Once the frontier covers more
+ * than half of its layer, it switches to dense mode,
+ * in which every node is included.
+ */
+class Frontier {
+
+    // The nodes in the current frontier
+    private int[] current;
+    private int num_current = 0;
+
+    // The nodes in the frontier being built
+    private int[] next;
+    private int num_next = 0;
+
+    // Marks the nodes visited since the last call to begin()
+    private int[] marks;
+    private int stamp = 0;
+
+    // Whether every node is in the frontier
+    private boolean dense = false;
+
+    Frontier(int max_nodes) {
+        current = new int[max_nodes];
+        next = new int[max_nodes];
+        marks = new int[max_nodes];
+    }
+
+    /**
+     * Empties the frontier, and starts building a new one.
+     */
+    void reset() {
+        dense = false;
+        num_current = 0;
+
+        begin();
+    }
+
+    /**
+     * Starts building the frontier of the next layer.
+     */
+    void begin() {
+        num_next = 0;
+
+        // Clear the marks when the stamp wraps around
+        if(Integer.MAX_VALUE == stamp) {
+            Arrays.fill(marks, 0);
+            stamp = 0;
+        }
+
+        ++stamp;
+    }
+
+    /**
+     * Adds a node to the frontier being built.
+     *
+     * @param node the node
+     * @return true if this is the first time the node has been visited
+     */
+    boolean visit(int node) {
+        if(stamp == marks[node])
+            return false;
+
+        marks[node] = stamp;
+        next[num_next++] = node;
+
+        return true;
+    }
+
+    /**
+     * Makes the frontier being built the current frontier.
+     *
+     * @param num_nodes the number of nodes in its layer
+     */
+    void advance(int num_nodes) {
+        int[] swap = current;
+        current = next;
+        next = swap;
+
+        num_current = num_next;
+        Arrays.sort(current, 0, num_current);
+
+        if(2 * num_current > num_nodes)
+            fill(num_nodes);
+    }
+
+    /**
+     * Puts every node of a layer in the current frontier,
+     * and switches to dense mode.
+     *
+     * @param num_nodes the number of nodes in the layer
+     */
+    void fill(int num_nodes) {
+        for(int node = 0; node < num_nodes; ++node)
+            current[node] = node;
+
+        num_current = num_nodes;
+        dense = true;
+    }
+
+    /**
+     * Whether the given node was visited while building
+     * the current frontier.  Not meaningful in dense mode.
+     *
+     * @param node the node
+     * @return true if the node is in the current frontier
+     */
+    boolean contains(int node) { return stamp == marks[node]; }
+
+    boolean dense() { return dense; }
+
+    int size() { return num_current; }
+
+    int get(int index) { return current[index]; }
+
+    int[] nodes() { return current; }
+}
@@ -0,0 +1,614 @@
+package bam.algorithms.planning;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * A coarse-to-fine planner for graphs built on a 2D
+ * navigation grid.  The cells of the grid are grouped into
+ * square blocks, and each block becomes a single coarse
+ * node, which averages the rewards and transitions of its
+ * cells.  The planner first plans over the coarse graph,
+ * then refines the blocks with the highest coarse values,
+ * along with the blocks around them, and plans again over
+ * a mixed graph, in which the refined blocks are replaced
+ * by their cells, and the rest remain coarse.
+ *
+ * Cells in refined blocks get their own values, while cells
+ * in coarse blocks share the values of their block.  The
+ * jacobian of a coarse block is the sum of the jacobians of
+ * its cells, and gradients from coarse nodes are spread
+ * evenly over their cells.  The choice of blocks to refine
+ * is treated as fixed during backpropagation.
+ *
+ * Graph nodes must be indexed as cell + k * (width * height),
+ * where cells are indexed as in NavGrid, row + column * height,
+ * so each copy of the grid, for example each gravity
+ * direction in the gravity world, is blocked separately.  The
+ * size of the grid is taken from the layout of the graph,
+ * unless a width and height are given.  The graph must be
+ * stationary, so this planner cannot be combined with graph
+ * pruning, and every cell of a block must have the same
+ * number of options.
+ *
+ * The mixed graph is refined in place, and the mixed planner
+ * is kept as long as the mixed graph has the same number of
+ * nodes, with the same numbers of options, so its buffers are
+ * only reallocated when the size of the refined region changes.
+ */
+public class HierarchicalPlanner implements Planner {
+
+    /**
+     * Gets a hierarchical planning algorithm, which takes
+     * the size of the navigation grid from the layout of
+     * the planning graph.
+     *
+     * @param block_size the width and height of each block, in cells
+     * @param fraction the fraction of coarse nodes to refine, before adding their neighbors
+     * @param algorithm the planning algorithm used for the coarse and mixed graphs
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(int block_size, double fraction, PlanningAlgorithm algorithm) {
+        return algorithm(0, 0, block_size, fraction, algorithm);
+    }
+
+    /**
+     * Gets a hierarchical planning algorithm for a grid of
+     * a fixed size.  If the width or height is not positive,
+     * the size is taken from the layout of the planning graph.
+     *
+     * @param width the width of the navigation grid
+     * @param height the height of the navigation grid
+     * @param block_size the width and height of each block, in cells
+     * @param fraction the fraction of coarse nodes to refine, before adding their neighbors
+     * @param algorithm the planning algorithm used for the coarse and mixed graphs
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(final int width, final int height, final int block_size,
+                                              final double fraction, final PlanningAlgorithm algorithm) {
+        return new PlanningAlgorithm() {
+            @Override
+            public Planner planner(PlanningGraph graph) {
+                return new HierarchicalPlanner(graph, width, height, block_size, fraction, algorithm);
+            }
+
+            @Override
+            public boolean stationaryOnly() { return true; }
+
+            @Override
+            public String name() {
+                return "Hierarchical Planner";
+            }
+
+            @Override
+            public JSONObject serialize() throws JSONException {
+                JSONObject config = new JSONObject()
+                        .put("name", name())
+                        .put("class", HierarchicalPlanner.class.getSimpleName())
+                        .put("block size", block_size)
+                        .put("fraction", fraction)
+                        .put("planning algorithm", algorithm.serialize());
+
+                if(0 < width && 0 < height)
+                    config.put("width", width).put("height", height);
+
+                return config;
+            }
+        };
+    }
+
+    public static PlanningAlgorithm load(JSONObject config) throws JSONException {
+        if(config.has("width") != config.has("height"))
+            throw new RuntimeException("Hierarchical planner needs both a width and a height, or neither");
+
+        if(config.optInt("block size", 4) < 1 || !(0.0 < config.optDouble("fraction", 0.25)))
+            throw new RuntimeException("Hierarchical planner needs a positive block size and fraction");
+
+        return algorithm(config.optInt("width", 0),
+                config.optInt("height", 0),
+                config.optInt("block size", 4),
+                config.optDouble("fraction", 0.25),
+                PlanningAlgorithm.load(config.getJSONObject("planning algorithm")));
+    }
+
+    /**
+     * A view of the full graph in which the nodes of
+     * unrefined blocks are merged into a single node.
+     * Mixed nodes are numbered with the refined cells
+     * first, in increasing order, followed by the
+     * coarse blocks, in increasing order.  The refined
+     * blocks can be replaced, and the mapping and
+     * transition arrays are then reused.
+     */
+    private static class MixedGraph implements PlanningGraph {
+
+        // The full graph
+        private final PlanningGraph graph;
+
+        // The coarse node of each full node, and the full nodes of each coarse node
+        private final int[] coarse;
+        private final int[][] members;
+
+        // The mixed node of each full node, and the full node or coarse node of each mixed node
+        private final int[] mixed;
+        private final int[] nodes;
+        private int num_nodes;
+        private int num_refined;
+
+        // The successors and probabilities of each option of each mixed node, with room for every possible node
+        private final int[][][] successors;
+        private final double[][][] transitions;
+
+        // Buffers for averaging the transitions of merged nodes
+        private final int[] touched;
+        private final double[] mass;
+
+        // The version of the full graph the transitions were built from, and a stamp that changes with every rebuild
+        private int version;
+        private int stamp = 0;
+        private boolean built = false;
+
+        private MixedGraph(PlanningGraph graph, int[] coarse, int[][] members, boolean[] refined) {
+            this.graph = graph;
+            this.coarse = coarse;
+            this.members = members;
+
+            int capacity = coarse.length + members.length;
+
+            mixed = new int[coarse.length];
+            nodes = new int[capacity];
+            successors = new int[capacity][][];
+            transitions = new double[capacity][][];
+            touched = new int[capacity];
+            mass = new double[capacity];
+
+            refine(refined);
+        }
+
+        // Replaces the refined blocks, the transitions are rebuilt when they are next needed
+        private synchronized void refine(boolean[] refined) {
+            int depth = graph.depth();
+            int count = 0;
+
+            for(int node = 0; node < coarse.length; ++node)
+                if(refined[coarse[node]]) {
+                    mixed[node] = count;
+                    nodes[count++] = node;
+                }
+
+            num_refined = count;
+
+            for(int block = 0; block < members.length; ++block)
+                if(!refined[block]) {
+                    for(int node : members[block])
+                        mixed[node] = count;
+
+                    nodes[count++] = block;
+                }
+
+            num_nodes = count;
+
+            for(int node = 0; node < num_nodes; ++node) {
+                int num_options = graph.numOptions(depth, source(node, 0));
+
+                if(null == successors[node] || successors[node].length != num_options) {
+                    successors[node] = new int[num_options][];
+                    transitions[node] = new double[num_options][];
+                }
+            }
+
+            built = false;
+        }
+
+        // Rebuilds the mixed transitions if the full graph or the refined blocks have changed
+        private synchronized void build() {
+            int current = graph.version();
+
+            if(built && current == version)
+                return;
+
+            int depth = graph.depth();
+
+            for(int node = 0; node < num_nodes; ++node) {
+                int num_sources = numSources(node);
+                double share = 1.0 / num_sources;
+
+                for(int option = 0; option < successors[node].length; ++option) {
+                    int num_touched = 0;
+
+                    // Average the distributions of every source node, mapped onto mixed nodes
+                    for(int position = 0; position < num_sources; ++position) {
+                        int source = source(node, position);
+                        int num_successors = graph.numSuccessors(depth, source, option);
+
+                        for(int index = 0; index < num_successors; ++index) {
+                            int target = mixed[graph.successor(depth, source, option, index)];
+
+                            if(!contains(touched, num_touched, target))
+                                touched[num_touched++] = target;
+
+                            mass[target] += share * graph.probability(depth, source, option, index);
+                        }
+                    }
+
+                    Arrays.sort(touched, 0, num_touched);
+
+                    if(null == successors[node][option] || successors[node][option].length != num_touched) {
+                        successors[node][option] = new int[num_touched];
+                        transitions[node][option] = new double[num_touched];
+                    }
+
+                    for(int index = 0; index < num_touched; ++index) {
+                        successors[node][option][index] = touched[index];
+                        transitions[node][option][index] = mass[touched[index]];
+                        mass[touched[index]] = 0.0;
+                    }
+                }
+            }
+
+            version = current;
+            built = true;
+            ++stamp;
+        }
+
+        // Checks for a value among the first entries of a list
+        private static boolean contains(int[] list, int length, int value) {
+            for(int index = 0; index < length; ++index)
+                if(value == list[index])
+                    return true;
+
+            return false;
+        }
+
+        // Gets the number of full nodes merged into a mixed node
+        private int numSources(int node) {
+            return (node < num_refined) ? 1 : members[nodes[node]].length;
+        }
+
+        // Gets one of the full nodes merged into a mixed node
+        private int source(int node, int position) {
+            return (node < num_refined) ? nodes[node] : members[nodes[node]][position];
+        }
+
+        @Override
+        public int depth() { return graph.depth(); }
+
+        @Override
+        public int numNodes(int depth) { return num_nodes; }
+
+        @Override
+        public int numOptions(int depth, int node) { return successors[node].length; }
+
+        @Override
+        public boolean stationary() { return true; }
+
+        @Override
+        public int version() {
+            build();
+
+            return stamp;
+        }
+
+        @Override
+        public int[] successors(int depth, int node, int option) {
+            build();
+
+            return successors[node][option];
+        }
+
+        @Override
+        public double[] transitions(int depth, int node, int option) {
+            build();
+
+            return transitions[node][option];
+        }
+
+        @Override
+        public void train(int depth, int start, int option, int end, double weight) {
+            int num_sources = numSources(start);
+            double probability = 0.0;
+
+            for(int index = 0; index < successors[start][option].length; ++index)
+                if(end == successors[start][option][index])
+                    probability = transitions[start][option][index];
+
+            if(0.0 == probability)
+                return;
+
+            // Each full transition into the target gets its share of the gradient of the log probability
+            double scale = weight / (num_sources * probability);
+
+            for(int position = 0; position < num_sources; ++position) {
+                int source = source(start, position);
+                int num_successors = graph.numSuccessors(depth, source, option);
+
+                for(int index = 0; index < num_successors; ++index) {
+                    int next = graph.successor(depth, source, option, index);
+
+                    if(end == mixed[next])
+                        graph.train(depth, source, option, next, scale * graph.probability(depth, source, option, index));
+                }
+            }
+        }
+
+        @Override
+        public double reward(int depth, int node) {
+            if(node < num_refined)
+                return graph.reward(depth, nodes[node]);
+
+            double total = 0.0;
+
+            for(int source : members[nodes[node]])
+                total += graph.reward(depth, source);
+
+            return total / members[nodes[node]].length;
+        }
+
+        @Override
+        public void train(int depth, int node, double weight) {
+            if(node < num_refined)
+                graph.train(depth, nodes[node], weight);
+            else
+                for(int source : members[nodes[node]])
+                    graph.train(depth, source, weight / members[nodes[node]].length);
+        }
+    }
+
+    // Planning model
+    private PlanningGraph dynamics;
+
+    // Parameters
+    private double fraction; // the fraction of coarse nodes to refine
+    private PlanningAlgorithm algorithm; // the algorithm used for both passes
+
+    // Block structure
+    private int[] coarse; // the coarse node of each full node
+    private int[][] members; // the full nodes of each coarse node
+    private int[][] neighbors; // the coarse nodes adjacent to each coarse node
+
+    // The coarse pass, which never refines anything
+    private Planner coarse_planner;
+
+    // The mixed pass, refined in place, and replanned by a new planner only if the options of the mixed nodes change
+    private boolean[] refined;
+    private MixedGraph mixed_graph;
+    private Planner mixed_planner = null;
+    private int[] planned_options; // the number of options of each mixed node when the mixed planner was built
+
+    // Buffers for ranking and selecting blocks
+    private Integer[] order;
+    private double[] value;
+    private boolean[] selected;
+
+    // Lifted value functions and projected jacobians
+    private double[][] Q;
+    private double[][] mixed_jacobian;
+
+    private HierarchicalPlanner(PlanningGraph dynamics, int width, int height, int block_size,
+                                double fraction, PlanningAlgorithm algorithm) {
+        if(!dynamics.stationary())
+            throw new RuntimeException("Hierarchical planning requires a stationary graph");
+
+        // Take the size of the grid from the graph, unless it was given
+        if(width <= 0 || height <= 0) {
+            if(null == dynamics.layout())
+                throw new RuntimeException("Hierarchical planning needs a grid size for a graph without a grid layout");
+
+            width = dynamics.layout().width();
+            height = dynamics.layout().height();
+        }
+
+        int num_cells = width * height;
+        int num_nodes = dynamics.numNodes(dynamics.depth());
+
+        if(0 != num_nodes % num_cells)
+            throw new RuntimeException("Planning graph does not match the navigation grid");
+
+        this.dynamics = dynamics;
+        this.fraction = fraction;
+        this.algorithm = algorithm;
+
+        // Group cells into blocks, in the same column-major order as the grid
+        int block_rows = (height + block_size - 1) / block_size;
+        int block_columns = (width + block_size - 1) / block_size;
+        int num_blocks = block_rows * block_columns;
+        int num_copies = num_nodes / num_cells;
+
+        coarse = new int[num_nodes];
+        int[] sizes = new int[num_blocks * num_copies];
+
+        for(int node = 0; node < num_nodes; ++node) {
+            int cell = node % num_cells;
+            int block = (cell % height) / block_size + ((cell / height) / block_size) * block_rows;
+
+            coarse[node] = block + (node / num_cells) * num_blocks;
+            ++sizes[coarse[node]];
+        }
+
+        members = new int[sizes.length][];
+
+        for(int block = 0; block < sizes.length; ++block)
+            members[block] = new int[sizes[block]];
+
+        Arrays.fill(sizes, 0);
+
+        for(int node = 0; node < num_nodes; ++node)
+            members[coarse[node]][sizes[coarse[node]]++] = node;
+
+        for(int[] block : members)
+            for(int node : block)
+                if(dynamics.numOptions(dynamics.depth(), node) != dynamics.numOptions(dynamics.depth(), block[0]))
+                    throw new RuntimeException("Every cell of a block must have the same number of options");
+
+        // Blocks are adjacent if they are in the same copy of the grid, and touch on a side or corner
+        neighbors = new int[members.length][];
+
+        for(int block = 0; block < members.length; ++block) {
+            int copy = block / num_blocks;
+            int row = (block % num_blocks) % block_rows;
+            int column = (block % num_blocks) / block_rows;
+
+            int[] adjacent = new int[8];
+            int count = 0;
+
+            for(int d_row = -1; d_row <= 1; ++d_row)
+                for(int d_column = -1; d_column <= 1; ++d_column) {
+                    int r = row + d_row;
+                    int c = column + d_column;
+
+                    if((0 != d_row || 0 != d_column) && 0 <= r && r < block_rows && 0 <= c && c < block_columns)
+                        adjacent[count++] = r + c * block_rows + copy * num_blocks;
+                }
+
+            neighbors[block] = Arrays.copyOf(adjacent, count);
+        }
+
+        // The coarse pass plans over a graph with no refined blocks
+        refined = new boolean[members.length];
+        coarse_planner = algorithm.planner(new MixedGraph(dynamics, coarse, members, refined));
+        mixed_graph = new MixedGraph(dynamics, coarse, members, refined);
+
+        order = new Integer[members.length];
+        value = new double[members.length];
+        selected = new boolean[members.length];
+
+        Q = new double[num_nodes][];
+
+        for(int node = 0; node < num_nodes; ++node)
+            Q[node] = new double[dynamics.numOptions(dynamics.depth(), node)];
+    }
+
+    /**
+     * Gets the number of output states, that is, the
+     * number of states at the top layer of the transition
+     * model.  If layers are not defined, this will
+     * be equal to the number of states in the model.
+     * This will always be equal to the first dimension
+     * of the Q-function array.
+     *
+     * @return the number of output states
+     */
+    @Override
+    public int numStates() {
+        return dynamics.numNodes(dynamics.depth());
+    }
+
+    /**
+     * Gets the number of actions available
+     * in the given output state.
+     *
+     * @param state
+     * @return the number of available actions
+     */
+    @Override
+    public int numActions(int state) {
+        return dynamics.numOptions(dynamics.depth(), state);
+    }
+
+    /**
+     * Gets the number of nodes in the mixed graph
+     * used by the last call to values().
+     *
+     * @return the number of mixed nodes
+     */
+    public int numMixedNodes() {
+        return (null == mixed_planner) ? 0 : mixed_graph.num_nodes;
+    }
+
+    // Checks whether the mixed nodes have the same numbers of options as when the mixed planner was built
+    private boolean sameOptions() {
+        if(planned_options.length != mixed_graph.num_nodes)
+            return false;
+
+        for(int node = 0; node < planned_options.length; ++node)
+            if(planned_options[node] != mixed_graph.numOptions(dynamics.depth(), node))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Plans over the coarse graph, refines the most valuable
+     * blocks and their neighbors, plans over the resulting
+     * mixed graph, and lifts its values to the full graph.
+     *
+     * @return the state-action value function
+     */
+    @Override
+    public double[][] values() {
+
+        // Coarse pass, rank blocks by their best action value
+        double[][] coarse_Q = coarse_planner.values();
+
+        for(int block = 0; block < members.length; ++block) {
+            order[block] = block;
+            value[block] = -Double.MAX_VALUE;
+
+            for(double q : coarse_Q[block])
+                value[block] = Math.max(value[block], q);
+        }
+
+        Arrays.sort(order, (Integer first, Integer second) -> Double.compare(value[second], value[first]));
+
+        // Refine the most valuable blocks, and their neighbors
+        Arrays.fill(selected, false);
+        int num_selected = Math.max(1, (int) Math.ceil(fraction * members.length));
+
+        for(int index = 0; index < num_selected && index < order.length; ++index) {
+            selected[order[index]] = true;
+
+            for(int neighbor : neighbors[order[index]])
+                selected[neighbor] = true;
+        }
+
+        // Only refine the mixed graph again if the refined blocks have changed
+        if(null == mixed_planner || !Arrays.equals(selected, refined)) {
+            System.arraycopy(selected, 0, refined, 0, refined.length);
+            mixed_graph.refine(refined);
+
+            // A planner's buffers are sized by the nodes and options of its graph, so it is only replaced if those have changed
+            if(null == mixed_planner || !sameOptions()) {
+                mixed_planner = algorithm.planner(mixed_graph);
+                planned_options = new int[mixed_graph.num_nodes];
+                mixed_jacobian = new double[mixed_graph.num_nodes][];
+
+                for(int node = 0; node < planned_options.length; ++node) {
+                    planned_options[node] = mixed_graph.numOptions(dynamics.depth(), node);
+                    mixed_jacobian[node] = new double[planned_options[node]];
+                }
+            }
+        }
+
+        // Mixed pass, each full node takes the values of its mixed node
+        double[][] mixed_Q = mixed_planner.values();
+
+        for(int node = 0; node < Q.length; ++node)
+            System.arraycopy(mixed_Q[mixed_graph.mixed[node]], 0, Q[node], 0, Q[node].length);
+
+        return Q;
+    }
+
+    /**
+     * Backpropagates the jacobian through the mixed pass,
+     * the jacobian of each mixed node is the sum of the
+     * jacobians of the full nodes it contains.
+     *
+     * @param jacobian the jacobian w.r.t. the value function
+     */
+    @Override
+    public void train(double[][] jacobian) {
+        for(double[] row : mixed_jacobian)
+            Arrays.fill(row, 0.0);
+
+        for(int node = 0; node < jacobian.length; ++node) {
+            double[] row = mixed_jacobian[mixed_graph.mixed[node]];
+
+            for(int action = 0; action < row.length; ++action)
+                row[action] += jacobian[node][action];
+        }
+
+        mixed_planner.train(mixed_jacobian);
+    }
+}
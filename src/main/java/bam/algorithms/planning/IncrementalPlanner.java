@@ -0,0 +1,596 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.Predecessors;
+import bam.algorithms.kernels.Kernels;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * A Boltzmann planner which keeps its value functions
+ * between calls, and only recomputes the nodes whose
+ * inputs have changed.  A node is recomputed when its
+ * reward, or the probability of any of its transitions,
+ * has moved by more than the tolerance since it was last
+ * flagged, or when the value of one of its successors
+ * has moved by more than the tolerance since it was
+ * last propagated.
+ *
+ * Changes are swept upwards through the predecessors of
+ * each changed node, one layer at a time, which is the
+ * only order in which the layers of a finite horizon plan
+ * can be valid.  If the graph shares the predecessor index
+ * of its dynamics, that index is used, otherwise, as for
+ * pruned, lumped or non-stationary graphs, whose nodes are
+ * not the states of the dynamics, the planner indexes the
+ * predecessors of each compiled layer itself.  With a tolerance of zero, the values are
+ * exactly those of the BoltzmannPlanner.  Larger tolerances
+ * skip more work, each node then uses inputs within about
+ * twice the tolerance of their current values.
+ *
+ * If the successor structure of the graph changes, every
+ * node is recomputed.
+ */
+public class IncrementalPlanner implements Planner {
+
+    public static PlanningAlgorithm algorithm() {
+        return algorithm(1.0);
+    }
+
+    public static PlanningAlgorithm algorithm(final double beta) {
+        return algorithm(beta, 0.0);
+    }
+
+    /**
+     * Gets an incremental Boltzmann planning algorithm.
+     *
+     * @param beta the inverse temperature
+     * @param tolerance the smallest change in a reward, probability or value which is propagated
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(final double beta, final double tolerance) {
+        return new PlanningAlgorithm() {
+            @Override
+            public Planner planner(PlanningGraph graph) {
+                return new IncrementalPlanner(graph, beta, tolerance);
+            }
+
+            @Override
+            public String name() {
+                return "Incremental Planner";
+            }
+
+            @Override
+            public JSONObject serialize() throws JSONException {
+                return new JSONObject()
+                        .put("name", name())
+                        .put("class", IncrementalPlanner.class.getSimpleName())
+                        .put("beta", beta)
+                        .put("tolerance", tolerance);
+            }
+        };
+    }
+
+    public static PlanningAlgorithm load(JSONObject config) throws JSONException {
+        return algorithm(config.getDouble("beta"), config.optDouble("tolerance", 0.0));
+    }
+
+    // Planning model
+    private PlanningGraph dynamics;
+
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
+    // Parameters
+    private double beta; // inverse temperature
+    private double tolerance; // the smallest change that is propagated
+
+    // Kernels for the action loops
+    private final Kernels kernels = Kernels.get();
+
+    // Data structures
+    private double[][][] Q; // state-action value functions
+    private double[][] V; // state value functions
+
+    private double[][][] PI; // Boltzmann policy at each step
+
+    private double[][][] DQ; // state-action backpropagation buffers -- need one for each depth
+    private double[][] DV; // state backpropagation buffers -- need one for each depth
+
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    // Change tracking, the reward and transition buffers are shared by all depths if the graph is stationary
+    private double[][] R; // the rewards at each depth when each node was last flagged
+    private double[][] P; // the transition probabilities at each depth when each node was last flagged
+    private double[][] propagated_V; // the values last propagated to the layer above
+
+    private int[][] options; // the compiled structure of each layer, to detect structural changes
+    private int[][] transitions;
+    private int[][] successors;
+
+    private Predecessors shared_predecessors; // the predecessor index shared by the graph, or null if there is none
+    private int[][] predecessor_offsets; // for each node in the layer below, the first of its predecessors
+    private int[][] predecessors; // the distinct nodes of each layer with a successor in the layer below
+
+    private int[] changed; // the nodes of the current layer whose own inputs changed
+    private int num_changed = 0;
+
+    private int[] propagated; // the nodes of the layer below whose values were propagated
+    private int[] next_propagated;
+    private int num_propagated = 0;
+
+    private Frontier frontier; // the nodes to recompute, or the nodes with non-zero gradients
+
+    private boolean valid = false; // whether the values are consistent with the graph
+    private int updates = 0; // the number of nodes recomputed by the last call to values()
+
+    private IncrementalPlanner(PlanningGraph dynamics, double beta, double tolerance) {
+        this.dynamics = dynamics;
+        this.beta = beta;
+        this.tolerance = tolerance;
+
+        compiled = CompiledGraph.of(dynamics);
+
+        int num_layers = compiled.stationary() ? 1 : dynamics.depth() + 1;
+
+        reward_weights = new double[compiled.maxNodes()];
+        transition_weights = new double[compiled.maxEntries()];
+
+        R = new double[num_layers][];
+        P = new double[num_layers][];
+
+        options = new int[num_layers][];
+        transitions = new int[num_layers][];
+        successors = new int[num_layers][];
+
+        predecessor_offsets = new int[num_layers][];
+        predecessors = new int[num_layers][];
+
+        changed = new int[compiled.maxNodes()];
+        propagated = new int[compiled.maxNodes()];
+        next_propagated = new int[compiled.maxNodes()];
+
+        frontier = new Frontier(compiled.maxNodes());
+
+        Q = new double[dynamics.depth() + 1][][];
+        DQ = new double[dynamics.depth() + 1][][];
+
+        V = new double[dynamics.depth()][];
+        PI = new double[dynamics.depth()][][];
+        DV = new double[dynamics.depth()][];
+        propagated_V = new double[dynamics.depth()][];
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            int num_states = dynamics.numNodes(depth);
+
+            Q[depth] = new double[num_states][];
+            DQ[depth] = new double[num_states][];
+
+            if(depth < dynamics.depth()) {
+                V[depth] = new double[num_states];
+                PI[depth] = new double[num_states][];
+                DV[depth] = new double[num_states];
+                propagated_V[depth] = new double[num_states];
+            }
+
+            for(int state = 0; state < num_states; ++state) {
+                int num_actions = dynamics.numOptions(depth, state);
+
+                Q[depth][state] = new double[num_actions];
+                DQ[depth][state] = new double[num_actions];
+
+                if(depth < dynamics.depth())
+                    PI[depth][state] = new double[num_actions];
+            }
+        }
+    }
+
+    /**
+     * Gets the number of output states, that is, the
+     * number of states at the top layer of the transition
+     * model.  If layers are not defined, this will
+     * be equal to the number of states in the model.
+     * This will always be equal to the first dimension
+     * of the Q-function array.
+     *
+     * @return the number of output states
+     */
+    @Override
+    public int numStates() {
+        return dynamics.numNodes(dynamics.depth());
+    }
+
+    /**
+     * Gets the number of actions available
+     * in the given output state.
+     *
+     * @param state
+     * @return the number of available actions
+     */
+    @Override
+    public int numActions(int state) {
+        return dynamics.numOptions(dynamics.depth(), state);
+    }
+
+    /**
+     * Gets the number of nodes, over all layers,
+     * recomputed by the last call to values().
+     *
+     * @return the number of nodes recomputed
+     */
+    public int updates() { return updates; }
+
+    /**
+     * Computes and returns the state-action value function,
+     * only recomputing the nodes affected by changes to the
+     * graph since the last call.  Also updates internal data
+     * structures necessary for backpropagation.
+     *
+     * @return the state-action value function
+     */
+    @Override
+    public double[][] values() {
+
+        // Rebuild the transition structure if the dynamics have changed, and check whether its shape has changed
+        boolean recompiled = compiled.update();
+
+        if(recompiled && valid && !sameStructure())
+            valid = false;
+
+        if(!valid) {
+            rebuild();
+            valid = true;
+
+            return Q[dynamics.depth()];
+        }
+
+        updates = 0;
+        num_propagated = 0;
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
+
+            // Find the nodes whose rewards or transitions have changed, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                flag(depth, layer, recompiled);
+
+            frontier.reset();
+
+            for(int index = 0; index < num_changed; ++index)
+                frontier.visit(changed[index]);
+
+            // Visit the predecessors of every node whose value changed
+            int layer_index = compiled.stationary() ? 0 : depth;
+
+            for(int index = 0; index < num_propagated; ++index) {
+                int node = propagated[index];
+
+                if(null != shared_predecessors)
+                    for(int predecessor : shared_predecessors.predecessors(node))
+                        frontier.visit(predecessor);
+                else
+                    for(int entry = predecessor_offsets[layer_index][node];
+                        entry < predecessor_offsets[layer_index][node + 1]; ++entry)
+                        frontier.visit(predecessors[layer_index][entry]);
+            }
+
+            frontier.advance(layer.num_nodes);
+
+            // Recompute the nodes, and collect those whose values moved far enough to propagate
+            int num_next = 0;
+
+            for(int index = 0; index < frontier.size(); ++index) {
+                int node = frontier.get(index);
+
+                forward(depth, layer, node, node + 1);
+
+                if(depth < dynamics.depth() && !(Math.abs(V[depth][node] - propagated_V[depth][node]) <= tolerance)) {
+                    propagated_V[depth][node] = V[depth][node];
+                    next_propagated[num_next++] = node;
+                }
+            }
+
+            updates += frontier.size();
+
+            int[] swap = propagated;
+            propagated = next_propagated;
+            next_propagated = swap;
+            num_propagated = num_next;
+        }
+
+        // Return the uppermost layer of the Q function
+        return Q[dynamics.depth()];
+    }
+
+    /**
+     * Collects the nodes of a layer whose rewards, or whose
+     * transition probabilities, have moved by more than the
+     * tolerance since they were last flagged.  The recorded
+     * inputs of flagged nodes are updated.
+     *
+     * @param depth the current depth
+     * @param layer the compiled transitions at this depth
+     * @param recompiled whether the transition probabilities may have changed
+     */
+    private void flag(int depth, CompiledGraph.Layer layer, boolean recompiled) {
+        int layer_index = compiled.stationary() ? 0 : depth;
+        double[] rewards = R[layer_index];
+        double[] probabilities = P[layer_index];
+
+        num_changed = 0;
+
+        for(int node = 0; node < layer.num_nodes; ++node) {
+            boolean flagged = false;
+            double reward = dynamics.reward(depth, node);
+
+            if(!(Math.abs(reward - rewards[node]) <= tolerance)) {
+                rewards[node] = reward;
+                flagged = true;
+            }
+
+            if(recompiled) {
+                int from = layer.transitions[layer.options[node]];
+                int to = layer.transitions[layer.options[node + 1]];
+
+                for(int entry = from; entry < to && !flagged; ++entry)
+                    if(!(Math.abs(layer.probabilities[entry] - probabilities[entry]) <= tolerance))
+                        flagged = true;
+
+                if(flagged)
+                    System.arraycopy(layer.probabilities, from, probabilities, from, to - from);
+            }
+
+            if(flagged)
+                changed[num_changed++] = node;
+        }
+    }
+
+    /**
+     * Recomputes every node, and records the structure,
+     * rewards, probabilities and values it was computed
+     * from.  Used for the first plan, and whenever the
+     * successor structure changes.
+     */
+    private void rebuild() {
+
+        // Stationary graphs over dynamics which keep a predecessor index can share it
+        shared_predecessors = compiled.stationary() ? dynamics.predecessors() : null;
+
+        if(null != shared_predecessors && shared_predecessors.numStates() != compiled.layer(0).num_nodes)
+            shared_predecessors = null;
+
+        for(int layer_index = 0; layer_index < R.length; ++layer_index) {
+            CompiledGraph.Layer layer = compiled.layer(layer_index);
+
+            options[layer_index] = layer.options.clone();
+            transitions[layer_index] = layer.transitions.clone();
+            successors[layer_index] = layer.successors.clone();
+            P[layer_index] = Arrays.copyOf(layer.probabilities, layer.numEntries());
+            R[layer_index] = new double[layer.num_nodes];
+
+            for(int node = 0; node < layer.num_nodes; ++node)
+                R[layer_index][node] = dynamics.reward(layer_index, node);
+
+            if(null == shared_predecessors)
+                index(layer_index, layer);
+        }
+
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
+
+            forward(depth, layer, 0, layer.num_nodes);
+
+            if(depth < dynamics.depth())
+                System.arraycopy(V[depth], 0, propagated_V[depth], 0, layer.num_nodes);
+        }
+
+        updates = 0;
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth)
+            updates += dynamics.numNodes(depth);
+    }
+
+    /**
+     * Checks whether the compiled structure is the same
+     * as when the values were last rebuilt.
+     *
+     * @return true if no layer's structure has changed
+     */
+    private boolean sameStructure() {
+        for(int layer_index = 0; layer_index < options.length; ++layer_index) {
+            CompiledGraph.Layer layer = compiled.layer(layer_index);
+
+            if(!Arrays.equals(options[layer_index], layer.options)
+                    || !Arrays.equals(transitions[layer_index], layer.transitions)
+                    || !Arrays.equals(successors[layer_index], layer.successors))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Builds the predecessor index of a layer, listing for
+     * each node of the layer below the distinct nodes of
+     * this layer which have it as a successor.
+     *
+     * @param layer_index the index of the layer
+     * @param layer the compiled transitions of the layer
+     */
+    private void index(int layer_index, CompiledGraph.Layer layer) {
+        int num_below = compiled.maxNodes();
+
+        int[] offsets = new int[num_below + 1];
+        int[] last = new int[num_below];
+        Arrays.fill(last, -1);
+
+        // Count distinct predecessors
+        for(int node = 0; node < layer.num_nodes; ++node)
+            for(int entry = layer.transitions[layer.options[node]];
+                entry < layer.transitions[layer.options[node + 1]]; ++entry) {
+                int successor = layer.successors[entry];
+
+                if(node != last[successor]) {
+                    last[successor] = node;
+                    ++offsets[successor + 1];
+                }
+            }
+
+        for(int successor = 0; successor < num_below; ++successor)
+            offsets[successor + 1] += offsets[successor];
+
+        // Fill predecessors, in increasing order
+        int[] nodes = new int[offsets[num_below]];
+        int[] position = Arrays.copyOf(offsets, num_below);
+        Arrays.fill(last, -1);
+
+        for(int node = 0; node < layer.num_nodes; ++node)
+            for(int entry = layer.transitions[layer.options[node]];
+                entry < layer.transitions[layer.options[node + 1]]; ++entry) {
+                int successor = layer.successors[entry];
+
+                if(node != last[successor]) {
+                    last[successor] = node;
+                    nodes[position[successor]++] = node;
+                }
+            }
+
+        predecessor_offsets[layer_index] = offsets;
+        predecessors[layer_index] = nodes;
+    }
+
+    /**
+     * Computes the Q function, policy and value function
+     * for a range of states at a single depth, exactly as
+     * the BoltzmannPlanner does.
+     *
+     * @param depth the current depth
+     * @param layer the compiled transitions at this depth
+     * @param from the first state in the range
+     * @param to one past the last state in the range
+     */
+    private void forward(int depth, CompiledGraph.Layer layer, int from, int to) {
+        double[] rewards = R[compiled.stationary() ? 0 : depth];
+
+        // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+        layer.backup(from, to, rewards, (0 == depth) ? null : V[depth - 1], Q[depth]);
+
+        // Update PI and V
+        if(dynamics.depth() != depth)
+            for (int state = from; state < to; ++state)
+                V[depth][state] = BoltzmannPlanner.policy(kernels, beta, Q[depth][state], PI[depth][state], Q[depth][state].length);
+    }
+
+    /**
+     * Backpropagates the jacobian of the objective w.r.t the
+     * state-action value function through the stochastic_planning process.
+     * This must be called after the actionValues() method
+     * has been called.
+     *
+     * @param jacobian the jacobian w.r.t. the value function
+     */
+    @Override
+    public void train(double[][] jacobian) {
+
+        // Copy jacobian, and find the states with non-zero gradients
+        frontier.reset();
+
+        for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+            for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action) {
+                DQ[dynamics.depth()][state][action] = jacobian[state][action];
+
+                if(0.0 != jacobian[state][action])
+                    frontier.visit(state);
+            }
+
+        frontier.advance(dynamics.numNodes(dynamics.depth()));
+
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
+
+        // Do reverse value iteration
+        for(int depth = dynamics.depth(); depth >= 0; --depth) {
+
+            // If we are past the first iteration, backpropagate transitions and propagate through transitions
+            if(dynamics.depth() > depth) {
+                CompiledGraph.Layer layer = compiled.layer(depth + 1);
+                double[] v = V[depth];
+                double[] dv = DV[depth];
+
+                if(!frontier.dense()) {
+
+                    // Only backpropagate from the frontier, DV is initialized as the next frontier is built
+                    layer.backpropagate(frontier, DQ[depth + 1], v, dv, transition_weights);
+
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights, frontier);
+
+                    frontier.advance(dynamics.numNodes(depth));
+
+                    // If the frontier has become dense, clear DV for the states it didn't reach
+                    if(frontier.dense())
+                        for(int state = 0; state < dv.length; ++state)
+                            if(!frontier.contains(state))
+                                dv[state] = 0.0;
+                } else {
+
+                    // Initialize DV, and backpropagate through transitions
+                    Arrays.fill(dv, 0.0);
+                    layer.backpropagate(DQ[depth + 1], v, dv, transition_weights);
+
+                    // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                    if(!compiled.stationary())
+                        layer.train(dynamics, depth + 1, transition_weights);
+
+                    frontier.fill(dynamics.numNodes(depth));
+                }
+
+                // Update DQ from DV, only states in the frontier can have non-zero gradients
+                for(int index = 0; index < frontier.size(); ++index) {
+                    int state = frontier.get(index);
+                    double[] q = Q[depth][state];
+                    double[] pi = PI[depth][state];
+                    double[] dq = DQ[depth][state];
+
+                    for(int action = 0; action < dq.length; ++action) {
+                        double weight = 1.0 + beta * (q[action] - v[state]);
+                        dq[action] = pi[action] * dv[state] * weight;
+                    }
+                }
+            }
+
+            // Backpropagate reward gradient
+            for(int index = 0; index < frontier.size(); ++index) {
+                int state = frontier.get(index);
+                double reward_weight = 0.0;
+
+                for(int action = 0; action < DQ[depth][state].length; ++action)
+                    reward_weight += DQ[depth][state][action];
+
+                if(compiled.stationary())
+                    reward_weights[state] += reward_weight;
+                else if(0.0 != reward_weight)
+                    dynamics.train(depth, state, reward_weight);
+            }
+        }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+                if(0.0 != reward_weights[state])
+                    dynamics.train(dynamics.depth(), state, reward_weights[state]);
+        }
+    }
+}
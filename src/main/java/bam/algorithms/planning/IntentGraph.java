@@ -1,6 +1,9 @@
 package bam.algorithms.planning;
 
 import bam.algorithms.Dynamics;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.RewardMapping;
 
 import java.util.Arrays;
@@ -12,20 +15,21 @@ import java.util.function.Consumer;
  * graph, which includes methods for setting the
  * intent and getting the intent gradient.
  */
-public class IntentGraph implements PlanningGraph {
+public class IntentGraph implements BatchGraph {
 
     private Dynamics dynamics;
     private RewardMapping rewards;
 
-    private double[] intent;
-    private double[] gradient;
+    private double[][] intents;
+    private double[][] gradients;
+    private int num_samples = 1;
 
     private IntentGraph(Dynamics dynamics, RewardMapping rewards) {
         this.dynamics = dynamics;
         this.rewards = rewards;
 
-        intent = new double[rewards.intentSize()];
-        gradient = new double[rewards.intentSize()];
+        intents = new double[1][rewards.intentSize()];
+        gradients = new double[1][rewards.intentSize()];
     }
 
     public static IntentGraph of(Dynamics dynamics, RewardMapping rewards) {
@@ -41,34 +45,66 @@ public class IntentGraph implements PlanningGraph {
     @Override
     public int numOptions(int depth, int node) { return dynamics.numActions(node); }
 
+    @Override
+    public boolean stationary() { return true; }
+
+    @Override
+    public int version() { return dynamics.version(); }
+
     @Override
     public int[] successors(int depth, int node, int option) { return dynamics.successors(node, option); }
 
     @Override
     public double[] transitions(int depth, int node, int option) { return dynamics.transitions(node, option); }
 
+    @Override
+    public int numSuccessors(int depth, int node, int option) { return dynamics.numSuccessors(node, option); }
+
+    @Override
+    public int successor(int depth, int node, int option, int index) { return dynamics.successor(node, option, index); }
+
+    @Override
+    public double probability(int depth, int node, int option, int index) { return dynamics.probability(node, option, index); }
+
+    @Override
+    public Predecessors predecessors() {
+        return (dynamics instanceof ReverseDynamics) ? ((ReverseDynamics) dynamics).predecessors() : null;
+    }
+
+    @Override
+    public GridLayout layout() { return dynamics.layout(); }
+
     @Override
     public void train(int depth, int start, int action, int end, double weight) { /* DOES NOTHING */}
 
     @Override
-    public double reward(int depth, int node) { return rewards.reward(node, intent); }
+    public double reward(int depth, int node) { return rewards.reward(node, intents[0]); }
+
+    @Override
+    public void train(int depth, int node, double weight) { rewards.gradient(node, intents[0], weight, gradients[0]); }
+
+    @Override
+    public int numSamples() { return num_samples; }
+
+    @Override
+    public double reward(int depth, int node, int sample) { return rewards.reward(node, intents[sample]); }
 
     @Override
-    public void train(int depth, int node, double weight) { rewards.gradient(node, intent, weight, gradient); }
+    public void train(int depth, int node, int sample, double weight) {
+        rewards.gradient(node, intents[sample], weight, gradients[sample]);
+    }
 
     /////////////
     // Intents //
     /////////////
 
     /**
-     * Sets the intent vector, which sets the reward function
+     * Sets the intent vector, which sets the reward function.
+     * This is the intent of the first sample in the batch.
      *
      * @param intent the intent vector
      */
-    public void setIntent(double[] intent) {
-        System.arraycopy(intent, 0, this.intent, 0, rewards.intentSize());
-        Arrays.fill(gradient, 0.0);
-    }
+    public void setIntent(double[] intent) { setIntent(0, intent); }
 
     /**
      * Gives the ACCUMULATED gradient with respect to the intent
@@ -76,8 +112,52 @@ public class IntentGraph implements PlanningGraph {
      *
      * @param target the consumer to which the gradient should be supplied.
      */
-    public void intentGradient(Consumer<double[]> target) {
-        target.accept(gradient);
-        Arrays.fill(gradient, 0.0);
+    public void intentGradient(Consumer<double[]> target) { intentGradient(0, target); }
+
+    /**
+     * Sets the number of intent vectors in the batch,
+     * allocating new buffers if needed.  The intent of
+     * each sample should then be set before planning.
+     *
+     * @param num_samples the number of samples
+     */
+    public void setSamples(int num_samples) {
+        if(intents.length < num_samples) {
+            int capacity = intents.length;
+
+            intents = Arrays.copyOf(intents, num_samples);
+            gradients = Arrays.copyOf(gradients, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                intents[sample] = new double[rewards.intentSize()];
+                gradients[sample] = new double[rewards.intentSize()];
+            }
+        }
+
+        this.num_samples = num_samples;
+    }
+
+    /**
+     * Sets the intent vector for a single sample in the batch.
+     *
+     * @param sample the sample index
+     * @param intent the intent vector
+     */
+    public void setIntent(int sample, double[] intent) {
+        System.arraycopy(intent, 0, intents[sample], 0, rewards.intentSize());
+        Arrays.fill(gradients[sample], 0.0);
+    }
+
+    /**
+     * Gives the ACCUMULATED gradient with respect to the intent of
+     * a single sample to the specified consumer, then resets the
+     * accumulator.
+     *
+     * @param sample the sample index
+     * @param target the consumer to which the gradient should be supplied.
+     */
+    public void intentGradient(int sample, Consumer<double[]> target) {
+        target.accept(gradients[sample]);
+        Arrays.fill(gradients[sample], 0.0);
     }
 }
@@ -13,10 +13,20 @@ import java.util.Arrays;
 public class MaxPlanner implements Planner {
 
     public static PlanningAlgorithm algorithm() {
+        return algorithm(false);
+    }
+
+    /**
+     * Gets a max planning algorithm.
+     *
+     * @param checkpoint whether to recompute layers during backpropagation rather than storing them, needs a stationary graph
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(final boolean checkpoint) {
         return new PlanningAlgorithm() {
             @Override
             public Planner planner(PlanningGraph graph) {
-                return new MaxPlanner(graph);
+                return new MaxPlanner(graph, checkpoint);
             }
 
             @Override
@@ -24,18 +34,29 @@ public class MaxPlanner implements Planner {
                 return "Max Planner";
             }
 
+            @Override
+            public boolean stationaryOnly() { return checkpoint; }
+
             @Override
             public JSONObject serialize() throws JSONException {
                 return new JSONObject()
                         .put("name", name())
-                        .put("class", MaxPlanner.class.getSimpleName());
+                        .put("class", MaxPlanner.class.getSimpleName())
+                        .put("checkpoint", checkpoint);
             }
         };
     }
 
+    public static PlanningAlgorithm load(JSONObject config) throws JSONException {
+        return algorithm(config.optBoolean("checkpoint", false));
+    }
+
     // Planning model
     private PlanningGraph dynamics;
 
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
     // Data structures
     private double[][][] Q; // state-action value functions
     private double[][] V; // state value functions
@@ -45,9 +66,25 @@ public class MaxPlanner implements Planner {
     private double[][][] DQ; // state-action backpropagation buffers -- need one for each depth
     private double[][] DV; // state backpropagation buffers -- need one for each depth
 
-    private MaxPlanner(PlanningGraph dynamics) {
+    private double[] R; // reward buffer
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    // Checkpointing, if layers share buffers, only the values below each segment are kept
+    private Checkpoints checkpoints;
+
+    private MaxPlanner(PlanningGraph dynamics, boolean checkpoint) {
         this.dynamics = dynamics;
 
+        compiled = CompiledGraph.of(dynamics);
+
+        R = new double[compiled.maxNodes()];
+        reward_weights = new double[compiled.maxNodes()];
+        transition_weights = new double[compiled.maxEntries()];
+
+        // When checkpointing, layers share buffers, which needs a stationary graph
+        checkpoints = new Checkpoints(dynamics.depth(), checkpoint, compiled.stationary(), compiled.maxNodes());
+
         Q = new double[dynamics.depth() + 1][][];
         DQ = new double[dynamics.depth() + 1][][];
 
@@ -58,24 +95,45 @@ public class MaxPlanner implements Planner {
         for(int depth = 0; depth <= dynamics.depth(); ++depth) {
             int num_states = dynamics.numNodes(depth);
 
-            Q[depth] = new double[num_states][];
-            DQ[depth] = new double[num_states][];
+            // Layers below the top reuse the buffers of the corresponding layer of the first segment
+            int owner = checkpoints.values(depth);
 
-            if(depth < dynamics.depth()) {
-                V[depth] = new double[num_states];
-                DV[depth] = new double[num_states];
-                PI[depth] = new double[num_states][];
-            }
+            if(owner != depth) {
+                Q[depth] = Q[owner];
+                V[depth] = V[owner];
+                PI[depth] = PI[owner];
+            } else {
+                Q[depth] = new double[num_states][];
+
+                if(depth < dynamics.depth()) {
+                    V[depth] = new double[num_states];
+                    PI[depth] = new double[num_states][];
+                }
+
+                for(int state = 0; state < num_states; ++state) {
+                    int num_actions = dynamics.numOptions(depth, state);
 
-            for(int state = 0; state < num_states; ++state) {
-                int num_actions = dynamics.numOptions(depth, state);
+                    Q[depth][state] = new double[num_actions];
 
-                Q[depth][state] = new double[num_actions];
-                DQ[depth][state] = new double[num_actions];
+                    if(depth < dynamics.depth())
+                        PI[depth][state] = new double[num_actions];
+                }
+            }
 
-                if(depth < dynamics.depth())
-                    PI[depth][state] = new double[num_actions];
+            // Backpropagation only ever needs two layers of DQ, and one layer of DV
+            if(checkpoints.actionGradients(depth) != depth)
+                DQ[depth] = DQ[checkpoints.actionGradients(depth)];
+            else {
+                DQ[depth] = new double[num_states][];
+
+                for(int state = 0; state < num_states; ++state)
+                    DQ[depth][state] = new double[dynamics.numOptions(depth, state)];
             }
+
+            if(depth < dynamics.depth() && checkpoints.stateGradients(depth) != depth)
+                DV[depth] = DV[checkpoints.stateGradients(depth)];
+            else if(depth < dynamics.depth())
+                DV[depth] = new double[num_states];
         }
     }
 
@@ -115,58 +173,87 @@ public class MaxPlanner implements Planner {
      */
     @Override
     public double[][] values() {
+
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
+
         for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
 
-            // Add rewards to Q function at this depth
-            for(int state = 0; state < dynamics.numNodes(depth); ++state)
-                for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
-                    Q[depth][state][action] = dynamics.reward(depth, state);
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    R[state] = dynamics.reward(depth, state);
 
-            // If this isn't the first iteration, do transition lookahead
-            if(0 != depth) {
-                for (int start = 0; start < dynamics.numNodes(depth); ++start)
-                    for (int action = 0; action < dynamics.numOptions(depth, start); ++action) {
-                        int[] next = dynamics.successors(depth, start, action);
-                        double[] dist = dynamics.transitions(depth, start, action);
+            forward(depth, layer);
 
-                        for (int end = 0; end < next.length; ++end)
-                            Q[depth][start][action] += V[depth - 1][next[end]] * dist[end];
-                    }
-            }
+            // Save the values at the end of each segment, as they will be overwritten
+            if(depth < dynamics.depth())
+                checkpoints.save(depth, V[depth], layer.num_nodes);
+        }
 
-            // Update PI and V
-            if(dynamics.depth() != depth) {
-                for (int state = 0; state < dynamics.numNodes(depth); ++state) {
-                    double max = -Double.MAX_VALUE;
-                    int num_max = 0;
-
-                    for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                        double value = Q[depth][state][action];
-
-                        if(value == max)
-                            ++num_max;
-                        else if (value > max) {
-                            max = value;
-                            num_max = 1;
-                        }
-                    }
+        // Return the uppermost layer of the Q function
+        return Q[dynamics.depth()];
+    }
+
+    /**
+     * Computes the Q function, policy and value
+     * function for a single depth.
+     *
+     * @param depth the current depth
+     * @param layer the compiled transitions at this depth
+     */
+    private void forward(int depth, CompiledGraph.Layer layer) {
 
-                    double p = 1.0 / (double) num_max;
+        // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+        layer.backup(R, (0 == depth) ? null : V[depth - 1], Q[depth]);
 
-                    for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
-                        if(Q[depth][state][action] != max)
-                            PI[depth][state][action] = 0.0;
-                        else
-                            PI[depth][state][action] = p;
+        // Update PI and V
+        if(dynamics.depth() != depth) {
+            for (int state = 0; state < dynamics.numNodes(depth); ++state) {
+                double max = -Double.MAX_VALUE;
+                int num_max = 0;
+
+                for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
+                    double value = Q[depth][state][action];
+
+                    if(value == max)
+                        ++num_max;
+                    else if (value > max) {
+                        max = value;
+                        num_max = 1;
                     }
+                }
+
+                double p = 1.0 / (double) num_max;
 
-                    V[depth][state] = max;
+                for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
+                    if(Q[depth][state][action] != max)
+                        PI[depth][state][action] = 0.0;
+                    else
+                        PI[depth][state][action] = p;
                 }
+
+                V[depth][state] = max;
             }
         }
+    }
 
-        // Return the uppermost layer of the Q function
-        return Q[dynamics.depth()];
+    /**
+     * Recomputes the Q function, policy and value function
+     * for every layer in a segment, starting from the values
+     * saved at the segment's checkpoint.  Only used when
+     * layers share buffers, which implies the graph is
+     * stationary, so the reward buffer is still valid.
+     *
+     * @param start the first layer of the segment to recompute
+     */
+    private void recompute(int start) {
+        if(0 < start)
+            checkpoints.restore(start, V[start - 1]);
+
+        for(int depth = start; depth < start + checkpoints.interval(); ++depth)
+            forward(depth, compiled.layer(depth));
     }
 
     /**
@@ -185,31 +272,34 @@ public class MaxPlanner implements Planner {
             for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action)
                 DQ[dynamics.depth()][state][action] = jacobian[state][action];
 
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
+
         // Do reverse value iteration
         for(int depth = dynamics.depth(); depth >= 0; --depth) {
 
             // If we are past the first iteration, backpropagate transitions and propagate through transitions
             if(dynamics.depth() > depth) {
 
-                // Initialize DV
-                Arrays.fill(DV[depth], 0.0);
+                // If we have reached a segment whose buffers have been overwritten, recompute it
+                if(checkpoints.stale(depth))
+                    recompute(checkpoints.start(depth));
 
-                for(int start = 0; start < dynamics.numNodes(depth + 1); ++start)
-                    for(int action = 0; action < dynamics.numOptions(depth + 1, start); ++action) {
-                        int[] next = dynamics.successors(depth + 1, start, action);
-                        double[] dist = dynamics.transitions(depth + 1, start, action);
+                CompiledGraph.Layer layer = compiled.layer(depth + 1);
 
-                        for(int end = 0; end < next.length; ++end) {
-                            double prop = DQ[depth + 1][start][action] * dist[end];
-                            double weight = prop * V[depth][next[end]];
+                // Initialize DV
+                Arrays.fill(DV[depth], 0.0);
 
-                            // Backpropagate log transition
-                            dynamics.train(depth + 1, start, action, next[end], weight);
+                // Backpropagate through transitions, and accumulate log transition gradients
+                layer.backpropagate(DQ[depth + 1], V[depth], DV[depth], transition_weights);
 
-                            // Backpropagate through transition
-                            DV[depth][next[end]] += prop;
-                        }
-                    }
+                // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                if(!compiled.stationary())
+                    layer.train(dynamics, depth + 1, transition_weights);
 
                 // Update DQ from DV
                 for(int state = 0; state < dynamics.numNodes(depth); ++state)
@@ -224,8 +314,19 @@ public class MaxPlanner implements Planner {
                 for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
                     reward_weight += DQ[depth][state][action];
 
-                dynamics.train(depth, state, reward_weight);
+                if(compiled.stationary())
+                    reward_weights[state] += reward_weight;
+                else
+                    dynamics.train(depth, state, reward_weight);
             }
         }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+                dynamics.train(dynamics.depth(), state, reward_weights[state]);
+        }
     }
 }
@@ -1,6 +1,9 @@
 package bam.algorithms.planning;
 
 import bam.algorithms.DynamicsModel;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.RewardMapping;
 
 import java.util.Arrays;
@@ -12,26 +15,70 @@ import java.util.function.Consumer;
  * includes methods for setting the intent and
  * getting the intent gradient.
  *
+ * A workspace graph does not pass transition gradients
+ * straight to the dynamics model, but accumulates them
+ * in its own buffer, one entry for each possible
+ * transition, until they are flushed.  Several workspaces
+ * over the same model can then be trained from different
+ * threads, as long as the model is not updated, and their
+ * gradients passed to the model in a fixed order.
+ *
  * Created by Tyler on 5/13/2017.
  */
-public class ModelGraph implements PlanningGraph {
+public class ModelGraph implements BatchGraph {
 
     private DynamicsModel dynamics;
     private RewardMapping rewards;
 
-    private double[] intent;
-    private double[] gradient;
+    private double[][] intents;
+    private double[][] gradients;
+    private int num_samples = 1;
+
+    // For workspaces, the first transition entry of each state-action pair, otherwise null
+    private int[][] entries = null;
+
+    // For workspaces, the accumulated gradient of each transition entry
+    private double[] transition_gradients = null;
 
-    private ModelGraph(DynamicsModel dynamics, RewardMapping rewards) {
+    private ModelGraph(DynamicsModel dynamics, RewardMapping rewards, boolean workspace) {
         this.dynamics = dynamics;
         this.rewards = rewards;
 
-        intent = new double[rewards.intentSize()];
-        gradient = new double[rewards.intentSize()];
+        intents = new double[1][rewards.intentSize()];
+        gradients = new double[1][rewards.intentSize()];
+
+        // Successor lists of a model never change, so the entries can be laid out once
+        if(workspace) {
+            entries = new int[dynamics.numStates()][];
+            int num_entries = 0;
+
+            for(int state = 0; state < dynamics.numStates(); ++state) {
+                entries[state] = new int[dynamics.numActions(state)];
+
+                for(int action = 0; action < dynamics.numActions(state); ++action) {
+                    entries[state][action] = num_entries;
+                    num_entries += dynamics.numSuccessors(state, action);
+                }
+            }
+
+            transition_gradients = new double[num_entries];
+        }
     }
 
     public static ModelGraph of(DynamicsModel dynamics, RewardMapping rewards) {
-        return new ModelGraph(dynamics, rewards);
+        return new ModelGraph(dynamics, rewards, false);
+    }
+
+    /**
+     * Gets a workspace graph, which accumulates its
+     * transition gradients until they are flushed.
+     *
+     * @param dynamics the dynamics model
+     * @param rewards the reward mapping
+     * @return the workspace graph
+     */
+    public static ModelGraph workspace(DynamicsModel dynamics, RewardMapping rewards) {
+        return new ModelGraph(dynamics, rewards, true);
     }
 
     @Override
@@ -45,6 +92,12 @@ public class ModelGraph implements PlanningGraph {
     @Override
     public int numOptions(int depth, int node) { return dynamics.numActions(node); }
 
+    @Override
+    public boolean stationary() { return true; }
+
+    @Override
+    public int version() { return dynamics.version(); }
+
     @Override
     public int[] successors(int depth, int node, int option) {
         return dynamics.successors(node, option);
@@ -55,19 +108,70 @@ public class ModelGraph implements PlanningGraph {
         return dynamics.transitions(node, option);
     }
 
+    @Override
+    public int numSuccessors(int depth, int node, int option) {
+        return dynamics.numSuccessors(node, option);
+    }
+
+    @Override
+    public int successor(int depth, int node, int option, int index) {
+        return dynamics.successor(node, option, index);
+    }
+
+    @Override
+    public double probability(int depth, int node, int option, int index) {
+        return dynamics.probability(node, option, index);
+    }
+
+    @Override
+    public Predecessors predecessors() {
+        return (dynamics instanceof ReverseDynamics) ? ((ReverseDynamics) dynamics).predecessors() : null;
+    }
+
+    @Override
+    public GridLayout layout() { return dynamics.layout(); }
+
     @Override
     public void train(int depth, int start, int option, int end, double weight) {
-        dynamics.train(start, option, end, weight);
+        if(null == entries) {
+            dynamics.train(start, option, end, weight);
+
+            return;
+        }
+
+        int num_successors = dynamics.numSuccessors(start, option);
+
+        for(int index = 0; index < num_successors; ++index)
+            if(end == dynamics.successor(start, option, index)) {
+                transition_gradients[entries[start][option] + index] += weight;
+
+                return;
+            }
     }
 
     @Override
     public double reward(int depth, int node) {
-        return rewards.reward(node, intent);
+        return rewards.reward(node, intents[0]);
     }
 
     @Override
     public void train(int depth, int node, double weight) {
-        rewards.gradient(node, intent, weight, gradient);
+        rewards.gradient(node, intents[0], weight, gradients[0]);
+    }
+
+    @Override
+    public int numSamples() {
+        return num_samples;
+    }
+
+    @Override
+    public double reward(int depth, int node, int sample) {
+        return rewards.reward(node, intents[sample]);
+    }
+
+    @Override
+    public void train(int depth, int node, int sample, double weight) {
+        rewards.gradient(node, intents[sample], weight, gradients[sample]);
     }
 
     /////////////
@@ -75,14 +179,12 @@ public class ModelGraph implements PlanningGraph {
     /////////////
 
     /**
-     * Sets the intent vector, which sets the reward function
+     * Sets the intent vector, which sets the reward function.
+     * This is the intent of the first sample in the batch.
      *
      * @param intent the intent vector
      */
-    public void setIntent(double[] intent) {
-        System.arraycopy(intent, 0, this.intent, 0, rewards.intentSize());
-        Arrays.fill(gradient, 0.0);
-    }
+    public void setIntent(double[] intent) { setIntent(0, intent); }
 
     /**
      * Gives the ACCUMULATED gradient with respect to the intent
@@ -90,8 +192,89 @@ public class ModelGraph implements PlanningGraph {
      *
      * @param target the consumer to which the gradient should be supplied.
      */
-    public void intentGradient(Consumer<double[]> target) {
-        target.accept(gradient);
-        Arrays.fill(gradient, 0.0);
+    public void intentGradient(Consumer<double[]> target) { intentGradient(0, target); }
+
+    /**
+     * Sets the number of intent vectors in the batch,
+     * allocating new buffers if needed.  The intent of
+     * each sample should then be set before planning.
+     *
+     * @param num_samples the number of samples
+     */
+    public void setSamples(int num_samples) {
+        if(intents.length < num_samples) {
+            int capacity = intents.length;
+
+            intents = Arrays.copyOf(intents, num_samples);
+            gradients = Arrays.copyOf(gradients, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                intents[sample] = new double[rewards.intentSize()];
+                gradients[sample] = new double[rewards.intentSize()];
+            }
+        }
+
+        this.num_samples = num_samples;
+    }
+
+    /**
+     * Sets the intent vector for a single sample in the batch.
+     *
+     * @param sample the sample index
+     * @param intent the intent vector
+     */
+    public void setIntent(int sample, double[] intent) {
+        System.arraycopy(intent, 0, intents[sample], 0, rewards.intentSize());
+        Arrays.fill(gradients[sample], 0.0);
+    }
+
+    /**
+     * Gives the ACCUMULATED gradient with respect to the intent of
+     * a single sample to the specified consumer, then resets the
+     * accumulator.
+     *
+     * @param sample the sample index
+     * @param target the consumer to which the gradient should be supplied.
+     */
+    public void intentGradient(int sample, Consumer<double[]> target) {
+        target.accept(gradients[sample]);
+        Arrays.fill(gradients[sample], 0.0);
+    }
+
+    //////////////////////////
+    // Transition Gradients //
+    //////////////////////////
+
+    /**
+     * Passes the transition gradients accumulated by a workspace
+     * to the dynamics model, in order of start state, action and
+     * successor, and then resets them.  Does nothing if this
+     * graph is not a workspace.
+     */
+    public void flush() {
+        if(null == entries)
+            return;
+
+        for(int state = 0; state < entries.length; ++state)
+            for(int action = 0; action < entries[state].length; ++action) {
+                int entry = entries[state][action];
+                int num_successors = dynamics.numSuccessors(state, action);
+
+                for(int index = 0; index < num_successors; ++index)
+                    if(0.0 != transition_gradients[entry + index])
+                        dynamics.train(state, action, dynamics.successor(state, action, index),
+                                transition_gradients[entry + index]);
+            }
+
+        discard();
+    }
+
+    /**
+     * Resets the transition gradients accumulated by
+     * a workspace, without passing them to the model.
+     */
+    public void discard() {
+        if(null != transition_gradients)
+            Arrays.fill(transition_gradients, 0.0);
     }
 }
@@ -0,0 +1,267 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.Dynamics;
+import bam.algorithms.RewardMapping;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A partition of the states of a set of dynamics into
+ * blocks of bisimilar states.  Two states are in the same
+ * block if they have the same number of actions, the same
+ * reward for every intent vector, and, for every action,
+ * the same probability of moving into each block.  States
+ * in the same block then have the same state-action values
+ * at every planning depth, so a planner only needs to plan
+ * over the blocks.
+ *
+ * Rewards are compared through the support of the reward
+ * mapping, that is, the reward at the zero intent and the
+ * gradient with respect to the intent.  This assumes the
+ * mapping is affine in the intent, which holds for every
+ * mapping in this repository.
+ *
+ * The partition is the coarsest such partition, found by
+ * repeatedly splitting blocks by the distribution over
+ * blocks of each action, until no block is split.
+ * Probabilities are compared exactly, so states whose
+ * distributions differ only by rounding are kept apart.
+ */
+public final class Partition {
+
+    /**
+     * A hashable list of values, used to group states
+     * with the same signature.
+     */
+    private static class Signature {
+
+        private final long[] values;
+
+        private Signature(long[] values, int length) {
+            this.values = Arrays.copyOf(values, length);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Signature && Arrays.equals(values, ((Signature) other).values);
+        }
+
+        @Override
+        public int hashCode() { return Arrays.hashCode(values); }
+    }
+
+    // The block of each state
+    private final int[] blocks;
+
+    // The states in each block, in increasing order
+    private final int[][] members;
+
+    private Partition(int[] blocks, int num_blocks) {
+        this.blocks = blocks;
+
+        int[] sizes = new int[num_blocks];
+
+        for(int block : blocks)
+            ++sizes[block];
+
+        members = new int[num_blocks][];
+
+        for(int block = 0; block < num_blocks; ++block)
+            members[block] = new int[sizes[block]];
+
+        Arrays.fill(sizes, 0);
+
+        for(int state = 0; state < blocks.length; ++state)
+            members[blocks[state]][sizes[blocks[state]]++] = state;
+    }
+
+    /**
+     * Computes the coarsest bisimulation partition of the
+     * given dynamics, with respect to the given rewards.
+     *
+     * @param dynamics the transition dynamics
+     * @param rewards the reward mapping
+     * @return the partition
+     */
+    public static Partition bisimulation(Dynamics dynamics, RewardMapping rewards) {
+        int num_states = dynamics.numStates();
+        int[] blocks = new int[num_states];
+
+        // Split states by their number of actions and the support of their rewards
+        double[] intent = new double[rewards.intentSize()];
+        double[] gradient = new double[rewards.intentSize()];
+
+        HashMap<Signature, Integer> labels = new HashMap<>();
+        long[] buffer = new long[16];
+
+        for(int state = 0; state < num_states; ++state) {
+            Arrays.fill(gradient, 0.0);
+            rewards.gradient(state, intent, 1.0, gradient);
+
+            int length = 0;
+            buffer = reserve(buffer, length + 2);
+            buffer[length++] = dynamics.numActions(state);
+            buffer[length++] = Double.doubleToLongBits(rewards.reward(state, intent));
+
+            for(int index = 0; index < gradient.length; ++index)
+                if(0.0 != gradient[index]) {
+                    buffer = reserve(buffer, length + 2);
+                    buffer[length++] = index;
+                    buffer[length++] = Double.doubleToLongBits(gradient[index]);
+                }
+
+            blocks[state] = label(labels, new Signature(buffer, length));
+        }
+
+        int num_blocks = labels.size();
+
+        // Split blocks by the distribution over blocks of each action, until no block is split
+        int[] next_blocks = new int[num_states];
+        double[] mass = new double[num_states];
+        int[] touched = new int[num_states];
+
+        while(true) {
+            labels.clear();
+
+            for(int state = 0; state < num_states; ++state) {
+                int length = 0;
+                buffer = reserve(buffer, 1);
+                buffer[length++] = blocks[state];
+
+                for(int action = 0; action < dynamics.numActions(state); ++action) {
+                    int num_successors = dynamics.numSuccessors(state, action);
+
+                    // Sum the probability of moving into each block
+                    int num_touched = 0;
+
+                    for(int index = 0; index < num_successors; ++index) {
+                        int block = blocks[dynamics.successor(state, action, index)];
+
+                        if(!contains(touched, num_touched, block))
+                            touched[num_touched++] = block;
+
+                        mass[block] += dynamics.probability(state, action, index);
+                    }
+
+                    Arrays.sort(touched, 0, num_touched);
+
+                    buffer = reserve(buffer, length + 1 + 2 * num_touched);
+                    buffer[length++] = num_touched;
+
+                    for(int index = 0; index < num_touched; ++index) {
+                        buffer[length++] = touched[index];
+                        buffer[length++] = Double.doubleToLongBits(mass[touched[index]]);
+                        mass[touched[index]] = 0.0;
+                    }
+                }
+
+                next_blocks[state] = label(labels, new Signature(buffer, length));
+            }
+
+            int[] swap = blocks;
+            blocks = next_blocks;
+            next_blocks = swap;
+
+            if(labels.size() == num_blocks)
+                break;
+
+            num_blocks = labels.size();
+        }
+
+        return new Partition(blocks, num_blocks);
+    }
+
+    /**
+     * Gets the partition in which every state is its own block.
+     *
+     * @param num_states the number of states
+     * @return the identity partition
+     */
+    public static Partition identity(int num_states) {
+        int[] blocks = new int[num_states];
+
+        for(int state = 0; state < num_states; ++state)
+            blocks[state] = state;
+
+        return new Partition(blocks, num_states);
+    }
+
+    // Gets the label of a signature, assigning labels in order of first appearance
+    private static int label(HashMap<Signature, Integer> labels, Signature signature) {
+        Integer label = labels.get(signature);
+
+        if(null == label) {
+            label = labels.size();
+            labels.put(signature, label);
+        }
+
+        return label;
+    }
+
+    // Checks for a value among the first entries of a list, lists of successor blocks are short
+    private static boolean contains(int[] list, int length, int value) {
+        for(int index = 0; index < length; ++index)
+            if(value == list[index])
+                return true;
+
+        return false;
+    }
+
+    // Grows a buffer to hold at least the given number of values
+    private static long[] reserve(long[] buffer, int length) {
+        return (buffer.length < length) ? Arrays.copyOf(buffer, Math.max(length, 2 * buffer.length)) : buffer;
+    }
+
+    /**
+     * Gets the number of states.
+     *
+     * @return the number of states
+     */
+    public int numStates() { return blocks.length; }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return the number of blocks
+     */
+    public int numBlocks() { return members.length; }
+
+    /**
+     * Gets the block containing a state.
+     *
+     * @param state the state
+     * @return the block
+     */
+    public int block(int state) { return blocks[state]; }
+
+    /**
+     * Gets the states in a block, in increasing order.  The
+     * returned array must not be modified.
+     *
+     * @param block the block
+     * @return the states in the block
+     */
+    public int[] members(int block) { return members[block]; }
+
+    /**
+     * Gets the state used to represent a block, which
+     * is the lowest numbered state in the block.
+     *
+     * @param block the block
+     * @return the representative state
+     */
+    public int representative(int block) { return members[block][0]; }
+
+    /**
+     * Whether this partition groups states in exactly
+     * the same way as another partition, with the same
+     * block numbers.
+     *
+     * @param other the other partition
+     * @return true if the partitions are the same
+     */
+    public boolean same(Partition other) {
+        return null != other && Arrays.equals(blocks, other.blocks);
+    }
+}
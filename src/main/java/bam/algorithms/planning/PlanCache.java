@@ -0,0 +1,256 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.Dynamics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of planner results.  Each result
+ * is keyed by the vector that defines the reward
+ * function, usually an intent vector, and either a
+ * stamp identifying the transition dynamics, usually
+ * their version, or, for dynamics without a version,
+ * a full copy of their transitions, which is compared
+ * on every hit.  When the cache is full, the least
+ * recently used result is evicted.
+ *
+ * Cached Q-functions are copies of the planner's output,
+ * and are shared between everyone who looks them up, so
+ * they must not be modified.  All methods are synchronized,
+ * so a cache can be shared between threads.
+ */
+public class PlanCache {
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * The successors and transition probabilities of a set
+     * of dynamics, flattened into arrays, so that dynamics
+     * which have no version can be compared in full.
+     */
+    private static class Transitions {
+
+        // The number of actions of each state, followed by the number of successors of each state-action pair
+        private final int[] counts;
+
+        // The successors and probabilities of every transition, in order of state, action and successor
+        private final int[] successors;
+        private final double[] probabilities;
+
+        private final int depth;
+        private final long hash;
+
+        private Transitions(Dynamics dynamics) {
+            depth = dynamics.depth();
+
+            int num_pairs = 0;
+            int num_transitions = 0;
+
+            for(int state = 0; state < dynamics.numStates(); ++state)
+                for(int action = 0; action < dynamics.numActions(state); ++action) {
+                    ++num_pairs;
+                    num_transitions += dynamics.numSuccessors(state, action);
+                }
+
+            counts = new int[dynamics.numStates() + num_pairs];
+            successors = new int[num_transitions];
+            probabilities = new double[num_transitions];
+
+            int pair = dynamics.numStates();
+            int transition = 0;
+
+            for(int state = 0; state < dynamics.numStates(); ++state) {
+                counts[state] = dynamics.numActions(state);
+
+                for(int action = 0; action < dynamics.numActions(state); ++action) {
+                    int num_successors = dynamics.numSuccessors(state, action);
+                    counts[pair++] = num_successors;
+
+                    for(int index = 0; index < num_successors; ++index) {
+                        successors[transition] = dynamics.successor(state, action, index);
+                        probabilities[transition++] = dynamics.probability(state, action, index);
+                    }
+                }
+            }
+
+            long hash = 31 * 1125899906842597L + depth;
+            hash = 31 * hash + Arrays.hashCode(counts);
+            hash = 31 * hash + Arrays.hashCode(successors);
+            this.hash = 31 * hash + Arrays.hashCode(probabilities);
+        }
+
+        @Override
+        public int hashCode() { return Long.hashCode(hash); }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Transitions))
+                return false;
+
+            Transitions transitions = (Transitions) other;
+
+            return hash == transitions.hash
+                    && depth == transitions.depth
+                    && Arrays.equals(counts, transitions.counts)
+                    && Arrays.equals(successors, transitions.successors)
+                    && Arrays.equals(probabilities, transitions.probabilities);
+        }
+    }
+
+    private static class Key {
+
+        private final double[] values;
+        private final long stamp;
+        private final Transitions transitions;
+        private final int hash;
+
+        private Key(double[] values, long stamp, Transitions transitions) {
+            this.values = values;
+            this.stamp = stamp;
+            this.transitions = transitions;
+
+            hash = 31 * (31 * Arrays.hashCode(values) + Long.hashCode(stamp)) + Objects.hashCode(transitions);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key))
+                return false;
+
+            Key key = (Key) other;
+
+            return stamp == key.stamp && Arrays.equals(values, key.values) && Objects.equals(transitions, key.transitions);
+        }
+    }
+
+    private final LinkedHashMap<Key, double[][]> results;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private PlanCache(final int capacity) {
+        results = new LinkedHashMap<Key, double[][]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[][]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public static PlanCache with(int capacity) {
+        return new PlanCache(capacity);
+    }
+
+    public static PlanCache get() {
+        return new PlanCache(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Gets the cached Q-function for the given reward
+     * vector and dynamics stamp, if there is one.
+     *
+     * @param values the vector defining the reward function
+     * @param stamp the dynamics stamp
+     * @return the cached Q-function, or null if it isn't in the cache
+     */
+    public synchronized double[][] get(double[] values, long stamp) {
+        return get(new Key(values, stamp, null));
+    }
+
+    /**
+     * Gets the cached Q-function for the given reward vector
+     * and dynamics, if there is one.  The dynamics are compared
+     * in full, so this is for dynamics without a version, and
+     * costs time linear in the number of transitions.
+     *
+     * @param values the vector defining the reward function
+     * @param dynamics the transition dynamics
+     * @return the cached Q-function, or null if it isn't in the cache
+     */
+    public synchronized double[][] get(double[] values, Dynamics dynamics) {
+        return get(new Key(values, 0L, new Transitions(dynamics)));
+    }
+
+    // Looks up a key, counting hits and misses
+    private double[][] get(Key key) {
+        double[][] Q = results.get(key);
+
+        if(null == Q)
+            ++misses;
+        else
+            ++hits;
+
+        return Q;
+    }
+
+    /**
+     * Adds a copy of a Q-function to the cache.
+     *
+     * @param values the vector defining the reward function
+     * @param stamp the dynamics stamp
+     * @param Q the Q-function computed by the planner
+     * @return the cached copy of the Q-function
+     */
+    public synchronized double[][] put(double[] values, long stamp, double[][] Q) {
+        return put(new Key(values.clone(), stamp, null), Q);
+    }
+
+    /**
+     * Adds a copy of a Q-function to the cache, along
+     * with a copy of the dynamics it was planned for.
+     *
+     * @param values the vector defining the reward function
+     * @param dynamics the transition dynamics
+     * @param Q the Q-function computed by the planner
+     * @return the cached copy of the Q-function
+     */
+    public synchronized double[][] put(double[] values, Dynamics dynamics, double[][] Q) {
+        return put(new Key(values.clone(), 0L, new Transitions(dynamics)), Q);
+    }
+
+    // Stores a copy of a Q-function under a key
+    private double[][] put(Key key, double[][] Q) {
+        double[][] copy = new double[Q.length][];
+
+        for(int state = 0; state < Q.length; ++state)
+            copy[state] = Q[state].clone();
+
+        results.put(key, copy);
+
+        return copy;
+    }
+
+    /**
+     * Gets the cached Q-function for the given reward vector
+     * and dynamics stamp, running the planner if it isn't
+     * already in the cache.  The caller must have already
+     * set up the planner's graph to use the given reward.
+     *
+     * @param values the vector defining the reward function
+     * @param stamp the dynamics stamp
+     * @param planner the planner to run on a cache miss
+     * @return the Q-function
+     */
+    public double[][] values(double[] values, long stamp, Planner planner) {
+        double[][] Q = get(values, stamp);
+
+        if(null == Q)
+            Q = put(values, stamp, planner.values());
+
+        return Q;
+    }
+
+    public synchronized long hits() { return hits; }
+
+    public synchronized long misses() { return misses; }
+
+    public synchronized int size() { return results.size(); }
+
+    public synchronized void clear() { results.clear(); }
+}
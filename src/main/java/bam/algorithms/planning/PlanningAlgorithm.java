@@ -37,6 +37,28 @@ public interface PlanningAlgorithm {
      */
     Planner planner(PlanningGraph graph);
 
+    /**
+     * Gets a planner instance which evaluates every
+     * sample of the batch graph provided.  Algorithms
+     * without a batched implementation run a separate
+     * planner for each sample.
+     *
+     * @param graph the batch planning graph
+     * @return the batch planner
+     */
+    default BatchPlanner batchPlanner(BatchGraph graph) {
+        return new SerialBatchPlanner(this, graph);
+    }
+
+    /**
+     * Checks whether the planners of this algorithm can only
+     * plan over stationary graphs, so that agents can reject
+     * configurations which would plan over pruned graphs.
+     *
+     * @return whether this algorithm needs stationary graphs
+     */
+    default boolean stationaryOnly() { return false; }
+
     /**
      * Gets the name of this planning algorithm.
      *
@@ -64,11 +86,17 @@ public interface PlanningAlgorithm {
         String className = config.getString("class");
 
         if(className.equals(MaxPlanner.class.getSimpleName()))
-            return MaxPlanner.algorithm();
+            return MaxPlanner.load(config);
+        else if(className.equals(ConvergingMaxPlanner.class.getSimpleName()))
+            return ConvergingMaxPlanner.load(config);
         else if(className.equals(BoltzmannPlanner.class.getSimpleName()))
             return BoltzmannPlanner.load(config);
         else if(className.equals(SoftmaxPlanner.class.getSimpleName()))
             return SoftmaxPlanner.load(config);
+        else if(className.equals(IncrementalPlanner.class.getSimpleName()))
+            return IncrementalPlanner.load(config);
+        else if(className.equals(HierarchicalPlanner.class.getSimpleName()))
+            return HierarchicalPlanner.load(config);
 
         throw new RuntimeException("Unknown Implementation of 'PlanningAlgorithm' requested");
     }
@@ -1,5 +1,8 @@
 package bam.algorithms.planning;
 
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+
 /**
  * This interface represents a differentiable,
  * representation of the transition dynamics of a
@@ -41,6 +44,28 @@ public interface PlanningGraph {
      */
     int numOptions(int depth, int node);
 
+    /**
+     * Returns true if the nodes, transitions and rewards of
+     * this graph are the same at every planning depth, and
+     * if their gradients do not depend on the depth.  Planners
+     * may then share a single compiled layer across depths,
+     * and accumulate gradients over all depths before passing
+     * them to the graph.
+     *
+     * @return whether the graph is the same at every depth
+     */
+    default boolean stationary() { return false; }
+
+    /**
+     * Returns a stamp identifying the current transition
+     * dynamics.  The value changes whenever the transition
+     * probabilities change, and is used to decide when
+     * a compiled copy of the graph needs to be rebuilt.
+     *
+     * @return the current version of the transition dynamics
+     */
+    int version();
+
     /////////////////////////
     // Transition Dynamics //
     /////////////////////////
@@ -67,6 +92,67 @@ public interface PlanningGraph {
      */
     double[] transitions(int depth, int node, int option);
 
+    /**
+     * Gets the number of possible successor nodes given
+     * the current node and option.  Graphs over dynamics
+     * which store their successors in flat arrays should
+     * override this, along with successor() and probability(),
+     * so that planners can walk the transitions without
+     * allocating a list for every node and option.
+     *
+     * @param depth the planning depth
+     * @param node the current node
+     * @param option the current option
+     * @return the number of possible successor nodes
+     */
+    default int numSuccessors(int depth, int node, int option) { return successors(depth, node, option).length; }
+
+    /**
+     * Gets a single possible successor node, in the same
+     * order as the list returned by successors().
+     *
+     * @param depth the planning depth
+     * @param node the current node
+     * @param option the current option
+     * @param index the position of the successor in the list
+     * @return the successor node
+     */
+    default int successor(int depth, int node, int option, int index) { return successors(depth, node, option)[index]; }
+
+    /**
+     * Gets the probability of a single possible successor
+     * node, in the same order as the list returned by
+     * transitions().
+     *
+     * @param depth the planning depth
+     * @param node the current node
+     * @param option the current option
+     * @param index the position of the successor in the list
+     * @return the probability of moving to that successor
+     */
+    default double probability(int depth, int node, int option, int index) { return transitions(depth, node, option)[index]; }
+
+    /**
+     * Gets a predecessor index over the nodes of this graph,
+     * if it is stationary and its nodes are the states of
+     * dynamics which keep one, so that planners can share
+     * that index rather than building their own.  Other
+     * graphs return null.
+     *
+     * @return the predecessor index, or null if there is none
+     */
+    default Predecessors predecessors() { return null; }
+
+    /**
+     * Gets the navigation grid the nodes of this graph are
+     * laid out on, if its nodes are the states of dynamics
+     * which have one, so that planners can group neighboring
+     * cells.  Other graphs return null.
+     *
+     * @return the grid layout, or null if there is none
+     */
+    default GridLayout layout() { return null; }
+
     /**
      * Updates the gradient of the log probability of the specified transition
      * with respect to the model parameters.  Only needs to be correct for
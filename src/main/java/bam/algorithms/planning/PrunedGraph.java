@@ -0,0 +1,194 @@
+package bam.algorithms.planning;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A view of a batch graph which only includes the nodes
+ * that can affect the top-layer state-action values at a
+ * given set of root nodes.  Below the top layer, each layer
+ * only contains the successors of the nodes in the layer
+ * above, so planning cost depends on what is reachable from
+ * the roots within the planning horizon, rather than on the
+ * size of the full state space.
+ *
+ * The top layer keeps the node indices of the full graph,
+ * so planner outputs can be indexed as usual, but only the
+ * root nodes have successors.  The values at the other top
+ * layer nodes only include their immediate rewards, and
+ * should be ignored.  Nodes in the lower layers are
+ * remapped to contiguous indices, in increasing order of
+ * their indices in the full graph.
+ *
+ * The pruned structure is built once, from the successor
+ * lists of the full graph, so it must be rebuilt if the
+ * set of roots changes.  Transition probabilities, rewards
+ * and gradients are passed through to the full graph.
+ */
+public class PrunedGraph implements BatchGraph {
+
+    private static final int[] NO_SUCCESSORS = new int[0];
+    private static final double[] NO_TRANSITIONS = new double[0];
+
+    // The full graph
+    private final BatchGraph graph;
+
+    // The full graph index of each node, at each depth
+    private final int[][] nodes;
+
+    // The remapped successors of each option of each node, at each depth
+    private final int[][][][] successors;
+
+    private PrunedGraph(BatchGraph graph, Collection<Integer> roots) {
+        this.graph = graph;
+
+        int depth = graph.depth();
+
+        nodes = new int[depth + 1][];
+        successors = new int[depth + 1][][][];
+
+        // The top layer includes every node, but only the roots are expanded
+        int num_top = graph.numNodes(depth);
+        boolean[] expanded = new boolean[num_top];
+
+        for(int root : roots)
+            expanded[root] = true;
+
+        nodes[depth] = new int[num_top];
+
+        for(int node = 0; node < num_top; ++node)
+            nodes[depth][node] = node;
+
+        // Marks the nodes of the full graph that have been added to the layer below
+        int[] indices = new int[0];
+
+        // Build each layer from the successors of the layer above
+        for(; depth > 0; --depth) {
+            int[] layer = nodes[depth];
+
+            int num_below = graph.numNodes(depth - 1);
+
+            if(indices.length < num_below)
+                indices = new int[num_below];
+
+            Arrays.fill(indices, 0, num_below, -1);
+
+            // Find the nodes of the layer below
+            int num_nodes = 0;
+
+            for(int node = 0; node < layer.length; ++node)
+                if(depth != graph.depth() || expanded[node])
+                    for(int option = 0; option < graph.numOptions(depth, layer[node]); ++option)
+                        for(int index = 0; index < graph.numSuccessors(depth, layer[node], option); ++index) {
+                            int next = graph.successor(depth, layer[node], option, index);
+
+                            if(-1 == indices[next]) {
+                                indices[next] = 0;
+                                ++num_nodes;
+                            }
+                        }
+
+            int[] below = new int[num_nodes];
+            num_nodes = 0;
+
+            for(int node = 0; node < num_below; ++node)
+                if(-1 != indices[node]) {
+                    indices[node] = num_nodes;
+                    below[num_nodes++] = node;
+                }
+
+            nodes[depth - 1] = below;
+
+            // Remap the successors of this layer
+            successors[depth] = new int[layer.length][][];
+
+            for(int node = 0; node < layer.length; ++node) {
+                int num_options = graph.numOptions(depth, layer[node]);
+                successors[depth][node] = new int[num_options][];
+
+                for(int option = 0; option < num_options; ++option) {
+                    if(depth != graph.depth() || expanded[node]) {
+                        int[] remapped = new int[graph.numSuccessors(depth, layer[node], option)];
+
+                        for(int index = 0; index < remapped.length; ++index)
+                            remapped[index] = indices[graph.successor(depth, layer[node], option, index)];
+
+                        successors[depth][node][option] = remapped;
+                    } else
+                        successors[depth][node][option] = NO_SUCCESSORS;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a pruned view of the given graph, which includes
+     * every node that can affect the top-layer values at the
+     * given root nodes.
+     *
+     * @param graph the full graph
+     * @param roots the top-layer nodes whose values are needed
+     * @return the pruned graph
+     */
+    public static PrunedGraph of(BatchGraph graph, Collection<Integer> roots) {
+        return new PrunedGraph(graph, roots);
+    }
+
+    @Override
+    public int depth() { return graph.depth(); }
+
+    @Override
+    public int numNodes(int depth) { return nodes[depth].length; }
+
+    @Override
+    public int numOptions(int depth, int node) { return graph.numOptions(depth, nodes[depth][node]); }
+
+    @Override
+    public boolean stationary() { return false; }
+
+    @Override
+    public int version() { return graph.version(); }
+
+    @Override
+    public int[] successors(int depth, int node, int option) {
+        if(0 == depth)
+            return NO_SUCCESSORS;
+
+        return successors[depth][node][option];
+    }
+
+    @Override
+    public double[] transitions(int depth, int node, int option) {
+        if(0 == successors(depth, node, option).length)
+            return NO_TRANSITIONS;
+
+        return graph.transitions(depth, nodes[depth][node], option);
+    }
+
+    @Override
+    public double probability(int depth, int node, int option, int index) {
+        return graph.probability(depth, nodes[depth][node], option, index);
+    }
+
+    @Override
+    public void train(int depth, int start, int action, int end, double weight) {
+        graph.train(depth, nodes[depth][start], action, nodes[depth - 1][end], weight);
+    }
+
+    @Override
+    public double reward(int depth, int node) { return graph.reward(depth, nodes[depth][node]); }
+
+    @Override
+    public void train(int depth, int node, double weight) { graph.train(depth, nodes[depth][node], weight); }
+
+    @Override
+    public int numSamples() { return graph.numSamples(); }
+
+    @Override
+    public double reward(int depth, int node, int sample) { return graph.reward(depth, nodes[depth][node], sample); }
+
+    @Override
+    public void train(int depth, int node, int sample, double weight) {
+        graph.train(depth, nodes[depth][node], sample, weight);
+    }
+}
@@ -0,0 +1,186 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.Dynamics;
+import bam.algorithms.RewardMapping;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A batch planner which plans over the quotient of a
+ * stationary graph by the bisimulation partition of its
+ * dynamics, and lifts the results back to the full state
+ * space.  The values of each state are those of its block,
+ * and the jacobian of each block is the sum of the
+ * jacobians of its states, so the reward gradients passed
+ * back to the graph are those of the full planning problem.
+ * No transition gradients are passed back, so this planner
+ * should not be used where the dynamics are being learned
+ * from the planner's gradients.
+ *
+ * The partition is recomputed whenever the version of the
+ * dynamics changes, and the planner over the quotient is
+ * only rebuilt if the partition has changed.  For fixed
+ * dynamics the partition is computed once, for learned
+ * dynamics this adds a partition refinement to every
+ * parameter update.
+ */
+public class QuotientBatchPlanner implements BatchPlanner {
+
+    // The planning algorithm to use over the quotient graph
+    private final PlanningAlgorithm algorithm;
+
+    // The full graph, and the dynamics and rewards it was built from
+    private final BatchGraph graph;
+    private final Dynamics dynamics;
+    private final RewardMapping rewards;
+
+    // The states the quotient graph should be pruned to, or null if it should not be pruned
+    private final List<Integer> roots;
+
+    // The current partition, and the version of the dynamics it was computed from
+    private Partition partition = null;
+    private int version;
+
+    // The planner over the quotient graph
+    private BatchPlanner planner;
+
+    // The lifted value functions, and the projected jacobians
+    private double[][][] Q = new double[0][][];
+    private double[][][] jacobian = new double[0][][];
+    private int num_samples = 0;
+
+    private QuotientBatchPlanner(PlanningAlgorithm algorithm, BatchGraph graph,
+                                 Dynamics dynamics, RewardMapping rewards, Collection<Integer> roots) {
+        this.algorithm = algorithm;
+        this.graph = graph;
+        this.dynamics = dynamics;
+        this.rewards = rewards;
+        this.roots = (null == roots) ? null : new ArrayList<>(roots);
+    }
+
+    /**
+     * Gets a batch planner over the quotient of the given graph.
+     *
+     * @param algorithm the planning algorithm to use over the quotient graph
+     * @param graph the full planning graph, which must be stationary
+     * @param dynamics the dynamics the graph was built from
+     * @param rewards the reward mapping the graph was built from
+     * @param roots if not null, the quotient graph is pruned to the blocks of these states
+     * @return the batch planner
+     */
+    public static QuotientBatchPlanner of(PlanningAlgorithm algorithm, BatchGraph graph,
+                                          Dynamics dynamics, RewardMapping rewards, Collection<Integer> roots) {
+        return new QuotientBatchPlanner(algorithm, graph, dynamics, rewards, roots);
+    }
+
+    // Recomputes the partition if the dynamics have changed, and rebuilds the planner if the partition has changed
+    private void partition() {
+        if(null != partition && dynamics.version() == version)
+            return;
+
+        Partition current = Partition.bisimulation(dynamics, rewards);
+        version = dynamics.version();
+
+        if(current.same(partition))
+            return;
+
+        partition = current;
+        QuotientGraph quotient = QuotientGraph.of(graph, partition);
+
+        if(null == roots)
+            planner = algorithm.batchPlanner(quotient);
+        else {
+            Set<Integer> blocks = new HashSet<>();
+
+            for(int root : roots)
+                blocks.add(partition.block(root));
+
+            planner = algorithm.batchPlanner(PrunedGraph.of(quotient, blocks));
+        }
+
+        // The projected jacobians have one row for each block
+        jacobian = new double[0][][];
+    }
+
+    /**
+     * Gets the current partition, computing it if necessary.
+     *
+     * @return the partition of the states
+     */
+    public Partition currentPartition() {
+        partition();
+
+        return partition;
+    }
+
+    @Override
+    public int numStates() { return graph.numNodes(graph.depth()); }
+
+    @Override
+    public int numActions(int state) { return graph.numOptions(graph.depth(), state); }
+
+    @Override
+    public double[][][] values() {
+        partition();
+
+        double[][][] block_Q = planner.values();
+        num_samples = graph.numSamples();
+
+        // Make sure we have a buffer for every sample
+        if(Q.length < num_samples) {
+            int capacity = Q.length;
+            Q = Arrays.copyOf(Q, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                Q[sample] = new double[numStates()][];
+
+                for(int state = 0; state < numStates(); ++state)
+                    Q[sample][state] = new double[numActions(state)];
+            }
+        }
+
+        // Each state takes the values of its block
+        for(int sample = 0; sample < num_samples; ++sample)
+            for(int state = 0; state < numStates(); ++state)
+                System.arraycopy(block_Q[sample][partition.block(state)], 0, Q[sample][state], 0, Q[sample][state].length);
+
+        return (Q.length == num_samples) ? Q : Arrays.copyOf(Q, num_samples);
+    }
+
+    @Override
+    public void train(double[][][] jacobian) {
+
+        // Make sure we have a projected buffer for every sample
+        if(this.jacobian.length < num_samples) {
+            int capacity = this.jacobian.length;
+            this.jacobian = Arrays.copyOf(this.jacobian, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                this.jacobian[sample] = new double[partition.numBlocks()][];
+
+                for(int block = 0; block < partition.numBlocks(); ++block)
+                    this.jacobian[sample][block] = new double[numActions(partition.representative(block))];
+            }
+        }
+
+        // The jacobian of each block is the sum of the jacobians of its states
+        for(int sample = 0; sample < num_samples; ++sample) {
+            for(double[] row : this.jacobian[sample])
+                Arrays.fill(row, 0.0);
+
+            for(int state = 0; state < numStates(); ++state) {
+                double[] row = this.jacobian[sample][partition.block(state)];
+
+                for(int action = 0; action < row.length; ++action)
+                    row[action] += jacobian[sample][state][action];
+            }
+        }
+
+        planner.train(this.jacobian);
+    }
+}
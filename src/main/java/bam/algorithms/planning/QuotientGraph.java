@@ -0,0 +1,201 @@
+package bam.algorithms.planning;
+
+import java.util.Arrays;
+
+/**
+ * A view of a stationary batch graph in which each node
+ * is a block of bisimilar states.  Each block takes its
+ * rewards and options from its representative state, and
+ * the successors of each option are the blocks reachable
+ * from the representative, with the probability of moving
+ * anywhere in each block.
+ *
+ * Reward gradients are passed to the representative, which
+ * is exact when every state in the block has the same
+ * reward features, as the partition guarantees.  Transition
+ * gradients are not passed on at all.  The quotient only
+ * sees the total weight of each block's transitions, and
+ * any way of splitting that total between the states of the
+ * block trains a learned model differently than planning
+ * over the full graph would.  Planners which need to train
+ * the dynamics should plan over the full graph instead.
+ *
+ * The aggregated transitions are rebuilt whenever the
+ * version of the underlying graph changes.  The partition
+ * itself must be recomputed by the caller if the dynamics
+ * change in a way that could split or merge blocks.
+ */
+public class QuotientGraph implements BatchGraph {
+
+    // The full graph
+    private final BatchGraph graph;
+
+    // The partition of the full graph's nodes
+    private final Partition partition;
+
+    // The successor blocks and probabilities of each option of each block
+    private final int[][][] successors;
+    private final double[][][] transitions;
+
+    // The version of the full graph the transitions were built from
+    private int version;
+    private boolean built = false;
+
+    private QuotientGraph(BatchGraph graph, Partition partition) {
+        if(!graph.stationary())
+            throw new RuntimeException("Quotient graphs can only be built from stationary graphs");
+
+        if(partition.numStates() != graph.numNodes(graph.depth()))
+            throw new RuntimeException("Partition does not match the planning graph");
+
+        this.graph = graph;
+        this.partition = partition;
+
+        successors = new int[partition.numBlocks()][][];
+        transitions = new double[partition.numBlocks()][][];
+
+        for(int block = 0; block < partition.numBlocks(); ++block) {
+            int num_options = graph.numOptions(graph.depth(), partition.representative(block));
+
+            successors[block] = new int[num_options][];
+            transitions[block] = new double[num_options][];
+        }
+
+        build();
+    }
+
+    /**
+     * Gets the quotient of a stationary graph by a partition of its nodes.
+     *
+     * @param graph the full graph
+     * @param partition the partition of the full graph's nodes
+     * @return the quotient graph
+     */
+    public static QuotientGraph of(BatchGraph graph, Partition partition) {
+        return new QuotientGraph(graph, partition);
+    }
+
+    // Rebuilds the aggregated transitions if the full graph has changed
+    private synchronized void build() {
+        int current = graph.version();
+
+        if(built && current == version)
+            return;
+
+        int depth = graph.depth();
+        int[] touched = new int[partition.numBlocks()];
+        double[] mass = new double[partition.numBlocks()];
+
+        for(int block = 0; block < partition.numBlocks(); ++block) {
+            int state = partition.representative(block);
+
+            for(int option = 0; option < successors[block].length; ++option) {
+                int num_successors = graph.numSuccessors(depth, state, option);
+                int num_touched = 0;
+
+                for(int index = 0; index < num_successors; ++index) {
+                    int target = partition.block(graph.successor(depth, state, option, index));
+
+                    if(!contains(touched, num_touched, target))
+                        touched[num_touched++] = target;
+
+                    mass[target] += graph.probability(depth, state, option, index);
+                }
+
+                if(null == successors[block][option] || successors[block][option].length != num_touched) {
+                    successors[block][option] = new int[num_touched];
+                    transitions[block][option] = new double[num_touched];
+                }
+
+                Arrays.sort(touched, 0, num_touched);
+
+                for(int index = 0; index < num_touched; ++index) {
+                    successors[block][option][index] = touched[index];
+                    transitions[block][option][index] = mass[touched[index]];
+                    mass[touched[index]] = 0.0;
+                }
+            }
+        }
+
+        version = current;
+        built = true;
+    }
+
+    // Checks for a value among the first entries of a list
+    private static boolean contains(int[] list, int length, int value) {
+        for(int index = 0; index < length; ++index)
+            if(value == list[index])
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Gets the partition this graph was built from.
+     *
+     * @return the partition
+     */
+    public Partition partition() { return partition; }
+
+    @Override
+    public int depth() { return graph.depth(); }
+
+    @Override
+    public int numNodes(int depth) { return partition.numBlocks(); }
+
+    @Override
+    public int numOptions(int depth, int node) { return successors[node].length; }
+
+    @Override
+    public boolean stationary() { return true; }
+
+    @Override
+    public int version() {
+        build();
+
+        return version;
+    }
+
+    @Override
+    public int[] successors(int depth, int node, int option) {
+        build();
+
+        return successors[node][option];
+    }
+
+    @Override
+    public double[] transitions(int depth, int node, int option) {
+        build();
+
+        return transitions[node][option];
+    }
+
+    @Override
+    public void train(int depth, int start, int option, int end, double weight) {
+
+        // Transition gradients cannot be split exactly between the states of a block
+    }
+
+    @Override
+    public double reward(int depth, int node) {
+        return graph.reward(depth, partition.representative(node));
+    }
+
+    @Override
+    public void train(int depth, int node, double weight) {
+        graph.train(depth, partition.representative(node), weight);
+    }
+
+    @Override
+    public int numSamples() { return graph.numSamples(); }
+
+    @Override
+    public double reward(int depth, int node, int sample) {
+        return graph.reward(depth, partition.representative(node), sample);
+    }
+
+    @Override
+    public void train(int depth, int node, int sample, double weight) {
+        graph.train(depth, partition.representative(node), sample, weight);
+    }
+}
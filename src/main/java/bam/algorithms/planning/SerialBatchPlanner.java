@@ -0,0 +1,148 @@
+package bam.algorithms.planning;
+
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+
+import java.util.Arrays;
+
+/**
+ * A batch planner for algorithms which do not have
+ * their own batched implementation.  Runs a single
+ * planner against a view of the graph which exposes
+ * the rewards of one sample at a time, and keeps a
+ * copy of each sample's Q-function.  Only the last
+ * sample's planning pass is kept, so when training,
+ * the pass of every other sample is run again before
+ * backpropagating through it.  This trades a second
+ * forward pass for memory that does not grow with
+ * the number of samples beyond their Q-functions.
+ */
+class SerialBatchPlanner implements BatchPlanner {
+
+    /**
+     * A view of a single sample of a batch graph.
+     */
+    private static class SampleGraph implements PlanningGraph {
+
+        private final BatchGraph graph;
+        private int sample = 0;
+
+        private SampleGraph(BatchGraph graph) {
+            this.graph = graph;
+        }
+
+        @Override
+        public int depth() { return graph.depth(); }
+
+        @Override
+        public int numNodes(int depth) { return graph.numNodes(depth); }
+
+        @Override
+        public int numOptions(int depth, int node) { return graph.numOptions(depth, node); }
+
+        @Override
+        public boolean stationary() { return graph.stationary(); }
+
+        @Override
+        public int version() { return graph.version(); }
+
+        @Override
+        public int[] successors(int depth, int node, int option) { return graph.successors(depth, node, option); }
+
+        @Override
+        public double[] transitions(int depth, int node, int option) { return graph.transitions(depth, node, option); }
+
+        @Override
+        public int numSuccessors(int depth, int node, int option) { return graph.numSuccessors(depth, node, option); }
+
+        @Override
+        public int successor(int depth, int node, int option, int index) { return graph.successor(depth, node, option, index); }
+
+        @Override
+        public double probability(int depth, int node, int option, int index) { return graph.probability(depth, node, option, index); }
+
+        @Override
+        public Predecessors predecessors() { return graph.predecessors(); }
+
+        @Override
+        public GridLayout layout() { return graph.layout(); }
+
+        @Override
+        public void train(int depth, int start, int action, int end, double weight) {
+            graph.train(depth, start, action, end, weight);
+        }
+
+        @Override
+        public double reward(int depth, int node) { return graph.reward(depth, node, sample); }
+
+        @Override
+        public void train(int depth, int node, double weight) { graph.train(depth, node, sample, weight); }
+    }
+
+    private final BatchGraph graph;
+
+    // The view of the sample being planned for, and the planner over it
+    private final SampleGraph view;
+    private final Planner planner;
+
+    // The value functions of the current batch
+    private double[][][] Q = new double[0][][];
+
+    // The number of samples in the current batch
+    private int num_samples = 0;
+
+    SerialBatchPlanner(PlanningAlgorithm algorithm, BatchGraph graph) {
+        this.graph = graph;
+
+        view = new SampleGraph(graph);
+        planner = algorithm.planner(view);
+    }
+
+    @Override
+    public int numStates() { return graph.numNodes(graph.depth()); }
+
+    @Override
+    public int numActions(int state) { return graph.numOptions(graph.depth(), state); }
+
+    @Override
+    public double[][][] values() {
+        num_samples = graph.numSamples();
+
+        // Make sure we have room for the value functions of every sample
+        if(Q.length < num_samples) {
+            int capacity = Q.length;
+            Q = Arrays.copyOf(Q, num_samples);
+
+            for(int sample = capacity; sample < num_samples; ++sample) {
+                Q[sample] = new double[numStates()][];
+
+                for(int state = 0; state < Q[sample].length; ++state)
+                    Q[sample][state] = new double[numActions(state)];
+            }
+        }
+
+        for(int sample = 0; sample < num_samples; ++sample) {
+            view.sample = sample;
+            double[][] values = planner.values();
+
+            for(int state = 0; state < values.length; ++state)
+                System.arraycopy(values[state], 0, Q[sample][state], 0, values[state].length);
+        }
+
+        return Q;
+    }
+
+    @Override
+    public void train(double[][][] jacobian) {
+        for(int sample = 0; sample < num_samples; ++sample) {
+
+            // The planner holds the pass of the last sample, any other must be run again
+            if(view.sample != sample) {
+                view.sample = sample;
+                planner.values();
+            }
+
+            planner.train(jacobian[sample]);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package bam.algorithms.planning;
 
+import bam.algorithms.kernels.Kernels;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -19,10 +20,21 @@ public class SoftmaxPlanner implements Planner {
     }
 
     public static PlanningAlgorithm algorithm(final double beta) {
+        return algorithm(beta, false);
+    }
+
+    /**
+     * Gets a softmax planning algorithm.
+     *
+     * @param beta the inverse temperature
+     * @param fast whether to use the approximate exponential, see FastExp
+     * @return the planning algorithm
+     */
+    public static PlanningAlgorithm algorithm(final double beta, final boolean fast) {
         return new PlanningAlgorithm() {
             @Override
             public Planner planner(PlanningGraph graph) {
-                return new SoftmaxPlanner(graph, beta);
+                return new SoftmaxPlanner(graph, beta, fast);
             }
 
             @Override
@@ -35,21 +47,29 @@ public class SoftmaxPlanner implements Planner {
                 return new JSONObject()
                         .put("name", name())
                         .put("class", SoftmaxPlanner.class.getSimpleName())
-                        .put("beta", beta);
+                        .put("beta", beta)
+                        .put("exponential", fast ? "fast" : "exact");
             }
         };
     }
 
     public static PlanningAlgorithm load(JSONObject config) throws JSONException {
-        return algorithm(config.getDouble("beta"));
+        return algorithm(config.getDouble("beta"),
+                config.optString("exponential", "exact").equals("fast"));
     }
 
     // Planning model
     private PlanningGraph dynamics;
 
+    // Compiled transition structure
+    private CompiledGraph compiled;
+
     // Parameters
     private double beta; // inverse temperature
 
+    // Kernels for the action loops
+    private final Kernels kernels;
+
     // Data structures
     private double[][][] Q; // state-action value functions
     private double[][] V; // state value functions
@@ -59,9 +79,20 @@ public class SoftmaxPlanner implements Planner {
     private double[][][] DQ; // state-action backpropagation buffers -- need one for each depth
     private double[][] DV; // state backpropagation buffers -- need one for each depth
 
-    private SoftmaxPlanner(PlanningGraph dynamics, double beta) {
+    private double[] R; // reward buffer
+    private double[] reward_weights; // accumulated reward gradients
+    private double[] transition_weights; // accumulated transition gradients
+
+    private SoftmaxPlanner(PlanningGraph dynamics, double beta, boolean fast) {
         this.dynamics = dynamics;
         this.beta = beta;
+        this.kernels = Kernels.get(fast);
+
+        compiled = CompiledGraph.of(dynamics);
+
+        R = new double[compiled.maxNodes()];
+        reward_weights = new double[compiled.maxNodes()];
+        transition_weights = new double[compiled.maxEntries()];
 
         Q = new double[dynamics.depth() + 1][][];
         DQ = new double[dynamics.depth() + 1][][];
@@ -130,38 +161,30 @@ public class SoftmaxPlanner implements Planner {
      */
     @Override
     public double[][] values() {
-        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
 
-            // Add rewards to Q function at this depth
-            for(int state = 0; state < dynamics.numNodes(depth); ++state)
-                for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
-                    Q[depth][state][action] = dynamics.reward(depth, state);
+        // Rebuild the transition structure if the dynamics have changed
+        compiled.update();
+
+        for(int depth = 0; depth <= dynamics.depth(); ++depth) {
+            CompiledGraph.Layer layer = compiled.layer(depth);
 
-            // If this isn't the first iteration, do transition lookahead
-            if(0 != depth) {
-                for (int start = 0; start < dynamics.numNodes(depth); ++start)
-                    for (int action = 0; action < dynamics.numOptions(depth, start); ++action) {
-                        int[] next = dynamics.successors(depth, start, action);
-                        double[] dist = dynamics.transitions(depth, start, action);
+            // Get rewards at this depth, only once if the graph is stationary
+            if(0 == depth || !compiled.stationary())
+                for(int state = 0; state < layer.num_nodes; ++state)
+                    R[state] = dynamics.reward(depth, state);
 
-                        for (int end = 0; end < next.length; ++end)
-                            Q[depth][start][action] += V[depth - 1][next[end]] * dist[end];
-                    }
-            }
+            // Add rewards to Q function, and if this isn't the first iteration, do transition lookahead
+            layer.backup(R, (0 == depth) ? null : V[depth - 1], Q[depth]);
 
             // Update PI and V
             if(dynamics.depth() != depth) {
                 for (int state = 0; state < dynamics.numNodes(depth); ++state) {
-                    double partition = 0.0;
+                    double partition = kernels.exp(Q[depth][state], 0.0, beta, 1.0, PI[depth][state], dynamics.numOptions(depth, state));
                     double max = -Double.MAX_VALUE;
                     int num_max = 0;
 
                     for (int action = 0; action < dynamics.numOptions(depth, state); ++action) {
                         double value = Q[depth][state][action];
-                        double exp = Math.exp(beta * value);
-
-                        PI[depth][state][action] = exp;
-                        partition += exp;
 
                         if (value == max)
                             ++num_max;
@@ -175,8 +198,7 @@ public class SoftmaxPlanner implements Planner {
                     if (Double.isFinite(partition)) {
 
                         // If the partition is finite, normalize PI and take the log of V
-                        for (int action = 0; action < dynamics.numOptions(depth, state); ++action)
-                            PI[depth][state][action] /= partition;
+                        kernels.divide(PI[depth][state], partition, dynamics.numOptions(depth, state));
 
                         V[depth][state] = Math.log(partition) / beta;
                     } else {
@@ -217,31 +239,29 @@ public class SoftmaxPlanner implements Planner {
             for(int action = 0; action < dynamics.numOptions(dynamics.depth(), state); ++action)
                 DQ[dynamics.depth()][state][action] = jacobian[state][action];
 
+        // Make sure the gradient accumulators are large enough
+        if(transition_weights.length < compiled.maxEntries())
+            transition_weights = new double[compiled.maxEntries()];
+
+        Arrays.fill(transition_weights, 0.0);
+        Arrays.fill(reward_weights, 0.0);
+
         // Do reverse value iteration
         for(int depth = dynamics.depth(); depth >= 0; --depth) {
 
             // If we are past the first iteration, backpropagate transitions and propagate through transitions
             if(dynamics.depth() > depth) {
+                CompiledGraph.Layer layer = compiled.layer(depth + 1);
 
                 // Initialize DV
                 Arrays.fill(DV[depth], 0.0);
 
-                for(int start = 0; start < dynamics.numNodes(depth + 1); ++start)
-                    for(int action = 0; action < dynamics.numOptions(depth + 1, start); ++action) {
-                        int[] next = dynamics.successors(depth + 1, start, action);
-                        double[] dist = dynamics.transitions(depth + 1, start, action);
-
-                        for(int end = 0; end < next.length; ++end) {
-                            double prop = DQ[depth + 1][start][action] * dist[end];
-                            double weight = prop * V[depth][next[end]];
+                // Backpropagate through transitions, and accumulate log transition gradients
+                layer.backpropagate(DQ[depth + 1], V[depth], DV[depth], transition_weights);
 
-                            // Backpropagate log transition
-                            dynamics.train(depth + 1, start, action, next[end], weight);
-
-                            // Backpropagate through transition
-                            DV[depth][next[end]] += prop;
-                        }
-                    }
+                // Pass transition gradients to the graph, unless they can be accumulated over all depths
+                if(!compiled.stationary())
+                    layer.train(dynamics, depth + 1, transition_weights);
 
                 // Update DQ from DV
                 for(int state = 0; state < dynamics.numNodes(depth); ++state)
@@ -256,8 +276,19 @@ public class SoftmaxPlanner implements Planner {
                 for(int action = 0; action < dynamics.numOptions(depth, state); ++action)
                     reward_weight += DQ[depth][state][action];
 
-                dynamics.train(depth, state, reward_weight);
+                if(compiled.stationary())
+                    reward_weights[state] += reward_weight;
+                else
+                    dynamics.train(depth, state, reward_weight);
             }
         }
+
+        // Pass gradients accumulated over all depths to the graph
+        if(compiled.stationary()) {
+            compiled.layer(dynamics.depth()).train(dynamics, dynamics.depth(), transition_weights);
+
+            for(int state = 0; state < dynamics.numNodes(dynamics.depth()); ++state)
+                dynamics.train(dynamics.depth(), state, reward_weights[state]);
+        }
     }
 }
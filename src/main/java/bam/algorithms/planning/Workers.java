@@ -0,0 +1,75 @@
+package bam.algorithms.planning;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Splits the nodes of a layer into contiguous ranges,
+ * one for each worker thread, so that planners can
+ * process the independent nodes of a layer in parallel.
+ * Without a pool, all the work runs on the calling thread.
+ */
+class Workers {
+
+    /**
+     * A unit of work over a range of nodes in a single layer.
+     */
+    interface Range {
+        void apply(int worker, int from, int to);
+    }
+
+    // The number of workers
+    private final int threads;
+
+    // The worker threads, or null if everything runs on the calling thread
+    private final ForkJoinPool pool;
+
+    Workers(int threads, ForkJoinPool pool) {
+        this.threads = (null == pool) ? 1 : threads;
+        this.pool = pool;
+    }
+
+    /**
+     * Gets the number of workers, which is the number
+     * of ranges a layer may be split into.
+     *
+     * @return the number of workers
+     */
+    int size() { return threads; }
+
+    /**
+     * Checks whether all work runs on the calling thread.
+     *
+     * @return true if there is no pool
+     */
+    boolean serial() { return null == pool; }
+
+    /**
+     * Splits a layer into contiguous ranges of nodes, one for
+     * each worker, and waits for all of them to finish.  This
+     * acts as a barrier between layers.  Without a pool, the
+     * whole layer is processed on the calling thread.
+     *
+     * @param num_nodes the number of nodes in the layer
+     * @param range the work to do for each range
+     */
+    void parallel(int num_nodes, Range range) {
+        if(null == pool || num_nodes < threads) {
+            range.apply(0, 0, num_nodes);
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[threads];
+
+        for(int worker = 0; worker < threads; ++worker) {
+            final int index = worker;
+            final int from = (int) ((long) num_nodes * worker / threads);
+            final int to = (int) ((long) num_nodes * (worker + 1) / threads);
+
+            tasks[worker] = pool.submit(() -> range.apply(index, from, to));
+        }
+
+        for(ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+}
@@ -105,6 +105,9 @@ public class GaussianDensity implements Variational {
 
         private double[] value;
 
+        private double[][] batch_noise;
+        private double[][] batch_values;
+
         private Optimization.Instance optimizer;
 
         private double[] parameters;
@@ -119,6 +122,9 @@ public class GaussianDensity implements Variational {
 
             samples = new double[config.num_samples][dimensions];
 
+            batch_noise = new double[config.num_samples][dimensions];
+            batch_values = new double[config.num_samples][dimensions];
+
             for(int sample = 0; sample < config.num_samples; ++sample)
                 for(int dim = 0; dim < dimensions; ++dim)
                     samples[sample][dim] = random.nextGaussian();
@@ -150,6 +156,20 @@ public class GaussianDensity implements Variational {
         @Override
         public double[] value() { return value; }
 
+        @Override
+        public void nextBatch() {
+            for(int sample = 0; sample < config.num_samples; ++sample) {
+                nextSample();
+
+                // Keep the noise, as the underlying sample may be resampled within this batch
+                System.arraycopy(samples[current_sample], 0, batch_noise[sample], 0, dimensions);
+                System.arraycopy(value, 0, batch_values[sample], 0, dimensions);
+            }
+        }
+
+        @Override
+        public double[] value(int sample) { return batch_values[sample]; }
+
         @Override
         public double[] mean() {
             double[] mean = new double[dimensions];
@@ -168,6 +188,16 @@ public class GaussianDensity implements Variational {
             }
         }
 
+        @Override
+        public void train(int sample, double[] jacobian) {
+            for(int dim = 0; dim < dimensions; ++dim) {
+                gradient[dim] += jacobian[dim];
+
+                if(!config.fixed_variance)
+                    gradient[dimensions + dim] += jacobian[dim] * batch_noise[sample][dim];
+            }
+        }
+
         @Override
         public void initialize() {
 
@@ -97,6 +97,12 @@ public class PointDensity implements Variational {
         @Override
         public double[] value() { return parameters; }
 
+        @Override
+        public void nextBatch() { /* Does nothing */ }
+
+        @Override
+        public double[] value(int sample) { return parameters; }
+
         @Override
         public double[] mean() {
             double[] mean = new double[dimensions];
@@ -111,6 +117,9 @@ public class PointDensity implements Variational {
                 gradient[i] += jacobian[i];
         }
 
+        @Override
+        public void train(int sample, double[] jacobian) { train(jacobian); }
+
         @Override
         public void initialize() {
 
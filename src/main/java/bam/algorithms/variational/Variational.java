@@ -18,6 +18,15 @@ import java.util.Random;
  */
 public interface Variational {
 
+    /**
+     * A density over intent vectors.  Samples are drawn
+     * a batch at a time, and are then accessed by their
+     * index, so there is no hidden cursor between the
+     * sample values and their gradients.  The values of
+     * the current batch may be read from several threads
+     * at once, while gradients must be passed to the
+     * density from a single thread.
+     */
     interface Density {
 
         /**
@@ -43,18 +52,37 @@ public interface Variational {
          * Requests that the model return
          * a different output sample. whether
          * this sample is new or an existing sample
-         * is entirely up to the model.
+         * is entirely up to the model.  Agents
+         * should use the batch methods instead.
          */
         void nextSample();
 
 
         /**
-         * Gets the value buffer for the model.
+         * Gets the value buffer for the model,
+         * holding the sample selected by the
+         * last call to nextSample().
          *
          * @return the output buffer
          */
         double[] value();
 
+        /**
+         * Draws a new batch of numSamples() output
+         * samples, replacing the previous batch.  Samples
+         * in the batch are accessed by their index, so that
+         * they can be evaluated together.
+         */
+        void nextBatch();
+
+        /**
+         * Gets the value of a sample in the current batch.
+         *
+         * @param sample the index of the sample in the batch
+         * @return the sample value
+         */
+        double[] value(int sample);
+
         /**
          * Gets the mean vector under
          * the current distribution.
@@ -65,13 +93,13 @@ public interface Variational {
             double[] mean = new double[size()];
             Arrays.fill(mean, 0.0);
 
-            for(int sample = 0; sample < numSamples(); ++sample) {
+            // generate a batch of samples
+            nextBatch();
 
-                // generate next sample
-                nextSample();
+            for(int sample = 0; sample < numSamples(); ++sample) {
 
                 // Get sample value
-                double[] val = value();
+                double[] val = value(sample);
 
                 // update mean
                 for(int i=0; i < mean.length; ++i)
@@ -86,12 +114,23 @@ public interface Variational {
 
         /**
          * Backpropagates the Jacobian of the loss
-         * function in terms of the vector.
+         * function in terms of the sample selected
+         * by the last call to nextSample().
          *
          * @param jacobian the jacobian with respect to the vector
          */
         void train(double[] jacobian);
 
+        /**
+         * Backpropagates the Jacobian of the loss
+         * function in terms of a sample in the
+         * current batch.
+         *
+         * @param sample the index of the sample in the batch
+         * @param jacobian the jacobian with respect to the sample
+         */
+        void train(int sample, double[] jacobian);
+
         /**
          * Initializes the density parameters
          */
@@ -111,7 +150,10 @@ public interface Variational {
 
     /**
      * Gets an instance of this variational density
-     * with the specified dimensionality.
+     * with the specified dimensionality.  The density
+     * samples with the given source from whichever thread
+     * updates it, so the source should not be shared with
+     * densities that may be updated on other threads.
      *
      * @param dimensions the dimensionality of the random vector
      * @param random the random number source used to generate samples
@@ -1,5 +1,6 @@
 package bam.domains;
 
+import bam.algorithms.GridLayout;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -9,7 +10,7 @@ import org.json.JSONObject;
  *
  * Created by Tyler on 5/24/2017.
  */
-public class NavGrid {
+public class NavGrid implements GridLayout {
 
     // Grid connection types
     public static final int FOUR = 4;
@@ -35,9 +36,6 @@ public class NavGrid {
     private int num_cells;
     private int num_moves;
 
-    // The successors of each state
-    private int[][] successors;
-
     public NavGrid(int width, int height, int connections) {
         this.width = width;
         this.height = height;
@@ -45,99 +43,6 @@ public class NavGrid {
 
         num_cells = width * height;
         num_moves = (EIGHT == connections) ? 9 : 5;
-
-        successors = new int[num_cells][num_moves];
-
-        // Common actions
-
-        for(int row = 0; row < height; ++row)
-            for(int column = 0; column < width; ++column) {
-                int state = index(row, column);
-                successors[state][STAY] = state;
-            }
-
-        for(int row = 0; row < height; ++row) // UP
-            for(int column = 0; column < width; ++column) {
-                int state = index(row, column);
-
-                if(0 == row)
-                    successors[state][UP] = state;
-                else
-                    successors[state][UP] = index(row - 1, column);
-            }
-
-        for(int row = 0; row < height; ++row) // DOWN
-            for(int column = 0; column < width; ++column) {
-                int state = index(row, column);
-
-                if(height - 1 == row)
-                    successors[state][DOWN] = state;
-                else
-                    successors[state][DOWN] = index(row + 1, column);
-            }
-
-        for(int row = 0; row < height; ++row) // LEFT
-            for(int column = 0; column < width; ++column) {
-                int state = index(row, column);
-
-                if(0 == column)
-                    successors[state][LEFT] = state;
-                else
-                    successors[state][LEFT] = index(row, column - 1);
-            }
-
-        for(int row = 0; row < height; ++row) // RIGHT
-            for(int column = 0; column < width; ++column) {
-                int state = index(row, column);
-
-                if(width - 1 == column)
-                    successors[state][RIGHT] = state;
-                else
-                    successors[state][RIGHT] = index(row, column + 1);
-            }
-
-        // Eight connected actions
-        if(EIGHT == connections) {
-            for(int row = 0; row < height; ++row) // UP LEFT
-                for(int column = 0; column < width; ++column) {
-                    int state = index(row, column);
-
-                    if(height - 1 == row || 0 == column)
-                        successors[state][UP_LEFT] = state;
-                    else
-                        successors[state][UP_LEFT] = index(row + 1, column - 1);
-                }
-
-            for(int row = 0; row < height; ++row) // UP RIGHT
-                for(int column = 0; column < width; ++column) {
-                    int state = index(row, column);
-
-                    if(height - 1 == row || width - 1 == column)
-                        successors[state][UP_RIGHT] = state;
-                    else
-                        successors[state][UP_RIGHT] = index(row + 1, column + 1);
-                }
-
-            for(int row = 0; row < height; ++row) // DOWN LEFT
-                for(int column = 0; column < width; ++column) {
-                    int state = index(row, column);
-
-                    if(0 == row || 0 == column)
-                        successors[state][DOWN_LEFT] = state;
-                    else
-                        successors[state][DOWN_LEFT] = index(row - 1, column - 1);
-                }
-
-            for(int row = 0; row < height; ++row) // DOWN RIGHT
-                for(int column = 0; column < width; ++column) {
-                    int state = index(row, column);
-
-                    if(0 == row || width - 1 == column)
-                        successors[state][DOWN_RIGHT] = state;
-                    else
-                        successors[state][DOWN_RIGHT] = index(row - 1, column + 1);
-                }
-        }
     }
 
     /**
@@ -177,13 +82,37 @@ public class NavGrid {
     /**
      * Returns the index of the state to which the
      * given action will transition from the given state.
+     * Successors are computed rather than stored, cells
+     * are laid out in columns, so vertical moves change
+     * the index by one, and horizontal moves change it by
+     * the height of the grid.  Moves off the edge of the
+     * grid leave the state unchanged.
      *
      * @param state the current state
      * @param action the current action
      * @return the resulting state
      */
     public int next(int state, int action) {
-        return successors[state][action];
+        if(action < 0 || action >= num_moves)
+            throw new RuntimeException("Invalid move " + action + " for a " + connections + " connected grid");
+
+        int row = state % height;
+        boolean top = (0 == row);
+        boolean bottom = (height - 1 == row);
+        boolean left = (state < height);
+        boolean right = (state >= num_cells - height);
+
+        switch(action) {
+            case UP: return top ? state : state - 1;
+            case DOWN: return bottom ? state : state + 1;
+            case LEFT: return left ? state : state - height;
+            case RIGHT: return right ? state : state + height;
+            case UP_LEFT: return (bottom || left) ? state : state + 1 - height;
+            case UP_RIGHT: return (bottom || right) ? state : state + 1 + height;
+            case DOWN_LEFT: return (top || left) ? state : state - 1 - height;
+            case DOWN_RIGHT: return (top || right) ? state : state - 1 + height;
+            default: return state;
+        }
     }
 
     /**
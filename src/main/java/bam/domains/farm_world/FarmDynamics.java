@@ -1,17 +1,21 @@
 package bam.domains.farm_world;
 
-import bam.algorithms.Dynamics;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.domains.NavGrid;
 
-class FarmDynamics implements Dynamics {
+class FarmDynamics implements ReverseDynamics {
 
     // Number of states and actions, and planning depth
     private final int num_states;
     private final int num_actions;
     private final int depth;
 
-    // Successor states
-    private final int[][][] successors;
+    // Successor states, one for each state-action pair, indexed by state * num_actions + action
+    private final int[] successors;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
 
     // Transition distribution
     private final double[] determined = new double[] { 1.0 };
@@ -23,7 +27,7 @@ class FarmDynamics implements Dynamics {
         this.num_actions = dynamics.numActions();
         this.depth = depth;
 
-        this.successors = new int[num_states][num_actions][1];
+        this.successors = new int[num_states * num_actions];
 
         for(int state = 0; state < num_states; ++state) {
             int cell = dynamics.cell(state);
@@ -34,11 +38,13 @@ class FarmDynamics implements Dynamics {
                 Terrain terrain = map[ grid.row(next_cell)][grid.column(next_cell)];
 
                 if(Terrain.DIRT == terrain || terrain.machine == machine)
-                    successors[state][action][0] = dynamics.next(state, action);
+                    successors[state * num_actions + action] = dynamics.next(state, action);
                 else
-                    successors[state][action][0] = state;
+                    successors[state * num_actions + action] = state;
             }
         }
+
+        predecessors = Predecessors.build(this);
     }
 
     @Override
@@ -58,7 +64,27 @@ class FarmDynamics implements Dynamics {
 
     @Override
     public int[] successors(int state, int action) {
-        return successors[state][action];
+        return new int[]{ successors[state * num_actions + action] };
+    }
+
+    @Override
+    public int numSuccessors(int state, int action) {
+        return 1;
+    }
+
+    @Override
+    public int successor(int state, int action, int index) {
+        return successors[state * num_actions + action];
+    }
+
+    @Override
+    public double probability(int state, int action, int index) {
+        return 1.0;
+    }
+
+    @Override
+    public Predecessors predecessors() {
+        return predecessors;
     }
 
     @Override
@@ -1,12 +1,27 @@
 package bam.domains.farm_world;
 
 import bam.algorithms.DynamicsModel;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.optimization.Optimization;
 import bam.domains.NavGrid;
 
 import java.util.Arrays;
 
-class FarmModel implements DynamicsModel {
+/**
+ * A learned model of which terrain each
+ * machine can move through.
+ *
+ * Successors are stored in flat arrays, with one row
+ * of entries for each state-action pair, and each row
+ * shares the distribution of its machine and terrain,
+ * which is refreshed whenever the parameters change, so
+ * the model can be read from multiple threads, as long
+ * as it isn't being updated.  The arrays returned by
+ * successors() are copies, so callers reading many
+ * entries should use numSuccessors() and successor().
+ */
+class FarmModel implements DynamicsModel, ReverseDynamics {
 
     // Navigation grid
     private NavGrid grid;
@@ -17,28 +32,103 @@ class FarmModel implements DynamicsModel {
     // Terrain map
     private Terrain[][] map;
 
-    // planning depth
+    // Number of actions, and planning depth
+    private final int num_actions;
     private final int depth;
 
     // Parameters and gradient
     private final double[] parameters = new double[Terrain.values().length * Machine.values().length];
     private final double[] gradient = new double[Terrain.values().length * Machine.values().length];
 
-    // Output buffers - to avoid so many heap allocations
-    private final double[] determined = new double[] { 1.0 };
-    private final double[] probable = new double[2];
+    // The first entry of each state-action row, indexed by state * num_actions + action, plus a sentinel
+    private final int[] offsets;
+
+    // The successor state of each entry, fixed by the map and the machine dynamics
+    private final int[] targets;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
 
-    private final int[] single = new int[1];
-    private final int[] multiple = new int[2];
+    // The distribution of each state-action row, rows with the same machine and terrain share a distribution
+    private final double[][] row_transitions;
+
+    // The distribution for each machine and terrain, recomputed when the parameters change
+    private final double[][][] terrain_transitions = new double[Machine.values().length][Terrain.values().length][2];
+
+    private final double[] determined = new double[] { 1.0 };
 
     // Parameter optimizer
     private Optimization.Instance optimizer = null;
 
+    // Parameter version, changes with every update
+    private int version = 0;
+
     FarmModel(NavGrid grid, MachineDynamics dynamics, Terrain[][] map, int depth) {
         this.grid = grid;
         this.dynamics = dynamics;
         this.map = map;
+        this.num_actions = dynamics.numActions();
         this.depth = depth;
+
+        // Build tables, moves onto terrain other than dirt can fail if there is a machine
+        offsets = new int[dynamics.numStates() * num_actions + 1];
+        row_transitions = new double[dynamics.numStates() * num_actions][];
+
+        for(int state = 0; state < dynamics.numStates(); ++state)
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+                int next_cell = grid.next(dynamics.cell(state), action);
+                Terrain current_terrain = map[grid.row(next_cell)][grid.column(next_cell)];
+                boolean fixed = (Terrain.DIRT == current_terrain || Machine.NONE == dynamics.machine(state));
+
+                offsets[row + 1] = offsets[row] + (fixed ? 1 : 2);
+            }
+
+        targets = new int[offsets[offsets.length - 1]];
+
+        for(int state = 0; state < dynamics.numStates(); ++state)
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+                int next_cell = grid.next(dynamics.cell(state), action);
+                Machine current_machine = dynamics.machine(state);
+                Terrain current_terrain = map[grid.row(next_cell)][grid.column(next_cell)];
+
+                if(Terrain.DIRT == current_terrain) {
+                    targets[offsets[row]] = dynamics.next(state, action);
+                } else if(Machine.NONE == current_machine) {
+                    targets[offsets[row]] = state;
+                } else {
+                    targets[offsets[row]] = dynamics.next(state, action);
+                    targets[offsets[row] + 1] = state;
+                }
+
+                if(Terrain.DIRT == current_terrain || Machine.NONE == current_machine)
+                    row_transitions[row] = determined;
+                else
+                    row_transitions[row] = terrain_transitions[current_machine.ordinal()][current_terrain.ordinal()];
+            }
+
+        tabulate();
+
+        predecessors = Predecessors.build(this);
+    }
+
+    // Recomputes the transition distributions from the current parameters
+    private void tabulate() {
+        for(Machine machine : Machine.values()) {
+            int offset = Terrain.values().length * machine.ordinal();
+            double partition = 0.0;
+
+            for(Terrain terrain : Terrain.values())
+                partition += Math.exp(parameters[offset + terrain.ordinal()] - parameters[offset]);
+
+            for(Terrain terrain : Terrain.values()) {
+                double[] probable = terrain_transitions[machine.ordinal()][terrain.ordinal()];
+
+                probable[0] = Math.exp(parameters[offset + terrain.ordinal()] - parameters[offset]) / partition;
+                probable[1] = 1.0 - probable[0];
+            }
+        }
     }
 
     @Override
@@ -47,6 +137,9 @@ class FarmModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
 
         optimizer = optimization.instance(parameters.length);
+
+        tabulate();
+        ++version;
     }
 
     @Override
@@ -153,6 +246,9 @@ class FarmModel implements DynamicsModel {
             }
         }
 
+        tabulate();
+        ++version;
+
         // Reset gradient
         Arrays.fill(gradient, 0.0);
     }
@@ -160,53 +256,45 @@ class FarmModel implements DynamicsModel {
     @Override
     public void clear() { Arrays.fill(gradient, 0.0); }
 
+    @Override
+    public int version() { return version; }
+
     @Override
     public int numStates() { return dynamics.numStates(); }
 
     @Override
-    public int numActions(int state) { return dynamics.numActions(); }
+    public int numActions(int state) { return num_actions; }
 
     @Override
     public int depth() { return depth; }
 
     @Override
     public int[] successors(int state, int action) {
-        int next_cell = grid.next(dynamics.cell(state), action);
-
-        if(Terrain.DIRT == map[grid.row(next_cell)][grid.column(next_cell)]) {
-            single[0] = dynamics.next(state, action);
-            return single;
-        }
-
-        if(Machine.NONE == dynamics.machine(state)) {
-            single[0] = state;
-            return single;
-        }
-
-        multiple[0] = dynamics.next(state, action);
-        multiple[1] = state;
+        int row = state * num_actions + action;
 
-        return multiple;
+        return Arrays.copyOfRange(targets, offsets[row], offsets[row + 1]);
     }
 
     @Override
-    public double[] transitions(int state, int action) {
-        int next_cell = grid.next(dynamics.cell(state), action);
-        Machine current_machine = dynamics.machine(state);
-        Terrain current_terrain = map[grid.row(next_cell)][grid.column(next_cell)];
+    public int numSuccessors(int state, int action) {
+        int row = state * num_actions + action;
 
-        if(Terrain.DIRT == current_terrain || Machine.NONE == current_machine)
-            return determined;
+        return offsets[row + 1] - offsets[row];
+    }
 
-        int offset = Terrain.values().length * current_machine.ordinal();
-        double partition = 0.0;
+    @Override
+    public int successor(int state, int action, int index) {
+        return targets[offsets[state * num_actions + action] + index];
+    }
 
-        for(Terrain terrain : Terrain.values())
-            partition += Math.exp(parameters[offset + terrain.ordinal()] - parameters[offset]);
+    @Override
+    public double probability(int state, int action, int index) {
+        return row_transitions[state * num_actions + action][index];
+    }
 
-        probable[0] = Math.exp(parameters[offset + current_terrain.ordinal()] - parameters[offset]) / partition;
-        probable[1] = 1.0 - probable[0];
+    @Override
+    public Predecessors predecessors() { return predecessors; }
 
-        return probable;
-    }
+    @Override
+    public double[] transitions(int state, int action) { return row_transitions[state * num_actions + action]; }
 }
@@ -158,12 +158,15 @@ public class FarmWorld implements Environment {
         // Serialize tasks
         JSONArray json_tasks = new JSONArray();
 
+        for(Task task : tasks)
+            json_tasks.put(task.serialize());
+
         return new JSONObject()
                 .put("name", name)
                 .put("class", getClass().getSimpleName())
                 .put("grid", grid.serialize())
-                .put("map", map)
-                .put("machines", machines)
+                .put("map", new JSONArray(map))
+                .put("machines", new JSONArray(machines))
                 .put("tasks", json_tasks);
     }
 
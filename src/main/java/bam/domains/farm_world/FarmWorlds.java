@@ -3,9 +3,13 @@ package bam.domains.farm_world;
 import bam.domains.NavGrid;
 
 import java.util.Arrays;
+import java.util.Random;
 
 public class FarmWorlds {
 
+    // The number of failed attempts to place a field before giving up
+    private static final int MAX_FAILURES = 1000;
+
     public static FarmWorld environment(String name, NavGrid grid, Terrain[][] map, Machine[][] machines) {
         return new FarmWorld(name, grid, map, machines);
     }
@@ -220,4 +224,109 @@ public class FarmWorlds {
 
         return environment;
     }
+
+    /////////////////////////////////////////
+    // Constructors for Random Farm Worlds //
+    /////////////////////////////////////////
+
+    /**
+     * Generates a farm world with randomly placed 2x2 fields
+     * of soil, grass and crops, and one of each machine.
+     * Fields never touch, even diagonally, so the dirt between
+     * them stays connected.  Fields are added until the given
+     * fraction of cells is covered, or no more will fit.  The
+     * same seed always gives the same environment.
+     *
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @param density the fraction of cells to cover with fields
+     * @param num_tasks the number of tasks, each with a different field as its goal
+     * @param seed the random seed
+     * @return the new farm world
+     */
+    public static FarmWorld fields(int width, int height, double density, int num_tasks, long seed) {
+        Random random = new Random(seed);
+
+        // Initialize navigation grid
+        NavGrid grid = new NavGrid(width, height, NavGrid.FOUR);
+
+        // Set terrain
+        Terrain[][] map = new Terrain[grid.height()][grid.width()];
+
+        for(int row = 0; row < grid.height(); ++row)
+            Arrays.fill(map[row], Terrain.DIRT);
+
+        int[][] fields = new int[grid.numCells()][];
+        int num_fields = 0;
+        int num_covered = 0;
+        int failures = 0;
+
+        while(num_covered < density * grid.numCells() && failures < MAX_FAILURES) {
+            int top = random.nextInt(height - 1);
+            int left = random.nextInt(width - 1);
+
+            if(!isFree(map, top - 1, left - 1, 4)) {
+                ++failures;
+                continue;
+            }
+
+            Terrain terrain = Terrain.values()[1 + random.nextInt(Terrain.values().length - 1)];
+
+            for(int row = top; row < top + 2; ++row)
+                for(int column = left; column < left + 2; ++column)
+                    map[row][column] = terrain;
+
+            fields[num_fields++] = new int[]{ top, left };
+            num_covered += 4;
+            failures = 0;
+        }
+
+        if(num_tasks > num_fields)
+            throw new RuntimeException("Only " + num_fields + " fields for " + num_tasks + " tasks");
+
+        // Set machines, each on a different dirt cell
+        Machine[][] machines = new Machine[grid.height()][grid.width()];
+
+        for(int row = 0; row < grid.height(); ++row)
+            Arrays.fill(machines[row], Machine.NONE);
+
+        if(grid.numCells() - num_covered < Machine.values().length)
+            throw new RuntimeException("Not enough dirt for the machines and a start cell");
+
+        for(int machine = 1; machine < Machine.values().length; ++machine) {
+            int row, column;
+
+            do {
+                row = random.nextInt(height);
+                column = random.nextInt(width);
+            } while(Terrain.DIRT != map[row][column] || Machine.NONE != machines[row][column]);
+
+            machines[row][column] = Machine.values()[machine];
+        }
+
+        FarmWorld environment = new FarmWorld("fields-" + width + "x" + height + "-" + seed, grid, map, machines);
+
+        // Build environment, each task takes a random field as its goal
+        for(int task = 0; task < num_tasks; ++task) {
+            int field = task + random.nextInt(num_fields - task);
+            int[] swap = fields[task];
+            fields[task] = fields[field];
+            fields[field] = swap;
+
+            environment.addGoal(map[fields[task][0]][fields[task][1]].name() + " " + (task + 1),
+                    fields[task][0], fields[task][1], 2, 2);
+        }
+
+        return environment;
+    }
+
+    // Checks that every cell in a square that lies within the grid is dirt
+    private static boolean isFree(Terrain[][] map, int top, int left, int size) {
+        for(int row = Math.max(0, top); row < Math.min(top + size, map.length); ++row)
+            for(int column = Math.max(0, left); column < Math.min(left + size, map[row].length); ++column)
+                if(Terrain.DIRT != map[row][column])
+                    return false;
+
+        return true;
+    }
 }
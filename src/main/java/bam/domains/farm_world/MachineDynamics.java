@@ -8,14 +8,14 @@ class MachineDynamics {
     private final int num_states;
     private final int num_actions;
 
-    // Successor states
-    private final int[][] next;
+    // Successor states, indexed by state * num_actions + action
+    private final int[] next;
 
     MachineDynamics(NavGrid grid, Machine[][] machines) {
         this.num_states = Machine.values().length * grid.numCells();
         this.num_actions = grid.numMoves();
 
-        this.next = new int[num_states][num_actions];
+        this.next = new int[num_states * num_actions];
 
         for(int row = 0; row < grid.height(); ++row)
             for(int column = 0; column < grid.width(); ++column) {
@@ -29,9 +29,9 @@ class MachineDynamics {
                         Machine next_machine = machines[grid.row(next_cell)][grid.column(next_cell)];
 
                         if(Machine.NONE != next_machine) {
-                            next[state][action] = (next_cell * Machine.values().length) + next_machine.ordinal();
+                            next[state * num_actions + action] = (next_cell * Machine.values().length) + next_machine.ordinal();
                         } else {
-                            next[state][action] = (next_cell * Machine.values().length) + machine.ordinal();
+                            next[state * num_actions + action] = (next_cell * Machine.values().length) + machine.ordinal();
                         }
                     }
                 }
@@ -46,5 +46,5 @@ class MachineDynamics {
 
     int cell(int state) { return state / Machine.values().length; }
 
-    int next(int state, int action) { return next[state][action]; }
+    int next(int state, int action) { return next[state * num_actions + action]; }
 }
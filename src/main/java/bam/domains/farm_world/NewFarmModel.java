@@ -37,6 +37,9 @@ class NewFarmModel implements DynamicsModel {
     // Parameter optimizer
     private Optimization.Instance optimizer = null;
 
+    // Parameter version, changes with every update
+    private int version = 0;
+
     NewFarmModel(NavGrid grid, MachineDynamics dynamics, Terrain[][] map, int depth) {
         this.grid = grid;
         this.dynamics = dynamics;
@@ -50,6 +53,8 @@ class NewFarmModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
 
         optimizer = optimization.instance(parameters.length);
+
+        ++version;
     }
 
     @Override
@@ -152,6 +157,8 @@ class NewFarmModel implements DynamicsModel {
             }
         }
 
+        ++version;
+
         // Reset gradient
         Arrays.fill(gradient, 0.0);
     }
@@ -159,6 +166,9 @@ class NewFarmModel implements DynamicsModel {
     @Override
     public void clear() { Arrays.fill(gradient, 0.0); }
 
+    @Override
+    public int version() { return version; }
+
     @Override
     public int numStates() { return dynamics.numStates(); }
 
@@ -34,6 +34,9 @@ class OldFarmModel implements DynamicsModel {
     // Parameter optimizer
     private Optimization.Instance optimizer = null;
 
+    // Parameter version, changes with every update
+    private int version = 0;
+
     OldFarmModel(NavGrid grid, MachineDynamics dynamics, Terrain[][] map, int depth) {
         this.grid = grid;
         this.dynamics = dynamics;
@@ -47,6 +50,8 @@ class OldFarmModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
 
         optimizer = optimization.instance(parameters.length);
+
+        ++version;
     }
 
     @Override
@@ -153,6 +158,8 @@ class OldFarmModel implements DynamicsModel {
             }
         }
 
+        ++version;
+
         // Reset gradient
         Arrays.fill(gradient, 0.0);
     }
@@ -160,6 +167,9 @@ class OldFarmModel implements DynamicsModel {
     @Override
     public void clear() { Arrays.fill(gradient, 0.0); }
 
+    @Override
+    public int version() { return version; }
+
     @Override
     public int numStates() { return dynamics.numStates(); }
 
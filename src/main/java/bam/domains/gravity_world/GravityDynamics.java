@@ -1,27 +1,36 @@
 package bam.domains.gravity_world;
 
-import bam.algorithms.Dynamics;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.domains.NavGrid;
 
-public class GravityDynamics implements Dynamics {
+public class GravityDynamics implements ReverseDynamics {
+
+    // The navigation grid
+    private final NavGrid grid;
 
     // Number of states and actions, and planning depth
     private final int num_states;
     private final int num_actions;
     private final int depth;
 
-    // Successor states
-    private final int[][][] successors;
+    // Successor states, one for each state-action pair, indexed by state * num_actions + action
+    private final int[] successors;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
 
     // Transition distribution
     private final double[] determined = new double[] { 1.0 };
 
     GravityDynamics(NavGrid grid, Colors[][] colors, Gravity[] mapping, int depth) {
+        this.grid = grid;
         this.num_states = Gravity.values().length * grid.numCells();
         this.num_actions = 5; // Even if the grid is eight connected, only allow five moves
         this.depth = depth;
 
-        successors = new int[num_states][num_actions][1];
+        successors = new int[num_states * num_actions];
 
         for(int cell = 0; cell < grid.numCells(); ++cell) {
             int row = grid.row(cell);
@@ -34,9 +43,9 @@ public class GravityDynamics implements Dynamics {
 
                     for(int action = 0; action < num_actions; ++action) {
                         if(action != gravity.blocks)
-                            successors[state][action][0] = offset + grid.next(cell, action);
+                            successors[state * num_actions + action] = offset + grid.next(cell, action);
                         else
-                            successors[state][action][0] = state;
+                            successors[state * num_actions + action] = state;
                     }
                 }
             }
@@ -49,13 +58,15 @@ public class GravityDynamics implements Dynamics {
 
                     for(int action = 0; action < num_actions; ++action) {
                         if(action != new_gravity.blocks)
-                            successors[state][action][0] = offset + grid.next(cell, action);
+                            successors[state * num_actions + action] = offset + grid.next(cell, action);
                         else
-                            successors[state][action][0] = offset + cell;
+                            successors[state * num_actions + action] = offset + cell;
                     }
                 }
             }
         }
+
+        predecessors = Predecessors.build(this);
     }
 
     @Override
@@ -75,7 +86,32 @@ public class GravityDynamics implements Dynamics {
 
     @Override
     public int[] successors(int state, int action) {
-        return successors[state][action];
+        return new int[]{ successors[state * num_actions + action] };
+    }
+
+    @Override
+    public int numSuccessors(int state, int action) {
+        return 1;
+    }
+
+    @Override
+    public int successor(int state, int action, int index) {
+        return successors[state * num_actions + action];
+    }
+
+    @Override
+    public double probability(int state, int action, int index) {
+        return 1.0;
+    }
+
+    @Override
+    public Predecessors predecessors() {
+        return predecessors;
+    }
+
+    @Override
+    public GridLayout layout() {
+        return grid;
     }
 
     @Override
@@ -1,6 +1,9 @@
 package bam.domains.gravity_world;
 
 import bam.algorithms.DynamicsModel;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.optimization.Optimization;
 import bam.domains.NavGrid;
 
@@ -10,10 +13,17 @@ import java.util.Arrays;
  * A learned model of the mapping from colors
  * to gravity changes.
  *
- * Warning: this class is not thread safe.
+ * Successors are stored in flat arrays, with one row
+ * of entries for each state-action pair, and each row
+ * shares the distribution of the color of its cell,
+ * which is refreshed whenever the parameters change, so
+ * the model can be read from multiple threads, as long
+ * as it isn't being updated.  The arrays returned by
+ * successors() are copies, so callers reading many
+ * entries should use numSuccessors() and successor().
  *
  */
-public class GravityModel implements DynamicsModel {
+public class GravityModel implements DynamicsModel, ReverseDynamics {
 
     // Underlying navigation grid
     private final NavGrid grid;
@@ -30,16 +40,29 @@ public class GravityModel implements DynamicsModel {
     private final double[] parameters = new double[Gravity.values().length * Colors.values().length];
     private final double[] gradient = new double[Gravity.values().length * Colors.values().length];
 
-    // Output buffers - to avoid so many heap allocations
-    private final double[] determined = new double[] { 1.0 };
-    private final double[] probable = new double[Gravity.values().length];
+    // The first entry of each state-action row, indexed by state * num_actions + action, plus a sentinel
+    private final int[] offsets;
+
+    // The successor state of each entry, fixed by the grid and the colors
+    private final int[] targets;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
+
+    // The distribution of each state-action row, rows for cells of the same color share a distribution
+    private final double[][] row_transitions;
 
-    private final int[] single = new int[1];
-    private final int[] multiple = new int[Gravity.values().length];
+    // The distribution over gravity changes for each color, recomputed when the parameters change
+    private final double[][] color_transitions = new double[Colors.values().length][Gravity.values().length];
+
+    private final double[] determined = new double[] { 1.0 };
 
     // Parameter optimizer
     private Optimization.Instance optimizer = null;
 
+    // Parameter version, changes with every update
+    private int version = 0;
+
     GravityModel(NavGrid grid, Colors[][] colors, int depth) {
         this.grid = grid;
         this.colors = colors;
@@ -47,6 +70,70 @@ public class GravityModel implements DynamicsModel {
 
         num_states = Gravity.values().length * grid.numCells();
         num_actions = 5;
+
+        // Build tables, moves from clear cells keep the current gravity, moves from colored cells may change it
+        offsets = new int[num_states * num_actions + 1];
+        row_transitions = new double[num_states * num_actions][];
+
+        for(int state = 0; state < num_states; ++state) {
+            int cell = state % grid.numCells();
+            boolean clear = (Colors.CLEAR == colors[grid.row(cell)][grid.column(cell)]);
+
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+                offsets[row + 1] = offsets[row] + (clear ? 1 : Gravity.values().length);
+            }
+        }
+
+        targets = new int[offsets[offsets.length - 1]];
+
+        for(int state = 0; state < num_states; ++state) {
+            int cell = state % grid.numCells();
+            Colors color = colors[grid.row(cell)][grid.column(cell)];
+
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+
+                if(Colors.CLEAR == color) {
+                    if(action == Gravity.values()[state / grid.numCells()].blocks) // Action fails
+                        targets[offsets[row]] = state;
+                    else
+                        targets[offsets[row]] = state - cell + grid.next(cell, action);
+
+                    row_transitions[row] = determined;
+                } else {
+                    for(Gravity gravity : Gravity.values()) {
+                        if(action == gravity.blocks) // Action fails
+                            targets[offsets[row] + gravity.ordinal()] = (gravity.ordinal() * grid.numCells()) + cell;
+                        else
+                            targets[offsets[row] + gravity.ordinal()] = (gravity.ordinal() * grid.numCells()) + grid.next(cell, action);
+                    }
+
+                    row_transitions[row] = color_transitions[color.ordinal()];
+                }
+            }
+        }
+
+        tabulate();
+
+        predecessors = Predecessors.build(this);
+    }
+
+    // Recomputes the transition distributions from the current parameters
+    private void tabulate() {
+        for(Colors color : Colors.values()) {
+            double[] probable = color_transitions[color.ordinal()];
+            int offset = Gravity.values().length * color.ordinal();
+            double partition = 0.0;
+
+            for(Gravity gravity : Gravity.values()) {
+                probable[gravity.ordinal()] = Math.exp(parameters[offset + gravity.ordinal()] - parameters[offset]);
+                partition += probable[gravity.ordinal()];
+            }
+
+            for(Gravity gravity : Gravity.values())
+                probable[gravity.ordinal()] /= partition;
+        }
     }
 
     @Override
@@ -55,6 +142,9 @@ public class GravityModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
 
         optimizer = optimization.instance(parameters.length);
+
+        tabulate();
+        ++version;
     }
 
     @Override
@@ -112,6 +202,9 @@ public class GravityModel implements DynamicsModel {
                 parameters[i] = -50.0;
         }
 
+        tabulate();
+        ++version;
+
         // Reset gradient
         Arrays.fill(gradient, 0.0);
     }
@@ -121,6 +214,9 @@ public class GravityModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
     }
 
+    @Override
+    public int version() { return version; }
+
     @Override
     public int numStates() {
         return num_states;
@@ -138,52 +234,34 @@ public class GravityModel implements DynamicsModel {
 
     @Override
     public int[] successors(int state, int action) {
-        int cell = state % grid.numCells();
-        int row = grid.row(cell);
-        int column = grid.column(cell);
-
-        if(Colors.CLEAR == colors[row][column]) {
-            if(action == Gravity.values()[state / grid.numCells()].blocks) // Action fails
-                single[0] = state;
-            else
-                single[0] = state - cell + grid.next(cell, action);
-
-            return single;
-        }
-
-        for(Gravity gravity : Gravity.values()) {
-            if(action == gravity.blocks) // Action fails
-                multiple[gravity.ordinal()] = (gravity.ordinal() * grid.numCells()) + cell;
-            else
-                multiple[gravity.ordinal()] = (gravity.ordinal() * grid.numCells()) + grid.next(cell, action);
-        }
+        int row = state * num_actions + action;
 
-        return multiple;
+        return Arrays.copyOfRange(targets, offsets[row], offsets[row + 1]);
     }
 
     @Override
-    public double[] transitions(int state, int action) {
-        int cell = state % grid.numCells();
-        int row = grid.row(cell);
-        int column = grid.column(cell);
+    public int numSuccessors(int state, int action) {
+        int row = state * num_actions + action;
 
-        if(Colors.CLEAR == colors[row][column])
-            return determined;
+        return offsets[row + 1] - offsets[row];
+    }
 
-        int offset = Gravity.values().length * colors[row][column].ordinal();
-        double partition = 0.0;
+    @Override
+    public int successor(int state, int action, int index) {
+        return targets[offsets[state * num_actions + action] + index];
+    }
 
-        for(Gravity gravity : Gravity.values()) {
-            probable[gravity.ordinal()] = Math.exp(parameters[offset + gravity.ordinal()] - parameters[offset]);
-            partition += probable[gravity.ordinal()];
-        }
+    @Override
+    public double probability(int state, int action, int index) {
+        return row_transitions[state * num_actions + action][index];
+    }
 
-        // if(!Double.isFinite(partition))
-           // throw new RuntimeException("Gravity Model Transition: encountered NaN");
+    @Override
+    public Predecessors predecessors() { return predecessors; }
 
-        for(Gravity gravity : Gravity.values())
-            probable[gravity.ordinal()] /= partition;
+    @Override
+    public GridLayout layout() { return grid; }
 
-        return probable;
-    }
+    @Override
+    public double[] transitions(int state, int action) { return row_transitions[state * num_actions + action]; }
 }
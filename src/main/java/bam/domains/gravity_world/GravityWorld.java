@@ -246,8 +246,9 @@ public class GravityWorld implements Environment {
         Gravity[] gravity = new Gravity[Colors.values().length];
         JSONArray mapping = config.getJSONArray("gravity");
 
+        // Colors with no gravity are serialized as null
         for(int color = 0; color < Colors.values().length; ++color)
-            gravity[color] = mapping.getEnum(Gravity.class, color);
+            gravity[color] = mapping.optEnum(Gravity.class, color);
 
         GravityWorld environment = new GravityWorld(name, grid, colors, gravity);
 
@@ -3,6 +3,7 @@ package bam.domains.gravity_world;
 import bam.domains.NavGrid;
 
 import java.util.Arrays;
+import java.util.Random;
 
 public class GravityWorlds {
 
@@ -343,4 +344,85 @@ public class GravityWorlds {
 
         return environment;
     }
+
+    ////////////////////////////////////////////
+    // Constructors for Random Gravity Worlds //
+    ////////////////////////////////////////////
+
+    /**
+     * Generates a gravity world with randomly placed square
+     * patches of color, where each color is mapped to a random
+     * gravity direction.  Patches are added until the given
+     * fraction of cells is colored.  The same seed always
+     * gives the same environment.
+     *
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @param density the fraction of cells to color, must be less than one
+     * @param num_tasks the number of tasks, each with a goal at a different clear cell
+     * @param seed the random seed
+     * @return the new gravity world
+     */
+    public static GravityWorld patches(int width, int height, double density, int num_tasks, long seed) {
+        if(density < 0.0 || density >= 1.0)
+            throw new RuntimeException("Color density must be in [0, 1)");
+
+        Random random = new Random(seed);
+
+        // Initialize navigation grid
+        NavGrid grid = new NavGrid(width, height, NavGrid.FOUR);
+
+        // Set gravity mapping, every color other than clear gets a direction
+        Gravity[] gravity = new Gravity[Colors.values().length];
+
+        for(int color = 1; color < gravity.length; ++color)
+            gravity[color] = Gravity.values()[random.nextInt(Gravity.values().length)];
+
+        // Set cell colors
+        Colors[][] colors = new Colors[grid.height()][grid.width()];
+
+        for(int row = 0; row < grid.height(); ++row)
+            Arrays.fill(colors[row], Colors.CLEAR);
+
+        int num_colored = 0;
+        int max_size = Math.max(1, Math.min(width, height) / 8);
+
+        while(num_colored < density * grid.numCells()) {
+            Colors color = Colors.values()[1 + random.nextInt(Colors.values().length - 1)];
+            int size = 1 + random.nextInt(max_size);
+            int top = random.nextInt(height);
+            int left = random.nextInt(width);
+
+            for(int row = top; row < Math.min(top + size, height); ++row)
+                for(int column = left; column < Math.min(left + size, width); ++column) {
+                    if(Colors.CLEAR == colors[row][column])
+                        ++num_colored;
+
+                    colors[row][column] = color;
+                }
+        }
+
+        if(num_tasks > grid.numCells() - num_colored)
+            throw new RuntimeException("Not enough clear cells for " + num_tasks + " tasks");
+
+        // Build environment
+        GravityWorld environment = new GravityWorld("patches-" + width + "x" + height + "-" + seed,
+                grid, colors, gravity);
+
+        // Define goals, at distinct clear cells
+        boolean[] used = new boolean[grid.numCells()];
+
+        for(int task = 0; task < num_tasks; ++task) {
+            int cell;
+
+            do {
+                cell = random.nextInt(grid.numCells());
+            } while(used[cell] || Colors.CLEAR != colors[grid.row(cell)][grid.column(cell)]);
+
+            used[cell] = true;
+            environment.addGoal("Goal " + (task + 1), grid.row(cell), grid.column(cell));
+        }
+
+        return environment;
+    }
 }
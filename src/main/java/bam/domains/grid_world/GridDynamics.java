@@ -1,28 +1,37 @@
 package bam.domains.grid_world;
 
-import bam.algorithms.Dynamics;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.domains.NavGrid;
 
-class GridDynamics implements Dynamics {
+class GridDynamics implements ReverseDynamics {
+
+    // The navigation grid
+    private final NavGrid grid;
 
     // Number of states and actions, and planning depth
     private final int num_states;
     private final int num_actions;
     private final int depth;
 
-    // Successor states
-    private final int[][][] successors;
+    // Successor states, one for each state-action pair, indexed by state * num_actions + action
+    private final int[] successors;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
 
     // Transition distribution
     private final double[] determined = new double[] { 1.0 };
 
     GridDynamics(NavGrid grid, boolean[][] map, int depth) {
+        this.grid = grid;
         this.depth = depth;
 
         num_states = grid.numCells();
         num_actions = grid.numMoves();
 
-        successors = new int[num_states][num_actions][1];
+        successors = new int[num_states * num_actions];
 
         for(int state = 0; state < num_states; ++state)
             for(int action = 0; action < num_actions; ++action) {
@@ -31,8 +40,10 @@ class GridDynamics implements Dynamics {
                 if(map[grid.row(next)][grid.column(next)])
                     next = state;
 
-                successors[state][action][0] = next;
+                successors[state * num_actions + action] = next;
             }
+
+        predecessors = Predecessors.build(this);
     }
 
     @Override
@@ -52,7 +63,32 @@ class GridDynamics implements Dynamics {
 
     @Override
     public int[] successors(int state, int action) {
-        return successors[state][action];
+        return new int[]{ successors[state * num_actions + action] };
+    }
+
+    @Override
+    public int numSuccessors(int state, int action) {
+        return 1;
+    }
+
+    @Override
+    public int successor(int state, int action, int index) {
+        return successors[state * num_actions + action];
+    }
+
+    @Override
+    public double probability(int state, int action, int index) {
+        return 1.0;
+    }
+
+    @Override
+    public Predecessors predecessors() {
+        return predecessors;
+    }
+
+    @Override
+    public GridLayout layout() {
+        return grid;
     }
 
     @Override
@@ -1,6 +1,9 @@
 package bam.domains.grid_world;
 
 import bam.algorithms.DynamicsModel;
+import bam.algorithms.GridLayout;
+import bam.algorithms.Predecessors;
+import bam.algorithms.ReverseDynamics;
 import bam.algorithms.optimization.Optimization;
 import bam.domains.NavGrid;
 
@@ -13,11 +16,18 @@ import java.util.Optional;
  * A learned model represented by
  * and occupancy map.
  *
- * Warning: this class is not thread safe.
+ * Successors are stored in flat arrays, with one row
+ * of entries for each state-action pair, and each row
+ * shares the distribution of moves into the same cell,
+ * which is refreshed whenever the parameters change, so
+ * the model can be read from multiple threads, as long
+ * as it isn't being updated.  The arrays returned by
+ * successors() are copies, so callers reading many
+ * entries should use numSuccessors() and successor().
  *
  * Created by Tyler on 10/9/2017.
  */
-class GridModel implements DynamicsModel {
+class GridModel implements DynamicsModel, ReverseDynamics {
 
     // private final double alpha = 1.0; // Figure the prior out, will also need for gravity world too
     // private final double beta = 5.0;
@@ -32,12 +42,22 @@ class GridModel implements DynamicsModel {
     private final int num_actions;
     private final int depth;
 
-    // Output buffers
-    private final int[] one_successor = new int[1];
-    private final int[] two_successors = new int[2];
+    // The first entry of each state-action row, indexed by state * num_actions + action, plus a sentinel
+    private final int[] offsets;
+
+    // The successor state of each entry, fixed by the grid
+    private final int[] targets;
+
+    // Predecessor index, fixed by the successors
+    private final Predecessors predecessors;
+
+    // The distribution of each state-action row, rows for moves into the same cell share a distribution
+    private final double[][] row_transitions;
+
+    // The distribution for moves into each cell, recomputed when the parameters change
+    private final double[][] cell_transitions;
 
     private final double[] one_transition = new double[]{ 1.0 };
-    private final double[] two_transitions = new double[2];
 
     // Parameters
     private double[] parameters;
@@ -46,6 +66,9 @@ class GridModel implements DynamicsModel {
     // Parameter optimizer
     private Optimization.Instance optimizer = null;
 
+    // Parameter version, changes with every update
+    private int version = 0;
+
     // Computes the probability that a state is occupied
     private double occupied(int index) {
         return 1.0 / (1.0 + Math.exp(-parameters[index]));
@@ -60,6 +83,48 @@ class GridModel implements DynamicsModel {
 
         parameters = new double[num_states];
         gradient = new double[num_states];
+
+        // Build tables, moves that leave the cell can fail, and stay in the same cell
+        offsets = new int[num_states * num_actions + 1];
+        row_transitions = new double[num_states * num_actions][];
+        cell_transitions = new double[num_states][2];
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+                offsets[row + 1] = offsets[row] + ((grid.next(state, action) == state) ? 1 : 2);
+            }
+
+        targets = new int[offsets[offsets.length - 1]];
+
+        for(int state = 0; state < num_states; ++state)
+            for(int action = 0; action < num_actions; ++action) {
+                int row = state * num_actions + action;
+                int next = grid.next(state, action);
+
+                targets[offsets[row]] = state;
+
+                if(next == state) {
+                    row_transitions[row] = one_transition;
+                } else {
+                    targets[offsets[row] + 1] = next;
+                    row_transitions[row] = cell_transitions[next];
+                }
+            }
+
+        tabulate();
+
+        predecessors = Predecessors.build(this);
+    }
+
+    // Recomputes the transition distributions from the current parameters
+    private void tabulate() {
+        for(int cell = 0; cell < num_states; ++cell) {
+            double collision = occupied(cell);
+
+            cell_transitions[cell][0] = collision;
+            cell_transitions[cell][1] = 1.0 - collision;
+        }
     }
 
     @Override
@@ -73,33 +138,36 @@ class GridModel implements DynamicsModel {
 
     @Override
     public int[] successors(int state, int action) {
-        int next = grid.next(state, action);
+        int row = state * num_actions + action;
 
-        if(next == state) {
-            one_successor[0] = state;
-            return one_successor;
-        }
+        return Arrays.copyOfRange(targets, offsets[row], offsets[row + 1]);
+    }
 
-        two_successors[0] = state;
-        two_successors[1] = next;
+    @Override
+    public int numSuccessors(int state, int action) {
+        int row = state * num_actions + action;
 
-        return two_successors;
+        return offsets[row + 1] - offsets[row];
     }
 
     @Override
-    public double[] transitions(int state, int action) {
-        int next = grid.next(state, action);
+    public int successor(int state, int action, int index) {
+        return targets[offsets[state * num_actions + action] + index];
+    }
 
-        if(next == state)
-            return one_transition;
+    @Override
+    public double probability(int state, int action, int index) {
+        return row_transitions[state * num_actions + action][index];
+    }
 
-        double collision = occupied(next);
+    @Override
+    public Predecessors predecessors() { return predecessors; }
 
-        two_transitions[0] = collision;
-        two_transitions[1] = 1.0 - collision;
+    @Override
+    public GridLayout layout() { return grid; }
 
-        return two_transitions;
-    }
+    @Override
+    public double[] transitions(int state, int action) { return row_transitions[state * num_actions + action]; }
 
     @Override
     public void initialize(Optimization optimization) {
@@ -107,6 +175,9 @@ class GridModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
 
         optimizer = optimization.instance(parameters.length);
+
+        tabulate();
+        ++version;
     }
 
     @Override
@@ -139,6 +210,9 @@ class GridModel implements DynamicsModel {
         // Perform update
         optimizer.update(parameters, gradient);
 
+        tabulate();
+        ++version;
+
         // Reset gradient
         Arrays.fill(gradient, 0.0);
     }
@@ -148,6 +222,9 @@ class GridModel implements DynamicsModel {
         Arrays.fill(gradient, 0.0);
     }
 
+    @Override
+    public int version() { return version; }
+
     @Override
     public Optional<BufferedImage> render() {
         BufferedImage image = new BufferedImage(grid.width() * GridWorld.SCALE,
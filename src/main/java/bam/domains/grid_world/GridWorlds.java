@@ -2,6 +2,8 @@ package bam.domains.grid_world;
 
 import bam.domains.NavGrid;
 
+import java.util.Random;
+
 /**
  * This class contains static methods for generating
  * grid world environments and learning representations.
@@ -10,6 +12,9 @@ import bam.domains.NavGrid;
  */
 public class GridWorlds {
 
+    // The minimum width and height of a generated room
+    private static final int MIN_ROOM = 3;
+
     /**
      * Creates a new grid world with the given occupancy map.
      *
@@ -357,4 +362,171 @@ public class GridWorlds {
 
         return environment;
     }
+
+    /////////////////////////////////////////
+    // Constructors for Random Grid Worlds //
+    /////////////////////////////////////////
+
+    /**
+     * Generates a grid world made up of rooms connected by
+     * single-cell doors, with obstacles scattered within the
+     * rooms.  Rooms are generated by recursively splitting
+     * the grid with walls, and obstacles are only placed
+     * where they leave the free cells connected, so every
+     * goal is reachable from every start.  The same seed
+     * always gives the same environment.
+     *
+     * @param width the width of the grid
+     * @param height the height of the grid
+     * @param density the probability that a free cell is blocked, if blocking it is safe
+     * @param num_tasks the number of tasks, each with a goal at a different free cell
+     * @param seed the random seed
+     * @return the new grid world
+     */
+    public static GridWorld rooms(int width, int height, double density, int num_tasks, long seed) {
+        Random random = new Random(seed);
+
+        // Initialize grid
+        NavGrid grid = new NavGrid(width, height, NavGrid.FOUR);
+
+        // Build rooms
+        boolean[][] map = new boolean[grid.height()][grid.width()];
+        boolean[][] doors = new boolean[grid.height()][grid.width()];
+
+        divide(map, doors, 0, height, 0, width, random);
+
+        // Scatter obstacles in a random order, skipping any that would cut off part of the grid
+        int[] order = new int[grid.numCells()];
+
+        for(int cell = 0; cell < order.length; ++cell) {
+            int other = random.nextInt(cell + 1);
+            order[cell] = order[other];
+            order[other] = cell;
+        }
+
+        int num_free = 0;
+
+        for(int cell = 0; cell < order.length; ++cell)
+            if(!map[grid.row(cell)][grid.column(cell)])
+                ++num_free;
+
+        for(int cell : order) {
+            int row = grid.row(cell);
+            int column = grid.column(cell);
+
+            if(!map[row][column] && random.nextDouble() < density && isSafe(map, row, column)) {
+                map[row][column] = true;
+                --num_free;
+            }
+        }
+
+        if(num_tasks > num_free)
+            throw new RuntimeException("Not enough free cells for " + num_tasks + " tasks");
+
+        // Create environment
+        GridWorld environment = new GridWorld("rooms-" + width + "x" + height + "-" + seed, grid, map);
+
+        // Initialize tasks, at distinct free cells
+        boolean[] used = new boolean[grid.numCells()];
+
+        for(int task = 0; task < num_tasks; ++task) {
+            int cell;
+
+            do {
+                cell = random.nextInt(grid.numCells());
+            } while(used[cell] || map[grid.row(cell)][grid.column(cell)]);
+
+            used[cell] = true;
+            environment.addGoal("Goal " + (task + 1), grid.row(cell), grid.column(cell));
+        }
+
+        return environment;
+    }
+
+    // Recursively splits a room with a wall, leaving one door in the wall
+    private static void divide(boolean[][] map, boolean[][] doors,
+                               int min_row, int max_row, int min_column, int max_column, Random random) {
+        int rows = max_row - min_row;
+        int columns = max_column - min_column;
+
+        if(rows < 2 * MIN_ROOM + 1 && columns < 2 * MIN_ROOM + 1)
+            return;
+
+        if(rows >= columns) {
+            int wall = min_row + MIN_ROOM + random.nextInt(rows - 2 * MIN_ROOM);
+            int door = min_column + random.nextInt(columns);
+
+            for(int column = min_column; column < max_column; ++column)
+                map[wall][column] = true;
+
+            // The new wall must not block doors in the walls of the enclosing room
+            open(map, doors, wall, door);
+
+            if(0 < min_column && doors[wall][min_column - 1])
+                open(map, doors, wall, min_column);
+
+            if(max_column < map[wall].length && doors[wall][max_column])
+                open(map, doors, wall, max_column - 1);
+
+            divide(map, doors, min_row, wall, min_column, max_column, random);
+            divide(map, doors, wall + 1, max_row, min_column, max_column, random);
+        } else {
+            int wall = min_column + MIN_ROOM + random.nextInt(columns - 2 * MIN_ROOM);
+            int door = min_row + random.nextInt(rows);
+
+            for(int row = min_row; row < max_row; ++row)
+                map[row][wall] = true;
+
+            open(map, doors, door, wall);
+
+            if(0 < min_row && doors[min_row - 1][wall])
+                open(map, doors, min_row, wall);
+
+            if(max_row < map.length && doors[max_row][wall])
+                open(map, doors, max_row - 1, wall);
+
+            divide(map, doors, min_row, max_row, min_column, wall, random);
+            divide(map, doors, min_row, max_row, wall + 1, max_column, random);
+        }
+    }
+
+    // Checks that blocking a cell leaves its free neighbors connected through the cells around it
+    private static boolean isSafe(boolean[][] map, int row, int column) {
+        int[] d_row = { -1, -1, -1, 0, 1, 1, 1, 0 };
+        int[] d_column = { -1, 0, 1, 1, 1, 0, -1, -1 };
+
+        boolean[] free = new boolean[d_row.length];
+
+        for(int index = 0; index < free.length; ++index) {
+            int r = row + d_row[index];
+            int c = column + d_column[index];
+
+            free[index] = 0 <= r && r < map.length && 0 <= c && c < map[r].length && !map[r][c];
+        }
+
+        // Count the runs of free cells around the ring that include a side neighbor
+        int runs = 0;
+
+        for(int index = 0; index < free.length; ++index) {
+            if(!free[index] || free[(index + free.length - 1) % free.length])
+                continue;
+
+            boolean side = false;
+
+            for(int next = index; free[next % free.length] && next < index + free.length; ++next)
+                side |= (1 == next % 2);
+
+            if(side)
+                ++runs;
+        }
+
+        // If every cell around is free there is a single run with no start
+        return runs <= 1;
+    }
+
+    // Makes a wall cell into a door
+    private static void open(boolean[][] map, boolean[][] doors, int row, int column) {
+        map[row][column] = false;
+        doors[row][column] = true;
+    }
 }
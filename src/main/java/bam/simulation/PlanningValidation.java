@@ -0,0 +1,583 @@
+package bam.simulation;
+
+import bam.algorithms.Algorithm;
+import bam.algorithms.BAM;
+import bam.algorithms.Behavior;
+import bam.algorithms.Dynamics;
+import bam.algorithms.DynamicsModel;
+import bam.algorithms.RewardMapping;
+import bam.algorithms.action.NormalizedActionModel;
+import bam.algorithms.kernels.Kernels;
+import bam.algorithms.optimization.ClippedMomentum;
+import bam.algorithms.planning.BatchPlanner;
+import bam.algorithms.planning.BoltzmannPlanner;
+import bam.algorithms.planning.ConvergingMaxPlanner;
+import bam.algorithms.planning.FixedGraph;
+import bam.algorithms.planning.HierarchicalPlanner;
+import bam.algorithms.planning.IncrementalPlanner;
+import bam.algorithms.planning.IntentGraph;
+import bam.algorithms.planning.MaxPlanner;
+import bam.algorithms.planning.Planner;
+import bam.algorithms.planning.PlanningAlgorithm;
+import bam.algorithms.planning.PlanningGraph;
+import bam.algorithms.planning.PrunedGraph;
+import bam.algorithms.variational.PointDensity;
+import bam.domains.Environment;
+import bam.domains.NavGrid;
+import bam.domains.Task;
+import bam.domains.farm_world.FarmWorlds;
+import bam.domains.gravity_world.GravityWorlds;
+import bam.domains.grid_world.GridWorld;
+import bam.domains.grid_world.GridWorlds;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * This class is the entry point for checking planner
+ * edge cases which have broken before.  Each check is
+ * a small, fixed case, and reports whether it passed.
+ * Exits with a non-zero status if any check fails.
+ */
+public class PlanningValidation {
+
+    public static void main(String[] args) {
+        boolean passed = true;
+
+        passed &= prunedLayers(BoltzmannPlanner.algorithm(1.0), "Boltzmann");
+        passed &= prunedLayers(BoltzmannPlanner.algorithm(1.0, 1, false, true), "Single Precision");
+        passed &= prunedLayers(BoltzmannPlanner.algorithm(1.0, 1, false, false, true), "Fast Exponential");
+        passed &= prunedLayers(IncrementalPlanner.algorithm(1.0), "Incremental");
+
+        passed &= checkpoints(BoltzmannPlanner.algorithm(1.0), BoltzmannPlanner.algorithm(1.0, 1, true), "Boltzmann");
+        passed &= checkpoints(MaxPlanner.algorithm(), MaxPlanner.algorithm(true), "Max");
+
+        passed &= snapshots(GridWorlds.twoRooms());
+        passed &= snapshots(GravityWorlds.flip());
+        passed &= snapshots(FarmWorlds.twoFields());
+
+        passed &= lumpedStates(GridWorlds.twoRooms());
+        passed &= lumpedStates(GravityWorlds.flip());
+        passed &= lumpedStates(FarmWorlds.twoFields());
+
+        passed &= hierarchical(GridWorlds.twoRooms());
+        passed &= hierarchical(GravityWorlds.flip());
+        passed &= keptPlanner();
+
+        passed &= converging(GridWorlds.twoRooms());
+        passed &= converging(GravityWorlds.flip());
+        passed &= converging(FarmWorlds.twoFields());
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+
+        if(!passed)
+            System.exit(1);
+    }
+
+    /**
+     * A graph whose lower layers shrink when pruned, node 0
+     * moves to node 1 or 2, which both move to node 3, which
+     * stays put.  Rooted at node 0, the layer below the top
+     * holds nodes 1 and 2, and the layers under that only
+     * hold node 3.  Rewards are large, so that the planner
+     * overflows if its advantages are not bounded.
+     */
+    private static class Diamond implements Dynamics, RewardMapping {
+
+        private static final int[][][] SUCCESSORS = {
+                {{1}, {2}},
+                {{3}},
+                {{3}},
+                {{3}}
+        };
+
+        private static final double[] PROBABILITY = {1.0};
+
+        @Override
+        public int numStates() { return SUCCESSORS.length; }
+
+        @Override
+        public int numActions(int state) { return SUCCESSORS[state].length; }
+
+        @Override
+        public int depth() { return 3; }
+
+        @Override
+        public int[] successors(int state, int action) { return SUCCESSORS[state][action]; }
+
+        @Override
+        public double[] transitions(int state, int action) { return PROBABILITY; }
+
+        @Override
+        public double reward(int state, double[] intent) { return intent[state]; }
+
+        @Override
+        public void gradient(int state, double[] intent, double weight, double[] gradient) { gradient[state] += weight; }
+
+        @Override
+        public int intentSize() { return SUCCESSORS.length; }
+    }
+
+    /**
+     * Plans over the pruned diamond graph, with the single
+     * and batch planners, and checks that the values at the
+     * root are finite and match those of the full graph.
+     *
+     * @param algorithm the planning algorithm to check
+     * @param name the name to report
+     * @return whether the check passed
+     */
+    private static boolean prunedLayers(PlanningAlgorithm algorithm, String name) {
+        Diamond diamond = new Diamond();
+        double[][] intents = {{0.0, 1.0, 2.0, 0.5}, {0.0, 900.0, 1000.0, -500.0}};
+
+        boolean passed = true;
+        String error = "";
+
+        try {
+            IntentGraph full = IntentGraph.of(diamond, diamond);
+            IntentGraph pruned_source = IntentGraph.of(diamond, diamond);
+            PrunedGraph pruned = PrunedGraph.of(pruned_source, Collections.singleton(0));
+
+            full.setSamples(intents.length);
+            pruned_source.setSamples(intents.length);
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                full.setIntent(sample, intents[sample]);
+                pruned_source.setIntent(sample, intents[sample]);
+            }
+
+            double[][][] expected = algorithm.batchPlanner(full).values();
+            double[][][] batch = algorithm.batchPlanner(pruned).values();
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                full.setIntent(intents[sample]);
+                pruned_source.setIntent(intents[sample]);
+
+                double[] single = algorithm.planner(pruned).values()[0];
+
+                for(int action = 0; action < expected[sample][0].length; ++action) {
+                    double scale = Math.max(1.0, Math.abs(expected[sample][0][action]));
+
+                    if(!(Math.abs(single[action] - expected[sample][0][action]) <= 1e-4 * scale)
+                            || !(Math.abs(batch[sample][0][action] - expected[sample][0][action]) <= 1e-4 * scale)) {
+                        passed = false;
+                        error = String.format("sample %d action %d: expected %g, got %g and %g", sample, action,
+                                expected[sample][0][action], single[action], batch[sample][0][action]);
+                    }
+                }
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "pruned layers", name, passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Plans with and without checkpointing over a stationary
+     * graph, and checks that the Q-values and the intent
+     * gradients match exactly, with the single and batch
+     * planners, or up to rounding with the vector kernels.
+     * Then checks that the checkpointed planners
+     * refuse the pruned diamond graph, whose layers differ.
+     *
+     * @param algorithm the planning algorithm without checkpointing
+     * @param checkpointed the same algorithm with checkpointing
+     * @param name the name to report
+     * @return whether the check passed
+     */
+    private static boolean checkpoints(PlanningAlgorithm algorithm, PlanningAlgorithm checkpointed, String name) {
+        Environment environment = GridWorlds.twoRooms();
+        Dynamics dynamics = environment.dynamics();
+        RewardMapping rewards = environment.representation().rewards();
+
+        boolean passed = true;
+        String error = "";
+
+        try {
+            Random random = new Random(11L);
+            double[][] intents = new double[2][rewards.intentSize()];
+
+            for(double[] intent : intents)
+                for(int i = 0; i < intent.length; ++i)
+                    intent[i] = random.nextGaussian();
+
+            // Single planners
+            double[][] expected_gradients = new double[intents.length][];
+            double[][] actual_gradients = new double[intents.length][];
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                IntentGraph expected_graph = IntentGraph.of(dynamics, rewards);
+                IntentGraph actual_graph = IntentGraph.of(dynamics, rewards);
+
+                expected_graph.setIntent(intents[sample]);
+                actual_graph.setIntent(intents[sample]);
+
+                Planner expected = algorithm.planner(expected_graph);
+                Planner actual = checkpointed.planner(actual_graph);
+
+                double[][] expected_Q = expected.values();
+                double[][] actual_Q = actual.values();
+
+                for(int state = 0; state < expected_Q.length; ++state)
+                    if(!same(expected_Q[state], actual_Q[state])) {
+                        passed = false;
+                        error = String.format("sample %d state %d values differ", sample, state);
+                    }
+
+                expected.train(expected_Q);
+                actual.train(expected_Q);
+
+                final int index = sample;
+                expected_graph.intentGradient((double[] gradient) -> expected_gradients[index] = gradient.clone());
+                actual_graph.intentGradient((double[] gradient) -> actual_gradients[index] = gradient.clone());
+
+                if(!same(expected_gradients[sample], actual_gradients[sample])) {
+                    passed = false;
+                    error = String.format("sample %d gradients differ", sample);
+                }
+            }
+
+            // Batch planners
+            IntentGraph expected_graph = IntentGraph.of(dynamics, rewards);
+            IntentGraph actual_graph = IntentGraph.of(dynamics, rewards);
+
+            expected_graph.setSamples(intents.length);
+            actual_graph.setSamples(intents.length);
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                expected_graph.setIntent(sample, intents[sample]);
+                actual_graph.setIntent(sample, intents[sample]);
+            }
+
+            BatchPlanner expected = algorithm.batchPlanner(expected_graph);
+            BatchPlanner actual = checkpointed.batchPlanner(actual_graph);
+
+            double[][][] expected_Q = expected.values();
+            double[][][] actual_Q = actual.values();
+
+            for(int sample = 0; sample < intents.length; ++sample)
+                for(int state = 0; state < expected_Q[sample].length; ++state)
+                    if(!same(expected_Q[sample][state], actual_Q[sample][state])) {
+                        passed = false;
+                        error = String.format("batch sample %d state %d values differ", sample, state);
+                    }
+
+            expected.train(expected_Q);
+            actual.train(expected_Q);
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                final int index = sample;
+                expected_graph.intentGradient(sample, (double[] gradient) -> expected_gradients[index] = gradient.clone());
+                actual_graph.intentGradient(sample, (double[] gradient) -> actual_gradients[index] = gradient.clone());
+
+                if(!same(expected_gradients[sample], actual_gradients[sample])) {
+                    passed = false;
+                    error = String.format("batch sample %d gradients differ", sample);
+                }
+            }
+
+            // Pruned graphs are not stationary, so checkpointing them must be refused
+            Diamond diamond = new Diamond();
+            PrunedGraph pruned = PrunedGraph.of(IntentGraph.of(diamond, diamond), Collections.singleton(0));
+
+            try {
+                checkpointed.planner(pruned);
+
+                passed = false;
+                error = "checkpointed a pruned graph";
+            } catch(RuntimeException e) { /* Expected */ }
+
+            if(!checkpointed.stationaryOnly()) {
+                passed = false;
+                error = "does not report that it needs stationary graphs";
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "checkpoints", name, passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Plans over a snapshot of a freshly initialized dynamics
+     * model, and checks that the values match those of the
+     * model itself exactly, for every task.
+     *
+     * @param environment the environment whose model to snapshot
+     * @return whether the check passed
+     */
+    private static boolean snapshots(Environment environment) {
+        boolean passed = true;
+        String error = "";
+
+        try {
+            DynamicsModel model = environment.representation().newModel();
+            model.initialize(ClippedMomentum.with(1.0, 0.7, 0.1));
+
+            Dynamics snapshot = model.snapshot();
+            PlanningAlgorithm algorithm = BoltzmannPlanner.algorithm(1.0);
+
+            for(Task task : environment.tasks()) {
+                double[][] expected = algorithm.planner(model, task).values();
+                double[][] actual = algorithm.planner(snapshot, task).values();
+
+                for(int state = 0; state < expected.length; ++state)
+                    if(!Arrays.equals(expected[state], actual[state])) {
+                        passed = false;
+                        error = String.format("task %s state %d differs", task.name(), state);
+                    }
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "snapshots", environment.name(), passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Trains BAM agents with and without lumping bisimilar
+     * states on the same demonstrations, and checks that
+     * they learn the same policies.  Lumping must not change
+     * what BAM learns, in particular the dynamics.
+     *
+     * @param environment the environment to learn in
+     * @return whether the check passed
+     */
+    private static boolean lumpedStates(Environment environment) {
+        boolean passed = true;
+        String error = "";
+
+        try {
+            Behavior expected = Util.train(bam(false), environment, 2, 17L);
+            Behavior actual = Util.train(bam(true), environment, 2, 17L);
+
+            double divergence = Util.divergence(expected, actual, environment);
+
+            if(!(divergence <= 1e-6)) {
+                passed = false;
+                error = String.format("policies differ by %g", divergence);
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "lumped states", environment.name(), passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Plans with the hierarchical planner over a grid, with
+     * the grid size taken from the layout of the dynamics.
+     * When every block is refined, the values and intent
+     * gradients must match those of the flat planner.  When
+     * only some blocks are refined, a planner reused over
+     * several intents must match a fresh one, so refining
+     * the mixed graph in place leaves nothing stale behind.
+     *
+     * @param environment the environment to plan in
+     * @return whether the check passed
+     */
+    private static boolean hierarchical(Environment environment) {
+        Dynamics dynamics = environment.dynamics();
+        RewardMapping rewards = environment.representation().rewards();
+        PlanningAlgorithm flat = BoltzmannPlanner.algorithm(1.0);
+
+        boolean passed = true;
+        String error = "";
+
+        try {
+            Random random = new Random(13L);
+            double[][] intents = new double[3][rewards.intentSize()];
+
+            for(double[] intent : intents)
+                for(int i = 0; i < intent.length; ++i)
+                    intent[i] = random.nextGaussian();
+
+            // Refining every block reproduces the flat planner
+            for(int sample = 0; sample < intents.length; ++sample) {
+                IntentGraph expected_graph = IntentGraph.of(dynamics, rewards);
+                IntentGraph actual_graph = IntentGraph.of(dynamics, rewards);
+
+                expected_graph.setIntent(intents[sample]);
+                actual_graph.setIntent(intents[sample]);
+
+                Planner expected = flat.planner(expected_graph);
+                Planner actual = HierarchicalPlanner.algorithm(3, 1.0, flat).planner(actual_graph);
+
+                double[][] expected_Q = expected.values();
+                double[][] actual_Q = actual.values();
+
+                if(!close(expected_Q, actual_Q)) {
+                    passed = false;
+                    error = String.format("sample %d values differ when every block is refined", sample);
+                }
+
+                expected.train(expected_Q);
+                actual.train(expected_Q);
+
+                double[][] gradients = new double[2][];
+                expected_graph.intentGradient((double[] gradient) -> gradients[0] = gradient.clone());
+                actual_graph.intentGradient((double[] gradient) -> gradients[1] = gradient.clone());
+
+                if(!close(new double[][]{ gradients[0] }, new double[][]{ gradients[1] })) {
+                    passed = false;
+                    error = String.format("sample %d gradients differ when every block is refined", sample);
+                }
+            }
+
+            // Refining some blocks in place gives the same values as a fresh planner
+            PlanningAlgorithm partial = HierarchicalPlanner.algorithm(2, 0.1, flat);
+            IntentGraph reused_graph = IntentGraph.of(dynamics, rewards);
+            Planner reused = partial.planner(reused_graph);
+
+            for(int sample = 0; sample < intents.length; ++sample) {
+                IntentGraph fresh_graph = IntentGraph.of(dynamics, rewards);
+
+                reused_graph.setIntent(intents[sample]);
+                fresh_graph.setIntent(intents[sample]);
+
+                if(!close(partial.planner(fresh_graph).values(), reused.values())) {
+                    passed = false;
+                    error = String.format("sample %d values differ after refining in place", sample);
+                }
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "hierarchical", environment.name(), passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Moves a single reward between interior blocks of an
+     * empty grid, so that the hierarchical planner refines
+     * different blocks, but the same number of them, and
+     * keeps its mixed planner.  The values must match those
+     * of a fresh hierarchical planner.
+     *
+     * @return whether the check passed
+     */
+    private static boolean keptPlanner() {
+        GridWorld empty = GridWorlds.empty(12, 12, NavGrid.FOUR);
+        int[] goal = new int[1];
+        PlanningGraph graph = FixedGraph.of(empty.dynamics(), (int state) -> (goal[0] == state) ? 1.0 : 0.0);
+        PlanningAlgorithm algorithm = HierarchicalPlanner.algorithm(2, 0.01, BoltzmannPlanner.algorithm(1.0));
+
+        boolean passed = true;
+        String error = "";
+
+        try {
+            Planner kept = algorithm.planner(graph);
+
+            for(int cell : new int[]{ 26, 86, 52, 26 }) {
+                goal[0] = cell;
+
+                if(!close(algorithm.planner(graph).values(), kept.values())) {
+                    passed = false;
+                    error = String.format("values differ after moving the goal to %d", cell);
+                }
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "hierarchical", "kept planner", passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    /**
+     * Plans for every task with the converging max planner,
+     * and checks that it stops early, and that its values
+     * are exactly those of the max planner run over the full
+     * horizon, as the rewards in these worlds are integers,
+     * or match up to rounding with the vector kernels.
+     *
+     * @param environment the environment to plan in
+     * @return whether the check passed
+     */
+    private static boolean converging(Environment environment) {
+        Dynamics dynamics = environment.dynamics();
+
+        boolean passed = true;
+        String error = "";
+
+        try {
+            for(Task task : environment.tasks()) {
+                double[][] expected = MaxPlanner.algorithm().planner(dynamics, task).values();
+                ConvergingMaxPlanner planner = (ConvergingMaxPlanner) ConvergingMaxPlanner.algorithm().planner(dynamics, task);
+                double[][] actual = planner.values();
+
+                for(int state = 0; state < expected.length; ++state)
+                    if(!same(expected[state], actual[state])) {
+                        passed = false;
+                        error = String.format("state %d values differ", state);
+                    }
+
+                if(planner.iterations() > dynamics.depth()) {
+                    passed = false;
+                    error = "did not stop early";
+                }
+            }
+        } catch(RuntimeException e) {
+            passed = false;
+            error = e.toString();
+        }
+
+        System.out.printf("%-30s %-20s %s %s%n", "converging", environment.name(), passed ? "passed" : "FAILED", error);
+
+        return passed;
+    }
+
+    // Checks that two arrays are identical, or match up to rounding with the vector kernels, whose sums may be ordered differently from call to call
+    private static boolean same(double[] expected, double[] actual) {
+        if(!Kernels.vectorized())
+            return Arrays.equals(expected, actual);
+
+        return close(new double[][]{ expected }, new double[][]{ actual });
+    }
+
+    // Checks that two arrays match, up to rounding from summing transitions in a different order
+    private static boolean close(double[][] expected, double[][] actual) {
+        for(int row = 0; row < expected.length; ++row)
+            for(int column = 0; column < expected[row].length; ++column)
+                if(!(Math.abs(expected[row][column] - actual[row][column])
+                        <= 1e-9 * Math.max(1.0, Math.abs(expected[row][column]))))
+                    return false;
+
+        return true;
+    }
+
+    // A small BAM configuration, with or without lumping
+    private static Algorithm bam(boolean lump_states) {
+        return BAM.builder()
+                .taskSource(PointDensity.builder().optimization(ClippedMomentum.with(0.01, 0.7, 0.1)).build())
+                .dynamicsOptimization(ClippedMomentum.with(1.0, 0.7, 0.1))
+                .planningAlgorithm(BoltzmannPlanner.algorithm(1.0))
+                .actionModel(NormalizedActionModel.beta(1.0))
+                .taskUpdates(5)
+                .dynamicsUpdates(5)
+                .emUpdates(3)
+                .useTransitions(true)
+                .lumpStates(lump_states)
+                .build();
+    }
+}
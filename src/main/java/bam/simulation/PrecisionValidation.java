@@ -0,0 +1,194 @@
+package bam.simulation;
+
+import bam.algorithms.Algorithm;
+import bam.algorithms.BAM;
+import bam.algorithms.Behavior;
+import bam.algorithms.Dynamics;
+import bam.algorithms.action.ActionModel;
+import bam.algorithms.action.BoltzmannActionModel;
+import bam.algorithms.action.NormalizedActionModel;
+import bam.algorithms.optimization.ClippedMomentum;
+import bam.algorithms.planning.BoltzmannPlanner;
+import bam.algorithms.planning.PlanningAlgorithm;
+import bam.algorithms.variational.PointDensity;
+import bam.domains.Environment;
+import bam.domains.NavGrid;
+import bam.domains.Task;
+import bam.domains.farm_world.FarmWorlds;
+import bam.domains.gravity_world.GravityWorlds;
+import bam.domains.grid_world.GridWorlds;
+import org.json.JSONObject;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class is the entry point for checking the
+ * accuracy of the approximate planning modes.  For
+ * every task of the built in grid, gravity and farm
+ * worlds, it computes the Boltzmann Q-function both
+ * exactly and approximately, and reports the largest
+ * differences between them, the number of states
+ * where the approximate greedy action is worse than
+ * the exact one, and the largest total variation
+ * distance between the Boltzmann policies a learner
+ * would follow.
+ *
+ * Takes an optional inverse temperature (default 1.0),
+ * relative error tolerance (default 1e-4) and mode as
+ * arguments.  The mode is either "precision" (default),
+ * which checks single precision planning, or "exp",
+ * which checks the fast exponential in the planner and
+ * the action model.  In "exp" mode it also trains BAM
+ * agents on the same demonstrations of each environment,
+ * once with exact exponentials everywhere and once with
+ * fast ones, and reports how much the learned policies
+ * differ.  Exits with a non-zero status if any task's
+ * values exceed the tolerance.
+ */
+public class PrecisionValidation {
+
+    public static void main(String[] args) {
+        double beta = (0 < args.length) ? Double.parseDouble(args[0]) : 1.0;
+        double tolerance = (1 < args.length) ? Double.parseDouble(args[1]) : 1e-4;
+        boolean exp = (2 < args.length) && args[2].equals("exp");
+
+        // Define environments
+        List<Environment> environments = new LinkedList<>();
+        environments.add(GridWorlds.twoRooms());
+        environments.add(GridWorlds.doors());
+        environments.add(GridWorlds.centerWallLarge(NavGrid.FOUR));
+        environments.add(GridWorlds.threeRoomsLarge(NavGrid.EIGHT));
+        environments.add(GravityWorlds.flip());
+        environments.add(GravityWorlds.medium_flip());
+        environments.add(GravityWorlds.large_flip());
+        environments.add(GravityWorlds.big_wall());
+        environments.add(GravityWorlds.threeColors());
+        environments.add(FarmWorlds.twoFields());
+        environments.add(FarmWorlds.threeFields());
+        environments.add(FarmWorlds.sixFields());
+
+        // Define planning algorithms and action models
+        PlanningAlgorithm reference = BoltzmannPlanner.algorithm(beta, 1, false, false, false);
+        PlanningAlgorithm approximate = BoltzmannPlanner.algorithm(beta, 1, false, !exp, exp);
+
+        ActionModel reference_model = BoltzmannActionModel.beta(beta, false);
+        ActionModel approximate_model = BoltzmannActionModel.beta(beta, exp);
+
+        boolean passed = true;
+
+        System.out.println(exp ? "Fast exponential vs. exact" : "Single precision vs. double");
+        System.out.printf("%-20s %-20s %12s %12s %10s %12s%n", "environment", "task", "max abs", "max rel", "argmax", "policy tv");
+
+        for(Environment environment : environments) {
+            Dynamics dynamics = environment.dynamics();
+
+            for(Task task : environment.tasks()) {
+                double[][] expected = reference.planner(dynamics, task).values();
+                double[][] actual = approximate.planner(dynamics, task).values();
+
+                double max_absolute = 0.0;
+                double max_relative = 0.0;
+                double max_divergence = 0.0;
+                int disagreements = 0;
+
+                for(int state = 0; state < expected.length; ++state) {
+                    for(int action = 0; action < expected[state].length; ++action) {
+                        double error = Math.abs(expected[state][action] - actual[state][action]);
+
+                        max_absolute = Math.max(max_absolute, error);
+                        max_relative = Math.max(max_relative, error / Math.max(1.0, Math.abs(expected[state][action])));
+                    }
+
+                    // Count states where the single precision greedy action is worse, ignoring ties
+                    double best = expected[state][argmax(expected[state])];
+                    double chosen = expected[state][argmax(actual[state])];
+
+                    if(best - chosen > tolerance * Math.max(1.0, Math.abs(best)))
+                        ++disagreements;
+
+                    // Compare the policies a learner would follow, as total variation distance
+                    double[] expected_policy = reference_model.policy(expected[state]);
+                    double[] actual_policy = approximate_model.policy(actual[state]);
+                    double divergence = 0.0;
+
+                    for(int action = 0; action < expected_policy.length; ++action)
+                        divergence += Math.abs(expected_policy[action] - actual_policy[action]);
+
+                    max_divergence = Math.max(max_divergence, 0.5 * divergence);
+                }
+
+                System.out.printf("%-20s %-20s %12.4e %12.4e %6d/%-4d %12.4e%n", environment.name(), task.name(),
+                        max_absolute, max_relative, disagreements, expected.length, max_divergence);
+
+                if(max_relative > tolerance)
+                    passed = false;
+            }
+        }
+
+        if(exp)
+            agents(environments, beta);
+
+        System.out.println(passed ? "PASSED" : "FAILED, relative error exceeds " + tolerance);
+
+        if(!passed)
+            System.exit(1);
+    }
+
+    /**
+     * Trains BAM agents with exact and fast exponentials in
+     * both the planner and the action model, and reports the
+     * largest total variation distance between the policies
+     * they learn, for each environment and action model.  The
+     * action models are loaded from their configurations, as
+     * an experiment would load them.
+     *
+     * @param environments the environments to learn in
+     * @param beta the inverse temperature
+     */
+    private static void agents(List<Environment> environments, double beta) {
+        String[] models = {BoltzmannActionModel.class.getSimpleName(), NormalizedActionModel.class.getSimpleName()};
+
+        System.out.println("Trained agents, fast exponential vs. exact");
+        System.out.printf("%-20s %-25s %12s%n", "environment", "action model", "policy tv");
+
+        for(Environment environment : environments) {
+            for(String model : models) {
+                Behavior expected = Util.train(bam(beta, model, false), environment, 2, 17L);
+                Behavior actual = Util.train(bam(beta, model, true), environment, 2, 17L);
+
+                System.out.printf("%-20s %-25s %12.4e%n", environment.name(), model,
+                        Util.divergence(expected, actual, environment));
+            }
+        }
+    }
+
+    // A small BAM configuration, with the given action model, and either exact or fast exponentials throughout
+    private static Algorithm bam(double beta, String action_model, boolean fast) {
+        ActionModel model = ActionModel.load(new JSONObject()
+                .put("class", action_model)
+                .put("beta", beta)
+                .put("exponential", fast ? "fast" : "exact"));
+
+        return BAM.builder()
+                .taskSource(PointDensity.builder().optimization(ClippedMomentum.with(0.01, 0.7, 0.1)).build())
+                .dynamicsOptimization(ClippedMomentum.with(1.0, 0.7, 0.1))
+                .planningAlgorithm(BoltzmannPlanner.algorithm(beta, 1, false, false, fast))
+                .actionModel(model)
+                .taskUpdates(5)
+                .dynamicsUpdates(5)
+                .emUpdates(3)
+                .useTransitions(true)
+                .build();
+    }
+
+    private static int argmax(double[] values) {
+        int best = 0;
+
+        for(int index = 1; index < values.length; ++index)
+            if(values[index] > values[best])
+                best = index;
+
+        return best;
+    }
+}
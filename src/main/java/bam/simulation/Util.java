@@ -1,5 +1,15 @@
 package bam.simulation;
 
+import bam.algorithms.Agent;
+import bam.algorithms.Algorithm;
+import bam.algorithms.Behavior;
+import bam.algorithms.Dynamics;
+import bam.algorithms.ExpertPolicy;
+import bam.algorithms.StateTransition;
+import bam.algorithms.TeacherAction;
+import bam.domains.Environment;
+import bam.domains.Task;
+
 import javax.swing.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -7,6 +17,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Optional;
+import java.util.Random;
 import java.util.prefs.Preferences;
 
 /**
@@ -145,4 +156,72 @@ public class Util {
         window.pack();
         window.setVisible(true);
     }
+
+    /**
+     * Trains an agent on demonstrations of every task in an
+     * environment, generated by the expert policies from a
+     * fixed seed, so that agents built by different algorithms
+     * see exactly the same data, and returns its behavior.
+     *
+     * @param algorithm the algorithm to train
+     * @param environment the environment to demonstrate tasks in
+     * @param demonstrations the number of demonstrations of each task
+     * @param seed the seed used to generate the demonstrations
+     * @return the behavior of the trained agent
+     */
+    public static Behavior train(Algorithm algorithm, Environment environment, int demonstrations, long seed) {
+        Random random = new Random(seed);
+        Dynamics dynamics = environment.dynamics();
+        Agent agent = algorithm.agent(environment.representation());
+
+        for(int demonstration = 0; demonstration < demonstrations; ++demonstration) {
+            for(Task task : environment.tasks()) {
+                ExpertPolicy expert = ExpertPolicy.with(dynamics, task);
+                agent.task(task.name());
+
+                int state = task.initial(random);
+
+                for(int step = 0; step < dynamics.depth(); ++step) {
+                    int action = expert.action(state, random);
+                    agent.observe(TeacherAction.of(state, action));
+
+                    int next_state = dynamics.transition(state, action, random);
+                    agent.observe(StateTransition.of(state, action, next_state));
+                    state = next_state;
+                }
+            }
+        }
+
+        return agent.integrate();
+    }
+
+    /**
+     * Gets the largest total variation distance between the
+     * policies of two behaviors, over all the states of every
+     * task of an environment.
+     *
+     * @param first the first behavior
+     * @param second the second behavior
+     * @param environment the environment the behaviors were learned in
+     * @return the largest total variation distance
+     */
+    public static double divergence(Behavior first, Behavior second, Environment environment) {
+        double max_divergence = 0.0;
+
+        for(Task task : environment.tasks()) {
+            double[][] first_policy = first.get(task.name());
+            double[][] second_policy = second.get(task.name());
+
+            for(int state = 0; state < first_policy.length; ++state) {
+                double divergence = 0.0;
+
+                for(int action = 0; action < first_policy[state].length; ++action)
+                    divergence += Math.abs(first_policy[state][action] - second_policy[state][action]);
+
+                max_divergence = Math.max(max_divergence, 0.5 * divergence);
+            }
+        }
+
+        return max_divergence;
+    }
 }
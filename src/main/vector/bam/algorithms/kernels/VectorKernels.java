@@ -0,0 +1,114 @@
+package bam.algorithms.kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the jdk.incubator.vector API.
+ * This class is only compiled with the vector profile,
+ * for a JVM which has the vector module, and is loaded
+ * by name through Selection.  The module is not resolved
+ * by default, so these kernels are only used when the
+ * JVM is started with:
+ *
+ *     --add-modules jdk.incubator.vector
+ *
+ * Without that flag every planner and action model
+ * silently uses the scalar kernels.
+ *
+ * Action arrays are processed in full vectors, with a
+ * masked vector for the remainder, so with 256-bit
+ * vectors the 5 moves of a four-way grid take one full
+ * and one masked vector, and the 9 moves of an eight-way
+ * grid take two full and one masked vector.  Successor
+ * lists are usually shorter than a single vector, and
+ * are gathered with a scalar loop in that case.
+ */
+class VectorKernels implements Kernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double exp(double[] values, double shift, double scale, double divisor, double[] out, int length) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int index = 0;
+
+        for(; index < SPECIES.loopBound(length); index += SPECIES.length()) {
+            DoubleVector exp = DoubleVector.fromArray(SPECIES, values, index).sub(shift).mul(scale);
+
+            if(1.0 != divisor)
+                exp = exp.div(divisor);
+
+            exp = exp.lanewise(VectorOperators.EXP);
+            exp.intoArray(out, index);
+            sum = sum.add(exp);
+        }
+
+        if(index < length) {
+            VectorMask<Double> mask = SPECIES.indexInRange(index, length);
+            DoubleVector exp = DoubleVector.fromArray(SPECIES, values, index, mask).sub(shift).mul(scale);
+
+            if(1.0 != divisor)
+                exp = exp.div(divisor);
+
+            exp = exp.lanewise(VectorOperators.EXP);
+            exp.intoArray(out, index, mask);
+            sum = sum.add(exp, mask);
+        }
+
+        return sum.reduceLanes(VectorOperators.ADD);
+    }
+
+    @Override
+    public void divide(double[] values, double divisor, int length) {
+        int index = 0;
+
+        for(; index < SPECIES.loopBound(length); index += SPECIES.length())
+            DoubleVector.fromArray(SPECIES, values, index).div(divisor).intoArray(values, index);
+
+        if(index < length) {
+            VectorMask<Double> mask = SPECIES.indexInRange(index, length);
+            DoubleVector.fromArray(SPECIES, values, index, mask).div(divisor).intoArray(values, index, mask);
+        }
+    }
+
+    @Override
+    public double dot(double[] first, double[] second, int length) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int index = 0;
+
+        for(; index < SPECIES.loopBound(length); index += SPECIES.length())
+            sum = DoubleVector.fromArray(SPECIES, first, index)
+                    .fma(DoubleVector.fromArray(SPECIES, second, index), sum);
+
+        if(index < length) {
+            VectorMask<Double> mask = SPECIES.indexInRange(index, length);
+            sum = sum.add(DoubleVector.fromArray(SPECIES, first, index, mask)
+                    .mul(DoubleVector.fromArray(SPECIES, second, index, mask)), mask);
+        }
+
+        return sum.reduceLanes(VectorOperators.ADD);
+    }
+
+    @Override
+    public double gather(double sum, double[] values, int[] indices, double[] weights, int from, int to) {
+        int entry = from;
+
+        if(SPECIES.length() <= to - from) {
+            DoubleVector total = DoubleVector.zero(SPECIES);
+
+            for(; entry + SPECIES.length() <= to; entry += SPECIES.length())
+                total = DoubleVector.fromArray(SPECIES, values, 0, indices, entry)
+                        .fma(DoubleVector.fromArray(SPECIES, weights, entry), total);
+
+            sum += total.reduceLanes(VectorOperators.ADD);
+        }
+
+        for(; entry < to; ++entry)
+            sum += values[indices[entry]] * weights[entry];
+
+        return sum;
+    }
+}